@@ -0,0 +1,127 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares uploading a file as is with gzipping it on the fly.  Files are
+ * PUT to a {@link DiscardServer} that reads the body no faster than the
+ * specified bandwidth and discards it, standing in for the link to S3.
+ * Compression wins on text once the link is slower than we can compress,
+ * and costs a little on data that doesn't compress or links that are
+ * faster still.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CompressionBenchmark {
+
+    private static final int FILE_SIZE = 16 * 1024 * 1024;
+
+    @Param({"text", "random"})
+    private String content;
+
+    /**
+     * The bandwidth of the simulated link in megabytes per second, or zero
+     * for as fast as loopback goes.
+     */
+    @Param({"1", "10", "100", "0"})
+    private int megabytesPerSecond;
+
+    private DiscardServer server;
+
+    private AmazonS3Impl raw;
+
+    private AmazonS3Impl compressed;
+
+    private File file;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.server =
+            new DiscardServer(this.megabytesPerSecond * 1024L * 1024);
+        final String url = this.server.getUrl();
+        this.raw = newClient(url, false);
+        this.compressed = newClient(url, true);
+
+        this.file = File.createTempFile("compression-benchmark", ".js");
+        this.file.deleteOnExit();
+        FileUtils.writeByteArrayToFile(this.file,
+            "text".equals(this.content) ? text() : random());
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.raw.shutdown();
+        this.compressed.shutdown();
+        this.server.stop();
+        this.file.delete();
+    }
+
+    @Benchmark
+    public void raw() throws IOException {
+        this.raw.putFile("bucket", "key.js", this.file, false, true);
+    }
+
+    @Benchmark
+    public void compressed() throws IOException {
+        this.compressed.putFile("bucket", "key.js", this.file, false, true);
+    }
+
+    private static AmazonS3Impl newClient(final String url,
+        final boolean compress) {
+        final AmazonS3Config config = new AmazonS3Config();
+        config.setCompressUploads(compress);
+        // Keep both to a single PUT, and the server sends no ETag to check.
+        config.setMultipartThreshold(Long.MAX_VALUE);
+        config.setPartSize(2L * FILE_SIZE);
+        config.setContentMd5Enabled(false);
+        config.setJmxEnabled(false);
+        return new AmazonS3Impl("id", "secret", url, url, config);
+    }
+
+    /**
+     * Source code like text, which gzip shrinks to about a third.
+     */
+    private static byte[] text() throws IOException {
+        final String[] words = {"function", "return", "var", "this", "if",
+            "else", "document", "window", "length", "for", "null", "true",
+            "(", ")", "{", "}", ";", "=", "+", "."};
+        final Random random = new Random(1);
+        final StringBuilder sb = new StringBuilder(FILE_SIZE + 20);
+        while (sb.length() < FILE_SIZE) {
+            sb.append(words[random.nextInt(words.length)]);
+            sb.append(random.nextInt(10) == 0 ? '\n' : ' ');
+            if (random.nextInt(4) == 0) {
+                sb.append(random.nextInt(1000));
+            }
+        }
+        sb.setLength(FILE_SIZE);
+        return sb.toString().getBytes("UTF-8");
+    }
+
+    private static byte[] random() {
+        final byte[] data = new byte[FILE_SIZE];
+        new Random(1).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,93 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local server for the upload benchmarks that reads every request body,
+ * throws it away and answers 200, so the numbers reflect our side of the
+ * socket.  It can also read bodies no faster than a set bandwidth to stand
+ * in for a slower link to S3.
+ */
+final class DiscardServer {
+
+    private final HttpServer server;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    /**
+     * Starts a server that reads as fast as loopback goes.
+     *
+     * @throws IOException If the server could not start.
+     */
+    DiscardServer() throws IOException {
+        this(0);
+    }
+
+    /**
+     * Starts a server.
+     *
+     * @param bytesPerSecond The most bytes per second to read from each
+     * request, or zero for no limit.
+     * @throws IOException If the server could not start.
+     */
+    DiscardServer(final long bytesPerSecond) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0),
+            0);
+        this.server.createContext("/", new HttpHandler() {
+            public void handle(final HttpExchange exchange)
+                throws IOException {
+                final InputStream is = exchange.getRequestBody();
+                final byte[] buf = new byte[64 * 1024];
+                final long start = System.nanoTime();
+                long total = 0;
+                int read;
+                while ((read = is.read(buf)) != -1) {
+                    total += read;
+                    if (bytesPerSecond > 0) {
+                        throttle(start, total, bytesPerSecond);
+                    }
+                }
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        this.server.setExecutor(this.executor);
+        this.server.start();
+    }
+
+    /**
+     * @return The base URL of the server, such as "http://127.0.0.1:1234".
+     */
+    String getUrl() {
+        return "http://127.0.0.1:" + this.server.getAddress().getPort();
+    }
+
+    void stop() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    private static void throttle(final long start, final long total,
+        final long bytesPerSecond) throws IOException {
+        final long due = start + total * 1000000000L / bytesPerSecond;
+        final long wait = due - System.nanoTime();
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks parsing bucket and key listings.  The documents follow the
+ * layout of responses captured from S3, repeated to the page size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListingParserBenchmark {
+
+    @Param({"100", "1000"})
+    private int numEntries;
+
+    private byte[] bucketListing;
+
+    private byte[] buckets;
+
+    @Setup
+    public void setUp() throws UnsupportedEncodingException {
+        this.bucketListing = bucketListingXml(this.numEntries);
+        this.buckets = bucketsXml(this.numEntries);
+    }
+
+    @Benchmark
+    public ListingPage parseBucketListing(final Blackhole bh) 
+        throws IOException {
+        return ListingParser.parseBucketListing(
+            new ByteArrayInputStream(this.bucketListing),
+            new ListingHandler<S3ObjectSummary>() {
+            public void handle(final S3ObjectSummary entry) {
+                bh.consume(entry);
+            }
+        });
+    }
+
+    @Benchmark
+    public void parseBuckets(final Blackhole bh) throws IOException {
+        ListingParser.parseBuckets(new ByteArrayInputStream(this.buckets),
+            new ListingHandler<S3BucketSummary>() {
+            public void handle(final S3BucketSummary entry) {
+                bh.consume(entry);
+            }
+        });
+    }
+
+    private static byte[] bucketListingXml(final int numKeys) 
+        throws UnsupportedEncodingException {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        sb.append("<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">");
+        sb.append("<Name>littleshoot</Name><Prefix></Prefix><Marker></Marker>");
+        sb.append("<MaxKeys>1000</MaxKeys><IsTruncated>true</IsTruncated>");
+        for (int i = 0; i < numKeys; i++) {
+            sb.append("<Contents>");
+            sb.append("<Key>releases/file-").append(i).append(".txt</Key>");
+            sb.append("<LastModified>2009-10-12T17:50:30.000Z</LastModified>");
+            sb.append("<ETag>&quot;fba9dede5f27731c9771645a39863328&quot;</ETag>");
+            sb.append("<Size>").append(3000000000L + i).append("</Size>");
+            sb.append("<Owner><ID>75aa57f09aa0c8caeab4f8c24e99d10f8e7faeebf76c078efc7c6caea54ba06a</ID>");
+            sb.append("<DisplayName>afisk</DisplayName></Owner>");
+            sb.append("<StorageClass>STANDARD</StorageClass>");
+            sb.append("</Contents>");
+        }
+        sb.append("</ListBucketResult>");
+        return sb.toString().getBytes("UTF-8");
+    }
+
+    private static byte[] bucketsXml(final int numBuckets) 
+        throws UnsupportedEncodingException {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        sb.append("<ListAllMyBucketsResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">");
+        sb.append("<Owner><ID>75aa57f09aa0c8caeab4f8c24e99d10f8e7faeebf76c078efc7c6caea54ba06a</ID>");
+        sb.append("<DisplayName>afisk</DisplayName></Owner><Buckets>");
+        for (int i = 0; i < numBuckets; i++) {
+            sb.append("<Bucket><Name>littleshoot-").append(i).append("</Name>");
+            sb.append("<CreationDate>2006-02-03T16:45:09.000Z</CreationDate>");
+            sb.append("</Bucket>");
+        }
+        sb.append("</Buckets></ListAllMyBucketsResult>");
+        return sb.toString().getBytes("UTF-8");
+    }
+}
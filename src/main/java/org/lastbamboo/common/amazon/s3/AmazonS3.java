@@ -2,6 +2,9 @@ package org.lastbamboo.common.amazon.s3;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Collection;
 
 import org.apache.commons.httpclient.HttpMethod;
 
@@ -30,7 +33,10 @@ public interface AmazonS3
     void deleteBucket(String bucketName) throws IOException;
 
     /**
-     * Uploads a file to S3.
+     * Uploads a file to S3.  Files at or above the configured multipart
+     * threshold are uploaded in parallel parts.  If the configuration
+     * turns compression on and the file's type is compressible, it's
+     * gzipped as it's sent.
      *
      * @param bucketName The name of the bucket.
      * @param file The file to upload.
@@ -59,10 +65,30 @@ public interface AmazonS3
      */
     void putPublicFile(String bucketName, File file, String mimeType) 
         throws IOException;
+
+    /**
+     * Uploads everything read from a stream, such as the output of another
+     * process, without needing to know its length up front.  The data is
+     * sent in parts as it's read, so memory use is bounded by the part 
+     * size and the number of part upload threads rather than the size of 
+     * the stream.  The stream is read to the end but not closed.
+     *
+     * @param bucketName The name of the bucket.
+     * @param key The key to store the data under.
+     * @param is The stream to upload.
+     * @param mimeType The content type of the data.
+     * @param isPublic Whether or not the object should be publicly 
+     * readable.
+     * @throws IOException If we could not read the stream or upload the 
+     * data.  Any parts already sent are discarded on S3 in this case.
+     */
+    void putStream(String bucketName, String key, InputStream is, 
+        String mimeType, boolean isPublic) throws IOException;
     
     /**
      * Downloads a file from the specified bucket and file name to the 
-     * specified local path.
+     * specified local path.  If segmented downloads are configured, large
+     * files are fetched as several byte ranges in parallel.
      * 
      * @param bucketName The name of the Amazon S3 bucket.
      * @param fileName The name of the file within the bucket.
@@ -76,7 +102,8 @@ public interface AmazonS3
     /**
      * Downloads a file from the specified bucket and file name to the 
      * specified local path.  The specified file must be publicly available
-     * in S3.
+     * in S3.  If segmented downloads are configured, large files are 
+     * fetched as several byte ranges in parallel.
      * 
      * @param bucketName The name of the Amazon S3 bucket.
      * @param fileName The name of the file within the bucket.
@@ -87,6 +114,61 @@ public interface AmazonS3
     void getPublicFile(String bucketName, String fileName, File target)
         throws IOException;
 
+    /**
+     * Opens the body of an object for reading straight from the connection,
+     * without writing it to disk.  This bypasses the object cache.  Unlike
+     * the file downloads, this returns the bytes just as they're stored, so
+     * objects we uploaded with compression come back gzipped.
+     * 
+     * @param bucketName The name of the Amazon S3 bucket.
+     * @param key The key of the object.
+     * @param range The bytes to read, or <code>null</code> for the whole
+     * object.
+     * @param isPublic Whether the object is publicly readable, in which
+     * case it's fetched without signing as with 
+     * {@link #getPublicFile(String, String, File)}.
+     * @return The body.  This holds a connection until it's closed, so 
+     * callers must always close it.
+     * @throws IOException If we could either could not make a network 
+     * connection to S3 or could not understand the HTTP exchange.
+     */
+    InputStream getObjectStream(String bucketName, String key, 
+        ByteRange range, boolean isPublic) throws IOException;
+
+    /**
+     * Opens the body of an object as a channel.  This is just like 
+     * {@link #getObjectStream(String, String, ByteRange, boolean)}, and 
+     * the channel must likewise always be closed.
+     * 
+     * @param bucketName The name of the Amazon S3 bucket.
+     * @param key The key of the object.
+     * @param range The bytes to read, or <code>null</code> for the whole
+     * object.
+     * @param isPublic Whether the object is publicly readable.
+     * @return The channel.
+     * @throws IOException If we could either could not make a network 
+     * connection to S3 or could not understand the HTTP exchange.
+     */
+    ReadableByteChannel getObjectChannel(String bucketName, String key, 
+        ByteRange range, boolean isPublic) throws IOException;
+
+    /**
+     * Downloads an object, handing the body to the specified handler in 
+     * chunks as it arrives.  The connection is released when this returns.
+     * 
+     * @param bucketName The name of the Amazon S3 bucket.
+     * @param key The key of the object.
+     * @param range The bytes to read, or <code>null</code> for the whole
+     * object.
+     * @param isPublic Whether the object is publicly readable.
+     * @param handler The handler for each chunk.
+     * @throws IOException If we could either could not make a network 
+     * connection to S3 or could not understand the HTTP exchange, or if 
+     * the handler failed.
+     */
+    void getObject(String bucketName, String key, ByteRange range, 
+        boolean isPublic, ChunkHandler handler) throws IOException;
+
     /**
      * Normalizes the HTTP request headers with things like the authentication
      * token, the date, etc.
@@ -119,7 +201,9 @@ public interface AmazonS3
     /**
      * Deletes all of the files in the specified bucket matching the specified pattern.  Far
      * from allowing full regular expressions, this just simply allows the star expander
-     * at the beginning or end of the file name, or both, such as "*.txt*, "file*" or *ile*".
+     * at the beginning or end of the file name, or both, such as "*.txt*, "file*" or *ile*",
+     * or a single star in the middle, such as "logs/*.gz".  Any literal prefix is passed to
+     * S3 so only keys starting with it are listed.
      * 
      * @param bucketName The bucket.
      * @param file The file(s) to delete.  This can be of the form "*.txt*, "file*" or *ile*", 
@@ -129,6 +213,44 @@ public interface AmazonS3
      */
     public void deleteStar(String bucketName, String file) throws IOException;
 
+    /**
+     * Deletes all the specified keys using S3's multi-object delete, which 
+     * removes up to 1000 keys per request.  Several requests are sent in 
+     * parallel.
+     * 
+     * @param bucketName The bucket.
+     * @param keys The keys to delete.
+     * @throws IOException If we could either could not make a network 
+     * connection to S3 or could not understand the HTTP exchange.  If only
+     * some keys could not be deleted, this is a 
+     * {@link BulkOperationException} listing each failure.
+     */
+    void deleteAll(String bucketName, Collection<String> keys) 
+        throws IOException;
+
+    /**
+     * Uploads the files in the specified directory and its subdirectories
+     * that are new or have changed since the last sync.  A manifest of the
+     * size, modification time and MD5 of each synced file is kept under the
+     * LittleShoot directory so unchanged files don't need to be read again.
+     * Keys are the paths relative to the directory, as with 
+     * {@link #putPrivateDir(String, File)}.
+     * 
+     * @param bucketName The bucket.
+     * @param dir The directory to sync.
+     * @param makePublic Whether or not uploaded files should be publicly
+     * readable.
+     * @param deleteRemoved Whether or not to delete keys that earlier syncs
+     * of this directory uploaded and whose files have since been removed.
+     * Other keys in the bucket are never deleted.
+     * @throws IOException If we could either could not make a network 
+     * connection to S3 or could not understand the HTTP exchange.  If only
+     * some files could not be uploaded, this is a 
+     * {@link BulkOperationException} listing each failure.
+     */
+    void sync(String bucketName, File dir, boolean makePublic, 
+        boolean deleteRemoved) throws IOException;
+
     /**
      * List all the files in the bucket.
      * 
@@ -139,22 +261,70 @@ public interface AmazonS3
     void listBucket(String bucketName) throws IOException;
 
     /**
-     * Adds all the files in the specified directory to the specified bucket.
+     * List the files in the bucket starting with the specified prefix, 
+     * showing keys further down the "/" separated hierarchy as directories.
      * 
      * @param bucketName The name of the bucket to list.
-     * @param dir The directory containing files to add.
+     * @param prefix The prefix to list.
      * @throws IOException If we could either could not make a network 
      * connection to S3 or could not understand the HTTP exchange.
      */
+    void listBucket(String bucketName, String prefix) throws IOException;
+
+    /**
+     * Lists all the objects in the bucket.  The listing is fetched lazily a
+     * page at a time, with the next page requested in the background while
+     * the caller works through the current one.
+     * 
+     * @param bucketName The name of the bucket to list.
+     * @return An iterator over all the objects in the bucket.  Network 
+     * errors are thrown from its methods as 
+     * {@link org.littleshoot.util.RuntimeIoException}s.
+     */
+    BucketListing listObjects(String bucketName);
+
+    /**
+     * Lists the objects in the bucket whose keys start with the specified
+     * prefix.  S3 does the filtering, so only matching keys are sent to us.
+     * 
+     * @param bucketName The name of the bucket to list.
+     * @param prefix Only list keys starting with this, or <code>null</code>
+     * for all keys.
+     * @param delimiter If not <code>null</code>, keys that contain the 
+     * delimiter after the prefix are rolled up into the listing's common 
+     * prefixes rather than returned individually.  This is typically "/".
+     * @return An iterator over the matching objects.  Network errors are 
+     * thrown from its methods as 
+     * {@link org.littleshoot.util.RuntimeIoException}s.
+     */
+    BucketListing listObjects(String bucketName, String prefix, 
+        String delimiter);
+
+    /**
+     * Adds all the files in the specified directory and its subdirectories 
+     * to the specified bucket.  Each file's key is its path relative to the
+     * directory.  Files are uploaded in parallel.
+     * 
+     * @param bucketName The name of the bucket to list.
+     * @param dir The directory containing files to add.
+     * @throws IOException If we could either could not make a network 
+     * connection to S3 or could not understand the HTTP exchange.  If only
+     * some files failed, this is a {@link BulkOperationException} listing
+     * each failure.
+     */
     void putPrivateDir(String bucketName, File dir) throws IOException;
 
     /**
-     * Adds all the files in the specified directory to the specified bucket.
+     * Adds all the files in the specified directory and its subdirectories 
+     * to the specified bucket.  Each file's key is its path relative to the
+     * directory.  Files are uploaded in parallel.
      * 
      * @param bucketName The name of the bucket to list.
      * @param dir The directory containing files to add.
      * @throws IOException If we could either could not make a network 
-     * connection to S3 or could not understand the HTTP exchange.
+     * connection to S3 or could not understand the HTTP exchange.  If only
+     * some files failed, this is a {@link BulkOperationException} listing
+     * each failure.
      */
     void putPublicDir(String bucketName, File dir) throws IOException;
 
@@ -164,4 +334,10 @@ public interface AmazonS3
      * connection to S3 or could not understand the HTTP exchange.
      */
     void listBuckets() throws IOException;
+
+    /**
+     * Closes any pooled connections and stops this instance's background
+     * work.  The instance should not be used after this call.
+     */
+    void shutdown();
     }
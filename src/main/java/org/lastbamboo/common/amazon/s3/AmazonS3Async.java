@@ -0,0 +1,199 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Asynchronous companion to {@link AmazonS3}.  Each method starts the 
+ * operation and returns right away with a future that completes when the
+ * operation does, or completes exceptionally with the {@link 
+ * java.io.IOException} the blocking call would have thrown.  Cancelling a 
+ * future aborts the operation's requests in flight and releases their
+ * connections.
+ */
+public interface AmazonS3Async
+    {
+
+    /**
+     * Creates a new bucket.
+     * 
+     * @param name The name of the bucket.
+     * @return A future for the operation.
+     */
+    CompletableFuture<Void> createBucket(String name);
+
+    /**
+     * Deletes the bucket with the specified name.
+     * 
+     * @param bucketName The name of the bucket to delete.
+     * @return A future for the operation.
+     */
+    CompletableFuture<Void> deleteBucket(String bucketName);
+
+    /**
+     * Uploads the specified file as a private file.
+     * 
+     * @param bucketName The name of the bucket.
+     * @param file The file to upload.
+     * @return A future for the operation.
+     */
+    CompletableFuture<Void> putPrivateFile(String bucketName, File file);
+
+    /**
+     * Uploads the specified file as a publicly readable file.
+     * 
+     * @param bucketName The name of the bucket.
+     * @param file The file to upload.
+     * @return A future for the operation.
+     */
+    CompletableFuture<Void> putPublicFile(String bucketName, File file);
+
+    /**
+     * Uploads the specified file as a publicly readable file with a custom
+     * MIME type.
+     * 
+     * @param bucketName The name of the bucket.
+     * @param file The file to upload.
+     * @param mimeType The MIME type.
+     * @return A future for the operation.
+     */
+    CompletableFuture<Void> putPublicFile(String bucketName, File file, 
+        String mimeType);
+
+    /**
+     * Uploads everything read from the specified stream.  The stream is 
+     * read on another thread, so the caller must not use it until the 
+     * future completes.
+     * 
+     * @param bucketName The name of the bucket.
+     * @param key The key to store the data under.
+     * @param is The stream to upload.
+     * @param mimeType The MIME type.
+     * @param isPublic Whether or not the object should be publicly 
+     * readable.
+     * @return A future for the operation.
+     */
+    CompletableFuture<Void> putStream(String bucketName, String key, 
+        InputStream is, String mimeType, boolean isPublic);
+
+    /**
+     * Uploads all the files in the specified directory and its 
+     * subdirectories as private files.
+     * 
+     * @param bucketName The name of the bucket.
+     * @param dir The directory.
+     * @return A future for the operation.
+     */
+    CompletableFuture<Void> putPrivateDir(String bucketName, File dir);
+
+    /**
+     * Uploads all the files in the specified directory and its 
+     * subdirectories as publicly readable files.
+     * 
+     * @param bucketName The name of the bucket.
+     * @param dir The directory.
+     * @return A future for the operation.
+     */
+    CompletableFuture<Void> putPublicDir(String bucketName, File dir);
+
+    /**
+     * Uploads the files in the specified directory that changed since the
+     * last sync.  See {@link AmazonS3#sync(String, File, boolean, boolean)}.
+     * 
+     * @param bucketName The name of the bucket.
+     * @param dir The directory.
+     * @param makePublic Whether or not uploaded files should be publicly
+     * readable.
+     * @param deleteRemoved Whether or not to delete keys in the bucket that
+     * don't exist in the directory.
+     * @return A future for the operation.
+     */
+    CompletableFuture<Void> sync(String bucketName, File dir, 
+        boolean makePublic, boolean deleteRemoved);
+
+    /**
+     * Downloads a private file.
+     * 
+     * @param bucketName The name of the bucket.
+     * @param fileName The key of the file.
+     * @param target The file to write to.
+     * @return A future for the operation.
+     */
+    CompletableFuture<Void> getPrivateFile(String bucketName, String fileName,
+        File target);
+
+    /**
+     * Downloads a publicly readable file.
+     * 
+     * @param bucketName The name of the bucket.
+     * @param fileName The key of the file.
+     * @param target The file to write to.
+     * @return A future for the operation.
+     */
+    CompletableFuture<Void> getPublicFile(String bucketName, String fileName,
+        File target);
+
+    /**
+     * Downloads an object, handing the body to the specified handler in 
+     * chunks as it arrives.  The handler is called on one of our threads.
+     * 
+     * @param bucketName The name of the bucket.
+     * @param key The key of the object.
+     * @param range The bytes to read, or <code>null</code> for the whole
+     * object.
+     * @param isPublic Whether the object is publicly readable.
+     * @param handler The handler for each chunk.
+     * @return A future for the operation.
+     */
+    CompletableFuture<Void> getObject(String bucketName, String key,
+        ByteRange range, boolean isPublic, ChunkHandler handler);
+
+    /**
+     * Deletes a single file.
+     * 
+     * @param bucketName The name of the bucket.
+     * @param fileName The key of the file.
+     * @return A future for the operation.
+     */
+    CompletableFuture<Void> delete(String bucketName, String fileName);
+
+    /**
+     * Deletes the files matching a simple '*' pattern.  See
+     * {@link AmazonS3#deleteStar(String, String)}.
+     * 
+     * @param bucketName The name of the bucket.
+     * @param file The pattern.
+     * @return A future for the operation.
+     */
+    CompletableFuture<Void> deleteStar(String bucketName, String file);
+
+    /**
+     * Deletes all the specified keys.
+     * 
+     * @param bucketName The name of the bucket.
+     * @param keys The keys.
+     * @return A future for the operation.
+     */
+    CompletableFuture<Void> deleteAll(String bucketName, 
+        Collection<String> keys);
+
+    /**
+     * Lists the objects in a bucket, fetching every page of the listing.
+     * 
+     * @param bucketName The name of the bucket.
+     * @param prefix Only list keys starting with this, or <code>null</code>
+     * for all keys.
+     * @return A future for all the objects.
+     */
+    CompletableFuture<List<S3ObjectSummary>> listObjects(String bucketName,
+        String prefix);
+
+    /**
+     * Stops accepting operations and releases our threads if we created
+     * them.  This doesn't shut down the underlying {@link AmazonS3}.
+     */
+    void shutdown();
+    }
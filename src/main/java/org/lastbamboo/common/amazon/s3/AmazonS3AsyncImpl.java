@@ -0,0 +1,284 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.littleshoot.util.RuntimeIoException;
+
+/**
+ * {@link AmazonS3Async} that runs the blocking {@link AmazonS3} operations
+ * on an executor.  Each operation runs in its own {@link CancellationScope},
+ * so cancelling its future aborts whatever requests it has in flight, 
+ * including those on the worker threads of bulk operations.
+ */
+public class AmazonS3AsyncImpl implements AmazonS3Async {
+
+    private final AmazonS3 s3;
+
+    private final Executor executor;
+
+    /**
+     * The executor if we created it, so we know to shut it down.
+     */
+    private final ExecutorService ownedExecutor;
+
+    /**
+     * Creates a new async S3 that runs operations on its own pool of 
+     * {@link AmazonS3Config#getAsyncThreads()} threads.
+     *
+     * @param s3 The S3 instance to run operations on.
+     */
+    public AmazonS3AsyncImpl(final AmazonS3Impl s3) {
+        this.s3 = s3;
+        this.ownedExecutor = s3.newExecutor("S3-Async", 
+            s3.getConfig().getAsyncThreads());
+        this.executor = this.ownedExecutor;
+    }
+
+    /**
+     * Creates a new async S3 that runs operations on the specified 
+     * executor.
+     *
+     * @param s3 The S3 instance to run operations on.
+     * @param executor The executor to run operations on.
+     */
+    public AmazonS3AsyncImpl(final AmazonS3 s3, final Executor executor) {
+        this.s3 = s3;
+        this.executor = executor;
+        this.ownedExecutor = null;
+    }
+
+    public CompletableFuture<Void> createBucket(final String name) {
+        return submit(new Operation<Void>() {
+            public Void call() throws IOException {
+                s3.createBucket(name);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Void> deleteBucket(final String bucketName) {
+        return submit(new Operation<Void>() {
+            public Void call() throws IOException {
+                s3.deleteBucket(bucketName);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Void> putPrivateFile(final String bucketName,
+        final File file) {
+        return submit(new Operation<Void>() {
+            public Void call() throws IOException {
+                s3.putPrivateFile(bucketName, file);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Void> putPublicFile(final String bucketName,
+        final File file) {
+        return submit(new Operation<Void>() {
+            public Void call() throws IOException {
+                s3.putPublicFile(bucketName, file);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Void> putPublicFile(final String bucketName,
+        final File file, final String mimeType) {
+        return submit(new Operation<Void>() {
+            public Void call() throws IOException {
+                s3.putPublicFile(bucketName, file, mimeType);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Void> putStream(final String bucketName,
+        final String key, final InputStream is, final String mimeType,
+        final boolean isPublic) {
+        return submit(new Operation<Void>() {
+            public Void call() throws IOException {
+                s3.putStream(bucketName, key, is, mimeType, isPublic);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Void> putPrivateDir(final String bucketName,
+        final File dir) {
+        return submit(new Operation<Void>() {
+            public Void call() throws IOException {
+                s3.putPrivateDir(bucketName, dir);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Void> putPublicDir(final String bucketName,
+        final File dir) {
+        return submit(new Operation<Void>() {
+            public Void call() throws IOException {
+                s3.putPublicDir(bucketName, dir);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Void> sync(final String bucketName, 
+        final File dir, final boolean makePublic, 
+        final boolean deleteRemoved) {
+        return submit(new Operation<Void>() {
+            public Void call() throws IOException {
+                s3.sync(bucketName, dir, makePublic, deleteRemoved);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Void> getPrivateFile(final String bucketName,
+        final String fileName, final File target) {
+        return submit(new Operation<Void>() {
+            public Void call() throws IOException {
+                s3.getPrivateFile(bucketName, fileName, target);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Void> getPublicFile(final String bucketName,
+        final String fileName, final File target) {
+        return submit(new Operation<Void>() {
+            public Void call() throws IOException {
+                s3.getPublicFile(bucketName, fileName, target);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Void> getObject(final String bucketName,
+        final String key, final ByteRange range, final boolean isPublic,
+        final ChunkHandler handler) {
+        return submit(new Operation<Void>() {
+            public Void call() throws IOException {
+                s3.getObject(bucketName, key, range, isPublic, handler);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Void> delete(final String bucketName,
+        final String fileName) {
+        return submit(new Operation<Void>() {
+            public Void call() throws IOException {
+                s3.delete(bucketName, fileName);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Void> deleteStar(final String bucketName,
+        final String file) {
+        return submit(new Operation<Void>() {
+            public Void call() throws IOException {
+                s3.deleteStar(bucketName, file);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Void> deleteAll(final String bucketName,
+        final Collection<String> keys) {
+        return submit(new Operation<Void>() {
+            public Void call() throws IOException {
+                s3.deleteAll(bucketName, keys);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<List<S3ObjectSummary>> listObjects(
+        final String bucketName, final String prefix) {
+        return submit(new Operation<List<S3ObjectSummary>>() {
+            public List<S3ObjectSummary> call() throws IOException {
+                final List<S3ObjectSummary> objects = 
+                    new ArrayList<S3ObjectSummary>();
+                try {
+                    final BucketListing listing = 
+                        s3.listObjects(bucketName, prefix, null);
+                    while (listing.hasNext()) {
+                        objects.add(listing.next());
+                    }
+                } catch (final RuntimeIoException e) {
+                    throw (IOException) new IOException(
+                        "Could not list " + bucketName).initCause(e);
+                }
+                return objects;
+            }
+        });
+    }
+
+    public void shutdown() {
+        if (this.ownedExecutor != null) {
+            this.ownedExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs an operation on the executor in a new cancellation scope.
+     *
+     * @param operation The operation.
+     * @return The future for the operation's result.
+     */
+    <T> CompletableFuture<T> submit(final Operation<T> operation) {
+        final CancellationScope scope = new CancellationScope();
+        final CompletableFuture<T> future = new CompletableFuture<T>() {
+            @Override
+            public boolean cancel(final boolean mayInterruptIfRunning) {
+                final boolean cancelled = super.cancel(mayInterruptIfRunning);
+                if (cancelled) {
+                    scope.cancel();
+                }
+                return cancelled;
+            }
+        };
+        try {
+            this.executor.execute(new Runnable() {
+                public void run() {
+                    if (future.isDone()) {
+                        return;
+                    }
+                    scope.run(new Runnable() {
+                        public void run() {
+                            try {
+                                future.complete(operation.call());
+                            } catch (final Throwable t) {
+                                future.completeExceptionally(t);
+                            }
+                        }
+                    });
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * A blocking operation to run asynchronously.
+     */
+    interface Operation<T> {
+        T call() throws IOException;
+    }
+}
@@ -0,0 +1,576 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.File;
+
+/**
+ * Tunable settings for an {@link AmazonS3Impl} instance.  The defaults are
+ * reasonable for a single process talking to a single S3 endpoint.
+ */
+public class AmazonS3Config {
+
+    /**
+     * The smallest part size S3 accepts for multipart uploads.
+     */
+    public static final long MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    /**
+     * The most parts S3 accepts in a single multipart upload.
+     */
+    public static final int MAX_PARTS = 10000;
+
+    private int maxConnectionsPerHost = 20;
+
+    private int maxTotalConnections = 100;
+
+    private long idleConnectionTimeout = 30 * 1000;
+
+    private long idleConnectionCheckInterval = 5 * 1000;
+
+    private boolean staleCheckingEnabled = true;
+
+    private int connectionTimeout = 20 * 1000;
+
+    private int socketTimeout = 60 * 1000;
+
+    private int uploadThreads = 8;
+
+    private long multipartThreshold = 64 * 1024 * 1024;
+
+    private long partSize = 16 * 1024 * 1024;
+
+    private int partUploadThreads = 4;
+
+    private int partRetries = 3;
+
+    private boolean segmentedDownloads = false;
+
+    private long segmentedDownloadThreshold = 32 * 1024 * 1024;
+
+    private long segmentSize = 8 * 1024 * 1024;
+
+    private int downloadThreads = 4;
+
+    private int segmentRetries = 3;
+
+    private int listingPageSize = 1000;
+
+    private int deleteBatchSize = 1000;
+
+    private int deleteThreads = 4;
+
+    private boolean contentMd5Enabled = true;
+
+    private File cacheDir = null;
+
+    private long cacheMaxBytes = 1024L * 1024 * 1024;
+
+    private int asyncThreads = 16;
+
+    private boolean virtualThreads = false;
+
+    private RetryPolicy retryPolicy = new ExponentialBackoffRetryPolicy();
+
+    private int circuitBreakerThreshold = 5;
+
+    private long circuitBreakerOpenTime = 10 * 1000;
+
+    private boolean jmxEnabled = false;
+
+    private boolean compressUploads = false;
+
+    private String compressibleTypes =
+        "text/*,application/javascript,application/x-javascript," +
+        "application/json,application/xml,image/svg+xml";
+
+    private int compressionThreads =
+        Runtime.getRuntime().availableProcessors();
+
+    private int compressionBlockSize = 128 * 1024;
+
+    private int compressionLevel = 6;
+
+    private boolean regionRouting = true;
+
+    private long unknownRegionTtl = 10 * 60 * 1000;
+
+    /**
+     * @return The maximum number of pooled connections to a single host.
+     */
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    public void setMaxConnectionsPerHost(final int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    /**
+     * @return The maximum number of pooled connections across all hosts.
+     */
+    public int getMaxTotalConnections() {
+        return maxTotalConnections;
+    }
+
+    public void setMaxTotalConnections(final int maxTotalConnections) {
+        this.maxTotalConnections = maxTotalConnections;
+    }
+
+    /**
+     * @return The time in milliseconds after which an unused pooled
+     * connection is closed.
+     */
+    public long getIdleConnectionTimeout() {
+        return idleConnectionTimeout;
+    }
+
+    public void setIdleConnectionTimeout(final long idleConnectionTimeout) {
+        this.idleConnectionTimeout = idleConnectionTimeout;
+    }
+
+    /**
+     * @return How often in milliseconds we check the pool for idle
+     * connections.
+     */
+    public long getIdleConnectionCheckInterval() {
+        return idleConnectionCheckInterval;
+    }
+
+    public void setIdleConnectionCheckInterval(
+        final long idleConnectionCheckInterval) {
+        if (idleConnectionCheckInterval < 1) {
+            throw new IllegalArgumentException(
+                "The check interval must be at least 1 ms");
+        }
+        this.idleConnectionCheckInterval = idleConnectionCheckInterval;
+    }
+
+    /**
+     * @return Whether or not we check pooled connections for staleness
+     * before reusing them.  S3 closes idle connections on its end fairly
+     * aggressively, so this is on by default.
+     */
+    public boolean isStaleCheckingEnabled() {
+        return staleCheckingEnabled;
+    }
+
+    public void setStaleCheckingEnabled(final boolean staleCheckingEnabled) {
+        this.staleCheckingEnabled = staleCheckingEnabled;
+    }
+
+    /**
+     * @return The TCP connect timeout in milliseconds.
+     */
+    public int getConnectionTimeout() {
+        return connectionTimeout;
+    }
+
+    public void setConnectionTimeout(final int connectionTimeout) {
+        this.connectionTimeout = connectionTimeout;
+    }
+
+    /**
+     * @return The socket read timeout in milliseconds.
+     */
+    public int getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    public void setSocketTimeout(final int socketTimeout) {
+        this.socketTimeout = socketTimeout;
+    }
+
+    /**
+     * @return The number of files we upload in parallel when uploading
+     * directories.
+     */
+    public int getUploadThreads() {
+        return uploadThreads;
+    }
+
+    public void setUploadThreads(final int uploadThreads) {
+        this.uploadThreads = uploadThreads;
+    }
+
+    /**
+     * @return The file size in bytes at or above which we upload files as
+     * multipart uploads.  This is at least {@link #MIN_PART_SIZE}, since 
+     * anything smaller goes up faster in a single request.
+     */
+    public long getMultipartThreshold() {
+        return multipartThreshold;
+    }
+
+    public void setMultipartThreshold(final long multipartThreshold) {
+        if (multipartThreshold < MIN_PART_SIZE) {
+            throw new IllegalArgumentException("The multipart threshold " +
+                "must be at least " + MIN_PART_SIZE + " bytes");
+        }
+        this.multipartThreshold = multipartThreshold;
+    }
+
+    /**
+     * @return The size in bytes of each part of a multipart upload.  S3
+     * requires every part but the last to be at least 5MB.  Files too big
+     * to fit in {@link #MAX_PARTS} parts of this size are uploaded in 
+     * bigger parts.
+     */
+    public long getPartSize() {
+        return partSize;
+    }
+
+    public void setPartSize(final long partSize) {
+        if (partSize < MIN_PART_SIZE) {
+            throw new IllegalArgumentException("Parts must be at least " + 
+                MIN_PART_SIZE + " bytes");
+        }
+        this.partSize = partSize;
+    }
+
+    /**
+     * @return The number of parts of a single file we upload in parallel.
+     */
+    public int getPartUploadThreads() {
+        return partUploadThreads;
+    }
+
+    public void setPartUploadThreads(final int partUploadThreads) {
+        this.partUploadThreads = partUploadThreads;
+    }
+
+    /**
+     * @return The number of times we resend a part S3 accepted but returned
+     * no ETag for.  Parts S3 rejected are retried by the 
+     * {@link RetryPolicy} like any other request, and parts with the wrong
+     * ETag aren't retried at all.
+     */
+    public int getPartRetries() {
+        return partRetries;
+    }
+
+    public void setPartRetries(final int partRetries) {
+        this.partRetries = partRetries;
+    }
+
+    /**
+     * @return Whether or not we download large files as byte ranges fetched
+     * in parallel.  This costs an extra HEAD request for every download to
+     * find out the size, so it's off by default.
+     */
+    public boolean isSegmentedDownloads() {
+        return segmentedDownloads;
+    }
+
+    public void setSegmentedDownloads(final boolean segmentedDownloads) {
+        this.segmentedDownloads = segmentedDownloads;
+    }
+
+    /**
+     * @return The size in bytes at or above which we download files in 
+     * segments, if segmented downloads are on.
+     */
+    public long getSegmentedDownloadThreshold() {
+        return segmentedDownloadThreshold;
+    }
+
+    public void setSegmentedDownloadThreshold(
+        final long segmentedDownloadThreshold) {
+        if (segmentedDownloadThreshold < 0) {
+            throw new IllegalArgumentException(
+                "The segmented download threshold can't be negative");
+        }
+        this.segmentedDownloadThreshold = segmentedDownloadThreshold;
+    }
+
+    /**
+     * @return The size in bytes of each range we request in segmented
+     * downloads.
+     */
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    public void setSegmentSize(final long segmentSize) {
+        if (segmentSize < 1) {
+            throw new IllegalArgumentException("Segments must be at least " +
+                "one byte");
+        }
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * @return The number of segments of a single file we download in
+     * parallel.
+     */
+    public int getDownloadThreads() {
+        return downloadThreads;
+    }
+
+    public void setDownloadThreads(final int downloadThreads) {
+        if (downloadThreads < 1) {
+            throw new IllegalArgumentException(
+                "We need at least one download thread");
+        }
+        this.downloadThreads = downloadThreads;
+    }
+
+    /**
+     * @return The number of times we request a segment again when the
+     * response breaks off part way through.  Requests that fail outright
+     * are retried by the {@link RetryPolicy} like any other request.
+     */
+    public int getSegmentRetries() {
+        return segmentRetries;
+    }
+
+    public void setSegmentRetries(final int segmentRetries) {
+        if (segmentRetries < 0) {
+            throw new IllegalArgumentException(
+                "Segment retries can't be negative");
+        }
+        this.segmentRetries = segmentRetries;
+    }
+
+    /**
+     * @return The maximum number of keys we ask for in each page of a
+     * bucket listing.  S3 won't return more than 1000.
+     */
+    public int getListingPageSize() {
+        return listingPageSize;
+    }
+
+    public void setListingPageSize(final int listingPageSize) {
+        this.listingPageSize = listingPageSize;
+    }
+
+    /**
+     * @return The number of keys we delete in each multi-object delete 
+     * request.  S3 won't accept more than 1000.
+     */
+    public int getDeleteBatchSize() {
+        return deleteBatchSize;
+    }
+
+    public void setDeleteBatchSize(final int deleteBatchSize) {
+        this.deleteBatchSize = deleteBatchSize;
+    }
+
+    /**
+     * @return The number of multi-object delete requests we send in 
+     * parallel.
+     */
+    public int getDeleteThreads() {
+        return deleteThreads;
+    }
+
+    public void setDeleteThreads(final int deleteThreads) {
+        if (deleteThreads < 1) {
+            throw new IllegalArgumentException(
+                "We need at least one delete thread");
+        }
+        this.deleteThreads = deleteThreads;
+    }
+
+    /**
+     * @return Whether or not we send a Content-MD5 header with uploads and
+     * check the ETag S3 returns against it.
+     */
+    public boolean isContentMd5Enabled() {
+        return contentMd5Enabled;
+    }
+
+    public void setContentMd5Enabled(final boolean contentMd5Enabled) {
+        this.contentMd5Enabled = contentMd5Enabled;
+    }
+
+    /**
+     * @return The directory to cache downloaded objects in, or <code>null</code> to
+     * disable the cache.  Cached objects are revalidated with a conditional GET
+     * on every download.
+     */
+    public File getCacheDir() {
+        return cacheDir;
+    }
+
+    public void setCacheDir(final File cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * @return The most bytes of objects to keep in the download cache before
+     * evicting the least recently used.
+     */
+    public long getCacheMaxBytes() {
+        return cacheMaxBytes;
+    }
+
+    public void setCacheMaxBytes(final long cacheMaxBytes) {
+        this.cacheMaxBytes = cacheMaxBytes;
+    }
+
+    /**
+     * @return The number of threads that run operations for an
+     * {@link AmazonS3AsyncImpl} that creates its own executor.  Each operation
+     * holds a thread while it runs, so this caps the operations in flight.
+     */
+    public int getAsyncThreads() {
+        return asyncThreads;
+    }
+
+    public void setAsyncThreads(final int asyncThreads) {
+        this.asyncThreads = asyncThreads;
+    }
+
+    /**
+     * @return Whether or not bulk operations run each task on its own virtual
+     * thread rather than on a fixed pool of platform threads.  This needs Java
+     * 21 or later and is ignored on older JVMs.  Requests in flight are then
+     * bounded by {@link #getMaxConnectionsPerHost()} rather than by thread
+     * counts.
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public void setVirtualThreads(final boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * @return The policy for retrying failed requests.  The default retries
+     * connection failures, server errors and throttling up to 5 times with
+     * jittered exponential backoff, drawing on a retry budget shared by every
+     * client using this config.
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public void setRetryPolicy(final RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * @return The number of transient failures in a row after which we stop
+     * sending requests to an endpoint for a while.  Zero disables this.
+     */
+    public int getCircuitBreakerThreshold() {
+        return circuitBreakerThreshold;
+    }
+
+    public void setCircuitBreakerThreshold(final int circuitBreakerThreshold) {
+        this.circuitBreakerThreshold = circuitBreakerThreshold;
+    }
+
+    /**
+     * @return The milliseconds we wait after tripping the circuit breaker before
+     * letting a trial request through to the endpoint.
+     */
+    public long getCircuitBreakerOpenTime() {
+        return circuitBreakerOpenTime;
+    }
+
+    public void setCircuitBreakerOpenTime(final long circuitBreakerOpenTime) {
+        this.circuitBreakerOpenTime = circuitBreakerOpenTime;
+    }
+
+    /**
+     * @return Whether or not to publish request metrics as JMX MBeans.  The
+     * metrics are collected either way.  This is off by default, since the
+     * MBeans stay registered until {@link AmazonS3#shutdown()} is called,
+     * so clients that turn it on must shut down when they're done.
+     */
+    public boolean isJmxEnabled() {
+        return jmxEnabled;
+    }
+
+    public void setJmxEnabled(final boolean jmxEnabled) {
+        this.jmxEnabled = jmxEnabled;
+    }
+
+    /**
+     * @return Whether or not to gzip files with compressible content types
+     * as we upload them.  They're stored with a Content-Encoding of gzip.
+     */
+    public boolean isCompressUploads() {
+        return compressUploads;
+    }
+
+    public void setCompressUploads(final boolean compressUploads) {
+        this.compressUploads = compressUploads;
+    }
+
+    /**
+     * @return The comma separated content types we compress when uploads are
+     * compressed.  A type ending in /* matches every subtype.
+     */
+    public String getCompressibleTypes() {
+        return compressibleTypes;
+    }
+
+    public void setCompressibleTypes(final String compressibleTypes) {
+        this.compressibleTypes = compressibleTypes;
+    }
+
+    /**
+     * @return The number of threads to compress each upload on.
+     */
+    public int getCompressionThreads() {
+        return compressionThreads;
+    }
+
+    public void setCompressionThreads(final int compressionThreads) {
+        this.compressionThreads = compressionThreads;
+    }
+
+    /**
+     * @return The number of bytes each compression thread works on at a time.
+     */
+    public int getCompressionBlockSize() {
+        return compressionBlockSize;
+    }
+
+    public void setCompressionBlockSize(final int compressionBlockSize) {
+        this.compressionBlockSize = compressionBlockSize;
+    }
+
+    /**
+     * @return The gzip compression level, from 1 for fastest to 9 for smallest.
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(final int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * @return Whether or not to send requests for each bucket straight to
+     * the endpoint for the bucket's region, using virtual-hosted addresses
+     * where the bucket name allows.  This only applies when we're talking
+     * to Amazon's global S3 endpoint.
+     */
+    public boolean isRegionRouting() {
+        return regionRouting;
+    }
+
+    public void setRegionRouting(final boolean regionRouting) {
+        this.regionRouting = regionRouting;
+    }
+
+    /**
+     * @return How long in milliseconds we go to the global endpoint for a
+     * bucket whose region we couldn't look up, such as when we may not ask
+     * or the bucket doesn't exist yet, before we try again.
+     */
+    public long getUnknownRegionTtl() {
+        return unknownRegionTtl;
+    }
+
+    public void setUnknownRegionTtl(final long unknownRegionTtl) {
+        if (unknownRegionTtl < 0) {
+            throw new IllegalArgumentException("The TTL can't be negative");
+        }
+        this.unknownRegionTtl = unknownRegionTtl;
+    }
+}
@@ -1,47 +1,63 @@
 package org.lastbamboo.common.amazon.s3;
 
 import java.io.File;
-import java.io.FileFilter;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.UnknownHostException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.security.Security;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
 
 import javax.activation.MimetypesFileTypeMap;
-import javax.xml.xpath.XPathExpressionException;
 
+import org.apache.commons.httpclient.DefaultHttpMethodRetryHandler;
 import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpMethod;
-import org.apache.commons.httpclient.HttpMethodRetryHandler;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.StatusLine;
 import org.apache.commons.httpclient.URI;
 import org.apache.commons.httpclient.URIException;
 import org.apache.commons.httpclient.methods.DeleteMethod;
-import org.apache.commons.httpclient.methods.FileRequestEntity;
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
 import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.HeadMethod;
 import org.apache.commons.httpclient.methods.PutMethod;
 import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.commons.httpclient.params.HttpMethodParams;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.lastbamboo.common.amazon.stack.AwsUtils;
+import org.littleshoot.util.DaemonThreadFactory;
 import org.littleshoot.util.DateUtils;
-import org.littleshoot.util.DefaultHttpClient;
-import org.littleshoot.util.DefaultHttpClientImpl;
 import org.littleshoot.util.FileInputStreamHandler;
 import org.littleshoot.util.InputStreamHandler;
+import org.littleshoot.util.IoExceptionWithCause;
 import org.littleshoot.util.NoOpInputStreamHandler;
-import org.littleshoot.util.SecurityUtils;
-import org.littleshoot.util.xml.XPathUtils;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
+import org.littleshoot.util.RuntimeIoException;
 
 
 /**
@@ -53,10 +69,57 @@ public class AmazonS3Impl implements AmazonS3 {
     
     private final String accessKeyId;
     private final String secretAccessKey;
-    private String secureUrlBase;
-    private String urlBase;
+    private final String secureUrlBase;
     
-    private MimetypesFileTypeMap mimeMap;
+    private final MimetypesFileTypeMap mimeMap;
+
+    private final BucketEndpoints endpoints;
+
+    private final RequestSigner signer;
+
+    private final AmazonS3Config config;
+
+    /**
+     * Pool of keep-alive connections shared by all requests from this
+     * instance, so we don't pay a new TCP and TLS handshake on every call.
+     * The pool starts no threads of its own.
+     */
+    private final MultiThreadedHttpConnectionManager connectionManager;
+
+    private final HttpClient httpClient;
+
+    /**
+     * Our check for idle connections on the thread all instances share.
+     */
+    private final ScheduledFuture<?> idleConnectionCheck;
+
+    /**
+     * The cache of downloaded objects, or <code>null</code> if caching is
+     * disabled.
+     */
+    private final ObjectCache objectCache;
+
+    /**
+     * Whether or not we run bulk operations on virtual threads.
+     */
+    private final boolean virtualThreads;
+
+    /**
+     * Limits the requests in flight when we use virtual threads.  The 
+     * connection manager waits for free connections inside a synchronized
+     * block, which would pin a virtual thread to its carrier, so we only
+     * let threads in once a connection is sure to be free.  This is 
+     * <code>null</code> with platform threads.
+     */
+    private final Semaphore connectionGate;
+
+    /**
+     * The circuit breaker for each host we talk to.
+     */
+    private final ConcurrentMap<String, CircuitBreaker> circuitBreakers =
+        new ConcurrentHashMap<String, CircuitBreaker>();
+
+    private final S3Metrics metrics = new S3Metrics();
 
     /**
      * Creates a new S3 instance.
@@ -64,42 +127,141 @@ public class AmazonS3Impl implements AmazonS3 {
      * @throws IOException If the props file can't be found or keys can't be read. 
      */
     public AmazonS3Impl() throws IOException {
+        this(new AmazonS3Config());
+    }
+
+    /**
+     * Creates a new S3 instance with the specified settings.
+     * 
+     * @param config The settings for connection pooling and the like.
+     * @throws IOException If the props file can't be found or keys can't be read. 
+     */
+    public AmazonS3Impl(final AmazonS3Config config) throws IOException {
+        this(propsAccessKeyId(), propsSecretAccessKey(), propsUrlBase(),
+            propsSecureUrlBase(), config);
+    }
+
+    /**
+     * Creates a new S3 instance with explicit credentials and endpoints
+     * rather than reading them from the properties file.
+     * 
+     * @param accessKeyId The AWS access key ID.
+     * @param secretAccessKey The AWS secret access key.
+     * @param urlBase The base URL for plain HTTP requests, such as 
+     * "http://s3.amazonaws.com".
+     * @param secureUrlBase The base URL for HTTPS requests, such as
+     * "https://s3.amazonaws.com:443".
+     * @param config The settings for connection pooling and the like.
+     */
+    public AmazonS3Impl(final String accessKeyId, final String secretAccessKey,
+        final String urlBase, final String secureUrlBase, 
+        final AmazonS3Config config) {
+        this.config = config;
+        this.accessKeyId = accessKeyId;
+        this.secretAccessKey = secretAccessKey;
+        this.secureUrlBase = secureUrlBase;
+        this.endpoints = new BucketEndpoints(this, urlBase, secureUrlBase,
+            config.isRegionRouting());
+        configureDns();
+
+        this.signer = new RequestSigner(this.accessKeyId, this.secretAccessKey);
+        this.mimeMap = new MimetypesFileTypeMap();
+        this.mimeMap.addMimeTypes("application/x-apple-diskimage dmg\n");
+        // The JDK's defaults don't know these, and we need them to tell
+        // what's worth compressing.
+        this.mimeMap.addMimeTypes("text/css css\n");
+        this.mimeMap.addMimeTypes("text/csv csv\n");
+        this.mimeMap.addMimeTypes("application/javascript js\n");
+        this.mimeMap.addMimeTypes("application/json json\n");
+        this.mimeMap.addMimeTypes("application/xml xml\n");
+        this.mimeMap.addMimeTypes("image/svg+xml svg\n");
+
+        this.connectionManager = new MultiThreadedHttpConnectionManager();
+        final HttpConnectionManagerParams params = 
+            this.connectionManager.getParams();
+        params.setDefaultMaxConnectionsPerHost(
+            config.getMaxConnectionsPerHost());
+        params.setMaxTotalConnections(config.getMaxTotalConnections());
+        params.setStaleCheckingEnabled(config.isStaleCheckingEnabled());
+        params.setConnectionTimeout(config.getConnectionTimeout());
+        params.setSoTimeout(config.getSocketTimeout());
+        this.httpClient = new HttpClient(this.connectionManager);
+
+        this.idleConnectionCheck = SharedThreads.closeIdleConnections(
+            this.connectionManager, config.getIdleConnectionTimeout(),
+            config.getIdleConnectionCheckInterval());
+
+        this.objectCache = newObjectCache(config);
+
+        if (config.isVirtualThreads() && !VirtualThreads.isSupported()) {
+            log.warn("Virtual threads need Java 21 -- using platform threads");
+        }
+        this.virtualThreads = 
+            config.isVirtualThreads() && VirtualThreads.isSupported();
+        if (this.virtualThreads) {
+            this.connectionGate = 
+                new Semaphore(config.getMaxConnectionsPerHost());
+        } else {
+            this.connectionGate = null;
+        }
+        if (config.isJmxEnabled()) {
+            this.metrics.register(ManagementFactory.getPlatformMBeanServer());
+        }
+    }
+
+    private ObjectCache newObjectCache(final AmazonS3Config conf) {
+        if (conf.getCacheDir() == null) {
+            return null;
+        }
+        try {
+            return new ObjectCache(conf.getCacheDir(), conf.getCacheMaxBytes());
+        } catch (final IOException e) {
+            log.warn("Could not create object cache -- downloading directly", 
+                e);
+            return null;
+        }
+    }
+
+    private static String propsAccessKeyId() throws IOException {
         if (!AwsUtils.hasPropsFile()) {
             System.out.println("No properties file found");
             throw new IOException("No props file");
         }
         try {
-            this.accessKeyId = AwsUtils.getAccessKeyId();
+            return AwsUtils.getAccessKeyId();
         } catch (final IOException e) {
             System.out.println("Found the properties file, but there's no "
                     + "access key ID in the form: accessKeyId=");
             throw e;
         }
+    }
+
+    private static String propsSecretAccessKey() throws IOException {
         try {
-            this.secretAccessKey = AwsUtils.getAccessKey();
+            return AwsUtils.getAccessKey();
         } catch (final IOException e) {
             System.out.println("Found the properties file, but there's no "
                     + "secret access key in the form: accessKey=");
             throw e;
         }
+    }
 
+    private static String propsUrlBase() throws IOException {
         try {
-            this.urlBase = AwsUtils.getUrlBase();
+            return AwsUtils.getUrlBase();
         } catch (final IOException e) {
             System.out.println("No urlBase in properties file.");
-            this.urlBase = "http://s3.amazonaws.com";
             throw e;
         }
+    }
+
+    private static String propsSecureUrlBase() {
         try {
-            this.secureUrlBase = AwsUtils.getSecureUrlBase();
+            return AwsUtils.getSecureUrlBase();
         } catch (final IOException e) {
             System.out.println("No urlBase in properties file.");
-            this.secureUrlBase = "https://s3.amazonaws.com:443";
+            return "https://s3.amazonaws.com:443";
         }
-        configureDns();
-
-        this.mimeMap = new MimetypesFileTypeMap();
-        this.mimeMap.addMimeTypes("application/x-apple-diskimage dmg\n");
     }
 
     private static void configureDns() {
@@ -118,13 +280,8 @@ public class AmazonS3Impl implements AmazonS3 {
         // final String fullPath =
         // this.m_accessKeyId + "-" + bucketName + "/" + fileName;
         final String fullPath = bucketName + "/" + fileName;
-        final String url = this.secureUrlBase + "/" + fullPath;
-        log.debug("Getting file from URL: " + url);
-        final GetMethod method = new GetMethod(url);
-        normalizeRequest(method, "GET", fullPath, false, true);
-
-        final InputStreamHandler handler = new FileInputStreamHandler(target);
-        sendRequest(method, handler);
+        final String url = secureUrl(fullPath);
+        getFile(url, fullPath, true, target);
     }
 
     public void getPublicFile(final String bucketName, final String fileName,
@@ -132,14 +289,206 @@ public class AmazonS3Impl implements AmazonS3 {
         // final String fullPath =
         // this.m_accessKeyId + "-" + bucketName + "/" + fileName;
         final String fullPath = bucketName + "/" + fileName;
-        final String url = this.urlBase + "/" + fullPath;
-        log.debug("Getting file from URL: " + url);
-        final GetMethod method = new GetMethod(url);
+        final String url = publicUrl(fullPath);
 
         // This is a public file, so we don't send the authentication token.
-        normalizeRequest(method, "GET", fullPath, false, false);
+        getFile(url, fullPath, false, target);
+    }
+
+    private void getFile(final String url, final String fullPath, 
+        final boolean useAuth, final File target) throws IOException {
+        if (this.objectCache != null) {
+            getCachedFile(url, fullPath, useAuth, target);
+            return;
+        }
+        if (this.config.isSegmentedDownloads()) {
+            final HeadMethod head = head(url, fullPath, useAuth);
+            final long length = head.getResponseContentLength();
+            // Ranges of a compressed object can't be decoded on their own.
+            if (length >= this.config.getSegmentedDownloadThreshold() &&
+                !isGzipped(head)) {
+                final Header eTag = head.getResponseHeader("ETag");
+                new RangedDownloader(this).download(url, fullPath, useAuth, 
+                    length, eTag == null ? null : eTag.getValue(), target);
+                return;
+            }
+        }
+        log.debug("Getting file from URL: " + url);
+        final GetMethod method = new GetMethod(url);
+        normalizeRequest(method, "GET", fullPath, false, useAuth);
         final InputStreamHandler handler = new FileInputStreamHandler(target);
-        sendRequest(method, handler);
+        sendRequest(method, decoding(method, handler));
+    }
+
+    /**
+     * Wraps a handler so it sees the decompressed body of objects we
+     * uploaded with gzip compression.
+     */
+    private static InputStreamHandler decoding(final HttpMethod method,
+        final InputStreamHandler handler) {
+        return new InputStreamHandler() {
+            public void handleInputStream(final InputStream is)
+                throws IOException {
+                if (is != null && isGzipped(method)) {
+                    handler.handleInputStream(new GZIPInputStream(is));
+                } else {
+                    handler.handleInputStream(is);
+                }
+            }
+        };
+    }
+
+    private static boolean isGzipped(final HttpMethod method) {
+        final Header encoding = method.getResponseHeader("Content-Encoding");
+        return encoding != null &&
+            "gzip".equalsIgnoreCase(encoding.getValue().trim());
+    }
+
+    /**
+     * Downloads a file through the object cache.  If we have a copy we send
+     * a conditional GET and copy our copy to the target on a 304.  Otherwise
+     * we download into the cache and copy from there.
+     */
+    private void getCachedFile(final String url, final String fullPath, 
+        final boolean useAuth, final File target) throws IOException {
+        final ObjectCache cache = this.objectCache;
+        final ObjectCache.Entry entry = cache.get(fullPath);
+        final GetMethod method = new GetMethod(url);
+        if (entry != null) {
+            if (entry.getETag() != null) {
+                method.setRequestHeader("If-None-Match", entry.getETag());
+            }
+            if (entry.getLastModified() != null) {
+                method.setRequestHeader("If-Modified-Since", 
+                    entry.getLastModified());
+            }
+            cache.recordRevalidation();
+        }
+        normalizeRequest(method, "GET", fullPath, false, useAuth);
+        final File download = cache.newTempFile();
+        try {
+            sendRequest(method,
+                decoding(method, new FileInputStreamHandler(download)));
+            if (method.getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+                log.debug("Serving {} from cache", fullPath);
+                if (cache.copy(entry, target)) {
+                    cache.recordHit();
+                    return;
+                }
+                // Evicted or replaced since we looked, so fetch it again.
+                log.debug("Lost cached copy of {}", fullPath);
+                getCachedFile(url, fullPath, useAuth, target);
+                return;
+            }
+            cache.recordMiss();
+            final Header eTag = method.getResponseHeader("ETag");
+            final Header lastModified = 
+                method.getResponseHeader("Last-Modified");
+            final File cached = cache.put(fullPath, download,
+                eTag == null ? null : eTag.getValue(),
+                lastModified == null ? null : lastModified.getValue());
+            if (cached != null) {
+                FileUtils.copyFile(cached, target, false);
+            } else {
+                FileUtils.copyFile(download, target, false);
+            }
+        } finally {
+            if (download.exists() && !download.delete()) {
+                log.warn("Could not delete {}", download);
+            }
+        }
+    }
+
+    public InputStream getObjectStream(final String bucketName, 
+        final String key, final ByteRange range, final boolean isPublic) 
+        throws IOException {
+        final GetMethod method = newObjectGet(bucketName, key, range, 
+            isPublic);
+        final S3ObjectInputStream is = openStream(method);
+        if (range != null && 
+            method.getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT) {
+            is.close();
+            throw new IOException("Range not honored: " + 
+                method.getStatusLine());
+        }
+        return is;
+    }
+
+    public ReadableByteChannel getObjectChannel(final String bucketName, 
+        final String key, final ByteRange range, final boolean isPublic) 
+        throws IOException {
+        return Channels.newChannel(
+            getObjectStream(bucketName, key, range, isPublic));
+    }
+
+    public void getObject(final String bucketName, final String key,
+        final ByteRange range, final boolean isPublic, 
+        final ChunkHandler chunkHandler) throws IOException {
+        final GetMethod method = newObjectGet(bucketName, key, range, 
+            isPublic);
+        sendRequest(method, new InputStreamHandler() {
+            public void handleInputStream(final InputStream is)
+                throws IOException {
+                if (range != null && 
+                    method.getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT) {
+                    throw new IOException("Range not honored: " + 
+                        method.getStatusLine());
+                }
+                if (is == null) {
+                    return;
+                }
+                final byte[] buf = BufferPool.acquire();
+                try {
+                    final ByteBuffer chunk = ByteBuffer.wrap(buf);
+                    int read;
+                    while ((read = is.read(buf)) != -1) {
+                        chunk.clear();
+                        chunk.limit(read);
+                        chunkHandler.handleChunk(chunk);
+                    }
+                } finally {
+                    BufferPool.release(buf);
+                }
+            }
+        });
+    }
+
+    private GetMethod newObjectGet(final String bucketName, final String key,
+        final ByteRange range, final boolean isPublic) {
+        final String fullPath = bucketName + "/" + key;
+        // Public objects come from the plain endpoint without signing, just 
+        // as with getPublicFile.
+        final String url = isPublic ? 
+            publicUrl(fullPath) : secureUrl(fullPath);
+        log.debug("Streaming from URL: {}", url);
+        final GetMethod method = new GetMethod(url);
+        if (range != null) {
+            method.setRequestHeader("Range", range.toHeader());
+        }
+        normalizeRequest(method, "GET", fullPath, false, !isPublic);
+        return method;
+    }
+
+    /**
+     * @return The cache of downloaded objects with its hit and miss counts,
+     * or <code>null</code> if caching is disabled.
+     */
+    public ObjectCache getObjectCache() {
+        return this.objectCache;
+    }
+
+    /**
+     * Sends a HEAD request for the specified resource.
+     * 
+     * @return The completed request, for reading the response headers.
+     */
+    private HeadMethod head(final String url, final String fullPath, 
+        final boolean useAuth) throws IOException {
+        log.debug("Sending HEAD to URL: " + url);
+        final HeadMethod method = new HeadMethod(url);
+        normalizeRequest(method, "HEAD", fullPath, false, useAuth);
+        sendRequest(method, new NoOpInputStreamHandler());
+        return method;
     }
 
     public void putPrivateFile(final String bucketName, final File file)
@@ -149,16 +498,7 @@ public class AmazonS3Impl implements AmazonS3 {
 
     public void putPrivateDir(final String bucketName, final File dir)
             throws IOException {
-
-        final FileFilter filter = new FileFilter() {
-            public boolean accept(final File file) {
-                return file.isFile();
-            }
-        };
-        final File[] files = dir.listFiles(filter);
-        for (final File file : files) {
-            putPrivateFile(bucketName, file);
-        }
+        newDirectoryUploader().uploadDir(bucketName, dir, false);
     }
 
     public void putPublicFile(final String bucketName, final File file)
@@ -173,69 +513,175 @@ public class AmazonS3Impl implements AmazonS3 {
 
     public void putPublicDir(final String bucketName, final File dir)
             throws IOException {
-        final FileFilter filter = new FileFilter() {
-            public boolean accept(final File file) {
-                return file.isFile();
-            }
-        };
-        final File[] files = dir.listFiles(filter);
-        for (final File file : files) {
-            putPublicFile(bucketName, file);
-        }
+        newDirectoryUploader().uploadDir(bucketName, dir, true);
+    }
+
+    private DirectoryUploader newDirectoryUploader() {
+        return new DirectoryUploader(this, 
+            parallelism(this.config.getUploadThreads()), true);
     }
 
     private void putFile(final String bucketName, final File file,
             final boolean makePublic) throws IOException {
-        putFile(bucketName, file, this.mimeMap.getContentType(file), makePublic);
+        putFile(bucketName, file, getContentType(file), makePublic);
     }
     
     private void putFile(final String bucketName, final File file,
         final String mimeType, final boolean makePublic) throws IOException {
+        putFile(bucketName, file.getName(), file, mimeType, makePublic, true,
+            null);
+    }
+
+    void putFile(final String bucketName, final String key, final File file,
+        final boolean makePublic, final boolean compress) throws IOException {
+        putFile(bucketName, key, file, makePublic, compress, null);
+    }
+
+    /**
+     * Uploads a file whose MD5 we may already know, so we don't read it
+     * again to compute the Content-MD5.
+     * 
+     * @param md5 The MD5 of the file, or <code>null</code> to compute it
+     * if we need it.
+     */
+    void putFile(final String bucketName, final String key, final File file,
+        final boolean makePublic, final boolean compress, final byte[] md5)
+        throws IOException {
+        putFile(bucketName, key, file, getContentType(file), 
+            makePublic, compress, md5);
+    }
+
+    private void putFile(final String bucketName, final String key, 
+        final File file, final String mimeType, final boolean makePublic,
+        final boolean compress, final byte[] knownMd5) throws IOException {
+        if (!file.isFile()) {
+            // Fail now rather than retrying a request we can't send.
+            throw new FileNotFoundException("File not found: " + file);
+        }
+        if (compress && this.config.isCompressUploads() &&
+            isCompressible(mimeType)) {
+            putCompressed(bucketName, key, file, mimeType, makePublic);
+            return;
+        }
+        if (file.length() >= this.config.getMultipartThreshold()) {
+            new MultipartUploader(this).upload(bucketName, key, file, 
+                mimeType, makePublic);
+            return;
+        }
+        final RequestEntity re = new FileRegionRequestEntity(file, mimeType);
+        final byte[] md5;
+        if (!this.config.isContentMd5Enabled()) {
+            md5 = null;
+        } else if (knownMd5 != null) {
+            md5 = knownMd5;
+        } else {
+            md5 = ContentMd5.digest(file, 0, file.length());
+        }
+        put(bucketName + "/" + key, re, makePublic, md5);
+    }
+
+    /**
+     * Uploads a file gzipped on the fly.  The compressed size isn't known
+     * until we're done, so this goes through the same stream as
+     * {@link #putStream}, which signs and checksums each request over the
+     * compressed bytes it actually sends.
+     */
+    private void putCompressed(final String bucketName, final String key,
+        final File file, final String mimeType, final boolean makePublic)
+        throws IOException {
+        final MultipartUploadOutputStream os = new MultipartUploadOutputStream(
+            this, bucketName, key, mimeType, makePublic, "gzip");
+        final int threads = Math.max(1, this.config.getCompressionThreads());
+        final ExecutorService executor = newExecutor("S3-Gzip", threads);
+        boolean compressed = false;
+        try {
+            final ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(
+                os, executor, threads, this.config.getCompressionBlockSize(),
+                this.config.getCompressionLevel());
+            final InputStream is = new FileInputStream(file);
+            try {
+                IOUtils.copyLarge(is, gzip);
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+            gzip.finish();
+            compressed = true;
+        } finally {
+            executor.shutdownNow();
+            if (!compressed) {
+                os.abort();
+            }
+        }
+        os.close();
+    }
+
+    /**
+     * @param mimeType The content type of a file.
+     * @return Whether or not the type is one we're configured to compress.
+     */
+    boolean isCompressible(final String mimeType) {
+        if (StringUtils.isBlank(mimeType)) {
+            return false;
+        }
+        final String type = 
+            StringUtils.substringBefore(mimeType, ";").trim().toLowerCase();
+        for (final String candidate : 
+            StringUtils.split(this.config.getCompressibleTypes(), ',')) {
+            final String pattern = candidate.trim().toLowerCase();
+            if (pattern.endsWith("/*") ? type.startsWith(
+                StringUtils.removeEnd(pattern, "*")) : type.equals(pattern)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void putStream(final String bucketName, final String key,
+        final InputStream is, final String mimeType, final boolean isPublic)
+        throws IOException {
+        final MultipartUploadOutputStream os = new MultipartUploadOutputStream(
+            this, bucketName, key, mimeType, isPublic);
+        boolean copied = false;
         try {
-            final RequestEntity re = new FileRequestEntity(file, mimeType);
-            put(bucketName + "/" + file.getName(), re, makePublic);
-        } catch (final FileNotFoundException e) {
-            log.error("File Not Found: " + file, e);
+            IOUtils.copyLarge(is, os);
+            copied = true;
+        } finally {
+            if (!copied) {
+                os.abort();
+            }
         }
+        os.close();
     }
 
     public void createBucket(final String bucketName) throws IOException {
         put(bucketName, null, false);
+        this.endpoints.forget(bucketName);
     }
 
     public void listBuckets() throws IOException {
-        final String url = "https://s3.amazonaws.com:443";
+        final String url = this.secureUrlBase + "/";
         log.debug("Sending to URL: " + url);
         final GetMethod method = new GetMethod(url);
+        final int charsSep = 46;
         final InputStreamHandler handler = new InputStreamHandler() {
             public void handleInputStream(final InputStream is)
                     throws IOException {
-                // Just convert it to a string for easier debugging.
-                final String xmlBody = IOUtils.toString(is);
-                try {
-                    final XPathUtils xPath = XPathUtils.newXPath(xmlBody);
-                    final String namePath = "/ListAllMyBucketsResult/Buckets/Bucket/Name";
-                    final String creationDatePath = "/ListAllMyBucketsResult/Buckets/Bucket/CreationDate";
-                    final NodeList nameNodes = xPath.getNodes(namePath);
-                    final NodeList lmNodes = xPath.getNodes(creationDatePath);
-                    final int charsSep = 46;
-                    System.out
-                            .println("------------------------------------------------------------------------------");
-                    final StringBuilder desc = new StringBuilder();
-                    desc.append("Name");
-                    appendSpace(desc, charsSep - 4);
-                    desc.append("Creation Date");
-                    System.out.println(desc.toString());
-                    System.out
-                            .println("------------------------------------------------------------------------------");
-                    System.out.println();
-                    for (int i = 0; i < nameNodes.getLength(); i++) {
-                        final Node nameNode = nameNodes.item(i);
-                        final String name = nameNode.getTextContent();
-                        final Node lmNode = lmNodes.item(i);
-                        final String lm = lmNode.getTextContent();
-
-                        final String dateString = DateUtils.prettyS3Date(lm);
+                System.out
+                        .println("------------------------------------------------------------------------------");
+                final StringBuilder desc = new StringBuilder();
+                desc.append("Name");
+                appendSpace(desc, charsSep - 4);
+                desc.append("Creation Date");
+                System.out.println(desc.toString());
+                System.out
+                        .println("------------------------------------------------------------------------------");
+                System.out.println();
+                ListingParser.parseBuckets(is, 
+                    new ListingHandler<S3BucketSummary>() {
+                    public void handle(final S3BucketSummary bucket) {
+                        final String name = bucket.getName();
+                        final String dateString = 
+                            DateUtils.prettyS3Date(bucket.getCreationDate());
                         final StringBuilder sb = new StringBuilder();
                         sb.append(name);
 
@@ -243,18 +689,7 @@ public class AmazonS3Impl implements AmazonS3 {
                         sb.append(dateString);
                         System.out.println(sb.toString());
                     }
-                } catch (final SAXException e) {
-                    log.warn("Exception with XML", e);
-                } catch (final XPathExpressionException e) {
-                    log.warn("Exception with XPath", e);
-                }
-            }
-
-            private void appendSpace(final StringBuilder sb,
-                    final int extraSpace) {
-                for (int j = 0; j < extraSpace; j++) {
-                    sb.append(" ");
-                }
+                });
             }
         };
         normalizeRequest(method, "GET", "", false, true);
@@ -262,89 +697,132 @@ public class AmazonS3Impl implements AmazonS3 {
     }
 
     public void listBucket(final String bucketName) throws IOException {
-        final String fullPath = bucketName;
-        final String url = this.secureUrlBase + "/" + fullPath;
-        log.debug("Sending to URL: " + url);
-        final GetMethod method = new GetMethod(url);
-        final InputStreamHandler handler = new InputStreamHandler() {
-            public void handleInputStream(final InputStream is)
-                    throws IOException {
-                // Just convert it to a string for easier debugging.
-                final String xmlBody = IOUtils.toString(is);
-                // XmlUtils.printDoc(xmlBody);
-                try {
-                    final XPathUtils xPath = XPathUtils.newXPath(xmlBody);
-                    final String namePath = "/ListBucketResult/Contents/Key";
-                    final String lastModifiedPath = "/ListBucketResult/Contents/LastModified";
-                    final String sizePath = "/ListBucketResult/Contents/Size";
-                    final NodeList nameNodes = xPath.getNodes(namePath);
-                    final NodeList lmNodes = xPath.getNodes(lastModifiedPath);
-                    final NodeList sizeNodes = xPath.getNodes(sizePath);
-
-                    System.out
-                            .println("------------------------------------------------------------------------------");
-                    final int sep1 = 30;
-                    final int sep2 = 26;
-                    final StringBuilder desc = new StringBuilder();
-                    final String desc1 = "Name";
-                    final String desc2 = "Last Modified";
-                    final String desc3 = "Size";
-                    desc.append(desc1);
-                    appendSpace(desc, sep1 - desc1.length());
-                    desc.append(desc2);
-                    appendSpace(desc, sep2 - desc2.length());
-                    desc.append(desc3);
-                    System.out.println(desc.toString());
-                    System.out
-                            .println("------------------------------------------------------------------------------");
-                    System.out.println();
-                    for (int i = 0; i < nameNodes.getLength(); i++) {
-                        final Node nameNode = nameNodes.item(i);
-                        final String name = nameNode.getTextContent();
-                        final Node lmNode = lmNodes.item(i);
-                        final String lm = lmNode.getTextContent();
-                        final Node sizeNode = sizeNodes.item(i);
-                        final String sizeString = sizeNode.getTextContent();
-
-                        final int sizeInt = Integer.parseInt(sizeString);
-                        final double sizeK = sizeInt / 1024;
-                        final double sizeMb = sizeK / 1024;
-
-                        final String dateString = DateUtils.prettyS3Date(lm);
-                        final StringBuilder sb = new StringBuilder();
-                        sb.append(name);
+        listBucket(bucketName, null);
+    }
 
-                        appendSpace(sb, sep1 - name.length());
-                        sb.append(dateString);
+    public void listBucket(final String bucketName, final String prefix) 
+        throws IOException {
+        final int sep1 = 30;
+        final int sep2 = 26;
+        final DecimalFormat df = new DecimalFormat("###0.##");
+        System.out
+                .println("------------------------------------------------------------------------------");
+        final StringBuilder desc = new StringBuilder();
+        final String desc1 = "Name";
+        final String desc2 = "Last Modified";
+        final String desc3 = "Size";
+        desc.append(desc1);
+        appendSpace(desc, sep1 - desc1.length());
+        desc.append(desc2);
+        appendSpace(desc, sep2 - desc2.length());
+        desc.append(desc3);
+        System.out.println(desc.toString());
+        System.out
+                .println("------------------------------------------------------------------------------");
+        System.out.println();
 
-                        final DecimalFormat df = new DecimalFormat("###0.##");
-                        final String formattedSize = df.format(sizeMb);
-                        appendSpace(sb, sep2 - dateString.length());
+        // With a prefix we only show one level of the "directory" tree, 
+        // much like ls.
+        final BucketListing objects = prefix == null ? 
+            listObjects(bucketName) : listObjects(bucketName, prefix, "/");
+        try {
+            while (objects.hasNext()) {
+                final S3ObjectSummary object = objects.next();
+                final String name = object.getKey();
+                final long size = object.getSize();
+                final double sizeK = size / 1024;
+                final double sizeMb = sizeK / 1024;
 
-                        sb.append(formattedSize);
-                        sb.append(" MB");
-                        System.out.println(sb.toString());
-                    }
-                } catch (final SAXException e) {
-                    log.warn("Exception with XML", e);
-                } catch (final XPathExpressionException e) {
-                    log.warn("Exception with XPath", e);
-                }
+                final String dateString = 
+                    DateUtils.prettyS3Date(object.getLastModified());
+                final StringBuilder sb = new StringBuilder();
+                sb.append(name);
+
+                appendSpace(sb, sep1 - name.length());
+                sb.append(dateString);
+
+                final String formattedSize = df.format(sizeMb);
+                appendSpace(sb, sep2 - dateString.length());
+
+                sb.append(formattedSize);
+                sb.append(" MB");
+                System.out.println(sb.toString());
             }
+            for (final String dir : objects.getCommonPrefixes()) {
+                System.out.println(dir);
+            }
+        } catch (final RuntimeIoException e) {
+            throw new IoExceptionWithCause("Could not list " + bucketName, e);
+        }
+    }
 
-            private void appendSpace(final StringBuilder sb,
-                    final int extraSpace) {
-                for (int j = 0; j < extraSpace; j++) {
-                    sb.append(" ");
-                }
+    public BucketListing listObjects(final String bucketName) {
+        return listObjects(bucketName, null, null);
+    }
+
+    public BucketListing listObjects(final String bucketName, 
+        final String prefix, final String delimiter) {
+        return new BucketListingIterator(this, bucketName, prefix, delimiter);
+    }
+
+    /**
+     * Fetches a single page of a bucket listing.
+     * 
+     * @param bucketName The bucket.
+     * @param prefix Only list keys starting with this, or <code>null</code>
+     * for all keys.
+     * @param delimiter The delimiter for rolling keys up into common 
+     * prefixes, or <code>null</code> for none.
+     * @param marker The key to start listing after, or <code>null</code> to
+     * start at the beginning.
+     * @param handler The handler for each object on the page.
+     * @return Information about the page, such as whether there are more.
+     * @throws IOException If we could not get the page.
+     */
+    ListingPage listPage(final String bucketName, final String prefix, 
+        final String delimiter, final String marker,
+        final ListingHandler<S3ObjectSummary> handler) throws IOException {
+        final StringBuilder query = new StringBuilder();
+        query.append("?max-keys=");
+        query.append(this.config.getListingPageSize());
+        if (StringUtils.isNotEmpty(prefix)) {
+            query.append("&prefix=");
+            query.append(AmazonS3Utils.urlEncode(prefix));
+        }
+        if (StringUtils.isNotEmpty(delimiter)) {
+            query.append("&delimiter=");
+            query.append(AmazonS3Utils.urlEncode(delimiter));
+        }
+        if (marker != null) {
+            query.append("&marker=");
+            query.append(AmazonS3Utils.urlEncode(marker));
+        }
+        final String fullPath = bucketName;
+        final String url = secureUrl(fullPath) + query;
+        log.debug("Sending to URL: " + url);
+        final GetMethod method = new GetMethod(url);
+        final ListingPage[] page = new ListingPage[1];
+        final InputStreamHandler streamHandler = new InputStreamHandler() {
+            public void handleInputStream(final InputStream is)
+                    throws IOException {
+                page[0] = ListingParser.parseBucketListing(is, handler);
             }
         };
         normalizeRequest(method, "GET", fullPath, false, true);
-        sendRequest(method, handler);
+        sendRequest(method, streamHandler);
+        return page[0];
+    }
+
+    private static void appendSpace(final StringBuilder sb, 
+        final int extraSpace) {
+        for (int j = 0; j < extraSpace; j++) {
+            sb.append(" ");
+        }
     }
 
     public void deleteBucket(final String bucketName) throws IOException {
         delete(bucketName);
+        this.endpoints.forget(bucketName);
     }
 
     public void delete(final String bucketName, final String fileName)
@@ -355,73 +833,52 @@ public class AmazonS3Impl implements AmazonS3 {
 
     public void deleteStar(final String bucketName, final String fileName)
             throws IOException {
-        final String fullPath = bucketName;
-        final String url = this.secureUrlBase + "/" + fullPath;
-        log.debug("Sending to URL: " + url);
-
-        final Collection<String> filesToDelete = new LinkedList<String>();
-        final GetMethod method = new GetMethod(url);
-        boolean matchStartTemp = false;
-        String toMatchTemp = fileName;
-        boolean matchEndTemp = false;
-
-        if (!fileName.endsWith("*") && !fileName.startsWith("*")) {
+        final KeyPattern pattern = KeyPattern.parse(fileName);
+        if (!pattern.isWildcard()) {
             delete(bucketName, fileName);
             return;
         }
-        if (fileName.endsWith("*")) {
-            matchStartTemp = true;
-            toMatchTemp = toMatchTemp.substring(0, fileName.length() - 1);
-            log.debug("Checking for files that start with: " + toMatchTemp);
-        }
-        if (fileName.startsWith("*")) {
-            matchEndTemp = true;
-            toMatchTemp = toMatchTemp.substring(1);
-            log.debug("Checking for files that end with: " + toMatchTemp);
-        }
-        log.debug("Checking for files matching: " + toMatchTemp);
-        final boolean matchStart = matchStartTemp;
-        final boolean matchEnd = matchEndTemp;
-        final String toMatch = toMatchTemp;
-        final InputStreamHandler handler = new InputStreamHandler() {
-            public void handleInputStream(final InputStream is)
-                    throws IOException {
-                // Just convert it to a string for easier debugging.
-                final String xmlBody = IOUtils.toString(is);
-                try {
-                    final XPathUtils xPath = XPathUtils.newXPath(xmlBody);
-                    final String namePath = "/ListBucketResult/Contents/Key";
-                    final NodeList nameNodes = xPath.getNodes(namePath);
-
-                    for (int i = 0; i < nameNodes.getLength(); i++) {
-                        final Node nameNode = nameNodes.item(i);
-                        final String name = nameNode.getTextContent();
-                        if (matchStart && name.startsWith(toMatch)) {
-                            log.debug("Matched: " + name);
-                            filesToDelete.add(name);
-                        } else if (matchEnd && name.endsWith(toMatch)) {
-                            log.debug("Matched: " + name);
-                            filesToDelete.add(name);
-                        }
-                    }
-                } catch (final SAXException e) {
-                    log.warn("Exception with XML", e);
-                } catch (final XPathExpressionException e) {
-                    log.warn("Exception with XPath", e);
+
+        // Let S3 do as much of the filtering as it can.
+        final String prefix = pattern.getServerPrefix();
+        log.debug("Checking for files matching: {} with prefix: {}", 
+            fileName, prefix);
+        final Collection<String> filesToDelete = new ArrayList<String>();
+        final Iterator<S3ObjectSummary> objects = 
+            listObjects(bucketName, prefix, null);
+        try {
+            while (objects.hasNext()) {
+                final String name = objects.next().getKey();
+                if (pattern.matches(name)) {
+                    log.debug("Matched: " + name);
+                    filesToDelete.add(name);
                 }
             }
-        };
-        normalizeRequest(method, "GET", fullPath, false, true);
-        sendRequest(method, handler);
-
-        for (final String fileKey : filesToDelete) {
-            delete(bucketName, fileKey);
+        } catch (final RuntimeIoException e) {
+            throw new IoExceptionWithCause("Could not list " + bucketName, e);
         }
+
+        System.out.println("Deleting " + filesToDelete.size() + " files");
+        deleteAll(bucketName, filesToDelete);
+    }
+
+    public void deleteAll(final String bucketName, 
+        final Collection<String> keys) throws IOException {
+        new BatchDeleter(this).delete(bucketName, keys);
+    }
+
+    public void sync(final String bucketName, final File dir,
+        final boolean makePublic, final boolean deleteRemoved) 
+        throws IOException {
+        final SyncManifest manifest = 
+            new SyncManifest(SyncManifest.manifestFile(bucketName, dir));
+        new DirectorySync(this, manifest).sync(bucketName, dir, makePublic,
+            deleteRemoved);
     }
 
     private void delete(final String relativePath) throws IOException {
         final String fullPath = relativePath;
-        final String url = this.secureUrlBase + "/" + fullPath;
+        final String url = secureUrl(fullPath);
         log.debug("Sending to URL: " + url);
         final DeleteMethod method = new DeleteMethod(url);
 
@@ -432,9 +889,20 @@ public class AmazonS3Impl implements AmazonS3 {
 
     private void put(final String relativePath, final RequestEntity re,
             final boolean isPublic) throws IOException {
+        put(relativePath, re, isPublic, null);
+    }
+
+    void put(final String relativePath, final RequestEntity re,
+            final boolean isPublic, final byte[] md5) throws IOException {
+        put(relativePath, re, isPublic, md5, null);
+    }
+
+    void put(final String relativePath, final RequestEntity re,
+            final boolean isPublic, final byte[] md5, 
+            final String contentEncoding) throws IOException {
         // final String fullPath = this.m_accessKeyId + "-"+relativePath;
         final String fullPath = relativePath;
-        final String url = this.secureUrlBase + "/" + fullPath;
+        final String url = secureUrl(fullPath);
         log.debug("Sending to URL: " + url);
         final PutMethod method = new PutMethod(url);
 
@@ -444,26 +912,39 @@ public class AmazonS3Impl implements AmazonS3 {
         } else {
             method.setRequestHeader("Content-Type", "");
         }
+        if (md5 != null) {
+            method.setRequestHeader("Content-MD5", ContentMd5.toHeader(md5));
+        }
+        if (contentEncoding != null) {
+            method.setRequestHeader("Content-Encoding", contentEncoding);
+        }
 
         final InputStreamHandler handler = new NoOpInputStreamHandler();
         normalizeRequest(method, "PUT", fullPath, isPublic, true);
         sendRequest(method, handler);
+        if (md5 != null) {
+            ContentMd5.verifyETag(method, md5);
+        }
     }
 
     public void normalizeRequest(final HttpMethod method,
             final String methodString, final String fullPath,
             final boolean addPublicHeader, final boolean useAuth) {
-        final Header dateHeader = new Header("Date", DateUtils.createHttpDate());
+        method.getParams().setParameter(S3Metrics.OPERATION_PARAM,
+            S3Metrics.operation(methodString, fullPath));
+        final Header dateHeader = 
+            new Header("Date", RequestSigner.currentHttpDate());
         method.setRequestHeader(dateHeader);
         if (addPublicHeader) {
             final Header publicHeader = new Header("x-amz-acl", "public-read");
             method.setRequestHeader(publicHeader);
         }
 
+        String host = null;
         try {
             final URI uri = method.getURI();
-            log.info("Using URI: {}", uri);
-            final String host = uri.getHost();
+            log.debug("Using URI: {}", uri);
+            host = uri.getHost();
             if (host.contains("archive.org")) {
                 method.addRequestHeader("x-amz-auto-make-bucket", "1");
             }
@@ -472,45 +953,160 @@ public class AmazonS3Impl implements AmazonS3 {
         }
 
         if (useAuth) {
-            final Header auth = createAuthHeader(method, methodString, fullPath);
+            final Header auth = this.signer.createAuthHeader(method, 
+                methodString, BucketEndpoints.signingPath(fullPath, host));
             method.setRequestHeader(auth);
         }
     }
 
-    private void sendRequest(final HttpMethod method,
-            final InputStreamHandler handler) throws IOException {
-        final DefaultHttpClient client = new DefaultHttpClientImpl();
+    /**
+     * Looks up the MIME type for a file from its extension.
+     * 
+     * @param file The file.
+     * @return The MIME type.
+     */
+    String getContentType(final File file) {
+        return this.mimeMap.getContentType(file);
+    }
 
-        // We customize the retry handler because AWS apparently disconnects a
-        // lot.
-        final HttpMethodRetryHandler retryHandler = new HttpMethodRetryHandler() {
+    /**
+     * Creates a pool of daemon threads for running bulk operations.  With
+     * virtual threads enabled, this instead starts a new virtual thread for
+     * each task.
+     * 
+     * @param name The base name for the threads.
+     * @param threads The number of platform threads.
+     * @return The new executor.  Callers are responsible for shutting it down.
+     */
+    ExecutorService newExecutor(final String name, final int threads) {
+        final CancellationScope scope = CancellationScope.current();
+        if (this.virtualThreads) {
+            final ThreadFactory factory = VirtualThreads.newFactory(name);
+            return VirtualThreads.newThreadPerTaskExecutor(
+                scope == null ? factory : scope.propagate(factory));
+        }
+        final ThreadFactory factory = new DaemonThreadFactory(name);
+        return Executors.newFixedThreadPool(threads, 
+            scope == null ? factory : scope.propagate(factory));
+    }
 
-            public boolean retryMethod(final HttpMethod method,
-                    final IOException ioe, final int retries) {
-                if (ioe instanceof UnknownHostException) {
-                    return false;
-                }
-                if (retries < 40) {
-                    System.out.println("Did not connect.  Received: ");
-                    ioe.printStackTrace();
-                    try {
-                        Thread.sleep(retries * 200);
-                    } catch (InterruptedException e) {
-                    }
-                    return true;
-                }
-                return false;
-            }
+    /**
+     * Returns how many tasks a bulk operation should keep running at once.
+     * 
+     * @param threads The number of platform threads configured for the 
+     * operation.
+     * @return The parallelism.  With virtual threads this is at least the
+     * number of connections we allow per host, since threads are cheap and
+     * connections are the real limit.
+     */
+    int parallelism(final int threads) {
+        if (this.virtualThreads) {
+            return Math.max(threads, this.config.getMaxConnectionsPerHost());
+        }
+        return threads;
+    }
 
-        };
+    /**
+     * Returns the executor for background work such as prefetching listing
+     * pages.  All instances share it, so don't shut it down.
+     * 
+     * @return The executor.
+     */
+    ExecutorService getBackgroundExecutor() {
+        return SharedThreads.background(this.virtualThreads);
+    }
 
+    /**
+     * Returns the metrics for the requests we've sent.  These are also 
+     * published over JMX if that's enabled in the config.
+     * 
+     * @return The metrics.
+     */
+    public S3Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    public void shutdown() {
+        if (this.objectCache != null) {
+            this.objectCache.close();
+        }
+        if (this.config.isJmxEnabled()) {
+            this.metrics.unregister(ManagementFactory.getPlatformMBeanServer());
+        }
+        this.idleConnectionCheck.cancel(false);
+        this.connectionManager.shutdown();
+    }
+
+    /**
+     * Creates the URL for the specified resource on the secure endpoint.
+     * This is the endpoint for the bucket's region if we're routing by 
+     * region.
+     * 
+     * @param fullPath The path to the resource, such as "bucket/key".
+     * @return The full URL.
+     */
+    String secureUrl(final String fullPath) {
+        return this.endpoints.url(fullPath, true);
+    }
+
+    /**
+     * Creates the URL for the specified resource on the plain HTTP 
+     * endpoint, for public resources we fetch without signing.
+     * 
+     * @param fullPath The path to the resource, such as "bucket/key".
+     * @return The full URL.
+     */
+    private String publicUrl(final String fullPath) {
+        return this.endpoints.url(fullPath, false);
+    }
+
+    BucketEndpoints getEndpoints() {
+        return this.endpoints;
+    }
+
+    AmazonS3Config getConfig() {
+        return this.config;
+    }
+
+    void sendRequest(final HttpMethod method,
+            final InputStreamHandler handler) throws IOException {
+        execute(method, handler);
+    }
+
+    /**
+     * Sends a request, retrying as for any other, and returns the body of
+     * the successful response without releasing its connection.
+     * 
+     * @param method The request.
+     * @return The body, which the caller must close.
+     * @throws IOException If we could not get a successful response.
+     */
+    S3ObjectInputStream openStream(final HttpMethod method) 
+        throws IOException {
+        execute(method, null);
+        return new S3ObjectInputStream(method, this.metrics);
+    }
+
+    /**
+     * Sends a request, retrying as configured.  With a <code>null</code> 
+     * handler the connection of the successful response is left open for 
+     * the caller to read.
+     */
+    private void execute(final HttpMethod method,
+            final InputStreamHandler handler) throws IOException {
+        // We retry here rather than in HttpClient so we can back off 
+        // properly and retry S3's error responses, not just failures to
+        // connect.
         method.getParams().setParameter(HttpMethodParams.RETRY_HANDLER,
-                retryHandler);
+                new DefaultHttpMethodRetryHandler(0, false));
         
+        // The client is shared, so we configure the proxy per request rather
+        // than on the client's own host configuration.
+        final HostConfiguration hostConfig = new HostConfiguration();
         if (StringUtils.isNotBlank(GlobalOptions.getProxyHost()) &&
                 GlobalOptions.getProxyPort() > 0) {
             log.debug("Setting proxy!!");
-            client.getHostConfiguration().setProxy(GlobalOptions.getProxyHost(), 
+            hostConfig.setProxy(GlobalOptions.getProxyHost(), 
                     GlobalOptions.getProxyPort());
         }
 
@@ -518,61 +1114,199 @@ public class AmazonS3Impl implements AmazonS3 {
             log.debug("HTTP request headers: ");
             printHeaders(method.getRequestHeaders());
         }
+        final CircuitBreaker breaker = circuitBreaker(method);
+        final RetryPolicy retryPolicy = this.config.getRetryPolicy();
+        final String operation = S3Metrics.operation(method);
+        final long start = System.nanoTime();
+        boolean succeeded = false;
+        int retries = 0;
         try {
-            client.executeMethod(method);
-
-            final StatusLine statusLine = method.getStatusLine();
-
-            final int code = statusLine.getStatusCode();
-            if (code < 200 || code > 299) {
-                log.debug("Did not receive 200 level response: " + statusLine);
-                final Header[] responseHeaders = method.getResponseHeaders();
-                printHeaders(responseHeaders);
-
-                // S3 likely returned some sort of error in the response
-                // body, so print it out.
-                final InputStream is = method.getResponseBodyAsStream();
-                final String response = IOUtils.toString(is);
-                final String msg = statusLine + "\nwith body:\n" + response;
-
-                log.debug("Got response: " + msg);
+            while (true) {
+                breaker.beforeRequest();
+                final IOException failure = 
+                    sendOnce(hostConfig, method, handler, breaker);
+                if (failure == null) {
+                    retryPolicy.onSuccess();
+                    succeeded = true;
+                    return;
+                }
+                if (!isRepeatable(method)) {
+                    throw failure;
+                }
+                final long delay = retryPolicy.retryDelay(retries, failure);
+                if (delay < 0) {
+                    throw failure;
+                }
+                retries++;
+                this.metrics.recordRetry(operation);
+                log.warn("Retry {} of {} in {} ms after: {}", retries, 
+                    method.getPath(), delay, failure.getMessage());
+                try {
+                    // No locks are held here, so this parks a virtual thread
+                    // rather than pinning its carrier.
+                    Thread.sleep(delay);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(
+                        "Interrupted before retry");
+                }
+            }
+        } finally {
+            this.metrics.recordOperation(operation, System.nanoTime() - start,
+                succeeded);
+        }
+    }
 
-                IOUtils.closeQuietly(is);
-                // TODO: Send this to the stream handler.
-                throw new IOException("Error accessing S3: " + msg);
+    /**
+     * Sends a request once.  Failures to get a good response are returned
+     * so the caller can decide whether to retry.  Errors from the handler 
+     * are thrown, since the handler may have already used part of the 
+     * body.  Without a handler, a successful response's connection is 
+     * kept open.
+     */
+    private IOException sendOnce(final HostConfiguration hostConfig,
+            final HttpMethod method, final InputStreamHandler handler,
+            final CircuitBreaker breaker) throws IOException {
+        if (this.connectionGate != null) {
+            try {
+                this.connectionGate.acquire();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                breaker.onAbandoned();
+                throw new InterruptedIOException("Interrupted waiting for " +
+                    "a connection");
+            }
+        }
+        final CancellationScope scope = CancellationScope.current();
+        CountingInputStream counter = null;
+        boolean keepOpen = false;
+        this.metrics.requestStarted();
+        try {
+            IOException failure;
+            try {
+                if (scope != null) {
+                    scope.register(method);
+                }
+                this.httpClient.executeMethod(hostConfig, method);
+                this.metrics.addBytesSent(requestLength(method));
+                failure = checkStatus(method);
+            } catch (final IOException e) {
+                failure = e;
+            }
+            if (failure == null || (failure instanceof S3ServiceException &&
+                !S3ServiceException.isTransient(failure))) {
+                // The endpoint is up, even if it didn't like our request.
+                breaker.onSuccess();
+            } else if (S3ServiceException.isTransient(failure)) {
+                breaker.onFailure();
             } else {
+                breaker.onAbandoned();
+            }
+            if (failure != null) {
+                return failure;
+            }
+            if (handler == null) {
+                keepOpen = true;
+            } else if (method.getStatusCode() != HttpStatus.SC_NOT_MODIFIED) {
                 final InputStream body = method.getResponseBodyAsStream();
-                handler.handleInputStream(body);
+                if (body != null) {
+                    counter = new CountingInputStream(body);
+                }
+                handler.handleInputStream(counter);
             }
+            return null;
         } finally {
+            if (counter != null) {
+                this.metrics.addBytesReceived(counter.getByteCount());
+            }
+            final StatusLine status = method.getStatusLine();
+            this.metrics.requestFinished(
+                status == null ? 0 : status.getStatusCode());
+            if (scope != null) {
+                scope.unregister(method);
+            }
             // Don't forget to release it!
-            method.releaseConnection();
+            if (!keepOpen) {
+                method.releaseConnection();
+            }
+            if (this.connectionGate != null) {
+                this.connectionGate.release();
+            }
         }
     }
 
     /**
-     * Create the S3 authorization header.
+     * Checks the status of a response.
      * 
-     * @param method The HttpClient {@link HttpMethod}.
-     * @param methodString The method identifier string, such as "GET" or "PUT.
-     * Amazon's auth token algorithm uses this string.
-     * @param fullPath The full path to the resource, such as the bucket or the
-     * file.  For example:<p>
-     * https://s3.amazonaws.com:443/YOUR_BUCKET_ID-YOUR_BUCKET_NAME/yourFile.txt
-     * @return The HTTP header.
+     * @return The error for the response, or <code>null</code> if it was 
+     * successful.
+     */
+    private IOException checkStatus(final HttpMethod method) 
+        throws IOException {
+        final StatusLine statusLine = method.getStatusLine();
+        final int code = statusLine.getStatusCode();
+        if (code == HttpStatus.SC_NOT_MODIFIED && 
+            (method.getRequestHeader("If-None-Match") != null ||
+             method.getRequestHeader("If-Modified-Since") != null)) {
+            // The caller asked for this with a conditional GET.
+            log.debug("Not modified: {}", method.getPath());
+            return null;
+        }
+        if (code >= 200 && code <= 299) {
+            return null;
+        }
+        log.debug("Did not receive 200 level response: " + statusLine);
+        final Header[] responseHeaders = method.getResponseHeaders();
+        printHeaders(responseHeaders);
+
+        // S3 likely returned some sort of error in the response
+        // body, so print it out.
+        final InputStream is = method.getResponseBodyAsStream();
+        final String response = is == null ? "" : IOUtils.toString(is);
+        final String msg = statusLine + "\nwith body:\n" + response;
+
+        log.debug("Got response: " + msg);
+
+        IOUtils.closeQuietly(is);
+        return new S3ServiceException("Error accessing S3: " + msg, code,
+            StringUtils.substringBetween(response, "<Code>", "</Code>"));
+    }
+
+    private static long requestLength(final HttpMethod method) {
+        if (!(method instanceof EntityEnclosingMethod)) {
+            return 0;
+        }
+        final RequestEntity entity = 
+            ((EntityEnclosingMethod) method).getRequestEntity();
+        return entity == null ? 0 : Math.max(0, entity.getContentLength());
+    }
+
+    /**
+     * @return Whether or not we can send the method's body again.
      */
-    private Header createAuthHeader(final HttpMethod method,
-            final String methodString, final String fullPath) {
-        final String canonicalString = AmazonS3Utils.makeCanonicalString(
-                methodString, fullPath, method.getRequestHeaders());
-        log.debug("Using canonical string: " + canonicalString);
-        final String encodedCanonical = SecurityUtils.signAndEncode(
-                this.secretAccessKey, canonicalString);
-
-        final String authValue = "AWS " + this.accessKeyId + ":"
-                + encodedCanonical;
-        final Header auth = new Header("Authorization", authValue);
-        return auth;
+    private static boolean isRepeatable(final HttpMethod method) {
+        if (!(method instanceof EntityEnclosingMethod)) {
+            return true;
+        }
+        final RequestEntity entity = 
+            ((EntityEnclosingMethod) method).getRequestEntity();
+        return entity == null || entity.isRepeatable();
+    }
+
+    private CircuitBreaker circuitBreaker(final HttpMethod method) 
+        throws URIException {
+        final String host = method.getURI().getHost();
+        CircuitBreaker breaker = this.circuitBreakers.get(host);
+        if (breaker == null) {
+            final CircuitBreaker newBreaker = new CircuitBreaker(host,
+                this.config.getCircuitBreakerThreshold(), 
+                this.config.getCircuitBreakerOpenTime());
+            breaker = this.circuitBreakers.putIfAbsent(host, newBreaker);
+            if (breaker == null) {
+                breaker = newBreaker;
+            }
+        }
+        return breaker;
     }
 
     private void printHeaders(final Header[] headers) {
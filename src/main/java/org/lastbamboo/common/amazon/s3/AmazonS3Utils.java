@@ -9,12 +9,18 @@
 
 package org.lastbamboo.common.amazon.s3;
 
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 
 import org.apache.commons.httpclient.Header;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 /**
  * Utility methods for using Amazon S3.  This is a modified version of the
@@ -23,108 +29,210 @@ import org.slf4j.LoggerFactory;
 public class AmazonS3Utils 
     {
     
-    private static final Logger LOG = LoggerFactory.getLogger(AmazonS3Utils.class);
-    
     private static final String AMAZON_HEADER_PREFIX = "x-amz-";
     private static final String ALTERNATIVE_DATE_HEADER = "x-amz-date";
     
+    /**
+     * Orders headers by name.
+     */
+    private static final Comparator<Header> HEADER_NAME_ORDER = 
+        new Comparator<Header>() 
+            {
+            public int compare(final Header h1, final Header h2) 
+                {
+                return h1.getName().compareTo(h2.getName());
+                }
+            };
+    
+    /**
+     * The query parameters that are part of the resource being signed.
+     */
+    private static final Set<String> SUB_RESOURCES = new HashSet<String>(
+        Arrays.asList("acl", "delete", "lifecycle", "location", "logging", 
+            "notification", "partNumber", "policy", "requestPayment", 
+            "torrent", "uploadId", "uploads", "versionId", "versioning", 
+            "versions", "website"));
+    
     public static String makeCanonicalString(final String method, 
        final String resource, final Header[] headers) 
         {
-        return makeCanonicalString(method, resource, headers, null);
+        final StringBuilder buf = new StringBuilder(256);
+        appendCanonicalString(buf, method, resource, headers, null);
+        return buf.toString();
         }
     
-    private static String makeCanonicalString(final String method, 
-        final String resource, final Header[] headers, final String expires)
+    /**
+     * Appends the string to sign for a request to the specified builder.  
+     * This is called for every request we send, so it avoids the sorted 
+     * maps, lower casing and regular expressions of Amazon's sample code.
+     * 
+     * @param buf The builder to append to.
+     * @param method The HTTP method, such as "GET".
+     * @param resource The resource, such as "bucket/key?acl".
+     * @param headers The request headers.
+     * @param expires The expiration time for query string authentication,
+     * or <code>null</code> to use the date header.
+     */
+    static void appendCanonicalString(final StringBuilder buf, 
+        final String method, final String resource, final Header[] headers, 
+        final String expires)
         {
-        final StringBuilder buf = new StringBuilder();
         buf.append(method);
-        buf.append("\n");
+        buf.append('\n');
 
-        // Add all interesting headers to a list, then sort them.  "Interesting"
-        // is defined as Content-MD5, Content-Type, Date, and x-amz-
-        final SortedMap<String, String> interestingHeaders = 
-            new TreeMap<String, String>();
+        // "Interesting" headers are Content-MD5, Content-Type, Date, and 
+        // x-amz-.  The first three always get a line, even if empty.
+        String contentMd5 = "";
+        String contentType = "";
+        String date = "";
+        List<Header> amazonHeaders = null;
+        boolean hasAlternativeDate = false;
         if (headers != null) 
             {
             for (final Header curHeader : headers)
                 {
-                final String lk = curHeader.getName().toLowerCase();
-                // Ignore any headers that are not particularly interesting.
-                if (lk.equals("content-type") || lk.equals("content-md5") || 
-                    lk.equals("date") ||
-                    lk.startsWith(AMAZON_HEADER_PREFIX))
+                final String name = curHeader.getName();
+                if (name.equalsIgnoreCase("content-type"))
+                    {
+                    contentType = curHeader.getValue();
+                    }
+                else if (name.equalsIgnoreCase("content-md5"))
+                    {
+                    contentMd5 = curHeader.getValue();
+                    }
+                else if (name.equalsIgnoreCase("date"))
                     {
-                    final String headersList = curHeader.getValue();
-                    LOG.debug("Our headers list: "+headersList);
-                    interestingHeaders.put(lk, headersList);
+                    date = curHeader.getValue();
+                    }
+                else if (name.regionMatches(true, 0, AMAZON_HEADER_PREFIX, 0, 
+                    AMAZON_HEADER_PREFIX.length()))
+                    {
+                    if (amazonHeaders == null)
+                        {
+                        amazonHeaders = new ArrayList<Header>(4);
+                        }
+                    final String lk = name.toLowerCase(Locale.US);
+                    if (lk.equals(ALTERNATIVE_DATE_HEADER))
+                        {
+                        hasAlternativeDate = true;
+                        }
+                    amazonHeaders.add(new Header(lk, curHeader.getValue()));
                     }
                 }
             }
 
-        if (interestingHeaders.containsKey(ALTERNATIVE_DATE_HEADER)) 
+        if (hasAlternativeDate) 
             {
-            interestingHeaders.put("date", "");
+            date = "";
             }
 
         // if the expires is non-null, use that for the date field.  this
         // trumps the x-amz-date behavior.
         if (expires != null) 
             {
-            interestingHeaders.put("date", expires);
+            date = expires;
             }
 
-        // these headers require that we still put a new line in after them,
-        // even if they don't exist.
-        if (! interestingHeaders.containsKey("content-type")) 
-            {
-            interestingHeaders.put("content-type", "");
-            }
-        if (! interestingHeaders.containsKey("content-md5")) 
-            {
-            interestingHeaders.put("content-md5", "");
-            }
+        buf.append(contentMd5).append('\n');
+        buf.append(contentType).append('\n');
+        buf.append(date).append('\n');
 
-        // Finally, add all the interesting headers 
-        // (i.e.: all that start with x-amz- ;-))
-        for (final String key : interestingHeaders.keySet()) 
+        if (amazonHeaders != null)
             {
-            if (key.startsWith(AMAZON_HEADER_PREFIX)) 
+            // This is a stable sort, so for duplicate names the last value
+            // wins, as it did when we stored these in a map.
+            Collections.sort(amazonHeaders, HEADER_NAME_ORDER);
+            final int size = amazonHeaders.size();
+            for (int i = 0; i < size; i++)
                 {
-                buf.append(key).append(':').append(interestingHeaders.get(key));
-                } 
-            else 
-                {
-                buf.append(interestingHeaders.get(key));
+                final Header header = amazonHeaders.get(i);
+                if (i + 1 < size && 
+                    amazonHeaders.get(i + 1).getName().equals(header.getName()))
+                    {
+                    continue;
+                    }
+                buf.append(header.getName()).append(':');
+                buf.append(header.getValue()).append('\n');
                 }
-            buf.append("\n");
             }
 
         // don't include the query parameters...
-        int queryIndex = resource.indexOf('?');
+        final int queryIndex = resource.indexOf('?');
+        buf.append('/');
         if (queryIndex == -1) 
             {
-            buf.append("/" + resource);
+            buf.append(resource);
             } 
         else 
             {
-            buf.append("/" + resource.substring(0, queryIndex));
+            buf.append(resource, 0, queryIndex);
+            
+            // ...unless they're sub-resources like acl, torrent or the
+            // multipart upload parameters.  These are included sorted by 
+            // name.
+            appendSubResources(buf, resource, queryIndex + 1);
             }
+        }
 
-        // ...unless there is an acl or torrent parameter
-        if (resource.matches(".*[&?]acl($|=|&).*")) 
+    private static void appendSubResources(final StringBuilder buf, 
+        final String resource, final int queryStart)
+        {
+        List<String> subResources = null;
+        int start = queryStart;
+        final int length = resource.length();
+        while (start < length)
             {
-            buf.append("?acl");
-            } 
-        else if (resource.matches(".*[&?]torrent($|=|&).*")) 
+            int end = resource.indexOf('&', start);
+            if (end == -1)
+                {
+                end = length;
+                }
+            int nameEnd = resource.indexOf('=', start);
+            if (nameEnd == -1 || nameEnd > end)
+                {
+                nameEnd = end;
+                }
+            if (SUB_RESOURCES.contains(resource.substring(start, nameEnd)))
+                {
+                if (subResources == null)
+                    {
+                    subResources = new ArrayList<String>(2);
+                    }
+                subResources.add(resource.substring(start, end));
+                }
+            start = end + 1;
+            }
+        if (subResources == null)
             {
-            buf.append("?torrent");
-            } 
-        else if (resource.matches(".*[&?]logging($|=|&).*")) 
+            return;
+            }
+        if (subResources.size() > 1)
+            {
+            Collections.sort(subResources);
+            }
+        char sep = '?';
+        for (final String subResource : subResources)
             {
-            buf.append("?logging");
+            buf.append(sep).append(subResource);
+            sep = '&';
             }
+        }
 
-        return buf.toString();
+    /**
+     * URL encodes the specified string for use in an S3 URL.
+     * 
+     * @param value The string to encode.
+     * @return The encoded string.
+     */
+    public static String urlEncode(final String value)
+        {
+        try
+            {
+            return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+            }
+        catch (final UnsupportedEncodingException e)
+            {
+            throw new IllegalStateException("No UTF-8?", e);
+            }
         }
     }
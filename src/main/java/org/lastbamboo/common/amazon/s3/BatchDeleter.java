@@ -0,0 +1,140 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.littleshoot.util.InputStreamHandler;
+import org.littleshoot.util.IoExceptionWithCause;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deletes keys using S3's multi-object delete, which removes up to 1000 keys
+ * per request.  Several batches are sent at once.
+ */
+class BatchDeleter {
+
+    /**
+     * The most keys S3 accepts in a single multi-object delete.
+     */
+    static final int MAX_BATCH_SIZE = 1000;
+
+    private final Logger log = LoggerFactory.getLogger(BatchDeleter.class);
+
+    private final AmazonS3Impl s3;
+
+    BatchDeleter(final AmazonS3Impl s3) {
+        this.s3 = s3;
+    }
+
+    /**
+     * Deletes all the specified keys.
+     *
+     * @param bucketName The bucket.
+     * @param keys The keys to delete.
+     * @throws IOException If any key could not be deleted.  When only some
+     * keys failed this is a {@link BulkOperationException} listing each of
+     * them.
+     */
+    void delete(final String bucketName, final Collection<String> keys)
+        throws IOException {
+        if (keys.isEmpty()) {
+            return;
+        }
+        final AmazonS3Config config = this.s3.getConfig();
+        final int batchSize =
+            Math.max(1, Math.min(MAX_BATCH_SIZE, config.getDeleteBatchSize()));
+        final List<List<String>> batches = new ArrayList<List<String>>();
+        List<String> batch = new ArrayList<String>(batchSize);
+        for (final String key : keys) {
+            batch.add(key);
+            if (batch.size() == batchSize) {
+                batches.add(batch);
+                batch = new ArrayList<String>(batchSize);
+            }
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+
+        final Map<String, IOException> failures =
+            new ConcurrentHashMap<String, IOException>();
+        final int threads =
+            Math.max(1, Math.min(batches.size(), config.getDeleteThreads()));
+        final ExecutorService executor = 
+            this.s3.newExecutor("S3-Delete", threads);
+        try {
+            for (final List<String> toDelete : batches) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            deleteBatch(bucketName, toDelete, failures);
+                        } catch (final IOException e) {
+                            log.warn("Could not delete batch", e);
+                            for (final String key : toDelete) {
+                                failures.put(key, e);
+                            }
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.debug("Still waiting for deletes to complete");
+            }
+        } catch (final InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IoExceptionWithCause("Interrupted during delete", e);
+        }
+        if (!failures.isEmpty()) {
+            throw new BulkOperationException("Could not delete all keys from " +
+                bucketName, failures);
+        }
+    }
+
+    private void deleteBatch(final String bucketName, final List<String> keys,
+        final Map<String, IOException> failures) throws IOException {
+        log.debug("Deleting {} keys from {}", keys.size(), bucketName);
+        final StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        // Quiet mode means S3 only tells us about the keys it couldn't
+        // delete.
+        sb.append("<Delete><Quiet>true</Quiet>");
+        for (final String key : keys) {
+            sb.append("<Object><Key>");
+            sb.append(StringEscapeUtils.escapeXml(key));
+            sb.append("</Key></Object>");
+        }
+        sb.append("</Delete>");
+        final byte[] body = sb.toString().getBytes("UTF-8");
+
+        final String resource = bucketName + "?delete";
+        final PostMethod method = new PostMethod(this.s3.secureUrl(resource));
+        method.setRequestEntity(new ByteArrayRequestEntity(body,
+            "application/xml"));
+        method.setRequestHeader("Content-Type", "application/xml");
+        // S3 requires an MD5 of the body for multi-object deletes.
+        method.setRequestHeader("Content-MD5",
+            Base64.encodeBase64String(DigestUtils.md5(body)));
+        this.s3.normalizeRequest(method, "POST", resource, false, true);
+        this.s3.sendRequest(method, new InputStreamHandler() {
+            public void handleInputStream(final InputStream is)
+                throws IOException {
+                ListingParser.parseDeleteErrors(is, failures);
+            }
+        });
+    }
+}
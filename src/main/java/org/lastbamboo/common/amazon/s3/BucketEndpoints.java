@@ -0,0 +1,303 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.xml.xpath.XPathExpressionException;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.lang.StringUtils;
+import org.littleshoot.util.InputStreamHandler;
+import org.littleshoot.util.IoExceptionWithCause;
+import org.littleshoot.util.xml.XPathUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
+
+/**
+ * Works out where to send the requests for each bucket.  Through Amazon's
+ * global endpoint, every request for a bucket outside us-east-1 costs a
+ * redirect or a trip across regions, so we look up each bucket's region
+ * once with a "?location" request, cache it, and send requests straight to
+ * the regional endpoint.  Buckets whose names are valid host names get
+ * virtual-hosted addresses such as
+ * "https://bucket.s3.eu-west-1.amazonaws.com/key".  Others, like names
+ * with dots that wouldn't match the wildcard certificate, stay path-style
+ * on the regional host.
+ * <p>
+ * The signature covers "/bucket/key" with either style, so callers sign
+ * the same full path as always.  The one difference is a request for the
+ * bucket itself, which is signed as "/bucket/" when the bucket is in the
+ * host name.  See {@link #signingPath(String, String)}.
+ */
+final class BucketEndpoints {
+
+    private final Logger log = LoggerFactory.getLogger(BucketEndpoints.class);
+
+    private static final String GLOBAL_HOST = "s3.amazonaws.com";
+
+    private static final String DEFAULT_REGION = "us-east-1";
+
+    private static final Pattern HOST_NAME_BUCKET =
+        Pattern.compile("[a-z0-9][a-z0-9-]{1,61}[a-z0-9]");
+
+    /**
+     * What we return for buckets whose region we couldn't find, such as
+     * buckets we may not ask about.
+     */
+    private static final String UNKNOWN = "";
+
+    private final AmazonS3Impl s3;
+    private final String urlBase;
+    private final String secureUrlBase;
+    private final boolean routePlain;
+    private final boolean routeSecure;
+
+    private final ConcurrentMap<String, String> regions =
+        new ConcurrentHashMap<String, String>();
+
+    /**
+     * When we last failed to find the region of each bucket, in 
+     * {@link System#nanoTime()} terms.  We don't keep asking, but a bucket
+     * that's created later or that we're later allowed to ask about gets
+     * routed properly once the TTL is up.
+     */
+    private final ConcurrentMap<String, Long> unknownSince =
+        new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Creates a new resolver.
+     *
+     * @param s3 The S3 instance to look regions up through.
+     * @param urlBase The base URL for plain HTTP requests.
+     * @param secureUrlBase The base URL for HTTPS requests.
+     * @param routing Whether or not to route requests by region at all.
+     * We only ever do for bases that point at Amazon's global endpoint.
+     */
+    BucketEndpoints(final AmazonS3Impl s3, final String urlBase,
+        final String secureUrlBase, final boolean routing) {
+        this.s3 = s3;
+        this.urlBase = urlBase;
+        this.secureUrlBase = secureUrlBase;
+        this.routePlain = routing && isGlobal(urlBase);
+        this.routeSecure = routing && isGlobal(secureUrlBase);
+    }
+
+    /**
+     * Creates the URL for the specified resource.
+     *
+     * @param fullPath The path to the resource, such as "bucket/key" or
+     * "bucket?uploads".
+     * @param secure Whether to use HTTPS or plain HTTP.
+     * @return The full URL.
+     */
+    String url(final String fullPath, final boolean secure) {
+        final String base = secure ? this.secureUrlBase : this.urlBase;
+        final String bucket = bucketOf(fullPath);
+        if (!(secure ? this.routeSecure : this.routePlain) ||
+            bucket.length() == 0) {
+            return base + "/" + fullPath;
+        }
+        final String region = region(bucket);
+        if (UNKNOWN.equals(region)) {
+            return base + "/" + fullPath;
+        }
+        return regionalUrl(base, region, fullPath);
+    }
+
+    /**
+     * Returns the region of the specified bucket, looking it up the first
+     * time we see the bucket.  If we couldn't find it, we look again once
+     * the configured TTL for unknown regions has passed.
+     *
+     * @param bucket The bucket.
+     * @return The region, or an empty string if we couldn't find it.
+     */
+    String region(final String bucket) {
+        final String cached = this.regions.get(bucket);
+        if (cached != null) {
+            return cached;
+        }
+        final Long since = this.unknownSince.get(bucket);
+        if (since != null && System.nanoTime() - since.longValue() < 
+            TimeUnit.MILLISECONDS.toNanos(
+                this.s3.getConfig().getUnknownRegionTtl())) {
+            return UNKNOWN;
+        }
+        final String region = lookUpRegion(bucket);
+        if (region == null) {
+            // Something transient went wrong, so try again next time.
+            return UNKNOWN;
+        }
+        if (UNKNOWN.equals(region)) {
+            this.unknownSince.put(bucket, System.nanoTime());
+            return UNKNOWN;
+        }
+        this.unknownSince.remove(bucket);
+        final String existing = this.regions.putIfAbsent(bucket, region);
+        return existing == null ? region : existing;
+    }
+
+    /**
+     * Forgets what we know about a bucket, such as when it's created or
+     * deleted.
+     *
+     * @param bucket The bucket.
+     */
+    void forget(final String bucket) {
+        this.regions.remove(bucket);
+        this.unknownSince.remove(bucket);
+    }
+
+    /**
+     * @return The region, {@link #UNKNOWN} if we may not ask or the bucket
+     * doesn't exist, or <code>null</code> if we should ask again later.
+     */
+    private String lookUpRegion(final String bucket) {
+        final String fullPath = bucket + "?location";
+        final GetMethod method =
+            new GetMethod(this.secureUrlBase + "/" + fullPath);
+        this.s3.normalizeRequest(method, "GET", fullPath, false, true);
+        final String[] location = new String[1];
+        try {
+            this.s3.sendRequest(method, new InputStreamHandler() {
+                public void handleInputStream(final InputStream is)
+                    throws IOException {
+                    try {
+                        location[0] = XPathUtils.newXPath(is).getString(
+                            "/LocationConstraint");
+                    } catch (final SAXException e) {
+                        throw new IoExceptionWithCause("Bad XML", e);
+                    } catch (final XPathExpressionException e) {
+                        throw new IoExceptionWithCause("Bad XPath", e);
+                    }
+                }
+            });
+        } catch (final IOException e) {
+            // S3 names the region on most errors, even when we may not
+            // ask for the location.
+            final Header header =
+                method.getResponseHeader("x-amz-bucket-region");
+            if (header != null && StringUtils.isNotBlank(header.getValue())) {
+                return header.getValue().trim();
+            }
+            if (S3ServiceException.isTransient(e)) {
+                log.debug("Could not look up region of " + bucket, e);
+                return null;
+            }
+            log.debug("No region for {}: {}", bucket, e.getMessage());
+            return UNKNOWN;
+        }
+        final String region = toRegion(location[0]);
+        log.debug("Bucket {} is in {}", bucket, region);
+        return region;
+    }
+
+    /**
+     * Converts a location constraint to a region name.
+     *
+     * @param location The location constraint S3 returned.
+     * @return The region.
+     */
+    static String toRegion(final String location) {
+        if (StringUtils.isBlank(location)) {
+            // Buckets in the original region have no constraint.
+            return DEFAULT_REGION;
+        }
+        if ("EU".equals(location.trim())) {
+            return "eu-west-1";
+        }
+        return location.trim();
+    }
+
+    /**
+     * Creates the URL for a resource at the endpoint for a region.
+     *
+     * @param base The base URL we'd otherwise use, for its scheme and port.
+     * @param region The bucket's region.
+     * @param fullPath The path to the resource, starting with the bucket.
+     * @return The URL.
+     */
+    static String regionalUrl(final String base, final String region,
+        final String fullPath) {
+        final URI uri = URI.create(base);
+        final String bucket = bucketOf(fullPath);
+        final StringBuilder sb = new StringBuilder(base.length() +
+            fullPath.length() + 32);
+        sb.append(uri.getScheme()).append("://");
+        final boolean virtualHosted =
+            HOST_NAME_BUCKET.matcher(bucket).matches();
+        if (virtualHosted) {
+            sb.append(bucket).append('.');
+        }
+        sb.append(regionalHost(region));
+        if (uri.getPort() != -1) {
+            sb.append(':').append(uri.getPort());
+        }
+        sb.append('/');
+        if (virtualHosted) {
+            sb.append(StringUtils.removeStart(
+                fullPath.substring(bucket.length()), "/"));
+        } else {
+            sb.append(fullPath);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the path to sign for a request.
+     *
+     * @param fullPath The path to the resource, such as "bucket/key".
+     * @param host The host the request is going to.
+     * @return The path to sign.  This is the full path, except that a
+     * request for a bucket in the host name signs "bucket/" since the
+     * request is for "/" on that host.
+     */
+    static String signingPath(final String fullPath, final String host) {
+        final String bucket = bucketOf(fullPath);
+        if (host == null || !HOST_NAME_BUCKET.matcher(bucket).matches() ||
+            !host.startsWith(bucket + ".") ||
+            fullPath.length() > bucket.length() &&
+            fullPath.charAt(bucket.length()) == '/') {
+            return fullPath;
+        }
+        return bucket + "/" + fullPath.substring(bucket.length());
+    }
+
+    private static String regionalHost(final String region) {
+        if (DEFAULT_REGION.equals(region)) {
+            return GLOBAL_HOST;
+        }
+        if (region.startsWith("cn-")) {
+            return "s3." + region + ".amazonaws.com.cn";
+        }
+        return "s3." + region + ".amazonaws.com";
+    }
+
+    private static String bucketOf(final String fullPath) {
+        int end = fullPath.length();
+        final int slash = fullPath.indexOf('/');
+        if (slash != -1) {
+            end = slash;
+        }
+        final int query = fullPath.indexOf('?');
+        if (query != -1 && query < end) {
+            end = query;
+        }
+        return fullPath.substring(0, end);
+    }
+
+    private static boolean isGlobal(final String base) {
+        try {
+            return GLOBAL_HOST.equalsIgnoreCase(URI.create(base).getHost());
+        } catch (final IllegalArgumentException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * Iterator over the objects in a bucket listing.  When the listing was 
+ * requested with a delimiter, keys that share a prefix up to the delimiter
+ * are rolled up into common prefixes instead of being returned as objects.
+ */
+public interface BucketListing extends Iterator<S3ObjectSummary> {
+
+    /**
+     * Returns the common prefixes from the pages fetched so far.  This is 
+     * only complete once {@link #hasNext()} has returned <code>false</code>.
+     * 
+     * @return The common prefixes, in the order S3 returned them.
+     */
+    Collection<String> getCommonPrefixes();
+}
@@ -0,0 +1,144 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.littleshoot.util.RuntimeIoException;
+
+/**
+ * Iterator over all the objects in a bucket that fetches the listing one
+ * page at a time.  As soon as a page arrives we start fetching the next one
+ * in the background, so the caller rarely has to wait on a round trip.
+ */
+class BucketListingIterator implements BucketListing {
+
+    private final AmazonS3Impl s3;
+    private final String bucketName;
+    private final String prefix;
+    private final String delimiter;
+
+    /**
+     * The scope of the operation that created the listing, so cancelling it
+     * also stops the page fetches we run in the background.
+     */
+    private final CancellationScope scope = CancellationScope.current();
+
+    private final Collection<String> commonPrefixes = new ArrayList<String>();
+
+    private Iterator<S3ObjectSummary> current;
+
+    /**
+     * The next page, or <code>null</code> if there are no more pages.
+     */
+    private Future<Page> nextPage;
+
+    /**
+     * Creates a new listing.
+     *
+     * @param s3 The S3 instance to send requests through.
+     * @param bucketName The bucket to list.
+     * @param prefix Only list keys starting with this, or <code>null</code>
+     * for all keys.
+     * @param delimiter Roll keys up into common prefixes at the first
+     * occurrence of this after the prefix, or <code>null</code> for none.
+     */
+    BucketListingIterator(final AmazonS3Impl s3, final String bucketName,
+        final String prefix, final String delimiter) {
+        this.s3 = s3;
+        this.bucketName = bucketName;
+        this.prefix = prefix;
+        this.delimiter = delimiter;
+        this.nextPage = fetch(null);
+    }
+
+    private Future<Page> fetch(final String marker) {
+        final Callable<Page> task = new Callable<Page>() {
+            public Page call() throws IOException {
+                final List<S3ObjectSummary> objects =
+                    new ArrayList<S3ObjectSummary>();
+                final ListingPage page = s3.listPage(bucketName, prefix,
+                    delimiter, marker,
+                    new ListingHandler<S3ObjectSummary>() {
+                    public void handle(final S3ObjectSummary entry) {
+                        objects.add(entry);
+                    }
+                });
+                return new Page(objects, page);
+            }
+        };
+        if (this.scope == null) {
+            return this.s3.getBackgroundExecutor().submit(task);
+        }
+        return this.s3.getBackgroundExecutor().submit(new Callable<Page>() {
+            public Page call() throws Exception {
+                return scope.call(task);
+            }
+        });
+    }
+
+    public boolean hasNext() {
+        while (this.current == null || !this.current.hasNext()) {
+            if (this.nextPage == null) {
+                return false;
+            }
+            final Page page = await(this.nextPage);
+            if (page.info.isTruncated() && page.info.getNextMarker() != null) {
+                this.nextPage = fetch(page.info.getNextMarker());
+            } else {
+                this.nextPage = null;
+            }
+            this.commonPrefixes.addAll(page.info.getCommonPrefixes());
+            this.current = page.objects.iterator();
+        }
+        return true;
+    }
+
+    public Collection<String> getCommonPrefixes() {
+        return this.commonPrefixes;
+    }
+
+    public S3ObjectSummary next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return this.current.next();
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("Listings are read only");
+    }
+
+    private static Page await(final Future<Page> future) {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeIoException("Interrupted during listing", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw new RuntimeIoException("Error listing bucket",
+                    (Exception) cause);
+            }
+            throw new RuntimeIoException("Error listing bucket: " + cause);
+        }
+    }
+
+    private static final class Page {
+        private final List<S3ObjectSummary> objects;
+        private final ListingPage info;
+
+        private Page(final List<S3ObjectSummary> objects,
+            final ListingPage info) {
+            this.objects = objects;
+            this.info = info;
+        }
+    }
+}
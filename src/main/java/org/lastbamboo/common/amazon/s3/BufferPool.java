@@ -0,0 +1,59 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small pool of large byte buffers for copying upload bodies.  Uploads
+ * want big buffers so each read and write moves a lot of data, but 
+ * allocating a fresh one for every request churns the heap.  Buffers 
+ * beyond the pool's capacity are simply left for the garbage collector.
+ */
+final class BufferPool {
+
+    /**
+     * The size of each pooled buffer.
+     */
+    static final int BUFFER_SIZE = 256 * 1024;
+
+    private static final int MAX_POOLED = 32;
+
+    private static final Queue<byte[]> POOL = 
+        new ConcurrentLinkedQueue<byte[]>();
+
+    private static final AtomicInteger POOLED = new AtomicInteger();
+
+    private BufferPool() {
+        // Static methods only.
+    }
+
+    /**
+     * @return A buffer of {@link #BUFFER_SIZE} bytes, which the caller 
+     * should hand back with {@link #release(byte[])} when done.
+     */
+    static byte[] acquire() {
+        final byte[] buf = POOL.poll();
+        if (buf == null) {
+            return new byte[BUFFER_SIZE];
+        }
+        POOLED.decrementAndGet();
+        return buf;
+    }
+
+    /**
+     * Returns a buffer to the pool.
+     *
+     * @param buf The buffer, which the caller must not use again.
+     */
+    static void release(final byte[] buf) {
+        if (buf.length != BUFFER_SIZE) {
+            return;
+        }
+        if (POOLED.incrementAndGet() > MAX_POOLED) {
+            POOLED.decrementAndGet();
+            return;
+        }
+        POOL.offer(buf);
+    }
+}
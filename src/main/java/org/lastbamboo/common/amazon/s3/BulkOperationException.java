@@ -0,0 +1,62 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Exception thrown when some of the items in a bulk operation such as a
+ * directory upload failed.  The remaining items were still processed.
+ */
+public class BulkOperationException extends IOException {
+
+    private static final long serialVersionUID = -5468183736457046516L;
+
+    private static final int MAX_KEYS_IN_MESSAGE = 10;
+
+    private final Map<String, IOException> failures;
+
+    /**
+     * Creates a new exception.
+     *
+     * @param message The summary message.
+     * @param failures The errors for each failed item, keyed by the S3 key
+     * of the item.
+     */
+    public BulkOperationException(final String message,
+        final Map<String, IOException> failures) {
+        super(message + " -- " + failures.size() + " failed: " +
+            summarize(failures.keySet()));
+        this.failures = Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * Lists the first few keys, so failing thousands of items doesn't make
+     * a message too long to log.  {@link #getFailures()} has all of them.
+     */
+    private static String summarize(final Collection<String> keys) {
+        final StringBuilder sb = new StringBuilder("[");
+        int count = 0;
+        for (final String key : keys) {
+            if (count == MAX_KEYS_IN_MESSAGE) {
+                sb.append(", ... ").append(keys.size() - count).append(" more");
+                break;
+            }
+            if (count > 0) {
+                sb.append(", ");
+            }
+            sb.append(key);
+            count++;
+        }
+        return sb.append(']').toString();
+    }
+
+    /**
+     * @return The errors for each failed item, keyed by the S3 key of the
+     * item.
+     */
+    public Map<String, IOException> getFailures() {
+        return failures;
+    }
+}
@@ -0,0 +1,76 @@
+package org.lastbamboo.common.amazon.s3;
+
+/**
+ * A range of bytes within an S3 object, as sent in an HTTP Range header.
+ * Ranges are inclusive at both ends, just like the header.
+ */
+public final class ByteRange {
+
+    private final long first;
+
+    private final long last;
+
+    private ByteRange(final long first, final long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * Creates a range from one byte through another.
+     *
+     * @param first The offset of the first byte.
+     * @param last The offset of the last byte, inclusive.
+     * @return The range.
+     */
+    public static ByteRange of(final long first, final long last) {
+        if (first < 0 || last < first) {
+            throw new IllegalArgumentException("Bad range: " + first + "-" + 
+                last);
+        }
+        return new ByteRange(first, last);
+    }
+
+    /**
+     * Creates a range from the specified byte to the end of the object.
+     *
+     * @param first The offset of the first byte.
+     * @return The range.
+     */
+    public static ByteRange from(final long first) {
+        if (first < 0) {
+            throw new IllegalArgumentException("Bad offset: " + first);
+        }
+        return new ByteRange(first, -1);
+    }
+
+    /**
+     * Creates a range covering the last bytes of the object.
+     *
+     * @param length The number of bytes at the end of the object.
+     * @return The range.
+     */
+    public static ByteRange last(final long length) {
+        if (length <= 0) {
+            throw new IllegalArgumentException("Bad length: " + length);
+        }
+        return new ByteRange(-1, length);
+    }
+
+    /**
+     * @return The value for the Range header, such as "bytes=0-99".
+     */
+    public String toHeader() {
+        if (this.first == -1) {
+            return "bytes=-" + this.last;
+        }
+        if (this.last == -1) {
+            return "bytes=" + this.first + "-";
+        }
+        return "bytes=" + this.first + "-" + this.last;
+    }
+
+    @Override
+    public String toString() {
+        return toHeader();
+    }
+}
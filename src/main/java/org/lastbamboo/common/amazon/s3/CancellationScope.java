@@ -0,0 +1,157 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.InterruptedIOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.httpclient.HttpMethod;
+
+/**
+ * Tracks the requests in flight for a single operation so the operation can
+ * be cancelled from another thread.  Cancelling aborts every registered 
+ * {@link HttpMethod}, which closes its connection and unblocks the thread
+ * reading from it, and makes any later request in the scope fail at once.
+ * Operations that fan out to worker threads carry their scope with them.
+ */
+final class CancellationScope {
+
+    private static final ThreadLocal<CancellationScope> CURRENT =
+        new ThreadLocal<CancellationScope>();
+
+    private final Set<HttpMethod> active = new HashSet<HttpMethod>();
+
+    private final Set<Thread> threads = new HashSet<Thread>();
+
+    private boolean cancelled;
+
+    /**
+     * @return The scope of the operation running on this thread, or
+     * <code>null</code> if it can't be cancelled.
+     */
+    static CancellationScope current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Runs a task in this scope on the calling thread.
+     *
+     * @param task The task.
+     */
+    void run(final Runnable task) {
+        final CancellationScope previous = enter();
+        try {
+            task.run();
+        } finally {
+            exit(previous);
+        }
+    }
+
+    /**
+     * Calls a task in this scope on the calling thread.
+     *
+     * @param task The task.
+     * @return The result of the task.
+     * @throws Exception If the task throws.
+     */
+    <T> T call(final Callable<T> task) throws Exception {
+        final CancellationScope previous = enter();
+        try {
+            return task.call();
+        } finally {
+            exit(previous);
+        }
+    }
+
+    private CancellationScope enter() {
+        final CancellationScope previous = CURRENT.get();
+        CURRENT.set(this);
+        synchronized (this) {
+            this.threads.add(Thread.currentThread());
+        }
+        return previous;
+    }
+
+    private void exit(final CancellationScope previous) {
+        synchronized (this) {
+            this.threads.remove(Thread.currentThread());
+            if (this.cancelled) {
+                // Don't leave our interrupt behind for the next task.
+                Thread.interrupted();
+            }
+        }
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * Wraps the specified factory so every thread it creates runs in this
+     * scope.  This is for the pools bulk operations create for themselves.
+     *
+     * @param factory The factory to wrap.
+     * @return The wrapped factory.
+     */
+    ThreadFactory propagate(final ThreadFactory factory) {
+        return new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                return factory.newThread(new Runnable() {
+                    public void run() {
+                        CancellationScope.this.run(r);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Registers a request that's about to be sent.
+     *
+     * @param method The request.
+     * @throws InterruptedIOException If the scope is already cancelled.
+     */
+    synchronized void register(final HttpMethod method) 
+        throws InterruptedIOException {
+        if (this.cancelled) {
+            throw new InterruptedIOException("Operation cancelled");
+        }
+        this.active.add(method);
+    }
+
+    /**
+     * Unregisters a request that's finished.
+     *
+     * @param method The request.
+     */
+    synchronized void unregister(final HttpMethod method) {
+        this.active.remove(method);
+    }
+
+    /**
+     * Cancels the operation, aborting all its requests and interrupting 
+     * its threads.
+     */
+    synchronized void cancel() {
+        if (this.cancelled) {
+            return;
+        }
+        this.cancelled = true;
+        for (final HttpMethod method : this.active) {
+            method.abort();
+        }
+        this.active.clear();
+        for (final Thread thread : this.threads) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * @return Whether or not the operation has been cancelled.
+     */
+    synchronized boolean isCancelled() {
+        return this.cancelled;
+    }
+}
@@ -0,0 +1,20 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Callback for processing a download as it arrives, one chunk at a time.
+ */
+public interface ChunkHandler {
+
+    /**
+     * Handles the next chunk of the body.  The buffer is reused for the 
+     * next chunk, so implementations must copy anything they want to keep.
+     *
+     * @param chunk The chunk, positioned at its first byte.
+     * @throws IOException If the chunk could not be processed.  This stops
+     * the download.
+     */
+    void handleChunk(ByteBuffer chunk) throws IOException;
+}
@@ -0,0 +1,101 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.IOException;
+
+/**
+ * Fails requests to an endpoint fast while it's failing.  After enough 
+ * transient failures in a row the circuit opens and requests fail without
+ * being sent.  Once the open period passes, a single trial request goes 
+ * through: if it succeeds the circuit closes again, and if not it stays 
+ * open for another period.
+ */
+class CircuitBreaker {
+
+    private final String endpoint;
+
+    private final int failureThreshold;
+
+    private final long openMillis;
+
+    private int consecutiveFailures;
+
+    /**
+     * When the circuit opened, or 0 when it's closed.
+     */
+    private long openedAt;
+
+    private boolean trialInFlight;
+
+    /**
+     * Creates a new breaker.
+     *
+     * @param endpoint The endpoint, for error messages.
+     * @param failureThreshold The transient failures in a row that open 
+     * the circuit.  Zero or less disables the breaker.
+     * @param openMillis How long the circuit stays open before we try 
+     * again.
+     */
+    CircuitBreaker(final String endpoint, final int failureThreshold,
+        final long openMillis) {
+        this.endpoint = endpoint;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Checks whether a request may be sent.
+     *
+     * @throws IOException If the circuit is open.
+     */
+    synchronized void beforeRequest() throws IOException {
+        if (this.openedAt == 0) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        if (now - this.openedAt >= this.openMillis && !this.trialInFlight) {
+            // Let one request through to see if the endpoint has recovered.
+            this.trialInFlight = true;
+            return;
+        }
+        throw new IOException("Not sending to " + this.endpoint + 
+            " -- it failed " + this.consecutiveFailures + 
+            " times in a row and we're waiting for it to recover");
+    }
+
+    /**
+     * Records a request that reached the endpoint and got a response that
+     * wasn't a server error.
+     */
+    synchronized void onSuccess() {
+        this.consecutiveFailures = 0;
+        this.openedAt = 0;
+        this.trialInFlight = false;
+    }
+
+    /**
+     * Records a transient failure.
+     */
+    synchronized void onFailure() {
+        this.consecutiveFailures++;
+        if (this.trialInFlight || (this.failureThreshold > 0 &&
+            this.consecutiveFailures >= this.failureThreshold)) {
+            this.openedAt = System.currentTimeMillis();
+            this.trialInFlight = false;
+        }
+    }
+
+    /**
+     * Records a request that failed for reasons that say nothing about the
+     * endpoint's health, such as being cancelled.
+     */
+    synchronized void onAbandoned() {
+        this.trialInFlight = false;
+    }
+
+    /**
+     * @return Whether or not the circuit is open.
+     */
+    synchronized boolean isOpen() {
+        return this.openedAt != 0;
+    }
+}
@@ -0,0 +1,152 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Computes the MD5s we send in Content-MD5 headers and checks them against
+ * the ETags S3 returns.  Files are digested through a memory-mapped view, 
+ * so the bytes come straight from the page cache without copying them onto
+ * the heap, and the upload that follows reads the same cached pages rather 
+ * than going back to the disk.
+ */
+final class ContentMd5 {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ContentMd5.class);
+
+    /**
+     * Regions smaller than this are cheaper to read than to map.
+     */
+    private static final long MIN_MAPPED_LENGTH = 256 * 1024;
+
+    /**
+     * The most we map at once, to keep address space use bounded on 32 bit
+     * JVMs.
+     */
+    private static final long MAX_MAPPED_LENGTH = 64 * 1024 * 1024;
+
+    /**
+     * The header present when an object is encrypted with a key we supply.
+     */
+    private static final String CUSTOMER_ALGORITHM =
+        "x-amz-server-side-encryption-customer-algorithm";
+
+    private ContentMd5() {
+        // Static methods only.
+    }
+
+    /**
+     * Computes the MD5 of a region of a file.
+     *
+     * @param file The file.
+     * @param offset The offset of the first byte.
+     * @param length The number of bytes.
+     * @return The MD5.
+     * @throws IOException If the file could not be read.
+     */
+    static byte[] digest(final File file, final long offset, 
+        final long length) throws IOException {
+        final MessageDigest md5 = newDigest();
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            if (length < MIN_MAPPED_LENGTH) {
+                final ByteBuffer buf = ByteBuffer.allocate((int) length);
+                while (buf.hasRemaining()) {
+                    if (channel.read(buf, offset + buf.position()) == -1) {
+                        throw new IOException("File truncated: " + file);
+                    }
+                }
+                buf.flip();
+                md5.update(buf);
+            } else {
+                long position = offset;
+                final long end = offset + length;
+                while (position < end) {
+                    final long size = 
+                        Math.min(MAX_MAPPED_LENGTH, end - position);
+                    final MappedByteBuffer mapped = channel.map(
+                        FileChannel.MapMode.READ_ONLY, position, size);
+                    md5.update(mapped);
+                    position += size;
+                }
+            }
+        } finally {
+            raf.close();
+        }
+        return md5.digest();
+    }
+
+    /**
+     * @param md5 The MD5.
+     * @return The value for the Content-MD5 header.
+     */
+    static String toHeader(final byte[] md5) {
+        return Base64.encodeBase64String(md5);
+    }
+
+    /**
+     * Checks the ETag S3 returned for an upload matches the MD5 of what we
+     * sent.  S3 already rejects bodies that don't match Content-MD5, so 
+     * this catches the rare case of the object being stored differently 
+     * than we asked.  ETags of objects encrypted with KMS or customer keys
+     * aren't MD5s, so we can't check those, and we can't check a response
+     * without an ETag either.
+     *
+     * @param method The completed request.
+     * @param md5 The MD5 of the body we sent.
+     * @throws S3ServiceException If the ETag doesn't match.  Sending the 
+     * same bytes again won't fix that, so this is never retryable.
+     */
+    static void verifyETag(final HttpMethod method, final byte[] md5) 
+        throws S3ServiceException {
+        if (!isMd5ETag(method)) {
+            return;
+        }
+        final Header header = method.getResponseHeader("ETag");
+        if (header == null) {
+            LOG.warn("No ETag in response -- can't verify " + 
+                method.getPath());
+            return;
+        }
+        final String eTag = StringUtils.remove(header.getValue(), '"');
+        final String expected = new String(Hex.encodeHex(md5));
+        if (!expected.equalsIgnoreCase(eTag)) {
+            throw new S3ServiceException("ETag " + eTag + 
+                " does not match MD5 " + expected + " for " + 
+                method.getPath(), method.getStatusCode(), "BadDigest");
+        }
+    }
+
+    private static boolean isMd5ETag(final HttpMethod method) {
+        final Header sse = 
+            method.getResponseHeader("x-amz-server-side-encryption");
+        if (sse != null && sse.getValue().startsWith("aws:kms")) {
+            return false;
+        }
+        return method.getRequestHeader(CUSTOMER_ALGORITHM) == null &&
+            method.getResponseHeader(CUSTOMER_ALGORITHM) == null;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("No MD5?", e);
+        }
+    }
+}
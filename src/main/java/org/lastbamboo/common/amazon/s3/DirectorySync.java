@@ -0,0 +1,252 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.lang.StringUtils;
+import org.littleshoot.util.IoExceptionWithCause;
+import org.littleshoot.util.RuntimeIoException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Brings a bucket up to date with a local directory, uploading only the
+ * files that are new or have changed since the last sync.  We compare each
+ * file against both the local {@link SyncManifest} and the bucket listing,
+ * so files changed on either side get uploaded again.  We only read a file
+ * to hash it when its size or modification time no longer match the 
+ * manifest, and new files are hashed as they upload, so each file is read
+ * for its MD5 at most once.
+ * <p>
+ * When pruning, we only ever delete keys the manifest says an earlier sync
+ * of this directory uploaded, so objects other tools put in a shared
+ * bucket are left alone.
+ */
+class DirectorySync {
+
+    private final Logger log = LoggerFactory.getLogger(DirectorySync.class);
+
+    private final AmazonS3Impl s3;
+
+    private final SyncManifest manifest;
+
+    /**
+     * Creates a new sync.
+     *
+     * @param s3 The S3 instance to send requests through.
+     * @param manifest The manifest for the bucket and directory.
+     */
+    DirectorySync(final AmazonS3Impl s3, final SyncManifest manifest) {
+        this.s3 = s3;
+        this.manifest = manifest;
+    }
+
+    /**
+     * Syncs the directory to the bucket.
+     *
+     * @param bucketName The bucket.
+     * @param dir The local directory.
+     * @param makePublic Whether or not uploaded files should be publicly
+     * readable.
+     * @param deleteRemoved Whether or not to delete keys we uploaded 
+     * earlier whose files no longer exist locally.
+     * @throws IOException If any upload or delete failed.  The manifest
+     * still records everything that succeeded.
+     */
+    void sync(final String bucketName, final File dir, 
+        final boolean makePublic, final boolean deleteRemoved) 
+        throws IOException {
+        final Map<String, File> local = DirectoryUploader.collectFiles(dir);
+        this.manifest.load();
+        final Map<String, S3ObjectSummary> remote = listRemote(bucketName);
+        final Plan plan = plan(local, remote, deleteRemoved);
+        System.out.println("Uploading " + plan.uploads.size() + " of " + 
+            local.size() + " files");
+
+        // Never compressed, since we tell changed files by their size.
+        final DirectoryUploader uploader = new DirectoryUploader(this.s3, 
+            this.s3.parallelism(this.s3.getConfig().getUploadThreads()), 
+            false);
+        try {
+            uploader.upload(bucketName, plan.uploads, makePublic, plan.md5s);
+            recordUploads(plan, null);
+        } catch (final BulkOperationException e) {
+            recordUploads(plan, e.getFailures());
+            this.manifest.save();
+            throw e;
+        }
+        this.manifest.save();
+
+        if (!plan.deletes.isEmpty()) {
+            System.out.println("Deleting " + plan.deletes.size() + " files");
+            try {
+                this.s3.deleteAll(bucketName, plan.deletes);
+                recordDeletes(plan, null);
+            } catch (final BulkOperationException e) {
+                recordDeletes(plan, e.getFailures());
+                throw e;
+            } finally {
+                this.manifest.save();
+            }
+        }
+    }
+
+    private void recordDeletes(final Plan plan,
+        final Map<String, IOException> failures) {
+        for (final String key : plan.deletes) {
+            // Keys we failed to delete stay in the manifest, so the next
+            // sync tries again.
+            if (failures == null || !failures.containsKey(key)) {
+                this.manifest.remove(key);
+            }
+        }
+    }
+
+    private Map<String, S3ObjectSummary> listRemote(final String bucketName)
+        throws IOException {
+        final Map<String, S3ObjectSummary> remote = 
+            new HashMap<String, S3ObjectSummary>();
+        try {
+            final BucketListing listing = this.s3.listObjects(bucketName);
+            while (listing.hasNext()) {
+                final S3ObjectSummary summary = listing.next();
+                remote.put(summary.getKey(), summary);
+            }
+        } catch (final RuntimeIoException e) {
+            throw new IoExceptionWithCause("Could not list " + bucketName, e);
+        }
+        return remote;
+    }
+
+    private void recordUploads(final Plan plan, 
+        final Map<String, IOException> failures) {
+        for (final Map.Entry<String, File> entry : plan.uploads.entrySet()) {
+            final String key = entry.getKey();
+            if (failures != null && failures.containsKey(key)) {
+                this.manifest.remove(key);
+                continue;
+            }
+            final File file = entry.getValue();
+            // We learn the ETag from the listing on the next sync.  It's 
+            // only the MD5 for single part uploads.
+            this.manifest.put(new SyncManifest.Entry(key, file.length(),
+                file.lastModified(), 
+                Hex.encodeHexString(plan.md5s.get(key)), null));
+        }
+    }
+
+    /**
+     * Works out what to upload and delete, updating the manifest for every
+     * file we find is already in sync.
+     *
+     * @param local The local files, keyed by S3 key.
+     * @param remote The objects in the bucket, keyed by S3 key.
+     * @param deleteRemoved Whether or not to delete keys we uploaded 
+     * earlier whose files no longer exist locally.
+     * @return The work to do.
+     * @throws IOException If we could not read a file to hash it.
+     */
+    Plan plan(final Map<String, File> local, 
+        final Map<String, S3ObjectSummary> remote, 
+        final boolean deleteRemoved) throws IOException {
+        final Plan plan = new Plan();
+        for (final Map.Entry<String, File> entry : local.entrySet()) {
+            final String key = entry.getKey();
+            final File file = entry.getValue();
+            final SyncManifest.Entry recorded = this.manifest.get(key);
+            final S3ObjectSummary summary = remote.get(key);
+            if (summary == null) {
+                log.debug("New file: {}", key);
+                // Hashed when we upload it.
+                plan.upload(key, file, null);
+                continue;
+            }
+            final String eTag = StringUtils.remove(summary.getETag(), '"');
+            final boolean sameSize = summary.getSize() == file.length();
+            if (sameSize && recorded != null && recorded.matches(file) &&
+                (recorded.getETag() == null || 
+                 recorded.getETag().equals(eTag))) {
+                this.manifest.put(new SyncManifest.Entry(key, file.length(),
+                    file.lastModified(), recorded.getMd5(), eTag));
+                continue;
+            }
+
+            // Either the file was touched locally or the object changed
+            // in the bucket, so check the contents.
+            final byte[] digest = ContentMd5.digest(file, 0, file.length());
+            final String md5 = Hex.encodeHexString(digest);
+            final boolean sameAsRecorded = recorded != null &&
+                md5.equals(recorded.getMd5()) && 
+                eTag.equals(recorded.getETag());
+            if (sameSize && (md5.equals(eTag) || sameAsRecorded)) {
+                this.manifest.put(new SyncManifest.Entry(key, file.length(),
+                    file.lastModified(), md5, eTag));
+                continue;
+            }
+            log.debug("Changed file: {}", key);
+            plan.upload(key, file, digest);
+        }
+
+        // Only keys we uploaded are ours to delete.  Anything else in the
+        // bucket, such as other prefixes, belongs to someone else.
+        final List<String> stale = new ArrayList<String>();
+        for (final SyncManifest.Entry recorded : this.manifest.getEntries()) {
+            final String key = recorded.getKey();
+            if (local.containsKey(key)) {
+                continue;
+            }
+            if (!remote.containsKey(key)) {
+                stale.add(key);
+            } else if (deleteRemoved) {
+                plan.deletes.add(key);
+            }
+            // Otherwise we keep the entry so a later prune still knows we
+            // uploaded the key.
+        }
+        for (final String key : stale) {
+            this.manifest.remove(key);
+        }
+        return plan;
+    }
+
+    /**
+     * The uploads and deletes a sync needs.
+     */
+    static final class Plan {
+
+        private final Map<String, File> uploads = 
+            new LinkedHashMap<String, File>();
+
+        /**
+         * The MD5s of the files to upload.  Changed files already have 
+         * theirs, and the upload adds the rest.
+         */
+        private final Map<String, byte[]> md5s = 
+            new ConcurrentHashMap<String, byte[]>();
+
+        private final List<String> deletes = new ArrayList<String>();
+
+        private void upload(final String key, final File file, 
+            final byte[] md5) {
+            this.uploads.put(key, file);
+            if (md5 != null) {
+                this.md5s.put(key, md5);
+            }
+        }
+
+        Map<String, File> getUploads() {
+            return uploads;
+        }
+
+        List<String> getDeletes() {
+            return deletes;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.littleshoot.util.IoExceptionWithCause;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Uploads a set of files through a bounded pool of worker threads.  A
+ * failure on one file does not stop the others -- all failures are reported
+ * together once every file has been tried.
+ */
+class DirectoryUploader {
+
+    private final Logger log = LoggerFactory.getLogger(DirectoryUploader.class);
+
+    private final AmazonS3Impl s3;
+
+    private final int parallelism;
+
+    private final boolean compress;
+
+    /**
+     * Creates a new uploader.
+     *
+     * @param s3 The S3 instance to upload through.
+     * @param parallelism The number of files to upload at once.
+     * @param compress Whether or not to gzip compressible files if the
+     * configuration asks for it.
+     */
+    DirectoryUploader(final AmazonS3Impl s3, final int parallelism,
+        final boolean compress) {
+        this.s3 = s3;
+        this.parallelism = Math.max(1, parallelism);
+        this.compress = compress;
+    }
+
+    /**
+     * Walks the specified directory recursively and uploads every file in
+     * it.  Keys are the paths of the files relative to the directory,
+     * always using '/' as the separator.
+     *
+     * @param bucketName The bucket to upload to.
+     * @param dir The directory to upload.
+     * @param makePublic Whether or not the files should be publicly readable.
+     * @throws IOException If any upload failed.
+     */
+    void uploadDir(final String bucketName, final File dir,
+        final boolean makePublic) throws IOException {
+        upload(bucketName, collectFiles(dir), makePublic);
+    }
+
+    /**
+     * Uploads all the specified files.
+     *
+     * @param bucketName The bucket to upload to.
+     * @param filesByKey The files to upload, keyed by their S3 keys.
+     * @param makePublic Whether or not the files should be publicly readable.
+     * @throws IOException If any upload failed.  When only some uploads
+     * failed this is a {@link BulkOperationException} listing each of them.
+     */
+    void upload(final String bucketName, final Map<String, File> filesByKey,
+        final boolean makePublic) throws IOException {
+        upload(bucketName, filesByKey, makePublic, null);
+    }
+
+    /**
+     * Uploads all the specified files, reusing any MD5s the caller already
+     * computed.  We hash the other files as we upload them and add their
+     * MD5s to the map, so the caller never reads a file twice to learn it.
+     *
+     * @param bucketName The bucket to upload to.
+     * @param filesByKey The files to upload, keyed by their S3 keys.
+     * @param makePublic Whether or not the files should be publicly readable.
+     * @param md5s The MD5s of the files, keyed by S3 key, or 
+     * <code>null</code> if the caller doesn't need them.  This must be 
+     * safe to update from several threads.
+     * @throws IOException If any upload failed.  When only some uploads
+     * failed this is a {@link BulkOperationException} listing each of them.
+     */
+    void upload(final String bucketName, final Map<String, File> filesByKey,
+        final boolean makePublic, final Map<String, byte[]> md5s) 
+        throws IOException {
+        if (filesByKey.isEmpty()) {
+            return;
+        }
+        final Map<String, IOException> failures =
+            new ConcurrentHashMap<String, IOException>();
+        final ExecutorService executor =
+            this.s3.newExecutor("S3-Upload", this.parallelism);
+
+        // Only keep a couple of tasks per thread queued up so we don't
+        // build a huge backlog for trees with many thousands of files.
+        final Semaphore permits = new Semaphore(this.parallelism * 2);
+        try {
+            for (final Map.Entry<String, File> entry : filesByKey.entrySet()) {
+                final String key = entry.getKey();
+                final File file = entry.getValue();
+                permits.acquire();
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            s3.putFile(bucketName, key, file, makePublic,
+                                compress, md5(key, file, md5s));
+                        } catch (final IOException e) {
+                            log.warn("Could not upload " + file, e);
+                            failures.put(key, e);
+                        } catch (final RuntimeException e) {
+                            log.warn("Could not upload " + file, e);
+                            failures.put(key,
+                                new IoExceptionWithCause(e.getMessage(), e));
+                        } finally {
+                            permits.release();
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.debug("Still waiting for uploads to complete");
+            }
+        } catch (final InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IoExceptionWithCause("Interrupted during upload", e);
+        }
+
+        if (!failures.isEmpty()) {
+            throw new BulkOperationException("Could not upload all files to " +
+                bucketName, failures);
+        }
+    }
+
+    private static byte[] md5(final String key, final File file,
+        final Map<String, byte[]> md5s) throws IOException {
+        if (md5s == null) {
+            return null;
+        }
+        final byte[] known = md5s.get(key);
+        if (known != null) {
+            return known;
+        }
+        final byte[] md5 = ContentMd5.digest(file, 0, file.length());
+        md5s.put(key, md5);
+        return md5;
+    }
+
+    /**
+     * Collects all the files under the specified directory, keyed by their
+     * path relative to the directory.
+     *
+     * @param dir The directory.
+     * @return All the files under the directory, keyed by relative path.
+     * @throws IOException If we could not resolve a directory's path.
+     */
+    static Map<String, File> collectFiles(final File dir) throws IOException {
+        final Map<String, File> files = new LinkedHashMap<String, File>();
+        collectFiles(dir, "", files, new HashSet<String>());
+        return files;
+    }
+
+    private static void collectFiles(final File dir, final String prefix,
+        final Map<String, File> files, final Set<String> visited)
+        throws IOException {
+        // Guard against symlink cycles.
+        if (!visited.add(dir.getCanonicalPath())) {
+            return;
+        }
+        final File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (final File child : children) {
+            final String key = prefix + child.getName();
+            if (child.isDirectory()) {
+                collectFiles(child, key + "/", files, visited);
+            } else if (child.isFile()) {
+                files.put(key, child);
+            }
+        }
+    }
+}
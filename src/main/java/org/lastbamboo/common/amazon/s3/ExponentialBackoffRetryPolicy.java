@@ -0,0 +1,89 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Retries transient failures with capped exponential backoff and "full 
+ * jitter": the delay is random between zero and the exponential cap, so 
+ * clients that failed together don't all retry together.  Retries also 
+ * draw on a shared {@link RetryBudget}.
+ */
+public class ExponentialBackoffRetryPolicy implements RetryPolicy {
+
+    private final int maxRetries;
+
+    private final long baseDelay;
+
+    private final long maxDelay;
+
+    private final RetryBudget budget;
+
+    private final Random random = new Random();
+
+    /**
+     * Creates a policy that retries up to 5 times, starting from 100
+     * milliseconds and never waiting more than 20 seconds.
+     */
+    public ExponentialBackoffRetryPolicy() {
+        this(5, 100, 20 * 1000, new RetryBudget());
+    }
+
+    /**
+     * Creates a new policy.
+     *
+     * @param maxRetries The most times to retry a single request.
+     * @param baseDelay The cap on the delay before the first retry, in
+     * milliseconds.  The cap doubles with each retry.
+     * @param maxDelay The most milliseconds to wait before any retry.
+     * @param budget The budget shared by all requests using this policy.
+     */
+    public ExponentialBackoffRetryPolicy(final int maxRetries,
+        final long baseDelay, final long maxDelay, final RetryBudget budget) {
+        this.maxRetries = maxRetries;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.budget = budget;
+    }
+
+    public long retryDelay(final int retries, final IOException error) {
+        if (retries >= this.maxRetries || 
+            !S3ServiceException.isTransient(error)) {
+            return -1;
+        }
+        if (!this.budget.tryAcquire()) {
+            return -1;
+        }
+        return jitter(cap(retries));
+    }
+
+    public void onSuccess() {
+        this.budget.onSuccess();
+    }
+
+    /**
+     * @param retries The retries so far.
+     * @return The most we'd wait before the next retry.
+     */
+    long cap(final int retries) {
+        // Guard against overflow for large retry counts.
+        final int shift = Math.min(retries, 30);
+        return Math.min(this.maxDelay, this.baseDelay << shift);
+    }
+
+    private long jitter(final long cap) {
+        if (cap <= 0) {
+            return 0;
+        }
+        synchronized (this.random) {
+            return (long) (this.random.nextDouble() * (cap + 1));
+        }
+    }
+
+    /**
+     * @return The budget shared by requests using this policy.
+     */
+    public RetryBudget getBudget() {
+        return budget;
+    }
+}
@@ -0,0 +1,91 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+/**
+ * Request entity for sending a file or a byte range of one, such as one 
+ * part of a multipart upload.  This reads straight from the file's channel
+ * into large pooled buffers, so big uploads neither make many small reads 
+ * nor allocate a buffer per request the way {@link 
+ * org.apache.commons.httpclient.methods.FileRequestEntity} does.
+ */
+class FileRegionRequestEntity implements RequestEntity {
+
+    private final File file;
+    private final long offset;
+    private final long length;
+    private final String contentType;
+
+    /**
+     * Creates a new entity for the whole file.
+     *
+     * @param file The file.
+     * @param contentType The content type, or <code>null</code> for none.
+     */
+    FileRegionRequestEntity(final File file, final String contentType) {
+        this(file, 0, file.length(), contentType);
+    }
+
+    /**
+     * Creates a new entity.
+     *
+     * @param file The file.
+     * @param offset The offset of the first byte to send.
+     * @param length The number of bytes to send.
+     * @param contentType The content type, or <code>null</code> for none.
+     */
+    FileRegionRequestEntity(final File file, final long offset,
+        final long length, final String contentType) {
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+        this.contentType = contentType;
+    }
+
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    public void writeRequest(final OutputStream out) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+        final byte[] buf = BufferPool.acquire();
+        try {
+            // HttpClient only gives us a stream, and often an SSL one, so 
+            // we can't transfer straight to the socket.  Positional reads
+            // into a big buffer are the next best thing.
+            final FileChannel channel = raf.getChannel();
+            final ByteBuffer bb = ByteBuffer.wrap(buf);
+            long position = this.offset;
+            long remaining = this.length;
+            while (remaining > 0) {
+                bb.clear();
+                bb.limit((int) Math.min(buf.length, remaining));
+                final int read = channel.read(bb, position);
+                if (read == -1) {
+                    throw new IOException("File truncated: " + this.file);
+                }
+                out.write(buf, 0, read);
+                position += read;
+                remaining -= read;
+            }
+        } finally {
+            BufferPool.release(buf);
+            raf.close();
+        }
+    }
+
+    public long getContentLength() {
+        return this.length;
+    }
+
+    public String getContentType() {
+        return this.contentType;
+    }
+}
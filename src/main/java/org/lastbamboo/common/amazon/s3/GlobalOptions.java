@@ -1,11 +1,29 @@
 package org.lastbamboo.common.amazon.s3;
 
+import java.io.File;
+
 public class GlobalOptions {
 
     private static String proxyHost;
     
     private static int proxyPort;
 
+    private static boolean deleteRemoved;
+
+    private static boolean virtualThreads;
+
+    private static String endpoint;
+
+    private static String benchMix;
+
+    private static String benchSizes;
+
+    private static int benchThreads;
+
+    private static int benchSeconds;
+
+    private static File workingDir;
+
     public static String getProxyHost() {
         return proxyHost;
     }
@@ -21,4 +39,68 @@ public class GlobalOptions {
     public static void setProxyPort(int proxyPort) {
         GlobalOptions.proxyPort = proxyPort;
     }
+
+    public static boolean isDeleteRemoved() {
+        return deleteRemoved;
+    }
+
+    public static void setDeleteRemoved(boolean deleteRemoved) {
+        GlobalOptions.deleteRemoved = deleteRemoved;
+    }
+
+    public static boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public static void setVirtualThreads(boolean virtualThreads) {
+        GlobalOptions.virtualThreads = virtualThreads;
+    }
+
+    public static String getEndpoint() {
+        return endpoint;
+    }
+
+    public static void setEndpoint(String endpoint) {
+        GlobalOptions.endpoint = endpoint;
+    }
+
+    public static String getBenchMix() {
+        return benchMix;
+    }
+
+    public static void setBenchMix(String benchMix) {
+        GlobalOptions.benchMix = benchMix;
+    }
+
+    public static String getBenchSizes() {
+        return benchSizes;
+    }
+
+    public static void setBenchSizes(String benchSizes) {
+        GlobalOptions.benchSizes = benchSizes;
+    }
+
+    public static int getBenchThreads() {
+        return benchThreads;
+    }
+
+    public static void setBenchThreads(int benchThreads) {
+        GlobalOptions.benchThreads = benchThreads;
+    }
+
+    public static int getBenchSeconds() {
+        return benchSeconds;
+    }
+
+    public static void setBenchSeconds(int benchSeconds) {
+        GlobalOptions.benchSeconds = benchSeconds;
+    }
+
+    public static File getWorkingDir() {
+        return workingDir;
+    }
+
+    public static void setWorkingDir(File workingDir) {
+        GlobalOptions.workingDir = workingDir;
+    }
 }
@@ -0,0 +1,85 @@
+package org.lastbamboo.common.amazon.s3;
+
+/**
+ * The simple '*' patterns we accept for matching keys, such as "*.txt",
+ * "file*", "*ile*" or "logs/*.gz".  Far from full regular expressions, this
+ * only allows a star at the beginning or end of the pattern, or a single
+ * star in the middle.  Where possible, the pattern gives us a literal prefix
+ * we can have S3 filter on so we don't have to list the whole bucket.
+ */
+final class KeyPattern {
+
+    private final String prefix;
+    private final String suffix;
+    private final boolean matchStartOrEnd;
+    private final boolean wildcard;
+
+    private KeyPattern(final String prefix, final String suffix,
+        final boolean matchStartOrEnd, final boolean wildcard) {
+        this.prefix = prefix;
+        this.suffix = suffix;
+        this.matchStartOrEnd = matchStartOrEnd;
+        this.wildcard = wildcard;
+    }
+
+    /**
+     * Parses the specified pattern.
+     *
+     * @param pattern The pattern.
+     * @return The parsed pattern.
+     */
+    static KeyPattern parse(final String pattern) {
+        final boolean leading = pattern.startsWith("*");
+        final boolean trailing = pattern.length() > 1 && pattern.endsWith("*");
+        final String core = pattern.substring(leading ? 1 : 0,
+            pattern.length() - (trailing ? 1 : 0));
+        if (leading && trailing) {
+            // Historically "*ile*" matches keys that start or end with
+            // "ile", and S3 can't filter that for us.
+            return new KeyPattern(core, core, true, true);
+        }
+        if (leading) {
+            return new KeyPattern("", core, false, true);
+        }
+        if (trailing) {
+            return new KeyPattern(core, "", false, true);
+        }
+        final int star = core.indexOf('*');
+        if (star != -1 && core.indexOf('*', star + 1) == -1) {
+            return new KeyPattern(core.substring(0, star),
+                core.substring(star + 1), false, true);
+        }
+        return new KeyPattern(core, "", false, false);
+    }
+
+    /**
+     * @return Whether or not this pattern has a wildcard at all.  If not,
+     * it's just a literal key.
+     */
+    boolean isWildcard() {
+        return wildcard;
+    }
+
+    /**
+     * @return The literal prefix every matching key has, suitable for the
+     * S3 "prefix" parameter.  This is empty when we have to scan every key.
+     */
+    String getServerPrefix() {
+        return matchStartOrEnd ? "" : prefix;
+    }
+
+    /**
+     * @param key The key to check.
+     * @return Whether or not the key matches the pattern.
+     */
+    boolean matches(final String key) {
+        if (!wildcard) {
+            return key.equals(prefix);
+        }
+        if (matchStartOrEnd) {
+            return key.startsWith(prefix) || key.endsWith(suffix);
+        }
+        return key.length() >= prefix.length() + suffix.length() &&
+            key.startsWith(prefix) && key.endsWith(suffix);
+    }
+}
@@ -0,0 +1,120 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in microseconds.  Like HdrHistogram, 
+ * buckets are log-linear: each power of two is split into 16 equal 
+ * sub-buckets, so any recorded value is within about 6% of its bucket's 
+ * bounds however large it is, while the whole histogram stays a few KB.
+ * Recording is a couple of atomic increments, cheap enough to leave on 
+ * for every request.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The highest power of two we track, about 12 days in microseconds.
+     */
+    private static final int MAX_EXPONENT = 40;
+
+    private static final int NUM_BUCKETS = 
+        (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong total = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a latency.
+     *
+     * @param micros The latency in microseconds.
+     */
+    public void record(final long micros) {
+        final long value = Math.max(0, micros);
+        this.counts.incrementAndGet(bucket(value));
+        this.count.incrementAndGet();
+        this.total.addAndGet(value);
+        long currentMax = this.max.get();
+        while (value > currentMax && 
+            !this.max.compareAndSet(currentMax, value)) {
+            currentMax = this.max.get();
+        }
+    }
+
+    /**
+     * @return The number of latencies recorded.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return The mean latency in microseconds, or 0 if nothing has been
+     * recorded.
+     */
+    public double getMean() {
+        final long n = this.count.get();
+        return n == 0 ? 0 : (double) this.total.get() / n;
+    }
+
+    /**
+     * @return The largest latency recorded, in microseconds.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the latency at the specified percentile.  The value is the 
+     * upper bound of the bucket the percentile falls in, so it may be 
+     * slightly higher than the true value but is never lower.
+     *
+     * @param percentile The percentile, such as 99.9.
+     * @return The latency in microseconds, or 0 if nothing has been 
+     * recorded.
+     */
+    public long getPercentile(final double percentile) {
+        final long n = this.count.get();
+        if (n == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(percentile / 100.0 * n);
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += this.counts.get(i);
+            if (seen >= Math.max(1, rank)) {
+                return Math.min(upperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    static int bucket(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 
+            Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXPONENT);
+        final int shift = exponent - SUB_BUCKET_BITS;
+        final int sub = (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBound(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int shift = bucket / SUB_BUCKETS - 1;
+        final long sub = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+}
@@ -1,9 +1,14 @@
 package org.lastbamboo.common.amazon.s3;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.prefs.Preferences;
 
 import org.apache.commons.cli.CommandLine;
@@ -13,6 +18,8 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
 import org.lastbamboo.common.amazon.stack.AwsUtils;
 import org.littleshoot.util.Pair;
@@ -27,6 +34,8 @@ public class Launcher {
 
     private static final Logger LOG = LoggerFactory.getLogger(Launcher.class);
     private static final String BUCKETS_KEY = "littleShootS3Buckets";
+    private static final Map<String, AmazonS3> CLIENTS = 
+        new HashMap<String, AmazonS3>();
 
     private static final class Command {
         private final Collection<Pair<Option, ArgsProcessor>> optionsPairs = 
@@ -58,7 +67,7 @@ public class Launcher {
             options.addOption(opt);
         }
 
-        private void execute(final String[] args) {
+        private int execute(final String[] args) {
             final String bucketFile = "bucket, file";
             final String bucketDir = "bucket, dir";
             final String bucket = "bucket";
@@ -82,15 +91,88 @@ public class Launcher {
             add(putPublicMime, bucketFile, 3, new PutPublicMime());
 
             final Option putAllPrivate = new Option("puta", "putall", true,
-                    "Adds all files in the specified directory as private files.");
+                    "Adds all files in the specified directory and its " 
+                            + "subdirectories as private files.");
             add(putAllPrivate, bucketDir, 2, new PutAllPrivate());
 
             final Option putAllPublic = new Option("putap", "putallpublic",
                     true,
-                    "Adds all files in the specified directory as public files.  Does not add "
-                            + "directories or recurse.");
+                    "Adds all files in the specified directory and its " 
+                            + "subdirectories as public files.");
             add(putAllPublic, bucketDir, 2, new PutAllPublic());
 
+            final String bucketKey = "bucket, key";
+            final Option putStream = new Option("puts", "putstdin", true,
+                    "Uploads everything read from standard input to the "
+                            + "specified key as a private file, such as "
+                            + "'tar c dir | aws -puts bucket dir.tar'.");
+            add(putStream, bucketKey, 2, new PutStream(false));
+
+            final Option putStreamPublic = new Option("putsp", "putstdinpublic",
+                    true,
+                    "Uploads everything read from standard input to the "
+                            + "specified key as a public file.");
+            add(putStreamPublic, bucketKey, 2, new PutStream(true));
+
+            final Option sync = new Option("sync", "sync", true,
+                    "Uploads only the files in the specified directory and " 
+                            + "its subdirectories that are new or changed "
+                            + "since the last sync, as private files.");
+            add(sync, bucketDir, 2, new Sync(false));
+
+            final Option syncPublic = new Option("syncp", "syncpublic", true,
+                    "Uploads only the files in the specified directory and " 
+                            + "its subdirectories that are new or changed "
+                            + "since the last sync, as public files.");
+            add(syncPublic, bucketDir, 2, new Sync(true));
+
+            final Option prune = new Option("prune", "prune", false,
+                    "With -sync or -syncp, also removes files that earlier "
+                            + "syncs uploaded but are gone from the directory.");
+            options.addOption(prune);
+
+            final Option virtualThreads = new Option("vt", "virtualthreads", 
+                    false, "Runs bulk uploads, deletes, downloads and listings "
+                            + "on virtual threads.  Requires Java 21.");
+            options.addOption(virtualThreads);
+
+            final Option endpoint = new Option("e", "endpoint", true,
+                    "Sends requests to the specified URL rather than the one "
+                            + "in the properties file, such as a local S3 "
+                            + "stand-in at 'http://127.0.0.1:9000'.");
+            addOpt(endpoint, "url", 1, false);
+
+            final Option bench = new Option("bench", "benchmark", true,
+                    "Runs a mix of requests against the specified existing "
+                            + "bucket from several threads and reports operations "
+                            + "and megabytes per second and latency "
+                            + "percentiles.  See -mix, -sizes, -threads and "
+                            + "-duration.");
+            add(bench, bucket, 1, new Bench());
+
+            final Option mix = new Option("mix", "benchmix", true,
+                    "With -bench, the operations to run, each with an "
+                            + "optional weight, such as 'get:8,put:1,list:1,"
+                            + "delete:1'.  Defaults to 'put,get'.");
+            addOpt(mix, "ops", 1, false);
+
+            final Option sizes = new Option("sizes", "benchsizes", true,
+                    "With -bench, the object sizes to put, each with an "
+                            + "optional weight.  Ranges are sampled on a log "
+                            + "scale, as in '4k:9,1m-64m'.  Defaults to "
+                            + "'4k,64k,1m'.");
+            addOpt(sizes, "sizes", 1, false);
+
+            final Option threads = new Option("threads", "benchthreads",
+                    true, "With -bench, the number of threads sending "
+                            + "requests.  Defaults to 8.");
+            addOpt(threads, "count", 1, false);
+
+            final Option duration = new Option("duration", "benchduration",
+                    true, "With -bench, how many seconds to run for.  "
+                            + "Defaults to 30.");
+            addOpt(duration, "seconds", 1, false);
+
             final Option proxy = new Option("x", "proxy", true,
                     "Sets the proxy to use.");
             
@@ -106,7 +188,8 @@ public class Launcher {
                             + "a '*' at the beginning or the end acts as a wildcard.  For example,"
                             + "'aws -rm littleshoot *.sh' removes all .sh files in the littleshoot "
                             + "bucket.  Use the star functionality with some caution, of course.  It only works"
-                            + " at the beginning or end of the file name.");
+                            + " at the beginning or end of the file name, or as a single star in the middle,"
+                            + " as in 'logs/*.gz'.");
             add(delete, bucketFile, 2, new Delete());
 
             final Option deleteBucket = new Option("rmdir", "deletebucket",
@@ -122,9 +205,25 @@ public class Launcher {
                     "listbucket",
                     true,
                     "Lists all the files in the specified bucket.  Lists all " +
-                    "buckets if no bucket name is given.");
+                    "buckets if no bucket name is given.  If a prefix such as " +
+                    "'logs/' or 'logs/2012*' is also given, lists only the " +
+                    "matching files, showing deeper paths as directories.");
             // This makes the bucket name optional.
-            add(listBucket, bucket, 1, new ListBucket(), true);
+            add(listBucket, "bucket, prefix", 2, new ListBucket(), true);
+
+            final Option batch = new Option("batch", "batch", true,
+                    "Runs each line of the specified file as a separate "
+                            + "command, such as '-put bucket file', all with "
+                            + "the same connections.  Reads standard input "
+                            + "if the file is '-'.  Stops at the first "
+                            + "command that fails.");
+            add(batch, "file", 1, new Batch());
+
+            final Option daemon = new Option("daemon", "daemon", false,
+                    "Keeps running and runs commands from other aws "
+                            + "invocations, which send them here rather "
+                            + "than starting up and connecting themselves.");
+            add(daemon, "", 0, new Daemon());
 
             final Option verbose = new Option("v", "verbose", false,
                     "Provides verbose output.");
@@ -143,6 +242,19 @@ public class Launcher {
                     final ArgsProcessor processor = new ProxyProcessor();
                     processor.processArgs(values);
                 }
+                GlobalOptions.setDeleteRemoved(cmd.hasOption(prune.getOpt()));
+                GlobalOptions.setVirtualThreads(
+                        cmd.hasOption(virtualThreads.getOpt()));
+                GlobalOptions.setEndpoint(
+                        cmd.getOptionValue(endpoint.getOpt()));
+                GlobalOptions.setBenchMix(
+                        cmd.getOptionValue(mix.getOpt(), "put,get"));
+                GlobalOptions.setBenchSizes(
+                        cmd.getOptionValue(sizes.getOpt(), "4k,64k,1m"));
+                GlobalOptions.setBenchThreads(
+                        intValue(cmd, threads, 8));
+                GlobalOptions.setBenchSeconds(
+                        intValue(cmd, duration, 30));
 
                 for (final Pair<Option, ArgsProcessor> optionPair : optionsPairs) {
                     final Option opt = optionPair.getFirst();
@@ -162,13 +274,35 @@ public class Launcher {
                     System.out.println();
                     System.err.println("Could not understand the options you specified.  "
                                     + "See above help.");
+                    return 1;
                 }
+                return 0;
             } catch (final ParseException e) {
                 System.err.println(e.getMessage());
+                return 1;
+            } catch (final CommandFailedException e) {
+                return 1;
+            } catch (final IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                return 1;
             }
         }
 
 
+        private static int intValue(final CommandLine cmd, final Option opt,
+                final int defaultValue) throws ParseException {
+            final String value = cmd.getOptionValue(opt.getOpt());
+            if (value == null) {
+                return defaultValue;
+            }
+            try {
+                return Integer.parseInt(value);
+            } catch (final NumberFormatException e) {
+                throw new ParseException("Not a number for -" + opt.getOpt()
+                        + ": " + value);
+            }
+        }
+
         private static String[] convertVals(CommandLine cmd, Option opt) {
             final String[] values = cmd.getOptionValues(opt.getOpt());
             if (values == null) {
@@ -192,31 +326,249 @@ public class Launcher {
      * @param args The command line arguments.
      */
     public static void main(final String[] args) {
+        if (isForwardable(args)) {
+            try {
+                final int status = LauncherDaemon.forward(
+                        LauncherDaemon.defaultAddress(), args, System.out,
+                        System.err);
+                if (status > 0) {
+                    System.exit(status);
+                }
+                if (status == 0) {
+                    return;
+                }
+            } catch (final IOException e) {
+                System.err.println("Lost the connection to the daemon, so "
+                        + "the command may or may not have run: " 
+                        + e.getMessage());
+                System.exit(1);
+            }
+        }
+        final int status = run(args, null);
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * Runs a single command in this JVM.  Commands that need S3 share 
+     * connections with earlier commands that used the same endpoint.
+     * 
+     * @param args The command line arguments.
+     * @param workingDir The directory relative paths are resolved against,
+     * or <code>null</code> for the current directory.
+     * @return The exit status, 0 if the command succeeded.
+     */
+    static int run(final String[] args, final File workingDir) {
+        GlobalOptions.setWorkingDir(workingDir);
         final Command bean = new Command();
-        bean.execute(args);
+        return bean.execute(args);
+    }
+
+    /**
+     * Options that only make sense in this process, either because they 
+     * read standard input, run for a long time or change settings for 
+     * every later command.
+     */
+    private static final String[] LOCAL_OPTIONS = {
+        "h", "help", "puts", "putstdin", "putsp", "putstdinpublic", "bench", 
+        "benchmark", "batch", "daemon", "x", "proxy"
+    };
+
+    private static boolean isForwardable(final String[] args) {
+        if (args.length == 0) {
+            return false;
+        }
+        for (final String arg : args) {
+            if (arg.startsWith("-") && ArrayUtils.contains(LOCAL_OPTIONS, 
+                    StringUtils.stripStart(arg, "-"))) {
+                return false;
+            }
+        }
+        return true;
     }
 
     private static interface ArgsProcessor {
         void processArgs(final String[] values);
     };
 
+    /**
+     * Thrown by processors when a command fails, so we can report a 
+     * failed exit status without exiting a daemon or batch.  The processor
+     * has already printed what went wrong.
+     */
+    private static final class CommandFailedException 
+            extends RuntimeException {
+
+        private static final long serialVersionUID = 3816325704387913203L;
+    }
+
+    /**
+     * Whether we're already running commands from a batch or for a daemon,
+     * in which case those commands can't start another.
+     */
+    private static volatile boolean runningCommands;
+
+    private static class Batch implements ArgsProcessor {
+        public void processArgs(final String[] args) {
+            checkArgs(args, 1, "commandFile");
+            checkNotRunningCommands();
+            final File workingDir = GlobalOptions.getWorkingDir();
+            BufferedReader reader = null;
+            runningCommands = true;
+            try {
+                reader = new BufferedReader(args[0].equals("-") ? 
+                        new InputStreamReader(System.in) : 
+                        new FileReader(file(args[0])));
+                int lineNumber = 0;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    final String trimmed = line.trim();
+                    if (trimmed.length() == 0 || trimmed.startsWith("#")) {
+                        continue;
+                    }
+                    if (run(splitCommandLine(trimmed), workingDir) != 0) {
+                        System.err.println("Stopping at line " + lineNumber
+                                + ": " + trimmed);
+                        throw new CommandFailedException();
+                    }
+                }
+            } catch (final IOException e) {
+                System.err.println("Could not read commands: " 
+                        + e.getMessage());
+                throw new CommandFailedException();
+            } finally {
+                runningCommands = false;
+                IOUtils.closeQuietly(reader);
+                shutdownClients();
+            }
+        }
+    }
+
+    private static class Daemon implements ArgsProcessor {
+        public void processArgs(final String[] args) {
+            checkNotRunningCommands();
+            final LauncherDaemon daemon = new LauncherDaemon(
+                    LauncherDaemon.defaultAddress(),
+                    new LauncherDaemon.CommandRunner() {
+                public int run(final String[] commandArgs,
+                        final File workingDir) {
+                    return Launcher.run(commandArgs, workingDir);
+                }
+            });
+            try {
+                daemon.start();
+            } catch (final IOException e) {
+                System.err.println("Could not start the daemon: " 
+                        + e.getMessage());
+                throw new CommandFailedException();
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    daemon.stop();
+                    shutdownClients();
+                }
+            });
+            runningCommands = true;
+            System.out.println("Running commands sent to "
+                    + LauncherDaemon.defaultAddress());
+            daemon.serve();
+        }
+    }
+
+    private static void shutdownClients() {
+        synchronized (CLIENTS) {
+            for (final AmazonS3 s3 : CLIENTS.values()) {
+                s3.shutdown();
+            }
+            CLIENTS.clear();
+        }
+    }
+
+    private static void checkNotRunningCommands() {
+        if (runningCommands) {
+            System.err.println("Can't start a batch or daemon from a batch "
+                    + "or daemon");
+            throw new CommandFailedException();
+        }
+    }
+
+    /**
+     * Splits a line from a batch file into arguments the way a shell 
+     * would for simple cases: on whitespace, except within single or 
+     * double quotes.
+     * 
+     * @param line The line.
+     * @return The arguments.
+     */
+    static String[] splitCommandLine(final String line) {
+        final Collection<String> args = new ArrayList<String>();
+        final StringBuilder current = new StringBuilder();
+        boolean inArg = false;
+        char quote = 0;
+        for (final char c : line.toCharArray()) {
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                } else {
+                    current.append(c);
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+                inArg = true;
+            } else if (Character.isWhitespace(c)) {
+                if (inArg) {
+                    args.add(current.toString());
+                    current.setLength(0);
+                    inArg = false;
+                }
+            } else {
+                current.append(c);
+                inArg = true;
+            }
+        }
+        if (quote != 0) {
+            throw new IllegalArgumentException("Unclosed quote in: " + line);
+        }
+        if (inArg) {
+            args.add(current.toString());
+        }
+        return args.toArray(new String[args.size()]);
+    }
+
+    /**
+     * Resolves a path from the command line against the working directory
+     * of whoever sent the command.
+     */
+    private static File file(final String path) {
+        final File file = new File(path);
+        final File workingDir = GlobalOptions.getWorkingDir();
+        if (file.isAbsolute() || workingDir == null) {
+            return file;
+        }
+        return new File(workingDir, path);
+    }
+
     private static class PutAllPrivate implements ArgsProcessor {
         public void processArgs(final String[] args) {
             final AmazonS3 s3 = setup(args, 2, "bucketName directoryPath");
             final String bucketName = args[0];
 
-            final File dir = new File(args[1]);
+            final File dir = file(args[1]);
 
             if (!dir.isDirectory()) {
                 System.out.println(dir
                         + " does not appear to be a valid directory.");
-                return;
+                throw new CommandFailedException();
             }
             try {
                 s3.putPrivateDir(bucketName, dir);
             } catch (final IOException e) {
                 System.out.println("Could not put all files.");
                 e.printStackTrace();
+                throw new CommandFailedException();
             }
         }
     };
@@ -230,12 +582,12 @@ public class Launcher {
             final String host = StringUtils.substringBefore(hostPort, ":");
             if (StringUtils.isBlank(host)) {
                 System.err.println("Format: host:port");
-                return;
+                throw new CommandFailedException();
             }
             final String portStr = StringUtils.substringAfter(hostPort, ":");
             if (!StringUtils.isNumeric(portStr)) {
                 System.err.println("Format: host:port");
-                return;
+                throw new CommandFailedException();
             }
             final int port = Integer.parseInt(portStr);
             LOG.debug("Setting proxy data");
@@ -249,18 +601,73 @@ public class Launcher {
             final AmazonS3 s3 = setup(args, 2, "bucketName directoryPath");
             final String bucketName = args[0];
 
-            final File dir = new File(args[1]);
+            final File dir = file(args[1]);
 
             if (!dir.isDirectory()) {
                 System.out.println(dir
                         + " does not appear to be a valid directory.");
-                return;
+                throw new CommandFailedException();
             }
             try {
                 s3.putPublicDir(bucketName, dir);
             } catch (IOException e) {
                 System.out.println("Could not put all files.");
                 e.printStackTrace();
+                throw new CommandFailedException();
+            }
+        }
+    }
+
+    private static class Sync implements ArgsProcessor {
+
+        private final boolean makePublic;
+
+        private Sync(final boolean makePublic) {
+            this.makePublic = makePublic;
+        }
+
+        public void processArgs(final String[] args) {
+            final AmazonS3 s3 = setup(args, 2, "bucketName directoryPath");
+            final String bucketName = args[0];
+
+            final File dir = file(args[1]);
+
+            if (!dir.isDirectory()) {
+                System.out.println(dir
+                        + " does not appear to be a valid directory.");
+                throw new CommandFailedException();
+            }
+            try {
+                s3.sync(bucketName, dir, this.makePublic,
+                        GlobalOptions.isDeleteRemoved());
+            } catch (final IOException e) {
+                System.out.println("Could not sync all files.");
+                e.printStackTrace();
+                throw new CommandFailedException();
+            }
+        }
+    }
+
+    private static class PutStream implements ArgsProcessor {
+
+        private final boolean makePublic;
+
+        private PutStream(final boolean makePublic) {
+            this.makePublic = makePublic;
+        }
+
+        public void processArgs(final String[] args) {
+            final AmazonS3 s3 = setup(args, 2, "bucketName key");
+            final String bucketName = args[0];
+            createBucket(bucketName, s3);
+            final String key = args[1];
+            try {
+                s3.putStream(bucketName, key, System.in, 
+                        "binary/octet-stream", this.makePublic);
+            } catch (final IOException e) {
+                System.out.println("Could not upload stream.  Error was: ");
+                e.printStackTrace();
+                throw new CommandFailedException();
             }
         }
     }
@@ -276,6 +683,7 @@ public class Launcher {
             } catch (final IOException e) {
                 System.out.println("Could not delete regex: " + regEx);
                 e.printStackTrace();
+                throw new CommandFailedException();
             }
         }
     }
@@ -286,17 +694,17 @@ public class Launcher {
             final String bucketName = args[0];
             createBucket(bucketName, s3);
             final String fileString = args[1];
-            final File file = new File(fileString);
+            final File file = file(fileString);
             if (!file.isFile()) {
                 System.out.println("File not found: " + fileString);
-                System.exit(1);
+                throw new CommandFailedException();
             }
             try {
                 s3.putPrivateFile(bucketName, file);
             } catch (final IOException e) {
                 System.out.println("Could not upload file.  Error was: ");
                 e.printStackTrace();
-                System.exit(1);
+                throw new CommandFailedException();
             }
         }
     }
@@ -308,17 +716,17 @@ public class Launcher {
             final String bucketName = args[0];
             createBucket(bucketName, s3);
             final String fileString = args[1];
-            final File file = new File(fileString);
+            final File file = file(fileString);
             if (!file.isFile()) {
                 System.out.println("File not found: " + fileString);
-                return;
+                throw new CommandFailedException();
             }
             try {
                 s3.putPublicFile(bucketName, file);
             } catch (final IOException e) {
                 System.out.println("Could not upload file.  Error was: ");
                 e.printStackTrace();
-                System.exit(1);
+                throw new CommandFailedException();
             }
         }
     }
@@ -330,10 +738,10 @@ public class Launcher {
             final String bucketName = args[0];
             createBucket(bucketName, s3);
             final String fileString = args[1];
-            final File file = new File(fileString);
+            final File file = file(fileString);
             if (!file.isFile()) {
                 System.out.println("File not found: " + fileString);
-                return;
+                throw new CommandFailedException();
             }
             final String mimeType = args[2];
             try {
@@ -341,7 +749,7 @@ public class Launcher {
             } catch (final IOException e) {
                 System.out.println("Could not upload file.  Error was: ");
                 e.printStackTrace();
-                System.exit(1);
+                throw new CommandFailedException();
             }
         }
     }
@@ -387,6 +795,7 @@ public class Launcher {
         } catch (final IOException e) {
             System.out.println("Could not delete bucket.");
             e.printStackTrace();
+            throw new CommandFailedException();
         }
     }
 
@@ -396,13 +805,13 @@ public class Launcher {
 
             final String bucketName = args[0];
             final String fileName = args[1];
-            final File target = new File(fileName);
+            final File target = file(fileName);
             try {
                 s3.getPrivateFile(bucketName, fileName, target);
             } catch (final IOException e) {
                 System.out.println("There was an error getting the file.");
                 e.printStackTrace();
-                System.exit(1);
+                throw new CommandFailedException();
             }
         }
     }
@@ -417,15 +826,22 @@ public class Launcher {
                     System.out
                             .println("There was an error listing the bucket.");
                     e.printStackTrace();
+                    throw new CommandFailedException();
                 }
             } else {
                 final String bucketName = args[0];
                 try {
-                    s3.listBucket(bucketName);
+                    if (args.length > 1) {
+                        s3.listBucket(bucketName, 
+                            StringUtils.removeEnd(args[1], "*"));
+                    } else {
+                        s3.listBucket(bucketName);
+                    }
                 } catch (final IOException e) {
                     System.out
                             .println("There was an error listing the bucket.");
                     e.printStackTrace();
+                    throw new CommandFailedException();
                 }
             }
         }
@@ -440,6 +856,7 @@ public class Launcher {
             } catch (final IOException e) {
                 System.out.println("There was an error creating the bucket.");
                 e.printStackTrace();
+                throw new CommandFailedException();
             }
         }
     }
@@ -452,11 +869,75 @@ public class Launcher {
         }
     }
 
+    private static class Bench implements ArgsProcessor {
+        public void processArgs(final String[] args) {
+            checkArgs(args, 1, "bucketName");
+            final int threads = GlobalOptions.getBenchThreads();
+            final AmazonS3Config config = new AmazonS3Config();
+            // Give every thread its own connection so we measure S3 rather
+            // than waiting for the pool.
+            config.setMaxConnectionsPerHost(
+                    Math.max(config.getMaxConnectionsPerHost(), threads));
+            config.setMaxTotalConnections(
+                    Math.max(config.getMaxTotalConnections(), threads));
+            final AmazonS3 s3 = setup(config);
+            final String bucketName = args[0];
+            try {
+                final LoadBenchmark benchmark = 
+                    new LoadBenchmark(s3, bucketName);
+                benchmark.setMix(GlobalOptions.getBenchMix());
+                benchmark.setSizes(GlobalOptions.getBenchSizes());
+                benchmark.setThreads(threads);
+                benchmark.setDurationMillis(
+                        GlobalOptions.getBenchSeconds() * 1000L);
+                System.out.println("Running benchmark for "
+                        + GlobalOptions.getBenchSeconds() + " seconds...");
+                final long elapsed = benchmark.run();
+                benchmark.printReport(System.out, elapsed);
+            } catch (final IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                throw new CommandFailedException();
+            } catch (final IOException e) {
+                System.out.println("The benchmark failed.  Error was: ");
+                e.printStackTrace();
+                throw new CommandFailedException();
+            } finally {
+                s3.shutdown();
+            }
+        }
+    }
+
     private static AmazonS3 setup(final String[] args, final int length,
             final String message) {
         checkArgs(args, length, message);
+        // Batches and the daemon run many commands, so keep the client and
+        // its connections for the next one.
+        final String key = GlobalOptions.getEndpoint() + " " 
+                + GlobalOptions.isVirtualThreads();
+        synchronized (CLIENTS) {
+            AmazonS3 s3 = CLIENTS.get(key);
+            if (s3 == null) {
+                s3 = setup(new AmazonS3Config());
+                CLIENTS.put(key, s3);
+            }
+            return s3;
+        }
+    }
+
+    private static AmazonS3 setup(final AmazonS3Config config) {
+        config.setVirtualThreads(GlobalOptions.isVirtualThreads());
         try {
-            return new AmazonS3Impl();
+            final String endpoint = GlobalOptions.getEndpoint();
+            if (endpoint == null) {
+                return new AmazonS3Impl(config);
+            }
+            if (!AwsUtils.hasPropsFile()) {
+                // Local stand-ins generally don't check signatures.
+                return new AmazonS3Impl("anonymous", "anonymous", endpoint,
+                        endpoint, config);
+            }
+            return new AmazonS3Impl(AwsUtils.getAccessKeyId(),
+                    AwsUtils.getAccessKey(), endpoint, endpoint, config);
         } catch (final IOException e) {
             System.out.println("Error loading props files...");
             throw new IllegalArgumentException("Error loading props files", e);
@@ -475,7 +956,7 @@ public class Launcher {
                 sb.append(" ");
             }
             System.err.println(sb);
-            System.exit(1);
+            throw new CommandFailedException();
         }
     }
 
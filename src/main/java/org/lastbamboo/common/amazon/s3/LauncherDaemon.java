@@ -0,0 +1,395 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.littleshoot.util.CommonUtils;
+import org.littleshoot.util.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Long-running local process that runs launcher commands sent to it, so
+ * each command doesn't pay for starting a JVM, reading the properties file
+ * and opening new connections to S3.  Clients connect over a Unix domain
+ * socket where the JVM supports them.  We only bind the socket once its
+ * directory is closed to everyone but its owner, so the socket needs no
+ * token.  Otherwise the daemon listens on a loopback TCP port and writes
+ * the port and a random token to the address file instead, readable only
+ * by its owner, and clients must send the token before anything else.
+ * <p>
+ * Commands print straight to {@link System#out} and {@link System#err}, as
+ * do the listing methods of {@link AmazonS3Impl}.  While a command runs,
+ * the daemon points both streams at the client that sent it with 
+ * {@link System#setOut(PrintStream)} and 
+ * {@link System#setErr(PrintStream)}, which changes them for the whole 
+ * JVM.  So the daemon runs one command at a time, other clients wait their
+ * turn, and anything else in the JVM that prints to the console meanwhile,
+ * such as a console log appender, goes to that client too.  Don't run the
+ * daemon in a JVM whose console output matters to anything else.
+ */
+final class LauncherDaemon {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(LauncherDaemon.class);
+
+    private static final int STDOUT = 1;
+    private static final int STDERR = 2;
+    private static final int EXIT = 3;
+
+    /**
+     * Runs a single command for a client.
+     */
+    interface CommandRunner {
+
+        /**
+         * @param args The command line arguments.
+         * @param workingDir The client's working directory, for resolving
+         * relative paths.
+         * @return The exit status.
+         */
+        int run(String[] args, File workingDir);
+    }
+
+    private final File address;
+    private final CommandRunner runner;
+    private final Object commandLock = new Object();
+    private final ExecutorService executor = Executors.newCachedThreadPool(
+        new DaemonThreadFactory("S3-Daemon-Client"));
+
+    private ServerSocketChannel server;
+    private String token = "";
+    private volatile boolean stopped;
+
+    /**
+     * Creates a new daemon.
+     *
+     * @param address The path of the socket, or of the file holding the
+     * port and token if we fall back to TCP.
+     * @param runner Runs each command.
+     */
+    LauncherDaemon(final File address, final CommandRunner runner) {
+        this.address = address;
+        this.runner = runner;
+    }
+
+    /**
+     * @return Where the launcher looks for a daemon by default.
+     */
+    static File defaultAddress() {
+        return new File(CommonUtils.getLittleShootDir(), "aws.sock");
+    }
+
+    /**
+     * Starts listening.  Nothing is accepted until {@link #serve()} is
+     * called.
+     *
+     * @throws IOException If another daemon is already listening at the
+     * address or we could not listen.
+     */
+    void start() throws IOException {
+        if (this.address.exists()) {
+            final SocketChannel existing = connect(this.address);
+            if (existing != null) {
+                existing.close();
+                throw new IOException("A daemon is already running at " +
+                    this.address);
+            }
+            // Left behind by a daemon that didn't shut down cleanly.
+            if (!this.address.delete()) {
+                throw new IOException("Could not delete " + this.address);
+            }
+        }
+        final File dir = this.address.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        // Anyone who can reach the socket can run commands as us, so we
+        // only use one in a directory nobody else can get into.
+        final boolean privateDir = ownerOnly(dir);
+        if (UnixSockets.isSupported() && privateDir) {
+            this.server = UnixSockets.bind(this.address);
+            ownerOnly(this.address);
+        } else {
+            if (UnixSockets.isSupported()) {
+                LOG.warn("Could not restrict access to {} -- using TCP " +
+                    "with a token instead", dir);
+            }
+            this.server = ServerSocketChannel.open();
+            this.server.bind(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            final byte[] random = new byte[16];
+            new SecureRandom().nextBytes(random);
+            this.token = Hex.encodeHexString(random);
+            final int port = this.server.socket().getLocalPort();
+            if (!this.address.createNewFile()) {
+                throw new IOException("Could not create " + this.address);
+            }
+            if (!ownerOnly(this.address)) {
+                LOG.warn("Could not restrict access to {}", this.address);
+            }
+            FileUtils.writeStringToFile(this.address, port + " " +
+                this.token, "UTF-8");
+        }
+        LOG.info("Daemon listening at {}", this.address);
+    }
+
+    /**
+     * Accepts clients until {@link #stop()} is called.
+     */
+    void serve() {
+        while (!this.stopped) {
+            final SocketChannel client;
+            try {
+                client = this.server.accept();
+            } catch (final ClosedChannelException e) {
+                break;
+            } catch (final IOException e) {
+                LOG.warn("Error accepting client", e);
+                continue;
+            }
+            this.executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        handle(client);
+                    } catch (final IOException e) {
+                        LOG.debug("Error talking to client", e);
+                    } finally {
+                        IOUtils.closeQuietly(client);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops accepting clients and removes the address file.  A command
+     * that's running is left to finish.
+     */
+    void stop() {
+        this.stopped = true;
+        IOUtils.closeQuietly(this.server);
+        this.executor.shutdown();
+        if (!this.address.delete()) {
+            LOG.debug("Could not delete {}", this.address);
+        }
+    }
+
+    private void handle(final SocketChannel client) throws IOException {
+        final DataInputStream in = new DataInputStream(
+            new BufferedInputStream(Channels.newInputStream(client)));
+        final DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(Channels.newOutputStream(client)));
+        final String clientToken;
+        try {
+            clientToken = in.readUTF();
+        } catch (final EOFException e) {
+            // Just checking whether we're running.
+            return;
+        }
+        if (!this.token.equals(clientToken)) {
+            LOG.warn("Rejecting client with the wrong token");
+            return;
+        }
+        final File workingDir = new File(in.readUTF());
+        final int count = in.readInt();
+        if (count < 0 || count > 10000) {
+            throw new IOException("Bad argument count: " + count);
+        }
+        final String[] args = new String[count];
+        for (int i = 0; i < count; i++) {
+            args[i] = in.readUTF();
+        }
+
+        int status = 1;
+        synchronized (this.commandLock) {
+            final PrintStream originalOut = System.out;
+            final PrintStream originalErr = System.err;
+            final PrintStream clientOut =
+                new PrintStream(new FrameOutputStream(out, STDOUT), true);
+            final PrintStream clientErr =
+                new PrintStream(new FrameOutputStream(out, STDERR), true);
+            System.setOut(clientOut);
+            System.setErr(clientErr);
+            try {
+                LOG.debug("Running {}", StringUtils.join(args, " "));
+                status = this.runner.run(args, workingDir);
+            } catch (final RuntimeException e) {
+                LOG.warn("Command failed", e);
+                e.printStackTrace();
+            } finally {
+                System.setOut(originalOut);
+                System.setErr(originalErr);
+                clientOut.flush();
+                clientErr.flush();
+            }
+        }
+        synchronized (out) {
+            out.writeByte(EXIT);
+            out.writeInt(status);
+            out.flush();
+        }
+    }
+
+    /**
+     * Sends a command to the daemon at the specified address and copies
+     * what it prints to the specified streams.
+     *
+     * @param address The daemon's address.
+     * @param args The command line arguments.
+     * @param stdout Where to copy the command's standard output.
+     * @param stderr Where to copy the command's standard error.
+     * @return The exit status of the command, or -1 if there's no daemon
+     * listening, in which case the caller should run the command itself.
+     * @throws IOException If we lost the connection to the daemon after
+     * sending the command, so we don't know whether it ran.
+     */
+    static int forward(final File address, final String[] args,
+        final OutputStream stdout, final OutputStream stderr)
+        throws IOException {
+        final SocketChannel channel = connect(address);
+        if (channel == null) {
+            return -1;
+        }
+        try {
+            final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeUTF(token(address));
+            out.writeUTF(System.getProperty("user.dir"));
+            out.writeInt(args.length);
+            for (final String arg : args) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+
+            final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(channel)));
+            while (true) {
+                final int type = in.readByte();
+                if (type == EXIT) {
+                    return in.readInt();
+                }
+                final byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                final OutputStream target = type == STDERR ? stderr : stdout;
+                target.write(data);
+                target.flush();
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Connects to a daemon.
+     *
+     * @return The connection, or <code>null</code> if nothing is
+     * listening at the address.
+     */
+    private static SocketChannel connect(final File address) {
+        if (!address.exists()) {
+            return null;
+        }
+        try {
+            if (address.isFile()) {
+                final int port = Integer.parseInt(StringUtils.substringBefore(
+                    FileUtils.readFileToString(address, "UTF-8"), " "));
+                return SocketChannel.open(new InetSocketAddress(
+                    InetAddress.getLoopbackAddress(), port));
+            }
+            if (!UnixSockets.isSupported()) {
+                LOG.debug("Can't connect to a Unix socket on this JVM");
+                return null;
+            }
+            return UnixSockets.connect(address);
+        } catch (final IOException e) {
+            LOG.debug("No daemon at " + address, e);
+            return null;
+        } catch (final NumberFormatException e) {
+            LOG.debug("Bad address file at " + address, e);
+            return null;
+        }
+    }
+
+    private static String token(final File address) throws IOException {
+        if (!address.isFile()) {
+            return "";
+        }
+        return StringUtils.substringAfter(
+            FileUtils.readFileToString(address, "UTF-8"), " ").trim();
+    }
+
+    /**
+     * Takes away everyone else's access to a file or directory.
+     *
+     * @param file The file or directory.
+     * @return Whether or not we could.
+     */
+    private static boolean ownerOnly(final File file) {
+        final boolean changed = file.setReadable(false, false) &&
+            file.setReadable(true, true) && file.setWritable(false, false) &&
+            file.setWritable(true, true);
+        if (!changed || !file.isDirectory()) {
+            return changed;
+        }
+        return file.setExecutable(false, false) && 
+            file.setExecutable(true, true);
+    }
+
+    /**
+     * Sends everything written to it to the client as frames of the
+     * specified type.
+     */
+    private static final class FrameOutputStream extends OutputStream {
+
+        private final DataOutputStream out;
+        private final int type;
+
+        private FrameOutputStream(final DataOutputStream out, final int type) {
+            this.out = out;
+            this.type = type;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+            throws IOException {
+            synchronized (this.out) {
+                this.out.writeByte(this.type);
+                this.out.writeInt(len);
+                this.out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (this.out) {
+                this.out.flush();
+            }
+        }
+    }
+}
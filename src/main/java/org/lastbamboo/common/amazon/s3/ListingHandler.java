@@ -0,0 +1,19 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.IOException;
+
+/**
+ * Callback for entries parsed out of an S3 listing, one at a time.
+ *
+ * @param <T> The type of entry.
+ */
+interface ListingHandler<T> {
+
+    /**
+     * Handles a single entry.
+     * 
+     * @param entry The entry.
+     * @throws IOException If the handler has an error processing the entry.
+     */
+    void handle(T entry) throws IOException;
+}
@@ -0,0 +1,47 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.util.List;
+
+/**
+ * The information about a page of a bucket listing beyond the objects
+ * themselves, such as whether or not there are more pages.
+ */
+class ListingPage {
+
+    private final boolean truncated;
+    private final String nextMarker;
+    private final String lastKey;
+    private final List<String> commonPrefixes;
+
+    ListingPage(final boolean truncated, final String nextMarker,
+        final String lastKey, final List<String> commonPrefixes) {
+        this.truncated = truncated;
+        this.nextMarker = nextMarker;
+        this.lastKey = lastKey;
+        this.commonPrefixes = commonPrefixes;
+    }
+
+    /**
+     * @return Whether or not there are more entries after this page.
+     */
+    boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return The marker to use to request the next page.  S3 only includes
+     * NextMarker in the response when a delimiter was given, so we fall back
+     * to the last key on the page.
+     */
+    String getNextMarker() {
+        return nextMarker != null ? nextMarker : lastKey;
+    }
+
+    /**
+     * @return The common prefixes on this page when the listing was
+     * requested with a delimiter.
+     */
+    List<String> getCommonPrefixes() {
+        return commonPrefixes;
+    }
+}
@@ -0,0 +1,209 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.littleshoot.util.IoExceptionWithCause;
+
+/**
+ * Streaming parser for S3 listing responses and the similar multi-object
+ * delete results.  Entries are handed to the caller as soon as each is 
+ * parsed, so memory use doesn't grow with the size of the listing.
+ */
+final class ListingParser {
+
+    private static final XMLInputFactory FACTORY = newFactory();
+
+    private ListingParser() {
+        // Static methods only.
+    }
+
+    private static XMLInputFactory newFactory() {
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+            Boolean.FALSE);
+        return factory;
+    }
+
+    /**
+     * Parses a ListBucketResult document.
+     *
+     * @param is The response body.
+     * @param handler The handler for each object in the listing.
+     * @return Information about the page, such as whether it's truncated.
+     * @throws IOException If the XML is invalid or the handler throws.
+     */
+    static ListingPage parseBucketListing(final InputStream is,
+        final ListingHandler<S3ObjectSummary> handler) throws IOException {
+        boolean truncated = false;
+        String nextMarker = null;
+        String lastKey = null;
+        final List<String> commonPrefixes = new ArrayList<String>();
+
+        String key = null;
+        long size = 0;
+        String lastModified = null;
+        String eTag = null;
+        boolean inContents = false;
+        boolean inCommonPrefixes = false;
+        try {
+            final XMLStreamReader reader = FACTORY.createXMLStreamReader(is);
+            try {
+                while (reader.hasNext()) {
+                    final int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        final String name = reader.getLocalName();
+                        if (inContents) {
+                            if ("Key".equals(name)) {
+                                key = reader.getElementText();
+                            } else if ("Size".equals(name)) {
+                                size = Long.parseLong(
+                                    reader.getElementText().trim());
+                            } else if ("LastModified".equals(name)) {
+                                lastModified = reader.getElementText();
+                            } else if ("ETag".equals(name)) {
+                                eTag = reader.getElementText();
+                            }
+                        } else if ("Contents".equals(name)) {
+                            inContents = true;
+                            key = null;
+                            size = 0;
+                            lastModified = null;
+                            eTag = null;
+                        } else if ("IsTruncated".equals(name)) {
+                            truncated = Boolean.parseBoolean(
+                                reader.getElementText().trim());
+                        } else if ("NextMarker".equals(name)) {
+                            nextMarker = reader.getElementText();
+                        } else if ("CommonPrefixes".equals(name)) {
+                            inCommonPrefixes = true;
+                        } else if (inCommonPrefixes && "Prefix".equals(name)) {
+                            commonPrefixes.add(reader.getElementText());
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        final String name = reader.getLocalName();
+                        if (inContents && "Contents".equals(name)) {
+                            inContents = false;
+                            lastKey = key;
+                            handler.handle(new S3ObjectSummary(key, size,
+                                lastModified, eTag));
+                        } else if ("CommonPrefixes".equals(name)) {
+                            inCommonPrefixes = false;
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (final XMLStreamException e) {
+            throw new IoExceptionWithCause("Could not parse listing", e);
+        } catch (final NumberFormatException e) {
+            throw new IoExceptionWithCause("Bad size in listing", e);
+        }
+        return new ListingPage(truncated, nextMarker, lastKey, commonPrefixes);
+    }
+
+    /**
+     * Parses a ListAllMyBucketsResult document.
+     *
+     * @param is The response body.
+     * @param handler The handler for each bucket in the listing.
+     * @throws IOException If the XML is invalid or the handler throws.
+     */
+    static void parseBuckets(final InputStream is,
+        final ListingHandler<S3BucketSummary> handler) throws IOException {
+        String name = null;
+        String creationDate = null;
+        boolean inBucket = false;
+        try {
+            final XMLStreamReader reader = FACTORY.createXMLStreamReader(is);
+            try {
+                while (reader.hasNext()) {
+                    final int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        final String element = reader.getLocalName();
+                        if ("Bucket".equals(element)) {
+                            inBucket = true;
+                            name = null;
+                            creationDate = null;
+                        } else if (inBucket && "Name".equals(element)) {
+                            name = reader.getElementText();
+                        } else if (inBucket &&
+                            "CreationDate".equals(element)) {
+                            creationDate = reader.getElementText();
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT &&
+                        inBucket && "Bucket".equals(reader.getLocalName())) {
+                        inBucket = false;
+                        handler.handle(new S3BucketSummary(name, creationDate));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (final XMLStreamException e) {
+            throw new IoExceptionWithCause("Could not parse bucket list", e);
+        }
+    }
+
+    /**
+     * Parses a DeleteResult document, collecting the keys S3 could not 
+     * delete.
+     *
+     * @param is The response body.
+     * @param failures The map to add an error to for each key that could 
+     * not be deleted.
+     * @throws IOException If the XML is invalid.
+     */
+    static void parseDeleteErrors(final InputStream is,
+        final Map<String, IOException> failures) throws IOException {
+        String key = null;
+        String code = null;
+        String message = null;
+        boolean inError = false;
+        try {
+            final XMLStreamReader reader = FACTORY.createXMLStreamReader(is);
+            try {
+                while (reader.hasNext()) {
+                    final int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        final String element = reader.getLocalName();
+                        if ("Error".equals(element)) {
+                            inError = true;
+                            key = null;
+                            code = null;
+                            message = null;
+                        } else if (inError && "Key".equals(element)) {
+                            key = reader.getElementText();
+                        } else if (inError && "Code".equals(element)) {
+                            code = reader.getElementText();
+                        } else if (inError && "Message".equals(element)) {
+                            message = reader.getElementText();
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT &&
+                        inError && "Error".equals(reader.getLocalName())) {
+                        inError = false;
+                        if (key != null) {
+                            failures.put(key, 
+                                new IOException(code + ": " + message));
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (final XMLStreamException e) {
+            throw new IoExceptionWithCause("Could not parse delete result", e);
+        }
+    }
+}
@@ -0,0 +1,483 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.StringUtils;
+import org.littleshoot.util.DaemonThreadFactory;
+import org.littleshoot.util.RuntimeIoException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a timed mix of puts, gets, listings and deletes against a bucket
+ * from several threads at once and reports the throughput and latency of
+ * each.  Objects are written under a fresh prefix and removed again at the
+ * end, so it's safe to point at a bucket that's in use.
+ * <p>
+ * Gets and deletes work on objects written earlier in the run, and a few
+ * objects are put before timing starts so there's something to read.  If
+ * deletes have removed everything, gets and deletes do puts instead.
+ */
+final class LoadBenchmark {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(LoadBenchmark.class);
+
+    private static final String[] OPERATIONS = {
+        S3Metrics.PUT, S3Metrics.GET, S3Metrics.LIST, S3Metrics.DELETE
+    };
+
+    private final AmazonS3 s3;
+    private final String bucketName;
+    private final String prefix = "bench-" + System.currentTimeMillis() + "/";
+
+    private final Map<String, Integer> mix =
+        new LinkedHashMap<String, Integer>();
+    private final List<long[]> sizes = new ArrayList<long[]>();
+    private final List<Integer> sizeWeights = new ArrayList<Integer>();
+    private int threads = 8;
+    private long durationMillis = 30 * 1000;
+
+    /**
+     * Keys written so far that haven't been deleted.
+     */
+    private final List<String> keys = new ArrayList<String>();
+    private final AtomicLong nextKey = new AtomicLong();
+
+    private final Map<String, Stats> stats = new LinkedHashMap<String, Stats>();
+    private final Stats total = new Stats();
+    private byte[] data;
+
+    /**
+     * Creates a new benchmark that puts and gets equal numbers of objects
+     * of 4 KB, 64 KB and 1 MB from 8 threads for 30 seconds.
+     *
+     * @param s3 The client to measure.
+     * @param bucketName The bucket to use.  This must already exist.
+     */
+    LoadBenchmark(final AmazonS3 s3, final String bucketName) {
+        this.s3 = s3;
+        this.bucketName = bucketName;
+        setMix("put,get");
+        setSizes("4k,64k,1m");
+        for (final String op : OPERATIONS) {
+            this.stats.put(op, new Stats());
+        }
+    }
+
+    /**
+     * Sets the operations to run, as a comma separated list of "put",
+     * "get", "list" and "delete", each optionally followed by a weight.
+     * For example "get:8,put:1" runs eight gets for every put.
+     *
+     * @param spec The operation mix.
+     */
+    void setMix(final String spec) {
+        final Map<String, Integer> parsed =
+            new LinkedHashMap<String, Integer>();
+        for (final String entry : split(spec)) {
+            final String op =
+                StringUtils.substringBefore(entry, ":").toLowerCase(Locale.US);
+            if (!ArrayUtils.contains(OPERATIONS, op)) {
+                throw new IllegalArgumentException("Unknown operation: " + op);
+            }
+            parsed.put(op, weight(entry));
+        }
+        this.mix.clear();
+        this.mix.putAll(parsed);
+    }
+
+    /**
+     * Sets the distribution of object sizes, as a comma separated list of
+     * sizes such as "4k" or "16m", each optionally followed by a weight.  A
+     * range such as "1k-1m" picks sizes between the two evenly on a log
+     * scale, so small and large objects are equally likely.  For example
+     * "4k:9,1m-64m" makes nine in ten objects 4 KB.
+     *
+     * @param spec The size distribution.
+     */
+    void setSizes(final String spec) {
+        final List<long[]> parsed = new ArrayList<long[]>();
+        final List<Integer> weights = new ArrayList<Integer>();
+        for (final String entry : split(spec)) {
+            final String range = StringUtils.substringBefore(entry, ":");
+            final long min = parseSize(StringUtils.substringBefore(range, "-"));
+            final long max = range.contains("-") ?
+                parseSize(StringUtils.substringAfter(range, "-")) : min;
+            if (max < min || max > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Bad size: " + range);
+            }
+            parsed.add(new long[] {min, max});
+            weights.add(weight(entry));
+        }
+        this.sizes.clear();
+        this.sizes.addAll(parsed);
+        this.sizeWeights.clear();
+        this.sizeWeights.addAll(weights);
+    }
+
+    /**
+     * @param threads The number of threads sending requests.
+     */
+    void setThreads(final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Need at least one thread");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * @param durationMillis How long to run for once any setup is done.
+     */
+    void setDurationMillis(final long durationMillis) {
+        this.durationMillis = durationMillis;
+    }
+
+    /**
+     * Runs the benchmark, then deletes the objects it wrote.
+     *
+     * @return The elapsed time of the timed part of the run, in
+     * milliseconds.
+     * @throws IOException If we could not write the initial objects or were
+     * interrupted.  Failures of individual operations during the run are
+     * counted rather than thrown.
+     */
+    long run() throws IOException {
+        long largest = 0;
+        for (final long[] range : this.sizes) {
+            largest = Math.max(largest, range[1]);
+        }
+        this.data = new byte[(int) largest];
+        new Random().nextBytes(this.data);
+
+        if (this.mix.containsKey(S3Metrics.GET) ||
+            this.mix.containsKey(S3Metrics.DELETE)) {
+            final Random random = new Random();
+            for (int i = 0; i < this.threads * 4; i++) {
+                final String key = newKey();
+                this.s3.putStream(this.bucketName, key,
+                    new ByteArrayInputStream(this.data, 0, nextSize(random)),
+                    "binary/octet-stream", false);
+                this.keys.add(key);
+            }
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(
+            this.threads, new DaemonThreadFactory("S3-Benchmark"));
+        final long start = System.nanoTime();
+        final long deadline = start +
+            TimeUnit.MILLISECONDS.toNanos(this.durationMillis);
+        for (int i = 0; i < this.threads; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    final Random random = new Random();
+                    while (System.nanoTime() < deadline) {
+                        runOne(random);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                LOG.debug("Waiting for benchmark threads");
+            }
+        } catch (final InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted during benchmark");
+        }
+        final long elapsed =
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        synchronized (this.keys) {
+            if (!this.keys.isEmpty()) {
+                this.s3.deleteAll(this.bucketName, this.keys);
+                this.keys.clear();
+            }
+        }
+        return elapsed;
+    }
+
+    private void runOne(final Random random) {
+        String op = pick(random);
+        String key = null;
+        if (op.equals(S3Metrics.GET)) {
+            key = randomKey(random, false);
+        } else if (op.equals(S3Metrics.DELETE)) {
+            key = randomKey(random, true);
+        }
+        if (key == null && !op.equals(S3Metrics.LIST)) {
+            op = S3Metrics.PUT;
+        }
+
+        final Stats opStats = this.stats.get(op);
+        final long start = System.nanoTime();
+        try {
+            final long bytes = execute(op, key, random);
+            final long micros =
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+            opStats.record(micros, bytes);
+            this.total.record(micros, bytes);
+        } catch (final S3ServiceException e) {
+            if (op.equals(S3Metrics.GET) && 
+                e.getStatusCode() == HttpStatus.SC_NOT_FOUND && 
+                !hasKey(key)) {
+                // Another thread deleted it while we were reading it, 
+                // which says nothing about the server.
+                return;
+            }
+            failed(op, opStats, e);
+        } catch (final IOException e) {
+            failed(op, opStats, e);
+        } catch (final RuntimeIoException e) {
+            failed(op, opStats, e);
+        }
+    }
+
+    private void failed(final String op, final Stats opStats,
+        final Exception e) {
+        LOG.debug("Benchmark " + op + " failed", e);
+        opStats.errors.incrementAndGet();
+        this.total.errors.incrementAndGet();
+    }
+
+    private long execute(final String op, final String key,
+        final Random random) throws IOException {
+        if (op.equals(S3Metrics.PUT)) {
+            final String newKey = newKey();
+            final int size = nextSize(random);
+            this.s3.putStream(this.bucketName, newKey,
+                new ByteArrayInputStream(this.data, 0, size),
+                "binary/octet-stream", false);
+            synchronized (this.keys) {
+                this.keys.add(newKey);
+            }
+            return size;
+        } else if (op.equals(S3Metrics.GET)) {
+            final AtomicLong received = new AtomicLong();
+            this.s3.getObject(this.bucketName, key, null, false,
+                new ChunkHandler() {
+                public void handleChunk(final ByteBuffer chunk) {
+                    received.addAndGet(chunk.remaining());
+                }
+            });
+            return received.get();
+        } else if (op.equals(S3Metrics.LIST)) {
+            final BucketListing listing =
+                this.s3.listObjects(this.bucketName, this.prefix, null);
+            while (listing.hasNext()) {
+                listing.next();
+            }
+            return 0;
+        } else {
+            this.s3.delete(this.bucketName, key);
+            return 0;
+        }
+    }
+
+    private boolean hasKey(final String key) {
+        synchronized (this.keys) {
+            return this.keys.contains(key);
+        }
+    }
+
+    private String newKey() {
+        return this.prefix + this.nextKey.incrementAndGet();
+    }
+
+    /**
+     * Picks a key we've written, removing it if we're about to delete it.
+     */
+    private String randomKey(final Random random, final boolean remove) {
+        synchronized (this.keys) {
+            if (this.keys.isEmpty()) {
+                return null;
+            }
+            final int index = random.nextInt(this.keys.size());
+            final String key = this.keys.get(index);
+            if (remove) {
+                // Swap in the last key so removal doesn't shift the list.
+                final String last = this.keys.remove(this.keys.size() - 1);
+                if (index < this.keys.size()) {
+                    this.keys.set(index, last);
+                }
+            }
+            return key;
+        }
+    }
+
+    private String pick(final Random random) {
+        int total = 0;
+        for (final int weight : this.mix.values()) {
+            total += weight;
+        }
+        int choice = random.nextInt(total);
+        for (final Map.Entry<String, Integer> entry : this.mix.entrySet()) {
+            choice -= entry.getValue();
+            if (choice < 0) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException("Bad mix: " + this.mix);
+    }
+
+    int nextSize(final Random random) {
+        int total = 0;
+        for (final int weight : this.sizeWeights) {
+            total += weight;
+        }
+        int choice = random.nextInt(total);
+        int index = 0;
+        while (choice >= this.sizeWeights.get(index)) {
+            choice -= this.sizeWeights.get(index);
+            index++;
+        }
+        final long[] range = this.sizes.get(index);
+        if (range[0] == range[1]) {
+            return (int) range[0];
+        }
+        final double low = Math.log(Math.max(1, range[0]));
+        final double high = Math.log(range[1]);
+        final long size =
+            Math.round(Math.exp(low + random.nextDouble() * (high - low)));
+        return (int) Math.max(range[0], Math.min(range[1], size));
+    }
+
+    /**
+     * @param op The operation, such as "put".
+     * @return The number of times the operation succeeded.
+     */
+    long getCount(final String op) {
+        return this.stats.get(op).histogram.getCount();
+    }
+
+    /**
+     * @param op The operation, such as "put".
+     * @return The number of times the operation failed.
+     */
+    long getErrors(final String op) {
+        return this.stats.get(op).errors.get();
+    }
+
+    /**
+     * Prints a table of operations per second, megabytes per second and
+     * latency percentiles for each operation that ran, and for all of them
+     * together.
+     *
+     * @param out The stream to print to.
+     * @param elapsedMillis The duration of the run, as returned from
+     * {@link #run()}.
+     */
+    void printReport(final PrintStream out, final long elapsedMillis) {
+        final double seconds = Math.max(1, elapsedMillis) / 1000.0;
+        out.println(String.format(Locale.US,
+            "%-7s %9s %7s %10s %9s %9s %9s %9s %9s", "op", "count", "errors",
+            "ops/s", "MB/s", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+        for (final Map.Entry<String, Stats> entry : this.stats.entrySet()) {
+            final Stats opStats = entry.getValue();
+            if (opStats.histogram.getCount() + opStats.errors.get() > 0) {
+                printRow(out, entry.getKey(), opStats, seconds);
+            }
+        }
+        printRow(out, "total", this.total, seconds);
+    }
+
+    private static void printRow(final PrintStream out, final String name,
+        final Stats opStats, final double seconds) {
+        final LatencyHistogram histogram = opStats.histogram;
+        out.println(String.format(Locale.US,
+            "%-7s %9d %7d %10.1f %9.2f %9.2f %9.2f %9.2f %9.2f", name,
+            histogram.getCount(), opStats.errors.get(),
+            histogram.getCount() / seconds,
+            opStats.bytes.get() / (1024.0 * 1024.0) / seconds,
+            millis(histogram.getPercentile(50)),
+            millis(histogram.getPercentile(99)),
+            millis(histogram.getPercentile(99.9)),
+            millis(histogram.getMax())));
+    }
+
+    private static double millis(final long micros) {
+        return micros / 1000.0;
+    }
+
+    /**
+     * Parses a size such as "512", "64k", "16m" or "1g".
+     *
+     * @param size The size.
+     * @return The number of bytes.
+     */
+    static long parseSize(final String size) {
+        final String trimmed = size.trim().toLowerCase(Locale.US);
+        long multiplier = 1;
+        String number = trimmed;
+        if (trimmed.endsWith("k")) {
+            multiplier = 1024;
+        } else if (trimmed.endsWith("m")) {
+            multiplier = 1024 * 1024;
+        } else if (trimmed.endsWith("g")) {
+            multiplier = 1024 * 1024 * 1024;
+        }
+        if (multiplier != 1) {
+            number = trimmed.substring(0, trimmed.length() - 1);
+        }
+        try {
+            return Long.parseLong(number) * multiplier;
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException("Bad size: " + size);
+        }
+    }
+
+    private static String[] split(final String spec) {
+        final String[] entries = StringUtils.split(spec, ", ");
+        if (entries == null || entries.length == 0) {
+            throw new IllegalArgumentException("Nothing in: " + spec);
+        }
+        return entries;
+    }
+
+    private static int weight(final String entry) {
+        if (!entry.contains(":")) {
+            return 1;
+        }
+        final String weight = StringUtils.substringAfter(entry, ":");
+        try {
+            final int parsed = Integer.parseInt(weight);
+            if (parsed < 1) {
+                throw new IllegalArgumentException("Bad weight: " + entry);
+            }
+            return parsed;
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException("Bad weight: " + entry);
+        }
+    }
+
+    /**
+     * What we've measured for one operation.
+     */
+    private static final class Stats {
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+
+        private void record(final long micros, final long transferred) {
+            this.histogram.record(micros);
+            this.bytes.addAndGet(transferred);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.SortedMap;
+
+import javax.xml.xpath.XPathExpressionException;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.DeleteMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.PutMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.littleshoot.util.InputStreamHandler;
+import org.littleshoot.util.IoExceptionWithCause;
+import org.littleshoot.util.NoOpInputStreamHandler;
+import org.littleshoot.util.xml.XPathUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
+
+/**
+ * A single S3 multipart upload session.  Parts can be uploaded from any
+ * thread, in any order.  The upload must end with either a call to
+ * {@link #complete(SortedMap)} or {@link #abort()} so S3 doesn't keep
+ * charging us for orphaned parts.
+ */
+class MultipartUpload {
+
+    private final Logger log = LoggerFactory.getLogger(MultipartUpload.class);
+
+    private final AmazonS3Impl s3;
+    private final String fullPath;
+    private final String uploadId;
+
+    private MultipartUpload(final AmazonS3Impl s3, final String fullPath,
+        final String uploadId) {
+        this.s3 = s3;
+        this.fullPath = fullPath;
+        this.uploadId = uploadId;
+    }
+
+    /**
+     * Starts a new multipart upload.
+     *
+     * @param s3 The S3 instance to send requests through.
+     * @param bucketName The bucket.
+     * @param key The key of the object being uploaded.
+     * @param mimeType The content type of the final object.
+     * @param makePublic Whether or not the final object is publicly readable.
+     * @return The new upload.
+     * @throws IOException If we could not start the upload.
+     */
+    static MultipartUpload initiate(final AmazonS3Impl s3,
+        final String bucketName, final String key, final String mimeType,
+        final boolean makePublic) throws IOException {
+        return initiate(s3, bucketName, key, mimeType, makePublic, null);
+    }
+
+    /**
+     * Starts a new multipart upload of an encoded object.
+     *
+     * @param s3 The S3 instance to send requests through.
+     * @param bucketName The bucket.
+     * @param key The key of the object being uploaded.
+     * @param mimeType The content type of the final object.
+     * @param makePublic Whether or not the final object is publicly readable.
+     * @param contentEncoding The Content-Encoding to store with the object,
+     * such as "gzip", or <code>null</code> for none.
+     * @return The new upload.
+     * @throws IOException If we could not start the upload.
+     */
+    static MultipartUpload initiate(final AmazonS3Impl s3,
+        final String bucketName, final String key, final String mimeType,
+        final boolean makePublic, final String contentEncoding)
+        throws IOException {
+        final String fullPath = bucketName + "/" + key;
+        final String resource = fullPath + "?uploads";
+        final PostMethod method = new PostMethod(s3.secureUrl(resource));
+        method.setRequestEntity(new ByteArrayRequestEntity(new byte[0],
+            mimeType));
+        method.setRequestHeader("Content-Type", mimeType);
+        if (contentEncoding != null) {
+            method.setRequestHeader("Content-Encoding", contentEncoding);
+        }
+        s3.normalizeRequest(method, "POST", resource, makePublic, true);
+
+        final String[] uploadId = new String[1];
+        s3.sendRequest(method, new InputStreamHandler() {
+            public void handleInputStream(final InputStream is)
+                throws IOException {
+                try {
+                    final XPathUtils xPath = XPathUtils.newXPath(is);
+                    uploadId[0] = xPath.getString(
+                        "/InitiateMultipartUploadResult/UploadId");
+                } catch (final SAXException e) {
+                    throw new IoExceptionWithCause("Bad XML", e);
+                } catch (final XPathExpressionException e) {
+                    throw new IoExceptionWithCause("Bad XPath", e);
+                }
+            }
+        });
+        if (StringUtils.isBlank(uploadId[0])) {
+            throw new IOException("No upload ID for " + fullPath);
+        }
+        return new MultipartUpload(s3, fullPath, uploadId[0]);
+    }
+
+    /**
+     * Uploads a single part, retrying it on its own if it fails.
+     *
+     * @param partNumber The number of the part, starting from 1.
+     * @param entity The body of the part.  This must be repeatable.
+     * @return The ETag S3 returned for the part.
+     * @throws IOException If the part could not be uploaded after retrying.
+     */
+    String uploadPart(final int partNumber, final RequestEntity entity)
+        throws IOException {
+        return uploadPart(partNumber, entity, null);
+    }
+
+    /**
+     * Uploads a single part with a Content-MD5 header.  Failed requests are
+     * retried as for any other, but a part S3 accepted without returning
+     * an ETag is sent again here, up to the configured number of times and
+     * with the retry policy's delay.  An ETag that doesn't match the MD5 
+     * fails the part, since sending the same bytes again won't help.
+     *
+     * @param partNumber The number of the part, starting from 1.
+     * @param entity The body of the part.  This must be repeatable.
+     * @param md5 The MD5 of the part, or <code>null</code> to skip the 
+     * integrity check.
+     * @return The ETag S3 returned for the part.
+     * @throws IOException If the part could not be uploaded after retrying.
+     */
+    String uploadPart(final int partNumber, final RequestEntity entity,
+        final byte[] md5) throws IOException {
+        final AmazonS3Config config = this.s3.getConfig();
+        final int maxRetries = config.getPartRetries();
+        int retries = 0;
+        while (true) {
+            final boolean[] accepted = new boolean[1];
+            try {
+                return sendPart(partNumber, entity, md5, accepted);
+            } catch (final IOException e) {
+                // Anything before S3 accepted the part was already retried
+                // when we sent it.
+                if (!accepted[0] || retries >= maxRetries || 
+                    !S3ServiceException.isTransient(e)) {
+                    throw e;
+                }
+                final long delay = 
+                    config.getRetryPolicy().retryDelay(retries, e);
+                if (delay < 0) {
+                    throw e;
+                }
+                retries++;
+                log.warn("Resending part " + partNumber + " of " +
+                    this.fullPath + " in " + delay + " ms", e);
+                try {
+                    Thread.sleep(delay);
+                } catch (final InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IoExceptionWithCause("Interrupted", ie);
+                }
+            }
+        }
+    }
+
+    private String sendPart(final int partNumber, final RequestEntity entity,
+        final byte[] md5, final boolean[] accepted) throws IOException {
+        final String resource = this.fullPath + "?partNumber=" + partNumber +
+            "&uploadId=" + this.uploadId;
+        final PutMethod method = new PutMethod(this.s3.secureUrl(resource));
+        method.setRequestEntity(entity);
+        if (md5 != null) {
+            method.setRequestHeader("Content-MD5", ContentMd5.toHeader(md5));
+        }
+        this.s3.normalizeRequest(method, "PUT", resource, false, true);
+        this.s3.sendRequest(method, new NoOpInputStreamHandler());
+        accepted[0] = true;
+        if (md5 != null) {
+            ContentMd5.verifyETag(method, md5);
+        }
+
+        final Header etag = method.getResponseHeader("ETag");
+        if (etag == null) {
+            throw new IOException("No ETag for part " + partNumber);
+        }
+        return etag.getValue();
+    }
+
+    /**
+     * Completes the upload, assembling the parts into the final object.
+     *
+     * @param etags The ETags of all the parts, keyed by part number.
+     * @throws IOException If S3 could not assemble the object.
+     */
+    void complete(final SortedMap<Integer, String> etags) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("<CompleteMultipartUpload>");
+        for (final Map.Entry<Integer, String> entry : etags.entrySet()) {
+            sb.append("<Part><PartNumber>");
+            sb.append(entry.getKey());
+            sb.append("</PartNumber><ETag>");
+            sb.append(entry.getValue());
+            sb.append("</ETag></Part>");
+        }
+        sb.append("</CompleteMultipartUpload>");
+
+        final String resource = this.fullPath + "?uploadId=" + this.uploadId;
+        final PostMethod method = new PostMethod(this.s3.secureUrl(resource));
+        method.setRequestEntity(new StringRequestEntity(sb.toString(),
+            "application/xml", "UTF-8"));
+        method.setRequestHeader("Content-Type", "application/xml");
+        this.s3.normalizeRequest(method, "POST", resource, false, true);
+        this.s3.sendRequest(method, new InputStreamHandler() {
+            public void handleInputStream(final InputStream is)
+                throws IOException {
+                // S3 can report a failed completion with a 200 status,
+                // putting the error in the body.
+                final String body = IOUtils.toString(is);
+                if (body.contains("<Error>")) {
+                    throw new IOException("Could not complete upload of " +
+                        fullPath + ":\n" + body);
+                }
+            }
+        });
+    }
+
+    /**
+     * Aborts the upload, discarding any parts S3 has stored.  This never
+     * throws -- errors are just logged.
+     */
+    void abort() {
+        final String resource = this.fullPath + "?uploadId=" + this.uploadId;
+        final DeleteMethod method =
+            new DeleteMethod(this.s3.secureUrl(resource));
+        this.s3.normalizeRequest(method, "DELETE", resource, false, true);
+        try {
+            this.s3.sendRequest(method, new NoOpInputStreamHandler());
+        } catch (final IOException e) {
+            log.warn("Could not abort upload " + this.uploadId + " of " +
+                this.fullPath, e);
+        }
+    }
+}
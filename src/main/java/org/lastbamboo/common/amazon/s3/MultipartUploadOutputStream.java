@@ -0,0 +1,334 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.littleshoot.util.IoExceptionWithCause;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stream that uploads whatever is written to it to a single S3 object,
+ * without knowing the total length up front.  Bytes are collected into
+ * part-sized buffers and each full buffer is sent as a part of a multipart
+ * upload while the caller keeps writing.  Only a fixed number of buffers
+ * ever exist, so writers block rather than use more memory when S3 can't
+ * keep up.  Anything smaller than one part is sent as a plain PUT on
+ * {@link #close()}.
+ * <p>
+ * Closing the stream completes the upload.  Callers that give up part way
+ * through should call {@link #abort()} instead so S3 discards the parts
+ * sent so far.
+ */
+class MultipartUploadOutputStream extends OutputStream {
+
+    private final Logger log =
+        LoggerFactory.getLogger(MultipartUploadOutputStream.class);
+
+    /**
+     * The size the first buffer starts at.  It grows as needed, so short 
+     * streams don't cost a whole part's worth of memory.
+     */
+    private static final int FIRST_BUFFER_SIZE = 64 * 1024;
+
+    private final AmazonS3Impl s3;
+    private final String bucketName;
+    private final String key;
+    private final String mimeType;
+    private final String contentEncoding;
+    private final boolean makePublic;
+    private final boolean contentMd5;
+
+    private final int partSize;
+    private final int maxBuffers;
+
+    /**
+     * Buffers whose parts have been sent and which we can fill again.
+     */
+    private final BlockingQueue<byte[]> freeBuffers;
+
+    private int buffersCreated;
+
+    private byte[] buffer;
+
+    private int position;
+
+    private int partNumber;
+
+    private MultipartUpload upload;
+
+    private ExecutorService executor;
+
+    private final List<Future<String>> parts = new ArrayList<Future<String>>();
+
+    /**
+     * The first part we haven't yet seen finish successfully.
+     */
+    private int firstUnchecked;
+
+    private boolean closed;
+
+    /**
+     * Creates a new stream.  Nothing is sent until the first part fills up
+     * or the stream is closed.
+     *
+     * @param s3 The S3 instance to send requests through.
+     * @param bucketName The bucket.
+     * @param key The key of the object.
+     * @param mimeType The content type of the object.
+     * @param makePublic Whether or not the object is publicly readable.
+     */
+    MultipartUploadOutputStream(final AmazonS3Impl s3, final String bucketName,
+        final String key, final String mimeType, final boolean makePublic) {
+        this(s3, bucketName, key, mimeType, makePublic, null);
+    }
+
+    /**
+     * Creates a new stream for bytes that are already encoded, such as with
+     * gzip.
+     *
+     * @param s3 The S3 instance to send requests through.
+     * @param bucketName The bucket.
+     * @param key The key of the object.
+     * @param mimeType The content type of the object.
+     * @param makePublic Whether or not the object is publicly readable.
+     * @param contentEncoding The Content-Encoding to store with the object,
+     * or <code>null</code> for none.
+     */
+    MultipartUploadOutputStream(final AmazonS3Impl s3, final String bucketName,
+        final String key, final String mimeType, final boolean makePublic,
+        final String contentEncoding) {
+        this.s3 = s3;
+        this.bucketName = bucketName;
+        this.key = key;
+        this.mimeType = mimeType;
+        this.contentEncoding = contentEncoding;
+        this.makePublic = makePublic;
+        final AmazonS3Config config = s3.getConfig();
+        this.contentMd5 = config.isContentMd5Enabled();
+        this.partSize = (int) Math.min(config.getPartSize(),
+            Integer.MAX_VALUE - 8);
+        // One buffer for each part in flight, plus the one we're filling.
+        this.maxBuffers = Math.max(1, config.getPartUploadThreads()) + 1;
+        this.freeBuffers = new LinkedBlockingQueue<byte[]>(this.maxBuffers);
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        ensureBuffer();
+        if (this.position == this.buffer.length) {
+            grow(this.position + 1);
+        }
+        this.buffer[this.position++] = (byte) b;
+        if (this.position == this.partSize) {
+            sendBuffer();
+        }
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len)
+        throws IOException {
+        int offset = off;
+        int remaining = len;
+        while (remaining > 0) {
+            ensureBuffer();
+            if (this.position == this.buffer.length) {
+                grow(this.position + remaining);
+            }
+            final int count = 
+                Math.min(remaining, this.buffer.length - this.position);
+            System.arraycopy(b, offset, this.buffer, this.position, count);
+            this.position += count;
+            offset += count;
+            remaining -= count;
+            if (this.position == this.partSize) {
+                sendBuffer();
+            }
+        }
+    }
+
+    /**
+     * Sends the last part and completes the upload.
+     *
+     * @throws IOException If any part could not be uploaded or S3 could not
+     * assemble the object.  The upload is aborted on S3 in this case.
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        if (this.upload == null) {
+            // Everything fit in one part, so skip the multipart overhead.
+            final byte[] body = this.buffer == null ? new byte[0] :
+                copyOfBuffer();
+            final byte[] md5 = this.contentMd5 ? DigestUtils.md5(body) : null;
+            this.s3.put(this.bucketName + "/" + this.key,
+                new ByteArrayRequestEntity(body, this.mimeType),
+                this.makePublic, md5, this.contentEncoding);
+            return;
+        }
+        boolean completed = false;
+        try {
+            if (this.position > 0) {
+                submitPart(copyOfBuffer());
+            }
+            final SortedMap<Integer, String> etags =
+                new TreeMap<Integer, String>();
+            for (int i = 0; i < this.parts.size(); i++) {
+                etags.put(i + 1, get(this.parts.get(i)));
+            }
+            this.upload.complete(etags);
+            completed = true;
+        } finally {
+            this.executor.shutdownNow();
+            if (!completed) {
+                this.upload.abort();
+            }
+        }
+    }
+
+    /**
+     * Gives up on the upload, discarding anything sent so far.  This never
+     * throws, and the stream can't be used afterwards.
+     */
+    void abort() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        if (this.upload != null) {
+            this.executor.shutdownNow();
+            this.upload.abort();
+        }
+    }
+
+    private void ensureBuffer() throws IOException {
+        if (this.closed) {
+            throw new IOException("Stream closed");
+        }
+        if (this.buffer != null) {
+            return;
+        }
+        final byte[] free = this.freeBuffers.poll();
+        if (free != null) {
+            this.buffer = free;
+        } else if (this.buffersCreated < this.maxBuffers) {
+            this.buffersCreated++;
+            this.buffer = new byte[this.upload == null ?
+                Math.min(this.partSize, FIRST_BUFFER_SIZE) : this.partSize];
+        } else {
+            // Every buffer is holding a part in flight, so wait for one.
+            try {
+                this.buffer = this.freeBuffers.take();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for " +
+                    "a part to upload");
+            }
+        }
+        this.position = 0;
+    }
+
+    /**
+     * Grows the first buffer towards the part size.  Only that buffer is
+     * ever smaller than a part.
+     */
+    private void grow(final int needed) {
+        final int length = (int) Math.min(this.partSize,
+            Math.max((long) this.buffer.length * 2, needed));
+        this.buffer = Arrays.copyOf(this.buffer, length);
+    }
+
+    private void sendBuffer() throws IOException {
+        final byte[] full = this.buffer;
+        this.buffer = null;
+        this.position = 0;
+        submitPart(full);
+    }
+
+    private byte[] copyOfBuffer() {
+        final byte[] copy = new byte[this.position];
+        System.arraycopy(this.buffer, 0, copy, 0, this.position);
+        this.freeBuffers.offer(this.buffer);
+        this.buffer = null;
+        this.position = 0;
+        return copy;
+    }
+
+    private void submitPart(final byte[] part) throws IOException {
+        if (this.upload == null) {
+            this.upload = MultipartUpload.initiate(this.s3, this.bucketName,
+                this.key, this.mimeType, this.makePublic,
+                this.contentEncoding);
+            this.executor = this.s3.newExecutor("S3-Part-Upload",
+                this.maxBuffers - 1);
+        }
+        checkFailedParts();
+        final int number = ++this.partNumber;
+        log.debug("Sending part {} of {}/{}", number, this.bucketName,
+            this.key);
+        final MultipartUpload currentUpload = this.upload;
+        this.parts.add(this.executor.submit(new Callable<String>() {
+            public String call() throws IOException {
+                try {
+                    final byte[] md5 = contentMd5 ? DigestUtils.md5(part) :
+                        null;
+                    return currentUpload.uploadPart(number,
+                        new ByteArrayRequestEntity(part), md5);
+                } finally {
+                    // Full buffers go back to be filled again.  The last,
+                    // short part is a copy we just let go.
+                    if (part.length == partSize) {
+                        freeBuffers.offer(part);
+                    }
+                }
+            }
+        }));
+    }
+
+    /**
+     * Fails fast if an earlier part has already failed, rather than
+     * reading the rest of a possibly huge stream first.
+     */
+    private void checkFailedParts() throws IOException {
+        while (this.firstUnchecked < this.parts.size()) {
+            final Future<String> part = this.parts.get(this.firstUnchecked);
+            if (!part.isDone()) {
+                return;
+            }
+            get(part);
+            this.firstUnchecked++;
+        }
+    }
+
+    private static String get(final Future<String> future) throws IOException {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IoExceptionWithCause("Interrupted during upload", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IoExceptionWithCause("Error uploading part", cause);
+        }
+    }
+}
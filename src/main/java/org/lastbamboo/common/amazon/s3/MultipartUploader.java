@@ -0,0 +1,122 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.littleshoot.util.IoExceptionWithCause;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Uploads a large file as an S3 multipart upload, sending several parts at
+ * once.  Each part is retried on its own, so a dropped connection only
+ * costs us one part rather than the whole file.
+ */
+class MultipartUploader {
+
+    private final Logger log = LoggerFactory.getLogger(MultipartUploader.class);
+
+    private final AmazonS3Impl s3;
+
+    MultipartUploader(final AmazonS3Impl s3) {
+        this.s3 = s3;
+    }
+
+    /**
+     * Uploads the specified file.
+     *
+     * @param bucketName The bucket.
+     * @param key The key for the file.
+     * @param file The file.
+     * @param mimeType The content type of the file.
+     * @param makePublic Whether or not the file should be publicly readable.
+     * @throws IOException If the upload failed.  The upload is aborted on
+     * S3 in this case.
+     */
+    void upload(final String bucketName, final String key, final File file,
+        final String mimeType, final boolean makePublic) throws IOException {
+        final AmazonS3Config config = this.s3.getConfig();
+        final long length = file.length();
+        final long partSize = partSize(length, config.getPartSize());
+        // An empty file still needs a part.
+        final int numParts = 
+            (int) Math.max(1, (length + partSize - 1) / partSize);
+        log.debug("Uploading {} in {} parts", file, numParts);
+
+        final MultipartUpload upload = MultipartUpload.initiate(this.s3,
+            bucketName, key, mimeType, makePublic);
+        final ExecutorService executor = this.s3.newExecutor(
+            "S3-Part-Upload", 
+            Math.max(1, Math.min(numParts, config.getPartUploadThreads())));
+        boolean completed = false;
+        try {
+            final List<Future<String>> futures =
+                new ArrayList<Future<String>>(numParts);
+            for (int i = 0; i < numParts; i++) {
+                final int partNumber = i + 1;
+                final long offset = i * partSize;
+                final long partLength = Math.min(partSize, length - offset);
+                futures.add(executor.submit(new Callable<String>() {
+                    public String call() throws IOException {
+                        final byte[] md5 = config.isContentMd5Enabled() ?
+                            ContentMd5.digest(file, offset, partLength) : 
+                            null;
+                        return upload.uploadPart(partNumber,
+                            new FileRegionRequestEntity(file, offset,
+                                partLength, null), md5);
+                    }
+                }));
+            }
+
+            final SortedMap<Integer, String> etags =
+                new TreeMap<Integer, String>();
+            for (int i = 0; i < numParts; i++) {
+                etags.put(i + 1, get(futures.get(i)));
+            }
+            upload.complete(etags);
+            completed = true;
+        } finally {
+            executor.shutdownNow();
+            if (!completed) {
+                upload.abort();
+            }
+        }
+    }
+
+    /**
+     * Returns the size of the parts to upload a file in, which is the 
+     * configured size unless the file needs bigger parts to fit in 
+     * {@link AmazonS3Config#MAX_PARTS}.
+     *
+     * @param length The length of the file.
+     * @param configured The configured part size.
+     * @return The part size.
+     */
+    static long partSize(final long length, final long configured) {
+        final long max = AmazonS3Config.MAX_PARTS;
+        return Math.max(configured, (length + max - 1) / max);
+    }
+
+    private static String get(final Future<String> future) throws IOException {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IoExceptionWithCause("Interrupted during upload", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IoExceptionWithCause("Error uploading part", cause);
+        }
+    }
+}
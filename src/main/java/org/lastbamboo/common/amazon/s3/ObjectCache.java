@@ -0,0 +1,371 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * On-disk cache of downloaded objects, keyed by bucket and key.  We keep the
+ * ETag and Last-Modified date of each object so callers can revalidate 
+ * entries with a conditional GET and serve the local copy when S3 says it 
+ * hasn't changed.  The total size is bounded, evicting the least recently 
+ * used objects first.
+ */
+public class ObjectCache {
+
+    private static final String INDEX = "index";
+
+    /**
+     * How many changes we let build up before rewriting the index.  Losing
+     * the index only loses the cache, so we don't write it on every change.
+     */
+    private static final int CHANGES_PER_SAVE = 64;
+
+    private final Logger log = LoggerFactory.getLogger(ObjectCache.class);
+
+    private final File dir;
+
+    private final File objectsDir;
+
+    private final long maxBytes;
+
+    /**
+     * The entries in least recently used order.
+     */
+    private final Map<String, Entry> entries = 
+        new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private long totalBytes;
+
+    private int unsavedChanges;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates a new cache, loading any entries already in the directory.
+     *
+     * @param dir The directory to store objects in.
+     * @param maxBytes The most bytes of objects to keep.
+     * @throws IOException If the directory can't be created.
+     */
+    ObjectCache(final File dir, final long maxBytes) throws IOException {
+        this.dir = dir;
+        this.objectsDir = new File(dir, "objects");
+        this.maxBytes = maxBytes;
+        if (!this.objectsDir.isDirectory() && !this.objectsDir.mkdirs()) {
+            throw new IOException("Could not create " + this.objectsDir);
+        }
+        loadIndex();
+    }
+
+    /**
+     * Looks up the cached copy of an object.  This does not count as a hit
+     * until the entry is revalidated.
+     *
+     * @param fullPath The bucket and key, such as "bucket/key".
+     * @return The entry, or <code>null</code> if the object isn't cached.
+     */
+    synchronized Entry get(final String fullPath) {
+        final Entry entry = this.entries.get(fullPath);
+        if (entry != null && !entry.file.isFile()) {
+            log.debug("Cached file missing for {}", fullPath);
+            remove(fullPath);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Creates a temporary file in the cache directory to download into, so
+     * it can be moved into the cache without copying.
+     *
+     * @return The new file.
+     * @throws IOException If the file could not be created.
+     */
+    File newTempFile() throws IOException {
+        return File.createTempFile("download", ".tmp", this.objectsDir);
+    }
+
+    /**
+     * Adds a downloaded object to the cache, replacing any older copy.
+     *
+     * @param fullPath The bucket and key.
+     * @param download The downloaded file, which is moved into the cache.
+     * @param eTag The ETag S3 sent, or <code>null</code>.
+     * @param lastModified The Last-Modified date S3 sent, or 
+     * <code>null</code>.
+     * @return The cached file, or <code>null</code> if the object was too 
+     * large to cache, in which case the download is left where it was.
+     * @throws IOException If the file could not be moved into the cache.
+     */
+    synchronized File put(final String fullPath, final File download,
+        final String eTag, final String lastModified) throws IOException {
+        final long size = download.length();
+        if (size > this.maxBytes || 
+            (eTag == null && lastModified == null)) {
+            return null;
+        }
+        remove(fullPath);
+        final File file = new File(this.objectsDir, 
+            DigestUtils.sha1Hex(fullPath));
+        if (!download.renameTo(file)) {
+            throw new IOException("Could not move " + download + " to " + file);
+        }
+        this.entries.put(fullPath, 
+            new Entry(fullPath, file, size, eTag, lastModified));
+        this.totalBytes += size;
+        evict();
+        this.unsavedChanges++;
+        if (this.unsavedChanges >= CHANGES_PER_SAVE) {
+            saveIndex();
+        }
+        return file;
+    }
+
+    /**
+     * Copies a cached object to the caller's file.  We hold the lock while
+     * we copy so another thread can't evict or replace the file under us.
+     *
+     * @param entry The cached entry.
+     * @param target The file to copy to.
+     * @return <code>true</code> if we copied the entry, or 
+     * <code>false</code> if it's no longer in the cache.
+     * @throws IOException If the copy failed.
+     */
+    synchronized boolean copy(final Entry entry, final File target) 
+        throws IOException {
+        if (this.entries.get(entry.fullPath) != entry || 
+            !entry.file.isFile()) {
+            return false;
+        }
+        FileUtils.copyFile(entry.file, target, false);
+        return true;
+    }
+
+    /**
+     * Flushes the index to disk if anything changed since we last wrote it.
+     */
+    synchronized void close() {
+        if (this.unsavedChanges == 0) {
+            return;
+        }
+        try {
+            saveIndex();
+        } catch (final IOException e) {
+            log.warn("Could not save cache index", e);
+        }
+    }
+
+    void recordHit() {
+        this.hits.incrementAndGet();
+    }
+
+    void recordMiss() {
+        this.misses.incrementAndGet();
+    }
+
+    void recordRevalidation() {
+        this.revalidations.incrementAndGet();
+    }
+
+    /**
+     * @return The number of requests served from the cache after S3 
+     * confirmed the cached copy was current.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return The number of requests that downloaded the object, either 
+     * because it wasn't cached or because it had changed.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return The number of conditional requests sent to check cached 
+     * copies.
+     */
+    public long getRevalidations() {
+        return revalidations.get();
+    }
+
+    /**
+     * @return The number of objects removed to stay under the size limit.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return The total size of all cached objects.
+     */
+    public synchronized long getSize() {
+        return totalBytes;
+    }
+
+    private void remove(final String fullPath) {
+        final Entry old = this.entries.remove(fullPath);
+        if (old != null) {
+            this.totalBytes -= old.size;
+            this.unsavedChanges++;
+            if (old.file.exists() && !old.file.delete()) {
+                log.warn("Could not delete {}", old.file);
+            }
+        }
+    }
+
+    private void evict() {
+        final Iterator<Entry> it = this.entries.values().iterator();
+        while (this.totalBytes > this.maxBytes && it.hasNext()) {
+            final Entry eldest = it.next();
+            log.debug("Evicting {}", eldest.fullPath);
+            it.remove();
+            this.totalBytes -= eldest.size;
+            this.evictions.incrementAndGet();
+            this.unsavedChanges++;
+            if (!eldest.file.delete()) {
+                log.warn("Could not delete {}", eldest.file);
+            }
+        }
+    }
+
+    private void loadIndex() throws IOException {
+        final File index = new File(this.dir, INDEX);
+        if (!index.isFile()) {
+            deleteOrphans();
+            return;
+        }
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(
+            new FileInputStream(index), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = 
+                    StringUtils.splitPreserveAllTokens(line, '\t');
+                if (fields.length != 3) {
+                    continue;
+                }
+                final String fullPath = URLDecoder.decode(fields[0], "UTF-8");
+                final File file = new File(this.objectsDir, 
+                    DigestUtils.sha1Hex(fullPath));
+                if (!file.isFile()) {
+                    continue;
+                }
+                final Entry entry = new Entry(fullPath, file, file.length(), 
+                    StringUtils.trimToNull(fields[1]), 
+                    StringUtils.trimToNull(fields[2]));
+                this.entries.put(fullPath, entry);
+                this.totalBytes += entry.size;
+            }
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+        evict();
+        deleteOrphans();
+    }
+
+    /**
+     * Deletes files the index doesn't know about, such as objects cached
+     * after we last saved the index and downloads interrupted by a crash.
+     */
+    private void deleteOrphans() {
+        final File[] files = this.objectsDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        final Set<File> known = new HashSet<File>();
+        for (final Entry entry : this.entries.values()) {
+            known.add(entry.file);
+        }
+        for (final File file : files) {
+            if (!known.contains(file) && !file.delete()) {
+                log.warn("Could not delete {}", file);
+            }
+        }
+    }
+
+    private void saveIndex() throws IOException {
+        final File index = new File(this.dir, INDEX);
+        final File temp = new File(this.dir, INDEX + ".tmp");
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(
+            new FileOutputStream(temp), "UTF-8"));
+        final List<Entry> ordered = new ArrayList<Entry>(this.entries.values());
+        try {
+            // Least recently used first, so loading restores the order.
+            for (final Entry entry : ordered) {
+                writer.write(AmazonS3Utils.urlEncode(entry.fullPath));
+                writer.write('\t');
+                writer.write(StringUtils.defaultString(entry.eTag));
+                writer.write('\t');
+                writer.write(StringUtils.defaultString(entry.lastModified));
+                writer.write('\n');
+            }
+        } finally {
+            IOUtils.closeQuietly(writer);
+        }
+        if (index.exists() && !index.delete()) {
+            throw new IOException("Could not replace " + index);
+        }
+        if (!temp.renameTo(index)) {
+            throw new IOException("Could not rename " + temp);
+        }
+        this.unsavedChanges = 0;
+    }
+
+    /**
+     * A single cached object.
+     */
+    static final class Entry {
+
+        private final String fullPath;
+        private final File file;
+        private final long size;
+        private final String eTag;
+        private final String lastModified;
+
+        private Entry(final String fullPath, final File file, final long size,
+            final String eTag, final String lastModified) {
+            this.fullPath = fullPath;
+            this.file = file;
+            this.size = size;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+        }
+
+        String getETag() {
+            return eTag;
+        }
+
+        String getLastModified() {
+            return lastModified;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency and error counts for one kind of S3 operation, such as puts.
+ * Latencies cover the whole operation, including any retries.
+ */
+public class OperationMetrics implements OperationMetricsMBean {
+
+    private final String name;
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    private final AtomicLong retries = new AtomicLong();
+
+    OperationMetrics(final String name) {
+        this.name = name;
+    }
+
+    void record(final long nanos, final boolean succeeded) {
+        this.latencies.record(nanos / 1000);
+        if (!succeeded) {
+            this.errors.incrementAndGet();
+        }
+    }
+
+    void recordRetry() {
+        this.retries.incrementAndGet();
+    }
+
+    /**
+     * @return The name of the operation, such as "put".
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The latencies of the operation in microseconds.
+     */
+    public LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    public long getCount() {
+        return latencies.getCount();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public double getMeanMillis() {
+        return latencies.getMean() / 1000.0;
+    }
+
+    public double getP50Millis() {
+        return latencies.getPercentile(50) / 1000.0;
+    }
+
+    public double getP99Millis() {
+        return latencies.getPercentile(99) / 1000.0;
+    }
+
+    public double getP999Millis() {
+        return latencies.getPercentile(99.9) / 1000.0;
+    }
+
+    public double getMaxMillis() {
+        return latencies.getMax() / 1000.0;
+    }
+}
@@ -0,0 +1,23 @@
+package org.lastbamboo.common.amazon.s3;
+
+/**
+ * JMX view of the metrics for one kind of S3 operation.
+ */
+public interface OperationMetricsMBean {
+
+    long getCount();
+
+    long getErrors();
+
+    long getRetries();
+
+    double getMeanMillis();
+
+    double getP50Millis();
+
+    double getP99Millis();
+
+    double getP999Millis();
+
+    double getMaxMillis();
+}
@@ -0,0 +1,206 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.littleshoot.util.IoExceptionWithCause;
+
+/**
+ * Gzip stream that compresses blocks of what's written to it on several
+ * threads at once, the way pigz does, so compression keeps up with a fast
+ * network.  Each block is deflated separately, primed with the last 32 KB
+ * of the block before it so we lose very little compression, and flushed
+ * to a byte boundary so the blocks join into one ordinary gzip member that
+ * any gzip reader understands.
+ * <p>
+ * Only a few blocks are in flight at once, so writers block rather than
+ * use more memory when the underlying stream can't keep up.
+ */
+class ParallelGzipOutputStream extends OutputStream {
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final byte[] HEADER = {
+        0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final int blockSize;
+    private final int level;
+    private final int maxPending;
+
+    private final Queue<Future<byte[]>> pending =
+        new LinkedList<Future<byte[]>>();
+    private final CRC32 crc = new CRC32();
+    private long length;
+
+    private byte[] block;
+    private int position;
+    private byte[] previous;
+    private int previousLength;
+
+    private boolean finished;
+
+    /**
+     * Creates a new stream.
+     *
+     * @param out The stream to write the compressed data to.
+     * @param executor The threads to compress on.  The caller owns these
+     * and shuts them down.
+     * @param threads The number of threads in the executor.
+     * @param blockSize The number of bytes to compress as one block.
+     * @param level The compression level, from 1 to 9.
+     * @throws IOException If we could not write the gzip header.
+     */
+    ParallelGzipOutputStream(final OutputStream out,
+        final ExecutorService executor, final int threads,
+        final int blockSize, final int level) throws IOException {
+        this.out = out;
+        this.executor = executor;
+        this.blockSize = Math.max(DICTIONARY_SIZE, blockSize);
+        this.level = level;
+        // Enough to keep every thread busy while we write out the oldest.
+        this.maxPending = Math.max(1, threads) * 2;
+        this.block = new byte[this.blockSize];
+        out.write(HEADER);
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len)
+        throws IOException {
+        if (this.finished) {
+            throw new IOException("Stream finished");
+        }
+        this.crc.update(b, off, len);
+        this.length += len;
+        int offset = off;
+        int remaining = len;
+        while (remaining > 0) {
+            final int count =
+                Math.min(remaining, this.blockSize - this.position);
+            System.arraycopy(b, offset, this.block, this.position, count);
+            this.position += count;
+            offset += count;
+            remaining -= count;
+            if (this.position == this.blockSize) {
+                submitBlock(false);
+            }
+        }
+    }
+
+    /**
+     * Compresses anything left and writes the gzip trailer without closing
+     * the underlying stream.
+     *
+     * @throws IOException If compression failed or we could not write to
+     * the underlying stream.
+     */
+    void finish() throws IOException {
+        if (this.finished) {
+            return;
+        }
+        submitBlock(true);
+        this.finished = true;
+        while (!this.pending.isEmpty()) {
+            writeOldest();
+        }
+        writeIntLe(this.crc.getValue());
+        writeIntLe(this.length);
+        this.out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        this.out.close();
+    }
+
+    private void submitBlock(final boolean last) throws IOException {
+        final byte[] data = this.block;
+        final int dataLength = this.position;
+        final byte[] dictionary = this.previous;
+        final int dictionaryLength = this.previousLength;
+        this.pending.add(this.executor.submit(new Callable<byte[]>() {
+            public byte[] call() {
+                return deflate(data, dataLength, dictionary,
+                    dictionaryLength, last);
+            }
+        }));
+        this.previous = data;
+        this.previousLength = dataLength;
+        this.block = new byte[this.blockSize];
+        this.position = 0;
+        while (this.pending.size() >= this.maxPending) {
+            writeOldest();
+        }
+    }
+
+    private byte[] deflate(final byte[] data, final int dataLength,
+        final byte[] dictionary, final int dictionaryLength,
+        final boolean last) {
+        final Deflater deflater = new Deflater(this.level, true);
+        try {
+            if (dictionary != null) {
+                final int size = Math.min(DICTIONARY_SIZE, dictionaryLength);
+                deflater.setDictionary(dictionary, dictionaryLength - size,
+                    size);
+            }
+            deflater.setInput(data, 0, dataLength);
+            final ByteArrayOutputStream compressed =
+                new ByteArrayOutputStream(dataLength / 2 + 64);
+            final byte[] buf = new byte[64 * 1024];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    compressed.write(buf, 0, deflater.deflate(buf));
+                }
+            } else {
+                // A sync flush ends the block on a byte boundary without
+                // ending the stream, so the next block can follow it.
+                int count;
+                do {
+                    count = deflater.deflate(buf, 0, buf.length,
+                        Deflater.SYNC_FLUSH);
+                    compressed.write(buf, 0, count);
+                } while (count == buf.length);
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void writeOldest() throws IOException {
+        final Future<byte[]> oldest = this.pending.remove();
+        try {
+            this.out.write(oldest.get());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IoExceptionWithCause("Interrupted compressing", e);
+        } catch (final ExecutionException e) {
+            throw new IoExceptionWithCause("Could not compress", e.getCause());
+        }
+    }
+
+    private void writeIntLe(final long value) throws IOException {
+        this.out.write((int) (value & 0xff));
+        this.out.write((int) ((value >> 8) & 0xff));
+        this.out.write((int) ((value >> 16) & 0xff));
+        this.out.write((int) ((value >> 24) & 0xff));
+    }
+}
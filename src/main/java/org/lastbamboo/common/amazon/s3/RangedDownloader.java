@@ -0,0 +1,193 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.littleshoot.util.InputStreamHandler;
+import org.littleshoot.util.IoExceptionWithCause;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Downloads a file as a series of byte ranges fetched in parallel.  Each
+ * range is written straight to its place in a preallocated target file, and
+ * a range that breaks off part way through is requested again on its own.
+ */
+class RangedDownloader {
+
+    private final Logger log = LoggerFactory.getLogger(RangedDownloader.class);
+
+    private final AmazonS3Impl s3;
+
+    RangedDownloader(final AmazonS3Impl s3) {
+        this.s3 = s3;
+    }
+
+    /**
+     * Downloads the specified resource.
+     *
+     * @param url The URL of the resource.
+     * @param fullPath The path of the resource, such as "bucket/key".
+     * @param useAuth Whether or not to sign the requests.
+     * @param length The total length of the resource.
+     * @param eTag The ETag of the resource when we found its length, or
+     * <code>null</code> if we don't know it.  Every range must come from 
+     * this version of the object, so we don't stitch together a file from
+     * an object that was replaced part way through.
+     * @param target The file to download to.
+     * @throws IOException If any range could not be downloaded.  The target
+     * file is deleted in this case.
+     */
+    void download(final String url, final String fullPath,
+        final boolean useAuth, final long length, final String eTag,
+        final File target) throws IOException {
+        final AmazonS3Config config = this.s3.getConfig();
+        final long segmentSize = config.getSegmentSize();
+        final int numSegments = (int) ((length + segmentSize - 1) / segmentSize);
+        log.debug("Downloading {} in {} segments", url, numSegments);
+
+        final RandomAccessFile raf = new RandomAccessFile(target, "rw");
+        boolean succeeded = false;
+        final ExecutorService executor = this.s3.newExecutor("S3-Download",
+            Math.max(1, Math.min(numSegments, config.getDownloadThreads())));
+        try {
+            raf.setLength(length);
+            final FileChannel channel = raf.getChannel();
+            final List<Future<Void>> futures =
+                new ArrayList<Future<Void>>(numSegments);
+            for (int i = 0; i < numSegments; i++) {
+                final long start = i * segmentSize;
+                final long end = Math.min(start + segmentSize, length) - 1;
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        downloadSegment(url, fullPath, useAuth, eTag,
+                            channel, start, end);
+                        return null;
+                    }
+                }));
+            }
+            for (final Future<Void> future : futures) {
+                get(future);
+            }
+            succeeded = true;
+        } finally {
+            executor.shutdownNow();
+            raf.close();
+            if (!succeeded && !target.delete()) {
+                log.warn("Could not delete partial download: {}", target);
+            }
+        }
+    }
+
+    /**
+     * Downloads a single range.  Failed requests are retried as for any
+     * other, but a response that breaks off part way through is requested
+     * again here, up to the configured number of times and with the retry
+     * policy's delay.
+     */
+    private void downloadSegment(final String url, final String fullPath,
+        final boolean useAuth, final String eTag, final FileChannel channel,
+        final long start, final long end) throws IOException {
+        final AmazonS3Config config = this.s3.getConfig();
+        final int maxRetries = config.getSegmentRetries();
+        int retries = 0;
+        while (true) {
+            final boolean[] responded = new boolean[1];
+            try {
+                fetchRange(url, fullPath, useAuth, eTag, channel, start, end,
+                    responded);
+                return;
+            } catch (final IOException e) {
+                // Anything before we got the response was already retried
+                // when we sent the request.
+                if (!responded[0] || retries >= maxRetries || 
+                    !S3ServiceException.isTransient(e)) {
+                    throw e;
+                }
+                final long delay = 
+                    config.getRetryPolicy().retryDelay(retries, e);
+                if (delay < 0) {
+                    throw e;
+                }
+                retries++;
+                log.warn("Requesting bytes " + start + "-" + end + " of " +
+                    url + " again in " + delay + " ms", e);
+                try {
+                    Thread.sleep(delay);
+                } catch (final InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IoExceptionWithCause("Interrupted", ie);
+                }
+            }
+        }
+    }
+
+    private void fetchRange(final String url, final String fullPath,
+        final boolean useAuth, final String eTag, final FileChannel channel,
+        final long start, final long end, final boolean[] responded)
+        throws IOException {
+        final GetMethod method = new GetMethod(url);
+        // Note byte ranges are inclusive in the range header.
+        method.setRequestHeader("Range", "bytes=" + start + "-" + end);
+        if (eTag != null) {
+            method.setRequestHeader("If-Match", eTag);
+        }
+        this.s3.normalizeRequest(method, "GET", fullPath, false, useAuth);
+        this.s3.sendRequest(method, new InputStreamHandler() {
+            public void handleInputStream(final InputStream is)
+                throws IOException {
+                if (method.getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT) {
+                    throw new IOException("Range not honored: " +
+                        method.getStatusLine());
+                }
+                responded[0] = true;
+                final byte[] buf = new byte[64 * 1024];
+                final ByteBuffer bb = ByteBuffer.wrap(buf);
+                long position = start;
+                while (position <= end) {
+                    final int read = is.read(buf, 0,
+                        (int) Math.min(buf.length, end - position + 1));
+                    if (read == -1) {
+                        break;
+                    }
+                    bb.clear();
+                    bb.limit(read);
+                    while (bb.hasRemaining()) {
+                        position += channel.write(bb, position);
+                    }
+                }
+                if (position != end + 1) {
+                    throw new IOException("Expected bytes " + start + "-" +
+                        end + " but only got through " + (position - 1));
+                }
+            }
+        });
+    }
+
+    private static void get(final Future<Void> future) throws IOException {
+        try {
+            future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IoExceptionWithCause("Interrupted during download", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IoExceptionWithCause("Error downloading range", cause);
+        }
+    }
+}
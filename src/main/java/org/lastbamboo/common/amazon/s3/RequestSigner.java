@@ -0,0 +1,151 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethod;
+
+/**
+ * Signs requests with S3's HMAC-SHA1 scheme.  Signing happens on every
+ * request, so each thread keeps its own initialized {@link Mac} and string
+ * builder rather than creating new ones each time.
+ */
+class RequestSigner {
+
+    private static final String ALGORITHM = "HmacSHA1";
+
+    private static final String UTF_8 = "UTF-8";
+
+    /**
+     * The most recent Date header value, which we only reformat when the
+     * second changes.
+     */
+    private static volatile CachedDate cachedDate = new CachedDate(0L, "");
+
+    private static final ThreadLocal<SimpleDateFormat> DATE_FORMAT =
+        new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            final SimpleDateFormat format = new SimpleDateFormat(
+                "EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return format;
+        }
+    };
+
+    private final String accessKeyId;
+
+    private final SecretKeySpec signingKey;
+
+    private final ThreadLocal<Mac> mac = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                final Mac newMac = Mac.getInstance(ALGORITHM);
+                newMac.init(signingKey);
+                return newMac;
+            } catch (final GeneralSecurityException e) {
+                throw new IllegalStateException("Could not create MAC", e);
+            }
+        }
+    };
+
+    private final ThreadLocal<StringBuilder> builder =
+        new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
+    /**
+     * Creates a new signer for the specified credentials.
+     *
+     * @param accessKeyId The AWS access key ID.
+     * @param secretAccessKey The AWS secret access key.
+     */
+    RequestSigner(final String accessKeyId, final String secretAccessKey) {
+        this.accessKeyId = accessKeyId;
+        this.signingKey = new SecretKeySpec(utf8(secretAccessKey), ALGORITHM);
+    }
+
+    /**
+     * Creates the Authorization header for the specified request.  All
+     * other headers, including the Date header, must already be set.
+     *
+     * @param method The HttpClient {@link HttpMethod}.
+     * @param methodString The method identifier string, such as "GET".
+     * @param fullPath The bucket and key being accessed, plus any
+     * sub-resource.
+     * @return The HTTP header.
+     */
+    Header createAuthHeader(final HttpMethod method, final String methodString,
+        final String fullPath) {
+        final StringBuilder sb = this.builder.get();
+        sb.setLength(0);
+        AmazonS3Utils.appendCanonicalString(sb, methodString, fullPath,
+            method.getRequestHeaders(), null);
+        final String signature = sign(sb);
+        sb.setLength(0);
+        sb.append("AWS ").append(this.accessKeyId).append(':').append(signature);
+        return new Header("Authorization", sb.toString());
+    }
+
+    /**
+     * Signs the specified string.
+     *
+     * @param canonical The string to sign.
+     * @return The base 64 encoded signature.
+     */
+    String sign(final CharSequence canonical) {
+        final Mac threadMac = this.mac.get();
+        // doFinal resets the MAC, so it's ready for the next request.
+        return Base64.encodeBase64String(
+            threadMac.doFinal(utf8(canonical.toString())));
+    }
+
+    /**
+     * Returns the current time formatted for the HTTP Date header.  The
+     * header only has second resolution, so we format it at most once a
+     * second no matter how many requests we send.
+     *
+     * @return The current date.
+     */
+    static String currentHttpDate() {
+        final long second = System.currentTimeMillis() / 1000;
+        final CachedDate cached = cachedDate;
+        if (cached.second == second) {
+            return cached.value;
+        }
+        final String value = DATE_FORMAT.get().format(new Date(second * 1000));
+        cachedDate = new CachedDate(second, value);
+        return value;
+    }
+
+    private static byte[] utf8(final String str) {
+        try {
+            return str.getBytes(UTF_8);
+        } catch (final UnsupportedEncodingException e) {
+            throw new IllegalStateException("No UTF-8?", e);
+        }
+    }
+
+    private static final class CachedDate {
+        private final long second;
+        private final String value;
+
+        private CachedDate(final long second, final String value) {
+            this.second = second;
+            this.value = value;
+        }
+    }
+}
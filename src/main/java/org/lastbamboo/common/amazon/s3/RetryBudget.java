@@ -0,0 +1,65 @@
+package org.lastbamboo.common.amazon.s3;
+
+/**
+ * A token bucket that limits retries across all requests.  Each retry 
+ * takes tokens and each success puts a token back, so when S3 is healthy
+ * we retry freely, but when most requests fail the budget runs dry and we 
+ * stop adding retry traffic to an overloaded service.
+ */
+public class RetryBudget {
+
+    private final int capacity;
+
+    private final int retryCost;
+
+    private int tokens;
+
+    /**
+     * Creates a budget with room for 100 retries in a row.
+     */
+    public RetryBudget() {
+        this(500, 5);
+    }
+
+    /**
+     * Creates a new budget.
+     *
+     * @param capacity The most tokens the budget holds.
+     * @param retryCost The tokens each retry takes.  Each success returns
+     * one.
+     */
+    public RetryBudget(final int capacity, final int retryCost) {
+        this.capacity = capacity;
+        this.retryCost = retryCost;
+        this.tokens = capacity;
+    }
+
+    /**
+     * Takes the tokens for a retry if there are enough.
+     *
+     * @return Whether or not we may retry.
+     */
+    public synchronized boolean tryAcquire() {
+        if (this.tokens < this.retryCost) {
+            return false;
+        }
+        this.tokens -= this.retryCost;
+        return true;
+    }
+
+    /**
+     * Returns a token after a successful request.
+     */
+    public synchronized void onSuccess() {
+        if (this.tokens < this.capacity) {
+            this.tokens++;
+        }
+    }
+
+    /**
+     * @return The tokens left.
+     */
+    public synchronized int getTokens() {
+        return this.tokens;
+    }
+}
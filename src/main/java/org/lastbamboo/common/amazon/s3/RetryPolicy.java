@@ -0,0 +1,28 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.IOException;
+
+/**
+ * Decides whether and when to retry a failed request.  A single policy is
+ * shared by all the requests of an {@link AmazonS3Impl}, so it's also the 
+ * place to limit retries across them.
+ */
+public interface RetryPolicy {
+
+    /**
+     * Called when a request fails.
+     *
+     * @param retries The number of times this request has already been
+     * retried.
+     * @param error The error.  This is an {@link S3ServiceException} when S3
+     * returned an error response.
+     * @return The number of milliseconds to wait before retrying, or -1 to
+     * give up and throw the error.
+     */
+    long retryDelay(int retries, IOException error);
+
+    /**
+     * Called when a request succeeds.
+     */
+    void onSuccess();
+}
@@ -0,0 +1,35 @@
+package org.lastbamboo.common.amazon.s3;
+
+/**
+ * Summary of a single bucket in the listing of all a user's buckets.
+ */
+public class S3BucketSummary {
+
+    private final String name;
+    private final String creationDate;
+
+    /**
+     * Creates a new summary.
+     * 
+     * @param name The name of the bucket.
+     * @param creationDate The creation date in the ISO 8601 format S3 uses.
+     */
+    public S3BucketSummary(final String name, final String creationDate) {
+        this.name = name;
+        this.creationDate = creationDate;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getCreationDate() {
+        return creationDate;
+    }
+
+    @Override
+    public String toString() {
+        return "S3BucketSummary [name=" + name + ", creationDate=" + 
+            creationDate + "]";
+    }
+}
@@ -0,0 +1,260 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.lang.StringUtils;
+import org.littleshoot.util.JmxUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counters for everything an {@link AmazonS3Impl} sends: latencies for 
+ * each kind of operation, bytes in and out, retries, response status codes
+ * and requests in flight.  Everything is lock free so it can stay on in
+ * production.
+ */
+public class S3Metrics implements S3MetricsMBean {
+
+    public static final String PUT = "put";
+    public static final String GET = "get";
+    public static final String HEAD = "head";
+    public static final String LIST = "list";
+    public static final String DELETE = "delete";
+    public static final String CREATE_BUCKET = "createBucket";
+
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    private final Logger log = LoggerFactory.getLogger(S3Metrics.class);
+
+    private final Map<String, OperationMetrics> operations;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    private final AtomicLong retries = new AtomicLong();
+
+    /**
+     * Counts for each status code from 100 to 599.
+     */
+    private final AtomicLongArray statusCodes = new AtomicLongArray(600);
+
+    private final ConcurrentMap<ObjectName, Object> registered =
+        new ConcurrentHashMap<ObjectName, Object>();
+
+    S3Metrics() {
+        final Map<String, OperationMetrics> ops = 
+            new TreeMap<String, OperationMetrics>();
+        for (final String op : new String[] {PUT, GET, HEAD, LIST, DELETE, 
+            CREATE_BUCKET}) {
+            ops.put(op, new OperationMetrics(op));
+        }
+        this.operations = Collections.unmodifiableMap(ops);
+    }
+
+    /**
+     * The request parameter {@link AmazonS3Impl#normalizeRequest} keeps
+     * the operation in.  We can't tell the operation from the URL once
+     * the bucket may be in the host name rather than the path.
+     */
+    static final String OPERATION_PARAM = 
+        "org.lastbamboo.common.amazon.s3.operation";
+
+    /**
+     * Returns the operation recorded on a request when it was signed.
+     *
+     * @param method The request.
+     * @return The operation.
+     */
+    static String operation(final HttpMethod method) {
+        final Object operation = 
+            method.getParams().getParameter(OPERATION_PARAM);
+        if (operation != null) {
+            return (String) operation;
+        }
+        // Not one of ours, so the best we can do is the path-style URL.
+        final String query = method.getQueryString();
+        return operation(method.getName(), 
+            StringUtils.removeStart(method.getPath(), "/") + 
+            (query == null ? "" : "?" + query));
+    }
+
+    /**
+     * Works out which kind of operation a request is from its method and 
+     * the resource it's for.
+     *
+     * @param name The HTTP method, such as "GET".
+     * @param fullPath The path to the resource, such as "bucket/key" or
+     * "bucket?delete".
+     * @return The operation.
+     */
+    static String operation(final String name, final String fullPath) {
+        final String path = StringUtils.substringBefore(fullPath, "?");
+        final String query = fullPath.indexOf('?') == -1 ? null :
+            StringUtils.substringAfter(fullPath, "?");
+        final boolean bucketOnly = path.indexOf('/') == -1;
+        if ("GET".equals(name)) {
+            return bucketOnly ? LIST : GET;
+        }
+        if ("PUT".equals(name)) {
+            return bucketOnly && query == null ? CREATE_BUCKET : PUT;
+        }
+        if ("HEAD".equals(name)) {
+            return HEAD;
+        }
+        if ("DELETE".equals(name) || "delete".equals(query)) {
+            return DELETE;
+        }
+        // Starting and completing multipart uploads.
+        return PUT;
+    }
+
+    void requestStarted() {
+        this.inFlight.incrementAndGet();
+    }
+
+    void requestFinished(final int statusCode) {
+        this.inFlight.decrementAndGet();
+        if (statusCode > 0 && statusCode < this.statusCodes.length()) {
+            this.statusCodes.incrementAndGet(statusCode);
+        }
+    }
+
+    void recordOperation(final String operation, final long nanos,
+        final boolean succeeded) {
+        this.operations.get(operation).record(nanos, succeeded);
+    }
+
+    void recordRetry(final String operation) {
+        this.retries.incrementAndGet();
+        this.operations.get(operation).recordRetry();
+    }
+
+    void addBytesSent(final long bytes) {
+        this.bytesSent.addAndGet(bytes);
+    }
+
+    void addBytesReceived(final long bytes) {
+        this.bytesReceived.addAndGet(bytes);
+    }
+
+    /**
+     * @param operation The operation, such as {@link #PUT}.
+     * @return The metrics for the operation, or <code>null</code> if 
+     * there's no such operation.
+     */
+    public OperationMetrics getOperation(final String operation) {
+        return this.operations.get(operation);
+    }
+
+    /**
+     * @return The metrics for every operation.
+     */
+    public Collection<OperationMetrics> getOperations() {
+        return this.operations.values();
+    }
+
+    public long getRequests() {
+        long total = 0;
+        for (int i = 0; i < this.statusCodes.length(); i++) {
+            total += this.statusCodes.get(i);
+        }
+        return total;
+    }
+
+    public int getInFlightRequests() {
+        return inFlight.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * @param statusCode The HTTP status code.
+     * @return The number of responses with the code.
+     */
+    public long getStatusCodeCount(final int statusCode) {
+        if (statusCode < 0 || statusCode >= this.statusCodes.length()) {
+            return 0;
+        }
+        return this.statusCodes.get(statusCode);
+    }
+
+    public String getStatusCodes() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < this.statusCodes.length(); i++) {
+            final long count = this.statusCodes.get(i);
+            if (count > 0) {
+                if (sb.length() > 0) {
+                    sb.append(", ");
+                }
+                sb.append(i).append('=').append(count);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Publishes these metrics and those of each operation as MBeans.
+     *
+     * @param server The MBean server.
+     */
+    void register(final MBeanServer server) {
+        final String base = JmxUtils.getObjectName(S3Metrics.class) + 
+            ",name=client-" + INSTANCES.incrementAndGet();
+        register(server, base, this);
+        for (final OperationMetrics op : this.operations.values()) {
+            register(server, base + ",operation=" + op.getName(), op);
+        }
+    }
+
+    private void register(final MBeanServer server, final String name,
+        final Object mbean) {
+        try {
+            final ObjectName objectName = new ObjectName(name);
+            server.registerMBean(mbean, objectName);
+            this.registered.put(objectName, mbean);
+        } catch (final Exception e) {
+            log.warn("Could not register MBean " + name, e);
+        }
+    }
+
+    /**
+     * Removes our MBeans.
+     *
+     * @param server The MBean server we registered with.
+     */
+    void unregister(final MBeanServer server) {
+        for (final ObjectName name : this.registered.keySet()) {
+            try {
+                server.unregisterMBean(name);
+            } catch (final Exception e) {
+                log.debug("Could not unregister " + name, e);
+            }
+        }
+        this.registered.clear();
+    }
+}
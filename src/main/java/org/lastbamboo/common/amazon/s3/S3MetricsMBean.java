@@ -0,0 +1,21 @@
+package org.lastbamboo.common.amazon.s3;
+
+/**
+ * JMX view of the totals across all operations of an S3 client.  The 
+ * latencies for each operation are published as separate 
+ * {@link OperationMetricsMBean}s.
+ */
+public interface S3MetricsMBean {
+
+    long getRequests();
+
+    int getInFlightRequests();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    long getRetries();
+
+    String getStatusCodes();
+}
@@ -0,0 +1,112 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethod;
+
+/**
+ * The body of an S3 object, read straight from the connection.  The 
+ * connection is held until the stream is closed, so callers must always 
+ * close it.  Closing before the end drops the connection rather than 
+ * reading the rest of a possibly huge body just to reuse it.
+ */
+public class S3ObjectInputStream extends FilterInputStream {
+
+    private final HttpMethod method;
+
+    private final S3Metrics metrics;
+
+    private long bytesRead;
+
+    private boolean eof;
+
+    private boolean closed;
+
+    S3ObjectInputStream(final HttpMethod method, final S3Metrics metrics)
+        throws IOException {
+        super(bodyOf(method));
+        this.method = method;
+        this.metrics = metrics;
+    }
+
+    private static InputStream bodyOf(final HttpMethod method) 
+        throws IOException {
+        final InputStream body = method.getResponseBodyAsStream();
+        return body == null ? new ByteArrayInputStream(new byte[0]) : body;
+    }
+
+    /**
+     * @return The number of bytes in the body, or -1 if S3 didn't say.
+     */
+    public long getContentLength() {
+        final Header header = this.method.getResponseHeader("Content-Length");
+        if (header == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(header.getValue().trim());
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return The object's ETag, or <code>null</code> if there was none.
+     */
+    public String getETag() {
+        final Header header = this.method.getResponseHeader("ETag");
+        return header == null ? null : header.getValue();
+    }
+
+    @Override
+    public int read() throws IOException {
+        final int b = super.read();
+        if (b == -1) {
+            this.eof = true;
+        } else {
+            this.bytesRead++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) 
+        throws IOException {
+        final int read = super.read(b, off, len);
+        if (read == -1) {
+            this.eof = true;
+        } else {
+            this.bytesRead += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+        final long skipped = super.skip(n);
+        this.bytesRead += skipped;
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.metrics.addBytesReceived(this.bytesRead);
+        if (!this.eof && this.bytesRead != getContentLength()) {
+            this.method.abort();
+        }
+        this.method.releaseConnection();
+    }
+}
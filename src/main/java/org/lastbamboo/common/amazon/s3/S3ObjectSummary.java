@@ -0,0 +1,51 @@
+package org.lastbamboo.common.amazon.s3;
+
+/**
+ * Summary of a single object in a bucket listing.
+ */
+public class S3ObjectSummary {
+
+    private final String key;
+    private final long size;
+    private final String lastModified;
+    private final String eTag;
+
+    /**
+     * Creates a new summary.
+     * 
+     * @param key The key of the object.
+     * @param size The size of the object in bytes.
+     * @param lastModified The last modified date in the ISO 8601 format S3
+     * uses, such as "2009-10-12T17:50:30.000Z".
+     * @param eTag The ETag of the object, including the quotes S3 sends.
+     */
+    public S3ObjectSummary(final String key, final long size, 
+        final String lastModified, final String eTag) {
+        this.key = key;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.eTag = eTag;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    @Override
+    public String toString() {
+        return "S3ObjectSummary [key=" + key + ", size=" + size + 
+            ", lastModified=" + lastModified + ", eTag=" + eTag + "]";
+    }
+}
@@ -0,0 +1,86 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+import org.apache.commons.httpclient.ConnectTimeoutException;
+
+/**
+ * Error response from S3, carrying the HTTP status and S3's error code so
+ * callers can tell throttling and server errors apart from their own 
+ * mistakes.
+ */
+public class S3ServiceException extends IOException {
+
+    private static final long serialVersionUID = 6410584396473186823L;
+
+    private final int statusCode;
+
+    private final String errorCode;
+
+    /**
+     * Creates a new exception.
+     *
+     * @param message The message.
+     * @param statusCode The HTTP status code.
+     * @param errorCode S3's error code, such as "SlowDown", or 
+     * <code>null</code> if the response didn't include one.
+     */
+    public S3ServiceException(final String message, final int statusCode,
+        final String errorCode) {
+        super(message);
+        this.statusCode = statusCode;
+        this.errorCode = errorCode;
+    }
+
+    /**
+     * @return The HTTP status code.
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return S3's error code, such as "SlowDown", or <code>null</code> if
+     * the response didn't include one.
+     */
+    public String getErrorCode() {
+        return errorCode;
+    }
+
+    /**
+     * @return Whether or not the same request might succeed if we try 
+     * again, as with server errors and throttling.
+     */
+    public boolean isRetryable() {
+        return statusCode >= 500 || 
+            "SlowDown".equals(errorCode) ||
+            "RequestTimeout".equals(errorCode) ||
+            "InternalError".equals(errorCode);
+    }
+
+    /**
+     * Returns whether or not the specified error is one that might go away
+     * on its own: an S3 error we can retry or a connection failure.  Bad
+     * host names and cancellations are not transient.
+     *
+     * @param e The error.
+     * @return Whether or not the error is transient.
+     */
+    public static boolean isTransient(final IOException e) {
+        if (e instanceof S3ServiceException) {
+            return ((S3ServiceException) e).isRetryable();
+        }
+        if (e instanceof UnknownHostException) {
+            return false;
+        }
+        if (e instanceof SocketTimeoutException || 
+            e instanceof ConnectTimeoutException) {
+            return true;
+        }
+        // Other interrupted I/O means we've been cancelled.
+        return !(e instanceof InterruptedIOException);
+    }
+}
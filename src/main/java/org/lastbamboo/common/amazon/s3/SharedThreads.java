@@ -0,0 +1,83 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.httpclient.HttpConnectionManager;
+import org.littleshoot.util.DaemonThreadFactory;
+
+/**
+ * Threads shared by every S3 client in the JVM.  Applications often create
+ * a client per task, so we don't want each one to start its own idle
+ * connection thread and background pool.  The threads are daemons, and we
+ * only start them when a client first needs them.
+ */
+final class SharedThreads {
+
+    private static ScheduledThreadPoolExecutor idleConnectionChecker;
+
+    private static ExecutorService background;
+
+    private static ExecutorService virtualBackground;
+
+    private SharedThreads() {
+        // Static methods only.
+    }
+
+    /**
+     * Periodically closes connections that have sat idle in the pool.
+     *
+     * @param manager The connection manager to check.
+     * @param timeout How long in milliseconds a connection may sit idle.
+     * @param interval How often in milliseconds to check.
+     * @return The scheduled check.  Cancel it when the manager shuts down.
+     */
+    static ScheduledFuture<?> closeIdleConnections(
+        final HttpConnectionManager manager, final long timeout,
+        final long interval) {
+        return idleConnectionChecker().scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                manager.closeIdleConnections(timeout);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the executor for background work such as prefetching listing
+     * pages.  Nobody should shut it down.
+     *
+     * @param virtualThreads Whether to run tasks on virtual threads.
+     * @return The executor.
+     */
+    static synchronized ExecutorService background(
+        final boolean virtualThreads) {
+        if (virtualThreads) {
+            if (virtualBackground == null) {
+                virtualBackground = VirtualThreads.newThreadPerTaskExecutor(
+                    VirtualThreads.newFactory("S3-Background"));
+            }
+            return virtualBackground;
+        }
+        if (background == null) {
+            // Idle threads exit after a minute, so this costs nothing
+            // between bursts of work.
+            background = Executors.newCachedThreadPool(
+                new DaemonThreadFactory("S3-Background"));
+        }
+        return background;
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor
+        idleConnectionChecker() {
+        if (idleConnectionChecker == null) {
+            idleConnectionChecker = new ScheduledThreadPoolExecutor(1,
+                new DaemonThreadFactory("S3-Idle-Connection-Thread"));
+            // Clients come and go, so don't keep their cancelled checks.
+            idleConnectionChecker.setRemoveOnCancelPolicy(true);
+        }
+        return idleConnectionChecker;
+    }
+}
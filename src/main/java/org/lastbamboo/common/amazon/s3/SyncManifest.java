@@ -0,0 +1,226 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.littleshoot.util.CommonUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The record of what we last synced from a local directory to a bucket.
+ * For each key we store the size, modification time and MD5 of the local
+ * file along with the ETag S3 reported, so later syncs can skip unchanged
+ * files without reading them.
+ */
+class SyncManifest {
+
+    private static final String HEADER = "# S3 sync manifest v1";
+
+    private static final String NONE = "-";
+
+    private final Logger log = LoggerFactory.getLogger(SyncManifest.class);
+
+    private final File file;
+
+    private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+
+    /**
+     * Creates a new, empty manifest stored in the specified file.
+     *
+     * @param file The file to load from and save to.
+     */
+    SyncManifest(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the file we keep the manifest for the specified bucket and
+     * directory in, under the LittleShoot directory.
+     *
+     * @param bucketName The bucket.
+     * @param dir The local directory.
+     * @return The manifest file.
+     * @throws IOException If we can't resolve the directory's path.
+     */
+    static File manifestFile(final String bucketName, final File dir)
+        throws IOException {
+        final File syncDir = new File(CommonUtils.getLittleShootDir(), 
+            "s3-sync");
+        final String dirHash = DigestUtils.md5Hex(dir.getCanonicalPath());
+        return new File(syncDir, bucketName + "-" + dirHash + ".manifest");
+    }
+
+    /**
+     * Loads the manifest from its file, if the file exists.
+     *
+     * @throws IOException If the file exists but can't be read.
+     */
+    void load() throws IOException {
+        this.entries.clear();
+        if (!this.file.isFile()) {
+            return;
+        }
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(
+            new FileInputStream(this.file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                final String[] fields = 
+                    StringUtils.splitPreserveAllTokens(line, '\t');
+                if (fields.length != 5) {
+                    log.warn("Ignoring bad manifest line: {}", line);
+                    continue;
+                }
+                try {
+                    final Entry entry = new Entry(
+                        URLDecoder.decode(fields[0], "UTF-8"),
+                        Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                        fields[3], fromField(fields[4]));
+                    this.entries.put(entry.key, entry);
+                } catch (final NumberFormatException e) {
+                    log.warn("Ignoring bad manifest line: {}", line);
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Saves the manifest.  We write to a temporary file and rename it so an
+     * interrupted sync never leaves a truncated manifest behind.
+     *
+     * @throws IOException If the manifest could not be written.
+     */
+    void save() throws IOException {
+        final File parent = this.file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+        final File temp = new File(this.file.getPath() + ".tmp");
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(
+            new FileOutputStream(temp), "UTF-8"));
+        try {
+            writer.write(HEADER);
+            writer.write('\n');
+            for (final Entry entry : this.entries.values()) {
+                writer.write(AmazonS3Utils.urlEncode(entry.key));
+                writer.write('\t');
+                writer.write(Long.toString(entry.size));
+                writer.write('\t');
+                writer.write(Long.toString(entry.lastModified));
+                writer.write('\t');
+                writer.write(entry.md5);
+                writer.write('\t');
+                writer.write(entry.eTag == null ? NONE : entry.eTag);
+                writer.write('\n');
+            }
+        } finally {
+            IOUtils.closeQuietly(writer);
+        }
+        if (this.file.exists() && !this.file.delete()) {
+            throw new IOException("Could not replace " + this.file);
+        }
+        if (!temp.renameTo(this.file)) {
+            throw new IOException("Could not rename " + temp);
+        }
+    }
+
+    Entry get(final String key) {
+        return this.entries.get(key);
+    }
+
+    void put(final Entry entry) {
+        this.entries.put(entry.key, entry);
+    }
+
+    void remove(final String key) {
+        this.entries.remove(key);
+    }
+
+    Collection<Entry> getEntries() {
+        return this.entries.values();
+    }
+
+    private static String fromField(final String field) {
+        return NONE.equals(field) ? null : field;
+    }
+
+    /**
+     * What we know about a single synced file.
+     */
+    static final class Entry {
+
+        private final String key;
+        private final long size;
+        private final long lastModified;
+        private final String md5;
+        private final String eTag;
+
+        /**
+         * Creates a new entry.
+         *
+         * @param key The S3 key.
+         * @param size The size of the local file.
+         * @param lastModified The modification time of the local file.
+         * @param md5 The hex MD5 of the local file.
+         * @param eTag The ETag S3 reported without quotes, or 
+         * <code>null</code> if we haven't seen it yet.
+         */
+        Entry(final String key, final long size, final long lastModified,
+            final String md5, final String eTag) {
+            this.key = key;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.md5 = md5;
+            this.eTag = eTag;
+        }
+
+        String getKey() {
+            return key;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        long getLastModified() {
+            return lastModified;
+        }
+
+        String getMd5() {
+            return md5;
+        }
+
+        String getETag() {
+            return eTag;
+        }
+
+        /**
+         * @param file The local file.
+         * @return Whether or not the file looks unchanged since this entry
+         * was recorded, going by its size and modification time.
+         */
+        boolean matches(final File file) {
+            return file.length() == size && file.lastModified() == lastModified;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+
+import org.littleshoot.util.IoExceptionWithCause;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Access to Unix domain sockets on JVMs that have them.  We still build for
+ * older JVMs, so as with {@link VirtualThreads} we look the API up
+ * reflectively rather than linking against it.
+ */
+final class UnixSockets {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(UnixSockets.class);
+
+    private static final ProtocolFamily UNIX;
+    private static final Method ADDRESS_OF;
+    private static final Method OPEN_SERVER;
+    private static final Method OPEN_CLIENT;
+
+    static {
+        ProtocolFamily unix = null;
+        Method addressOf = null;
+        Method openServer = null;
+        Method openClient = null;
+        try {
+            unix = Enum.valueOf(StandardProtocolFamily.class, "UNIX");
+            addressOf = Class.forName("java.net.UnixDomainSocketAddress")
+                .getMethod("of", Path.class);
+            openServer = ServerSocketChannel.class.getMethod("open",
+                ProtocolFamily.class);
+            openClient = SocketChannel.class.getMethod("open",
+                ProtocolFamily.class);
+        } catch (final Exception e) {
+            LOG.debug("No Unix domain sockets on this JVM: {}", e.toString());
+            unix = null;
+        }
+        UNIX = unix;
+        ADDRESS_OF = addressOf;
+        OPEN_SERVER = openServer;
+        OPEN_CLIENT = openClient;
+    }
+
+    private UnixSockets() {
+        // Static methods only.
+    }
+
+    /**
+     * @return Whether or not this JVM supports Unix domain sockets.
+     */
+    static boolean isSupported() {
+        return UNIX != null;
+    }
+
+    /**
+     * Creates a server socket listening at the specified path.  The path
+     * must not already exist.
+     *
+     * @param path The path of the socket file.
+     * @return The bound server channel.
+     * @throws IOException If we could not bind to the path.
+     * @throws IllegalStateException If Unix domain sockets aren't
+     * supported.
+     */
+    static ServerSocketChannel bind(final File path) throws IOException {
+        final ServerSocketChannel server =
+            (ServerSocketChannel) invoke(OPEN_SERVER, UNIX);
+        try {
+            server.bind(address(path));
+        } catch (final IOException e) {
+            server.close();
+            throw e;
+        }
+        return server;
+    }
+
+    /**
+     * Connects to a Unix domain socket.
+     *
+     * @param path The path of the socket file.
+     * @return The connected channel, in blocking mode.
+     * @throws IOException If nothing is listening at the path.
+     * @throws IllegalStateException If Unix domain sockets aren't
+     * supported.
+     */
+    static SocketChannel connect(final File path) throws IOException {
+        final SocketChannel channel = (SocketChannel) invoke(OPEN_CLIENT, UNIX);
+        try {
+            channel.connect(address(path));
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    private static SocketAddress address(final File path) throws IOException {
+        return (SocketAddress) invoke(ADDRESS_OF, path.toPath());
+    }
+
+    private static Object invoke(final Method method, final Object arg)
+        throws IOException {
+        if (!isSupported()) {
+            throw new IllegalStateException(
+                "Unix domain sockets need Java 16 or later");
+        }
+        try {
+            return method.invoke(null, arg);
+        } catch (final InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IoExceptionWithCause("Could not open socket",
+                e.getCause());
+        } catch (final IllegalAccessException e) {
+            throw new IllegalStateException("Could not open socket", e);
+        }
+    }
+}
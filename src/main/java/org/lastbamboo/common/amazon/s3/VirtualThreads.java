@@ -0,0 +1,102 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Access to virtual threads on JVMs that have them.  We still build for 
+ * older JVMs, so we look the API up reflectively rather than linking 
+ * against it.
+ */
+final class VirtualThreads {
+
+    private static final Logger LOG = 
+        LoggerFactory.getLogger(VirtualThreads.class);
+
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method FACTORY;
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+        Method newExecutor = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+            newExecutor = java.util.concurrent.Executors.class.getMethod(
+                "newThreadPerTaskExecutor", ThreadFactory.class);
+        } catch (final Exception e) {
+            LOG.debug("No virtual threads on this JVM: {}", e.toString());
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+        NEW_THREAD_PER_TASK_EXECUTOR = newExecutor;
+    }
+
+    private VirtualThreads() {
+        // Static methods only.
+    }
+
+    /**
+     * @return Whether or not this JVM supports virtual threads.
+     */
+    static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Creates a factory for virtual threads named with the specified 
+     * prefix and an increasing number.
+     *
+     * @param name The prefix for thread names.
+     * @return The factory.
+     * @throws IllegalStateException If virtual threads aren't supported.
+     */
+    static ThreadFactory newFactory(final String name) {
+        checkSupported();
+        try {
+            final Object builder = OF_VIRTUAL.invoke(null);
+            final Object named = NAME.invoke(builder, name + "-", 0L);
+            return (ThreadFactory) FACTORY.invoke(named);
+        } catch (final Exception e) {
+            throw new IllegalStateException("Could not create factory", e);
+        }
+    }
+
+    /**
+     * Creates an executor that starts a new thread from the specified 
+     * factory for each task.
+     *
+     * @param factory The factory, normally one for virtual threads.
+     * @return The executor.
+     * @throws IllegalStateException If virtual threads aren't supported.
+     */
+    static ExecutorService newThreadPerTaskExecutor(
+        final ThreadFactory factory) {
+        checkSupported();
+        try {
+            return (ExecutorService) 
+                NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, factory);
+        } catch (final Exception e) {
+            throw new IllegalStateException("Could not create executor", e);
+        }
+    }
+
+    private static void checkSupported() {
+        if (!isSupported()) {
+            throw new IllegalStateException(
+                "Virtual threads need Java 21 or later");
+        }
+    }
+}
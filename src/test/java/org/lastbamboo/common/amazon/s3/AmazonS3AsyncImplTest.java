@@ -0,0 +1,94 @@
+package org.lastbamboo.common.amazon.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.junit.After;
+import org.junit.Test;
+
+
+public class AmazonS3AsyncImplTest
+    {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final AmazonS3AsyncImpl async = 
+        new AmazonS3AsyncImpl(null, this.executor);
+
+    @After public void tearDown()
+        {
+        this.executor.shutdownNow();
+        }
+
+    @Test public void testResultsAndErrors() throws Exception
+        {
+        assertEquals("done", this.async.submit(
+            new AmazonS3AsyncImpl.Operation<String>()
+                {
+                public String call()
+                    {
+                    return "done";
+                    }
+                }).get(5, TimeUnit.SECONDS));
+
+        try
+            {
+            this.async.submit(new AmazonS3AsyncImpl.Operation<String>()
+                {
+                public String call() throws IOException
+                    {
+                    throw new IOException("No such bucket");
+                    }
+                }).get(5, TimeUnit.SECONDS);
+            fail("Should have thrown");
+            }
+        catch (final ExecutionException e)
+            {
+            assertEquals("No such bucket", e.getCause().getMessage());
+            }
+        }
+
+    @Test public void testCancelAbortsRequests() throws Exception
+        {
+        final GetMethod method = 
+            new GetMethod("https://s3.amazonaws.com/bucket/key");
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        final CompletableFuture<Void> future = this.async.submit(
+            new AmazonS3AsyncImpl.Operation<Void>()
+                {
+                public Void call() throws IOException
+                    {
+                    CancellationScope.current().register(method);
+                    started.countDown();
+                    try
+                        {
+                        Thread.sleep(30 * 1000);
+                        return null;
+                        }
+                    catch (final InterruptedException e)
+                        {
+                        throw new InterruptedIOException("Interrupted");
+                        }
+                    finally
+                        {
+                        finished.countDown();
+                        }
+                    }
+                });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(future.cancel(true));
+        assertTrue(method.isAborted());
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertTrue(future.isCancelled());
+        }
+    }
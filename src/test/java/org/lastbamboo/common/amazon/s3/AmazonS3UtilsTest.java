@@ -0,0 +1,41 @@
+package org.lastbamboo.common.amazon.s3;
+
+import static org.junit.Assert.*;
+
+import org.apache.commons.httpclient.Header;
+import org.junit.Test;
+
+
+public class AmazonS3UtilsTest
+    {
+
+    @Test public void testCanonicalString() throws Exception
+        {
+        final Header[] headers = new Header[] {
+            new Header("Date", "Tue, 27 Mar 2007 19:36:42 +0000"),
+            new Header("Content-Type", "text/plain"),
+            new Header("x-amz-acl", "public-read"),
+            };
+        final String canonical = AmazonS3Utils.makeCanonicalString("PUT",
+            "bucket/file.txt", headers);
+        assertEquals("PUT\n\ntext/plain\nTue, 27 Mar 2007 19:36:42 +0000\n" +
+            "x-amz-acl:public-read\n/bucket/file.txt", canonical);
+        }
+
+    @Test public void testSubResources() throws Exception
+        {
+        final Header[] headers = new Header[] {
+            new Header("Date", "Tue, 27 Mar 2007 19:36:42 +0000"),
+            };
+        assertEquals("GET\n\n\nTue, 27 Mar 2007 19:36:42 +0000\n/bucket?acl",
+            AmazonS3Utils.makeCanonicalString("GET", "bucket?acl", headers));
+
+        // Sub-resources are sorted and other query parameters are dropped.
+        assertEquals(
+            "PUT\n\n\nTue, 27 Mar 2007 19:36:42 +0000\n" +
+            "/bucket/big.iso?partNumber=2&uploadId=abc",
+            AmazonS3Utils.makeCanonicalString("PUT",
+                "bucket/big.iso?uploadId=abc&max-keys=2&partNumber=2",
+                headers));
+        }
+    }
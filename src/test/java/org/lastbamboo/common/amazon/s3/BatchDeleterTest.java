@@ -0,0 +1,67 @@
+package org.lastbamboo.common.amazon.s3;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class BatchDeleterTest
+    {
+
+    private LocalS3Server server;
+
+    private AmazonS3Impl s3;
+
+    @Before public void setUp() throws Exception
+        {
+        this.server = new LocalS3Server();
+        this.server.start();
+        this.server.createBucket("bucket");
+        final AmazonS3Config config = new AmazonS3Config();
+        config.setDeleteBatchSize(3);
+        config.setDeleteThreads(2);
+        this.s3 = this.server.newClient(config);
+        }
+
+    @After public void tearDown() throws Exception
+        {
+        this.server.stop();
+        }
+
+    @Test public void testDelete() throws Exception
+        {
+        final List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 10; i++)
+            {
+            this.server.putObject("bucket", "key" + i, new byte[i]);
+            keys.add("key" + i);
+            }
+        this.server.putObject("bucket", "kept", new byte[0]);
+        final long requests = this.server.getRequestCount();
+
+        new BatchDeleter(this.s3).delete("bucket", keys.subList(0, 1));
+        new BatchDeleter(this.s3).delete("bucket", keys);
+        assertEquals(1, this.server.getKeys("bucket").size());
+        assertTrue(this.server.getKeys("bucket").contains("kept"));
+        // One batch for the single key, then four of up to three keys.
+        assertEquals(requests + 5, this.server.getRequestCount());
+        }
+
+    @Test public void testValidation() throws Exception
+        {
+        try
+            {
+            new AmazonS3Config().setDeleteThreads(0);
+            fail("Should reject zero threads");
+            }
+        catch (final IllegalArgumentException e)
+            {
+            // Expected.
+            }
+        }
+    }
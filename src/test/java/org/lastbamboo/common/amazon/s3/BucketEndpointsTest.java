@@ -0,0 +1,133 @@
+package org.lastbamboo.common.amazon.s3;
+
+import static org.junit.Assert.*;
+
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.junit.Test;
+
+
+public class BucketEndpointsTest
+    {
+
+    @Test public void testRegionalUrl() throws Exception
+        {
+        final String base = "https://s3.amazonaws.com:443";
+        assertEquals("https://bucket.s3.eu-west-1.amazonaws.com:443/a/b.txt",
+            BucketEndpoints.regionalUrl(base, "eu-west-1", "bucket/a/b.txt"));
+        assertEquals("https://bucket.s3.eu-west-1.amazonaws.com:443/?uploads",
+            BucketEndpoints.regionalUrl(base, "eu-west-1", "bucket?uploads"));
+        assertEquals("https://bucket.s3.eu-west-1.amazonaws.com:443/",
+            BucketEndpoints.regionalUrl(base, "eu-west-1", "bucket"));
+        assertEquals("https://bucket.s3.amazonaws.com:443/key",
+            BucketEndpoints.regionalUrl(base, "us-east-1", "bucket/key"));
+        assertEquals("http://bucket.s3.cn-north-1.amazonaws.com.cn/key",
+            BucketEndpoints.regionalUrl("http://s3.amazonaws.com",
+                "cn-north-1", "bucket/key"));
+
+        // Names that can't be host names stay in the path.
+        assertEquals("https://s3.ap-south-1.amazonaws.com:443/my.bucket/key",
+            BucketEndpoints.regionalUrl(base, "ap-south-1", "my.bucket/key"));
+        assertEquals("https://s3.ap-south-1.amazonaws.com:443/My_Bucket",
+            BucketEndpoints.regionalUrl(base, "ap-south-1", "My_Bucket"));
+        }
+
+    @Test public void testSigningPath() throws Exception
+        {
+        final String host = "bucket.s3.eu-west-1.amazonaws.com";
+        assertEquals("bucket/", BucketEndpoints.signingPath("bucket", host));
+        assertEquals("bucket/?location",
+            BucketEndpoints.signingPath("bucket?location", host));
+        assertEquals("bucket/key",
+            BucketEndpoints.signingPath("bucket/key", host));
+        assertEquals("bucket",
+            BucketEndpoints.signingPath("bucket", "s3.amazonaws.com"));
+        assertEquals("", BucketEndpoints.signingPath("", host));
+
+        // Both styles sign the bucket and key, and only differ for the
+        // bucket itself.
+        final GetMethod method = new GetMethod("https://" + host + "/");
+        method.setRequestHeader("Date", "Tue, 27 Mar 2007 19:36:42 +0000");
+        assertTrue(AmazonS3Utils.makeCanonicalString("GET",
+            BucketEndpoints.signingPath("bucket", host),
+            method.getRequestHeaders()).endsWith("\n/bucket/"));
+        assertTrue(AmazonS3Utils.makeCanonicalString("GET",
+            BucketEndpoints.signingPath("bucket", "s3.amazonaws.com"),
+            method.getRequestHeaders()).endsWith("\n/bucket"));
+        }
+
+    @Test public void testToRegion() throws Exception
+        {
+        assertEquals("us-east-1", BucketEndpoints.toRegion(null));
+        assertEquals("us-east-1", BucketEndpoints.toRegion(""));
+        assertEquals("eu-west-1", BucketEndpoints.toRegion("EU"));
+        assertEquals("us-west-2", BucketEndpoints.toRegion(" us-west-2 "));
+        }
+
+    @Test public void testLookUpRegion() throws Exception
+        {
+        final LocalS3Server server = new LocalS3Server();
+        server.setCredentials("id", "secret");
+        server.start();
+        final AmazonS3Config config = new AmazonS3Config();
+        final AmazonS3Impl s3 = server.newClient(config);
+        try
+            {
+            server.setBucketRegion("far", "ap-southeast-2");
+            server.createBucket("near");
+            final BucketEndpoints endpoints = s3.getEndpoints();
+            assertEquals("ap-southeast-2", endpoints.region("far"));
+            assertEquals("us-east-1", endpoints.region("near"));
+            assertEquals("", endpoints.region("missing"));
+
+            // Each bucket is only looked up once.
+            final long requests = server.getRequestCount();
+            assertEquals("ap-southeast-2", endpoints.region("far"));
+            assertEquals("", endpoints.region("missing"));
+            assertEquals(requests, server.getRequestCount());
+
+            endpoints.forget("far");
+            server.setBucketRegion("far", "eu-central-1");
+            assertEquals("eu-central-1", endpoints.region("far"));
+
+            // We only route through Amazon's global endpoint, so anything
+            // else keeps its path-style URLs.
+            assertEquals(server.getUrl() + "/far/key",
+                endpoints.url("far/key", true));
+            assertEquals(requests + 1, server.getRequestCount());
+
+            // Listing all buckets goes to the configured endpoint too.
+            s3.listBuckets();
+            }
+        finally
+            {
+            server.stop();
+            }
+        }
+
+    @Test public void testUnknownRegionExpires() throws Exception
+        {
+        final LocalS3Server server = new LocalS3Server();
+        server.start();
+        final AmazonS3Config config = new AmazonS3Config();
+        final AmazonS3Impl s3 = server.newClient(config);
+        try
+            {
+            final BucketEndpoints endpoints = s3.getEndpoints();
+            assertEquals("", endpoints.region("later"));
+            server.setBucketRegion("later", "eu-west-1");
+            // We don't ask again until the TTL is up.
+            final long requests = server.getRequestCount();
+            assertEquals("", endpoints.region("later"));
+            assertEquals(requests, server.getRequestCount());
+
+            config.setUnknownRegionTtl(0);
+            assertEquals("eu-west-1", endpoints.region("later"));
+            assertEquals("eu-west-1", endpoints.region("later"));
+            assertEquals(requests + 1, server.getRequestCount());
+            }
+        finally
+            {
+            server.stop();
+            }
+        }
+    }
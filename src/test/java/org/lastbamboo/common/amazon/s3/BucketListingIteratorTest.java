@@ -0,0 +1,160 @@
+package org.lastbamboo.common.amazon.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.util.RuntimeIoException;
+
+
+public class BucketListingIteratorTest
+    {
+
+    private LocalS3Server server;
+
+    private AmazonS3Config config;
+
+    private AmazonS3Impl s3;
+
+    @Before public void setUp() throws Exception
+        {
+        this.server = new LocalS3Server();
+        this.server.start();
+        this.server.createBucket("bucket");
+        this.config = new AmazonS3Config();
+        this.config.setListingPageSize(3);
+        this.s3 = this.server.newClient(this.config);
+        }
+
+    @After public void tearDown() throws Exception
+        {
+        this.server.stop();
+        }
+
+    @Test public void testPagination() throws Exception
+        {
+        final List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 10; i++)
+            {
+            final String key = "key" + i;
+            this.server.putObject("bucket", key, new byte[i]);
+            expected.add(key);
+            }
+        final long requests = this.server.getRequestCount();
+
+        final List<String> keys = new ArrayList<String>();
+        final BucketListing listing = this.s3.listObjects("bucket");
+        while (listing.hasNext())
+            {
+            final S3ObjectSummary summary = listing.next();
+            assertEquals(keys.size(), summary.getSize());
+            keys.add(summary.getKey());
+            }
+        assertEquals(expected, keys);
+        // Without a delimiter S3 sends no NextMarker, so each page starts
+        // after the last key of the one before.
+        assertEquals(requests + 4, this.server.getRequestCount());
+        assertFalse(listing.hasNext());
+        }
+
+    @Test public void testNextMarker() throws Exception
+        {
+        for (final String key : new String[] {"a/1", "a/2", "b/1", "c", "d",
+            "e", "f/1", "f/2", "g"})
+            {
+            this.server.putObject("bucket", key, new byte[0]);
+            }
+        final List<String> keys = new ArrayList<String>();
+        final BucketListing listing = this.s3.listObjects("bucket", null, "/");
+        while (listing.hasNext())
+            {
+            keys.add(listing.next().getKey());
+            }
+        // Pages that end in a common prefix continue from S3's NextMarker,
+        // so no prefix is listed twice.
+        assertEquals(Arrays.asList("c", "d", "e", "g"), keys);
+        assertEquals(Arrays.asList("a/", "b/", "f/"),
+            new ArrayList<String>(listing.getCommonPrefixes()));
+        }
+
+    @Test(timeout = 30000) public void testPrefetch() throws Exception
+        {
+        for (int i = 0; i < 9; i++)
+            {
+            this.server.putObject("bucket", "key" + i, new byte[0]);
+            }
+        final long requests = this.server.getRequestCount();
+        final BucketListing listing = this.s3.listObjects("bucket");
+        assertEquals("key0", listing.next().getKey());
+
+        // We asked for the second page as soon as the first arrived,
+        // before the caller needs it.
+        while (this.server.getRequestCount() < requests + 2)
+            {
+            Thread.sleep(10);
+            }
+        assertEquals("key1", listing.next().getKey());
+        assertEquals("key2", listing.next().getKey());
+        assertEquals("key3", listing.next().getKey());
+        }
+
+    @Test public void testErrors() throws Exception
+        {
+        try
+            {
+            this.s3.listObjects("missing").hasNext();
+            fail("Should not list a missing bucket");
+            }
+        catch (final RuntimeIoException e)
+            {
+            assertEquals(404,
+                ((S3ServiceException) e.getCause()).getStatusCode());
+            }
+
+        // Fail the second page, without retrying it.
+        for (int i = 0; i < 6; i++)
+            {
+            this.server.putObject("bucket", "key" + i, new byte[0]);
+            }
+        final LocalS3Server s = this.server;
+        this.config.setRetryPolicy(new RetryPolicy()
+            {
+            private boolean listed;
+
+            public long retryDelay(final int retries, final IOException e)
+                {
+                return -1;
+                }
+
+            public synchronized void onSuccess()
+                {
+                if (!this.listed)
+                    {
+                    this.listed = true;
+                    s.failNext(1, 500);
+                    }
+                }
+            });
+        final BucketListing listing = this.s3.listObjects("bucket");
+        for (int i = 0; i < 3; i++)
+            {
+            assertEquals("key" + i, listing.next().getKey());
+            }
+        try
+            {
+            listing.hasNext();
+            fail("Should report the failed page");
+            }
+        catch (final RuntimeIoException e)
+            {
+            assertEquals(500,
+                ((S3ServiceException) e.getCause()).getStatusCode());
+            }
+        }
+    }
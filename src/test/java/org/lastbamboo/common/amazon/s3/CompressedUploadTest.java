@@ -0,0 +1,183 @@
+package org.lastbamboo.common.amazon.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class CompressedUploadTest
+    {
+
+    private final File dir = new File("target/compressed-upload-test");
+
+    private LocalS3Server server;
+
+    private AmazonS3Impl s3;
+
+    @Before public void setUp() throws Exception
+        {
+        FileUtils.deleteDirectory(this.dir);
+        this.dir.mkdirs();
+        this.server = new LocalS3Server();
+        this.server.start();
+        this.server.createBucket("bucket");
+        final AmazonS3Config config = new AmazonS3Config();
+        config.setCompressUploads(true);
+        config.setCompressionThreads(3);
+        config.setCompressionBlockSize(64 * 1024);
+        config.setPartSize(AmazonS3Config.MIN_PART_SIZE);
+        this.s3 = this.server.newClient(config);
+        }
+
+    @After public void tearDown() throws Exception
+        {
+        this.server.stop();
+        FileUtils.deleteDirectory(this.dir);
+        }
+
+    @Test public void testStream() throws Exception
+        {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+            {
+            final byte[] data = text(1000 * 1000);
+            // Block boundaries everywhere from inside one write to many
+            // blocks per write, including a stream with nothing in it.
+            for (final int length : new int[] {0, 1, 40000, data.length})
+                {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                final ParallelGzipOutputStream gzip =
+                    new ParallelGzipOutputStream(out, executor, 4, 32 * 1024,
+                        6);
+                int offset = 0;
+                int chunk = 1;
+                while (offset < length)
+                    {
+                    final int count = Math.min(chunk, length - offset);
+                    gzip.write(data, offset, count);
+                    offset += count;
+                    chunk = chunk * 3 + 1;
+                    }
+                gzip.close();
+
+                final byte[] expected = new byte[length];
+                System.arraycopy(data, 0, expected, 0, length);
+                assertArrayEquals(expected, gunzip(out.toByteArray()));
+                if (length == data.length)
+                    {
+                    assertTrue(out.size() < length / 2);
+                    }
+                }
+            }
+        finally
+            {
+            executor.shutdown();
+            }
+        }
+
+    @Test public void testPutFile() throws Exception
+        {
+        final byte[] data = text(300 * 1000);
+        final File file = new File(this.dir, "app.js");
+        FileUtils.writeByteArrayToFile(file, data);
+        this.s3.putPublicFile("bucket", file);
+
+        assertEquals("gzip",
+            this.server.getContentEncoding("bucket", "app.js"));
+        assertEquals("application/javascript",
+            this.server.getContentType("bucket", "app.js"));
+        final byte[] stored = this.server.getObject("bucket", "app.js");
+        assertTrue(stored.length < data.length / 2);
+        assertArrayEquals(data, gunzip(stored));
+
+        // File downloads are decoded, streams are not.
+        final File target = new File(this.dir, "download.js");
+        this.s3.getPrivateFile("bucket", "app.js", target);
+        assertArrayEquals(data, FileUtils.readFileToByteArray(target));
+        assertArrayEquals(stored, IOUtils.toByteArray(
+            this.s3.getObjectStream("bucket", "app.js", null, false)));
+        }
+
+    @Test public void testMultipart() throws Exception
+        {
+        // Hex digits only compress to about half, so this still needs
+        // more than one part after compression.
+        final byte[] random = new byte[8 * 1024 * 1024];
+        new Random(5).nextBytes(random);
+        final byte[] data = new String(Hex.encodeHex(random)).getBytes("UTF-8");
+        final File file = new File(this.dir, "big.csv");
+        FileUtils.writeByteArrayToFile(file, data);
+        this.s3.putPrivateFile("bucket", file);
+
+        assertEquals("gzip",
+            this.server.getContentEncoding("bucket", "big.csv"));
+        assertTrue(this.server.getETag("bucket", "big.csv").endsWith("-2"));
+        assertArrayEquals(data,
+            gunzip(this.server.getObject("bucket", "big.csv")));
+        assertEquals(0, this.server.getUploadsInProgress());
+        }
+
+    @Test public void testUncompressible() throws Exception
+        {
+        assertTrue(this.s3.isCompressible("text/html; charset=UTF-8"));
+        assertTrue(this.s3.isCompressible("image/svg+xml"));
+        assertFalse(this.s3.isCompressible("image/png"));
+        assertFalse(this.s3.isCompressible("application/octet-stream"));
+
+        final byte[] data = text(10000);
+        final File file = new File(this.dir, "archive.zip");
+        FileUtils.writeByteArrayToFile(file, data);
+        this.s3.putPrivateFile("bucket", file);
+        assertNull(this.server.getContentEncoding("bucket", "archive.zip"));
+        assertArrayEquals(data, this.server.getObject("bucket", "archive.zip"));
+
+        // Sync tells changed files by size, so it never compresses.
+        final File site = new File(this.dir, "site");
+        FileUtils.writeByteArrayToFile(new File(site, "index.html"), data);
+        this.s3.sync("bucket", site, false, false);
+        assertNull(this.server.getContentEncoding("bucket", "index.html"));
+        assertArrayEquals(data, this.server.getObject("bucket", "index.html"));
+        }
+
+    /**
+     * Text that compresses about as well as source code does.
+     */
+    private static byte[] text(final int length) throws IOException
+        {
+        final String[] words = {"function", "return", "var", "this", "if",
+            "else", "document", "window", "length", "for", "null", "true"};
+        final Random random = new Random(1);
+        final StringBuilder sb = new StringBuilder(length + 20);
+        while (sb.length() < length)
+            {
+            sb.append(words[random.nextInt(words.length)]);
+            sb.append(random.nextInt(10) == 0 ? '\n' : ' ');
+            if (random.nextInt(4) == 0)
+                {
+                sb.append(random.nextInt(1000));
+                }
+            }
+        sb.setLength(length);
+        return sb.toString().getBytes("UTF-8");
+        }
+
+    private static byte[] gunzip(final byte[] compressed) throws IOException
+        {
+        return IOUtils.toByteArray(
+            new GZIPInputStream(new ByteArrayInputStream(compressed)));
+        }
+    }
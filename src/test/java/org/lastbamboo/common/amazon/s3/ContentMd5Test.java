@@ -0,0 +1,100 @@
+package org.lastbamboo.common.amazon.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.methods.PutMethod;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+
+public class ContentMd5Test
+    {
+
+    @Test public void testDigestRegions() throws Exception
+        {
+        final byte[] data = new byte[1024 * 1024 + 17];
+        new Random(42).nextBytes(data);
+        final File file = new File("target/content-md5-test.bin");
+        FileUtils.writeByteArrayToFile(file, data);
+        try
+            {
+            // Whole file, mapped.
+            assertArrayEquals(DigestUtils.md5(data),
+                ContentMd5.digest(file, 0, data.length));
+
+            // A small region read directly.
+            assertArrayEquals(
+                DigestUtils.md5(Arrays.copyOfRange(data, 100, 1100)),
+                ContentMd5.digest(file, 100, 1000));
+
+            // A large region at an offset that isn't page aligned.
+            assertArrayEquals(
+                DigestUtils.md5(Arrays.copyOfRange(data, 4099, data.length)),
+                ContentMd5.digest(file, 4099, data.length - 4099));
+
+            assertEquals("1B2M2Y8AsgTpgAmY7PhCfg==",
+                ContentMd5.toHeader(DigestUtils.md5(new byte[0])));
+            }
+        finally
+            {
+            file.delete();
+            }
+        }
+
+    @Test public void testVerifyETag() throws Exception
+        {
+        final byte[] md5 = DigestUtils.md5("data");
+        final String hex = DigestUtils.md5Hex("data");
+        ContentMd5.verifyETag(response("ETag", "\"" + hex + "\""), md5);
+
+        // Nothing to check against.
+        ContentMd5.verifyETag(response(), md5);
+
+        try
+            {
+            ContentMd5.verifyETag(response("ETag", "\"0123\""), md5);
+            fail("Should reject the wrong ETag");
+            }
+        catch (final S3ServiceException e)
+            {
+            assertFalse(S3ServiceException.isTransient(e));
+            }
+
+        // These ETags aren't MD5s.
+        ContentMd5.verifyETag(response("ETag", "\"0123\"",
+            "x-amz-server-side-encryption", "aws:kms"), md5);
+        ContentMd5.verifyETag(response("ETag", "\"0123\"",
+            "x-amz-server-side-encryption-customer-algorithm", "AES256"),
+            md5);
+        }
+
+    private static HttpMethod response(final String... headers)
+        {
+        final Map<String, Header> map = new HashMap<String, Header>();
+        for (int i = 0; i < headers.length; i += 2)
+            {
+            map.put(headers[i], new Header(headers[i], headers[i + 1]));
+            }
+        return new PutMethod("http://127.0.0.1/bucket/key")
+            {
+            public Header getResponseHeader(final String name)
+                {
+                return map.get(name);
+                }
+
+            public int getStatusCode()
+                {
+                return 200;
+                }
+            };
+        }
+    }
@@ -0,0 +1,149 @@
+package org.lastbamboo.common.amazon.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class DirectorySyncTest
+    {
+
+    private File dir;
+
+    private File manifestFile;
+
+    @Before public void setUp() throws Exception
+        {
+        this.dir = new File("target/sync-test");
+        FileUtils.deleteDirectory(this.dir);
+        assertTrue(new File(this.dir, "files/sub").mkdirs());
+        this.manifestFile = new File(this.dir, "test.manifest");
+        }
+
+    @After public void tearDown() throws Exception
+        {
+        FileUtils.deleteDirectory(this.dir);
+        }
+
+    @Test public void testOnlyChangedFilesUploaded() throws Exception
+        {
+        final File files = new File(this.dir, "files");
+        final File same = write(files, "same.txt", "unchanged");
+        final File changed = write(files, "sub/changed.txt", "new contents");
+        write(files, "added.txt", "added");
+
+        final Map<String, S3ObjectSummary> remote = 
+            new HashMap<String, S3ObjectSummary>();
+        remote.put("same.txt", summary("same.txt", "unchanged"));
+        remote.put("sub/changed.txt", summary("sub/changed.txt", "old"));
+        remote.put("removed.txt", summary("removed.txt", "gone"));
+        // Put there by something else, so not ours to delete.
+        remote.put("other/foreign.txt", summary("other/foreign.txt", "x"));
+
+        final SyncManifest manifest = new SyncManifest(this.manifestFile);
+        manifest.put(new SyncManifest.Entry("removed.txt", 4, 0,
+            DigestUtils.md5Hex("gone"), DigestUtils.md5Hex("gone")));
+        final DirectorySync sync = new DirectorySync(null, manifest);
+        final DirectorySync.Plan plan = 
+            sync.plan(DirectoryUploader.collectFiles(files), remote, true);
+        assertEquals(2, plan.getUploads().size());
+        assertTrue(plan.getUploads().containsKey("added.txt"));
+        assertEquals(changed, plan.getUploads().get("sub/changed.txt"));
+        assertEquals(Arrays.asList("removed.txt"), plan.getDeletes());
+
+        // The file that matched its ETag is recorded without uploading it.
+        final SyncManifest.Entry entry = manifest.get("same.txt");
+        assertEquals(same.length(), entry.getSize());
+        assertEquals(DigestUtils.md5Hex("unchanged"), entry.getETag());
+        }
+
+    @Test public void testManifestRoundTrip() throws Exception
+        {
+        final File files = new File(this.dir, "files");
+        final File file = write(files, "a b\tc.txt", "contents");
+        final SyncManifest manifest = new SyncManifest(this.manifestFile);
+        manifest.put(new SyncManifest.Entry("a b\tc.txt", file.length(),
+            file.lastModified(), DigestUtils.md5Hex("contents"), null));
+        manifest.save();
+
+        final SyncManifest loaded = new SyncManifest(this.manifestFile);
+        loaded.load();
+        final SyncManifest.Entry entry = loaded.get("a b\tc.txt");
+        assertTrue(entry.matches(file));
+        assertNull(entry.getETag());
+
+        // A multipart ETag isn't the MD5, but the manifest still lets us
+        // skip the file without reading it.
+        final Map<String, S3ObjectSummary> remote = 
+            new HashMap<String, S3ObjectSummary>();
+        remote.put("a b\tc.txt", new S3ObjectSummary("a b\tc.txt", 
+            file.length(), "2009-10-12T17:50:30.000Z", "\"abc-2\""));
+        final DirectorySync.Plan plan = new DirectorySync(null, loaded).plan(
+            DirectoryUploader.collectFiles(files), remote, false);
+        assertTrue(plan.getUploads().isEmpty());
+        assertEquals("abc-2", loaded.get("a b\tc.txt").getETag());
+        }
+
+    @Test(timeout = 30000) public void testPruneKeepsForeignKeys()
+        throws Exception
+        {
+        final LocalS3Server server = new LocalS3Server();
+        server.start();
+        final AmazonS3Config config = new AmazonS3Config();
+        final AmazonS3Impl s3 = server.newClient(config);
+        try
+            {
+            server.putObject("bucket", "other/foreign.txt", new byte[3]);
+            final File files = new File(this.dir, "files");
+            write(files, "kept.txt", "kept");
+            final File removed = write(files, "sub/removed.txt", "removed");
+            final SyncManifest manifest = new SyncManifest(this.manifestFile);
+            new DirectorySync(s3, manifest).sync("bucket", files, false, true);
+            assertEquals(3, server.getKeys("bucket").size());
+            // New files are hashed as they upload.
+            assertEquals(DigestUtils.md5Hex("kept"),
+                manifest.get("kept.txt").getMd5());
+
+            // Without pruning the key stays, and so does our record of it.
+            assertTrue(removed.delete());
+            new DirectorySync(s3, manifest).sync("bucket", files, false,
+                false);
+            assertTrue(server.getKeys("bucket").contains("sub/removed.txt"));
+
+            new DirectorySync(s3, manifest).sync("bucket", files, false, true);
+            assertEquals(new HashSet<String>(Arrays.asList("kept.txt",
+                "other/foreign.txt")), server.getKeys("bucket"));
+            assertNull(manifest.get("sub/removed.txt"));
+            }
+        finally
+            {
+            server.stop();
+            }
+        }
+
+    private static File write(final File parent, final String name, 
+        final String contents) throws Exception
+        {
+        final File file = new File(parent, name);
+        FileUtils.writeStringToFile(file, contents, "UTF-8");
+        return file;
+        }
+
+    private static S3ObjectSummary summary(final String key, 
+        final String contents)
+        {
+        return new S3ObjectSummary(key, contents.length(), 
+            "2009-10-12T17:50:30.000Z", 
+            "\"" + DigestUtils.md5Hex(contents) + "\"");
+        }
+    }
@@ -0,0 +1,106 @@
+package org.lastbamboo.common.amazon.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class DirectoryUploaderTest
+    {
+
+    private final File dir = new File("target/directory-uploader-test");
+
+    private LocalS3Server server;
+
+    private AmazonS3Impl s3;
+
+    @Before public void setUp() throws Exception
+        {
+        FileUtils.deleteDirectory(this.dir);
+        this.dir.mkdirs();
+        this.server = new LocalS3Server();
+        this.server.start();
+        this.server.createBucket("bucket");
+        final AmazonS3Config config = new AmazonS3Config();
+        this.s3 = this.server.newClient(config);
+        }
+
+    @After public void tearDown() throws Exception
+        {
+        this.server.stop();
+        FileUtils.deleteDirectory(this.dir);
+        }
+
+    @Test public void testUploadDir() throws Exception
+        {
+        final File site = new File(this.dir, "site");
+        for (int i = 0; i < 20; i++)
+            {
+            FileUtils.writeStringToFile(
+                new File(site, "dir" + (i % 3) + "/file" + i + ".txt"),
+                "file " + i, "UTF-8");
+            }
+        FileUtils.writeStringToFile(new File(site, "index.html"), "index",
+            "UTF-8");
+        new DirectoryUploader(this.s3, 4, false).uploadDir("bucket", site,
+            false);
+
+        final Map<String, File> files = DirectoryUploader.collectFiles(site);
+        assertEquals(21, files.size());
+        assertEquals(files.keySet(), this.server.getKeys("bucket"));
+        assertEquals("file 7",
+            new String(this.server.getObject("bucket", "dir1/file7.txt"),
+                "UTF-8"));
+        }
+
+    @Test public void testMissingFileReported() throws Exception
+        {
+        final File present = new File(this.dir, "present.txt");
+        FileUtils.writeStringToFile(present, "here", "UTF-8");
+        final Map<String, File> files = new LinkedHashMap<String, File>();
+        files.put("gone.txt", new File(this.dir, "gone.txt"));
+        files.put("present.txt", present);
+        try
+            {
+            new DirectoryUploader(this.s3, 2, false).upload("bucket", files,
+                false);
+            fail("Should report the missing file");
+            }
+        catch (final BulkOperationException e)
+            {
+            assertEquals(Collections.singleton("gone.txt"),
+                e.getFailures().keySet());
+            assertTrue(e.getFailures().get("gone.txt")
+                instanceof FileNotFoundException);
+            }
+        // The others are still uploaded.
+        assertEquals(Collections.singleton("present.txt"),
+            this.server.getKeys("bucket"));
+        }
+
+    @Test public void testMessageCapped() throws Exception
+        {
+        final Map<String, IOException> failures =
+            new LinkedHashMap<String, IOException>();
+        for (int i = 0; i < 25; i++)
+            {
+            failures.put("key" + i, new IOException("failed"));
+            }
+        final BulkOperationException e =
+            new BulkOperationException("Could not upload", failures);
+        assertTrue(e.getMessage(),
+            e.getMessage().contains("key9, ... 15 more"));
+        assertFalse(e.getMessage().contains("key10"));
+        assertEquals(25, e.getFailures().size());
+        }
+    }
@@ -0,0 +1,51 @@
+package org.lastbamboo.common.amazon.s3;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+
+public class KeyPatternTest
+    {
+
+    @Test public void testPrefixPattern() throws Exception
+        {
+        final KeyPattern pattern = KeyPattern.parse("file*");
+        assertTrue(pattern.isWildcard());
+        assertEquals("file", pattern.getServerPrefix());
+        assertTrue(pattern.matches("file.txt"));
+        assertFalse(pattern.matches("afile.txt"));
+        }
+
+    @Test public void testSuffixPattern() throws Exception
+        {
+        final KeyPattern pattern = KeyPattern.parse("*.sh");
+        assertEquals("", pattern.getServerPrefix());
+        assertTrue(pattern.matches("install.sh"));
+        assertFalse(pattern.matches("install.sh.bak"));
+        }
+
+    @Test public void testMiddlePattern() throws Exception
+        {
+        final KeyPattern pattern = KeyPattern.parse("logs/*.gz");
+        assertEquals("logs/", pattern.getServerPrefix());
+        assertTrue(pattern.matches("logs/2012/01.gz"));
+        assertFalse(pattern.matches("logs/2012/01.txt"));
+        assertFalse(pattern.matches("other/01.gz"));
+        }
+
+    @Test public void testBothEnds() throws Exception
+        {
+        final KeyPattern pattern = KeyPattern.parse("*ile*");
+        assertEquals("", pattern.getServerPrefix());
+        assertTrue(pattern.matches("ile.txt"));
+        assertTrue(pattern.matches("afile"));
+        }
+
+    @Test public void testLiteral() throws Exception
+        {
+        final KeyPattern pattern = KeyPattern.parse("file.txt");
+        assertFalse(pattern.isWildcard());
+        assertTrue(pattern.matches("file.txt"));
+        }
+    }
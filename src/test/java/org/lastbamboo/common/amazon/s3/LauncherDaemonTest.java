@@ -0,0 +1,209 @@
+package org.lastbamboo.common.amazon.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class LauncherDaemonTest
+    {
+
+    private final File dir = new File("target/launcher-daemon-test");
+
+    private final File address = new File(this.dir, "aws.sock");
+
+    private LauncherDaemon daemon;
+
+    @Before public void setUp() throws Exception
+        {
+        FileUtils.deleteDirectory(this.dir);
+        this.dir.mkdirs();
+        }
+
+    @After public void tearDown() throws Exception
+        {
+        if (this.daemon != null)
+            {
+            this.daemon.stop();
+            }
+        FileUtils.deleteDirectory(this.dir);
+        }
+
+    @Test(timeout = 30000) public void testForward() throws Exception
+        {
+        assertEquals(-1, forward("anything").status);
+
+        // Something left behind by a daemon that died.
+        FileUtils.writeStringToFile(this.address, "1 stale", "UTF-8");
+        this.daemon = new LauncherDaemon(this.address,
+            new LauncherDaemon.CommandRunner()
+            {
+            public int run(final String[] args, final File workingDir)
+                {
+                System.out.println(StringUtils.join(args, "|"));
+                System.err.println(workingDir.getAbsolutePath());
+                return args.length;
+                }
+            });
+        this.daemon.start();
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains(
+            "posix"))
+            {
+            // Nobody else can get at the socket or the token.
+            assertEquals(PosixFilePermissions.fromString("rwx------"),
+                Files.getPosixFilePermissions(this.dir.toPath()));
+            }
+        final Thread serving = new Thread(new Runnable()
+            {
+            public void run()
+                {
+                daemon.serve();
+                }
+            });
+        serving.setDaemon(true);
+        serving.start();
+
+        try
+            {
+            this.daemon.start();
+            fail("Should not start two daemons at one address");
+            }
+        catch (final IOException e)
+            {
+            // Expected.
+            }
+
+        final Result result = forward("-put", "bucket", "a file.txt");
+        assertEquals(3, result.status);
+        assertEquals("-put|bucket|a file.txt", result.out.trim());
+        assertEquals(new File(System.getProperty("user.dir")).getAbsolutePath(),
+            result.err.trim());
+        // Clients take turns.
+        for (int i = 0; i < 5; i++)
+            {
+            assertEquals(i, forward(new String[i]).status);
+            }
+
+        this.daemon.stop();
+        this.daemon = null;
+        assertFalse(this.address.exists());
+        assertEquals(-1, forward("anything").status);
+        }
+
+    @Test public void testSplitCommandLine() throws Exception
+        {
+        assertEquals(Arrays.asList("-put", "bucket", "my file.txt", "x"),
+            Arrays.asList(Launcher.splitCommandLine(
+                " -put  bucket \"my file.txt\" 'x' ")));
+        assertEquals(Arrays.asList("-ls", "it's"),
+            Arrays.asList(Launcher.splitCommandLine("-ls \"it's\"")));
+        assertEquals(0, Launcher.splitCommandLine("   ").length);
+        try
+            {
+            Launcher.splitCommandLine("-ls 'open");
+            fail("Should reject unclosed quotes");
+            }
+        catch (final IllegalArgumentException e)
+            {
+            // Expected.
+            }
+        }
+
+    @Test(timeout = 30000) public void testBatch() throws Exception
+        {
+        final LocalS3Server server = new LocalS3Server();
+        server.start();
+        try
+            {
+            final String endpoint = "-e " + server.getUrl() + " ";
+            FileUtils.writeStringToFile(new File(this.dir, "commands.txt"),
+                "# Set up\n" +
+                endpoint + "-mkdir batch-bucket\n\n" +
+                endpoint + "-ls batch-bucket\n" +
+                endpoint + "-rmdir batch-bucket\n" +
+                endpoint + "-get batch-bucket missing.txt\n" +
+                endpoint + "-mkdir never\n", "UTF-8");
+
+            // Relative paths are resolved against the directory we pass.
+            assertEquals(1, Launcher.run(
+                new String[] {"-batch", "commands.txt"}, this.dir));
+            assertTrue(server.getBucketNames().isEmpty());
+            assertFalse(new File(this.dir, "missing.txt").exists());
+
+            assertEquals(1, Launcher.run(
+                new String[] {"-batch", "no-such-file.txt"}, this.dir));
+            }
+        finally
+            {
+            server.stop();
+            }
+        }
+
+    @Test(timeout = 30000) public void testFailedSyncStopsBatch()
+        throws Exception
+        {
+        final LocalS3Server server = new LocalS3Server();
+        server.start();
+        try
+            {
+            final String endpoint = "-e " + server.getUrl() + " ";
+            FileUtils.writeStringToFile(new File(this.dir, "site/index.html"),
+                "<html></html>", "UTF-8");
+            FileUtils.writeStringToFile(new File(this.dir, "commands.txt"),
+                endpoint + "-sync no-such-bucket site\n" +
+                endpoint + "-mkdir never\n", "UTF-8");
+            assertEquals(1, Launcher.run(
+                new String[] {"-batch", "commands.txt"}, this.dir));
+            assertTrue(server.getBucketNames().isEmpty());
+
+            // So does syncing something that isn't a directory.
+            FileUtils.writeStringToFile(new File(this.dir, "commands.txt"),
+                endpoint + "-sync no-such-bucket missing\n" +
+                endpoint + "-mkdir never\n", "UTF-8");
+            assertEquals(1, Launcher.run(
+                new String[] {"-batch", "commands.txt"}, this.dir));
+            assertTrue(server.getBucketNames().isEmpty());
+            }
+        finally
+            {
+            server.stop();
+            }
+        }
+
+    private Result forward(final String... args) throws Exception
+        {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ByteArrayOutputStream err = new ByteArrayOutputStream();
+        for (int i = 0; i < args.length; i++)
+            {
+            if (args[i] == null)
+                {
+                args[i] = "arg" + i;
+                }
+            }
+        final Result result = new Result();
+        result.status = LauncherDaemon.forward(this.address, args, out, err);
+        result.out = out.toString();
+        result.err = err.toString();
+        return result;
+        }
+
+    private static final class Result
+        {
+        private int status;
+        private String out;
+        private String err;
+        }
+    }
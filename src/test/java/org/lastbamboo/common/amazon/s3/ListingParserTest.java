@@ -0,0 +1,115 @@
+package org.lastbamboo.common.amazon.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+
+public class ListingParserTest
+    {
+
+    @Test public void testBucketListing() throws Exception
+        {
+        final List<S3ObjectSummary> objects = new ArrayList<S3ObjectSummary>();
+        final ListingPage page = ListingParser.parseBucketListing(
+            new ByteArrayInputStream(listBucketXml(1000, true)),
+            new ListingHandler<S3ObjectSummary>()
+                {
+                public void handle(final S3ObjectSummary entry)
+                    {
+                    objects.add(entry);
+                    }
+                });
+        assertEquals(1000, objects.size());
+        final S3ObjectSummary first = objects.get(0);
+        assertEquals("releases/file-0.txt", first.getKey());
+        assertEquals(3000000000L, first.getSize());
+        assertEquals("2009-10-12T17:50:30.000Z", first.getLastModified());
+        assertEquals("\"fba9dede5f27731c9771645a39863328\"", first.getETag());
+        assertEquals("releases/file-999.txt", objects.get(999).getKey());
+        assertTrue(page.isTruncated());
+        assertEquals("releases/file-999.txt", page.getNextMarker());
+        }
+
+    @Test public void testBuckets() throws Exception
+        {
+        final String xml = 
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+            "<ListAllMyBucketsResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">" +
+            "<Owner><ID>bcaf1ffd86f4</ID><DisplayName>afisk</DisplayName></Owner>" +
+            "<Buckets>" +
+            "<Bucket><Name>littleshoot</Name><CreationDate>2006-02-03T16:45:09.000Z</CreationDate></Bucket>" +
+            "<Bucket><Name>installers</Name><CreationDate>2006-02-03T16:41:58.000Z</CreationDate></Bucket>" +
+            "</Buckets></ListAllMyBucketsResult>";
+        final List<S3BucketSummary> buckets = new ArrayList<S3BucketSummary>();
+        ListingParser.parseBuckets(new ByteArrayInputStream(xml.getBytes("UTF-8")),
+            new ListingHandler<S3BucketSummary>()
+                {
+                public void handle(final S3BucketSummary entry)
+                    {
+                    buckets.add(entry);
+                    }
+                });
+        assertEquals(2, buckets.size());
+        assertEquals("littleshoot", buckets.get(0).getName());
+        assertEquals("2006-02-03T16:41:58.000Z", 
+            buckets.get(1).getCreationDate());
+        }
+
+    @Test public void testDeleteErrors() throws Exception
+        {
+        final String xml = 
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+            "<DeleteResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">" +
+            "<Deleted><Key>sample1.txt</Key></Deleted>" +
+            "<Error><Key>sample2.txt</Key><Code>AccessDenied</Code>" +
+            "<Message>Access Denied</Message></Error>" +
+            "</DeleteResult>";
+        final Map<String, IOException> failures = 
+            new HashMap<String, IOException>();
+        ListingParser.parseDeleteErrors(
+            new ByteArrayInputStream(xml.getBytes("UTF-8")), failures);
+        assertEquals(1, failures.size());
+        assertEquals("AccessDenied: Access Denied", 
+            failures.get("sample2.txt").getMessage());
+        }
+
+    /**
+     * Creates a ListBucketResult document like the ones S3 returns.
+     * 
+     * @param numKeys The number of keys to include.
+     * @param truncated Whether or not to mark the listing as truncated.
+     * @return The UTF-8 bytes of the document.
+     */
+    static byte[] listBucketXml(final int numKeys, final boolean truncated)
+        throws Exception
+        {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        sb.append("<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">");
+        sb.append("<Name>littleshoot</Name><Prefix></Prefix><Marker></Marker>");
+        sb.append("<MaxKeys>1000</MaxKeys>");
+        sb.append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+        for (int i = 0; i < numKeys; i++)
+            {
+            sb.append("<Contents>");
+            sb.append("<Key>releases/file-").append(i).append(".txt</Key>");
+            sb.append("<LastModified>2009-10-12T17:50:30.000Z</LastModified>");
+            sb.append("<ETag>&quot;fba9dede5f27731c9771645a39863328&quot;</ETag>");
+            sb.append("<Size>").append(3000000000L + i).append("</Size>");
+            sb.append("<Owner><ID>75aa57f09aa0c8caeab4f8c24e99d10f8e7faeebf76c078efc7c6caea54ba06a</ID>");
+            sb.append("<DisplayName>afisk</DisplayName></Owner>");
+            sb.append("<StorageClass>STANDARD</StorageClass>");
+            sb.append("</Contents>");
+            }
+        sb.append("</ListBucketResult>");
+        return sb.toString().getBytes("UTF-8");
+        }
+    }
@@ -0,0 +1,98 @@
+package org.lastbamboo.common.amazon.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class LoadBenchmarkTest
+    {
+
+    private LocalS3Server server;
+
+    private AmazonS3Impl s3;
+
+    @Before public void setUp() throws Exception
+        {
+        this.server = new LocalS3Server();
+        this.server.start();
+        this.server.createBucket("bucket");
+        final AmazonS3Config config = new AmazonS3Config();
+        this.s3 = this.server.newClient(config);
+        }
+
+    @After public void tearDown() throws Exception
+        {
+        this.server.stop();
+        }
+
+    @Test(timeout = 30000) public void testRun() throws Exception
+        {
+        this.server.putObject("bucket", "unrelated", new byte[10]);
+        final LoadBenchmark benchmark = new LoadBenchmark(this.s3, "bucket");
+        benchmark.setMix("put:2,get:4,list,delete");
+        benchmark.setSizes("1k,2k-100k:2");
+        benchmark.setThreads(3);
+        benchmark.setDurationMillis(500);
+        final long elapsed = benchmark.run();
+        assertTrue(elapsed >= 500);
+
+        for (final String op : new String[] {S3Metrics.PUT, S3Metrics.GET,
+            S3Metrics.LIST, S3Metrics.DELETE})
+            {
+            assertTrue(op, benchmark.getCount(op) > 0);
+            assertEquals(op, 0, benchmark.getErrors(op));
+            }
+        // Everything the benchmark wrote is cleaned up.
+        assertEquals(1, this.server.getKeys("bucket").size());
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        benchmark.printReport(new PrintStream(out, true, "UTF-8"), elapsed);
+        final String report = out.toString("UTF-8");
+        assertTrue(report, report.contains("p999 ms"));
+        assertTrue(report, report.contains("delete"));
+        assertTrue(report, report.contains("total"));
+        }
+
+    @Test public void testSizes() throws Exception
+        {
+        assertEquals(512, LoadBenchmark.parseSize("512"));
+        assertEquals(64 * 1024, LoadBenchmark.parseSize("64K"));
+        assertEquals(3L * 1024 * 1024 * 1024, LoadBenchmark.parseSize("3g"));
+
+        final LoadBenchmark benchmark = new LoadBenchmark(this.s3, "bucket");
+        benchmark.setSizes("10:3,1k-1m");
+        final Random random = new Random(7);
+        int small = 0;
+        for (int i = 0; i < 4000; i++)
+            {
+            final int size = benchmark.nextSize(random);
+            if (size == 10)
+                {
+                small++;
+                }
+            else
+                {
+                assertTrue(size >= 1024 && size <= 1024 * 1024);
+                }
+            }
+        // Three quarters of the sizes should be the small one.
+        assertTrue(String.valueOf(small), small > 2800 && small < 3200);
+
+        try
+            {
+            benchmark.setMix("put,copy");
+            fail("Should reject unknown operations");
+            }
+        catch (final IllegalArgumentException e)
+            {
+            // Expected.
+            }
+        }
+    }
@@ -0,0 +1,1161 @@
+package org.lastbamboo.common.amazon.s3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.util.DateUtil;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.commons.lang.StringUtils;
+import org.littleshoot.util.DaemonThreadFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A small in-memory stand-in for S3 that runs in the same process, so the
+ * client can be tested and measured without credentials or a network.  It
+ * speaks enough of the path-style REST API for everything the client does:
+ * buckets, objects with ranges and conditional GETs, paginated listings,
+ * multi-object deletes and multipart uploads.  Requests are checked
+ * against the configured credentials just as S3 would.
+ * <p>
+ * Faults can be injected to exercise the client's resilience: added
+ * latency, random 500 and 503 SlowDown responses, dropped connections, or
+ * a fixed number of failures for the next requests.
+ */
+public class LocalS3Server
+    {
+
+    /**
+     * Status for {@link #failNext(int, int)} that drops the connection
+     * rather than sending a response.
+     */
+    public static final int DROP_CONNECTION = 0;
+
+    private static final Pattern KEY_PATTERN =
+        Pattern.compile("<Key>(.*?)</Key>", Pattern.DOTALL);
+
+    private static final Pattern PART_PATTERN =
+        Pattern.compile("<PartNumber>\\s*(\\d+)\\s*</PartNumber>");
+
+    private static final ThreadLocal<SimpleDateFormat> ISO_FORMAT =
+        new ThreadLocal<SimpleDateFormat>()
+        {
+        @Override
+        protected SimpleDateFormat initialValue()
+            {
+            final SimpleDateFormat format = new SimpleDateFormat(
+                "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return format;
+            }
+        };
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    private final ConcurrentMap<String, Bucket> buckets =
+        new ConcurrentHashMap<String, Bucket>();
+
+    private final ConcurrentMap<String, Upload> uploads =
+        new ConcurrentHashMap<String, Upload>();
+
+    private final AtomicLong uploadIds = new AtomicLong();
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong faults = new AtomicLong();
+
+    private final AtomicInteger failuresLeft = new AtomicInteger();
+
+    private volatile int failureStatus;
+
+    private volatile long latency;
+
+    private volatile double errorRate;
+
+    private volatile double slowDownRate;
+
+    private volatile double dropRate;
+
+    private volatile String accessKeyId;
+
+    private volatile String secretAccessKey;
+
+    private volatile RequestSigner signer;
+
+    private final List<AmazonS3Impl> clients =
+        new CopyOnWriteArrayList<AmazonS3Impl>();
+
+    /**
+     * Creates a server on an ephemeral port on the loopback interface.
+     * Call {@link #start()} to start serving.
+     *
+     * @throws IOException If we could not bind to a port.
+     */
+    public LocalS3Server() throws IOException
+        {
+        this(0);
+        }
+
+    /**
+     * Creates a server on the specified port on the loopback interface.
+     *
+     * @param port The port, or 0 for any free port.
+     * @throws IOException If we could not bind to the port.
+     */
+    public LocalS3Server(final int port) throws IOException
+        {
+        this.server = HttpServer.create(
+            new InetSocketAddress("127.0.0.1", port), 0);
+        this.executor = Executors.newCachedThreadPool(
+            new DaemonThreadFactory("Local-S3-Server"));
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/", new HttpHandler()
+            {
+            public void handle(final HttpExchange exchange) throws IOException
+                {
+                try
+                    {
+                    handleExchange(exchange);
+                    }
+                finally
+                    {
+                    exchange.close();
+                    }
+                }
+            });
+        }
+
+    /**
+     * Runs a server on its own, for load runs from another process.  The
+     * optional arguments are the port, the latency in milliseconds and the
+     * rate of 503 SlowDown responses.
+     *
+     * @param args The arguments.
+     * @throws IOException If we could not bind to the port.
+     */
+    public static void main(final String[] args) throws IOException
+        {
+        final LocalS3Server local = new LocalS3Server(
+            args.length > 0 ? Integer.parseInt(args[0]) : 0);
+        if (args.length > 1)
+            {
+            local.setLatency(Long.parseLong(args[1]));
+            }
+        if (args.length > 2)
+            {
+            local.setSlowDownRate(Double.parseDouble(args[2]));
+            }
+        local.start();
+        System.out.println("Local S3 listening at " + local.getUrl());
+        }
+
+    public void start()
+        {
+        this.server.start();
+        }
+
+    /**
+     * Shuts down the clients from {@link #newClient(AmazonS3Config)} and
+     * stops serving.
+     */
+    public void stop()
+        {
+        for (final AmazonS3Impl client : this.clients)
+            {
+            client.shutdown();
+            }
+        this.clients.clear();
+        this.server.stop(0);
+        this.executor.shutdownNow();
+        }
+
+    /**
+     * @return The base URL of the server, suitable for both the
+     * <code>urlBase</code> and <code>secureUrlBase</code> of
+     * {@link AmazonS3Impl}.
+     */
+    public String getUrl()
+        {
+        return "http://127.0.0.1:" + this.server.getAddress().getPort();
+        }
+
+    /**
+     * Creates a client for this server, signing with the credentials from
+     * {@link #setCredentials(String, String)} if there are any.
+     * {@link #stop()} shuts it down.
+     *
+     * @param config The client settings.
+     * @return The client.
+     */
+    public AmazonS3Impl newClient(final AmazonS3Config config)
+        {
+        final AmazonS3Impl client = new AmazonS3Impl(
+            this.accessKeyId == null ? "id" : this.accessKeyId,
+            this.secretAccessKey == null ? "secret" : this.secretAccessKey,
+            getUrl(), getUrl(), config);
+        this.clients.add(client);
+        return client;
+        }
+
+    /**
+     * Requires every request other than anonymous reads of public objects
+     * to be signed with the specified credentials.
+     *
+     * @param id The access key ID.
+     * @param secret The secret access key.
+     */
+    public void setCredentials(final String id, final String secret)
+        {
+        this.accessKeyId = id;
+        this.secretAccessKey = secret;
+        this.signer = new RequestSigner(id, secret);
+        }
+
+    /**
+     * @param millis The delay to add before every response.
+     */
+    public void setLatency(final long millis)
+        {
+        this.latency = millis;
+        }
+
+    /**
+     * @param rate The fraction of requests to fail with 500 InternalError.
+     */
+    public void setErrorRate(final double rate)
+        {
+        this.errorRate = rate;
+        }
+
+    /**
+     * @param rate The fraction of requests to fail with 503 SlowDown.
+     */
+    public void setSlowDownRate(final double rate)
+        {
+        this.slowDownRate = rate;
+        }
+
+    /**
+     * @param rate The fraction of requests to drop the connection on
+     * without responding.
+     */
+    public void setDropRate(final double rate)
+        {
+        this.dropRate = rate;
+        }
+
+    /**
+     * Fails the next requests, whatever they are.
+     *
+     * @param count The number of requests to fail.
+     * @param status The status to fail them with, or
+     * {@link #DROP_CONNECTION}.
+     */
+    public void failNext(final int count, final int status)
+        {
+        this.failureStatus = status;
+        this.failuresLeft.set(count);
+        }
+
+    /**
+     * @return The number of requests received, including failed ones.
+     */
+    public long getRequestCount()
+        {
+        return this.requests.get();
+        }
+
+    /**
+     * @return The number of requests we deliberately failed.
+     */
+    public long getFaultCount()
+        {
+        return this.faults.get();
+        }
+
+    /**
+     * @return The number of multipart uploads started but neither
+     * completed nor aborted.
+     */
+    public int getUploadsInProgress()
+        {
+        return this.uploads.size();
+        }
+
+    public void createBucket(final String bucketName)
+        {
+        this.buckets.putIfAbsent(bucketName, new Bucket());
+        }
+
+    /**
+     * Sets the region we report for a bucket's location.
+     *
+     * @param bucketName The bucket, which is created if necessary.
+     * @param region The region, such as "eu-west-1".
+     */
+    public void setBucketRegion(final String bucketName, final String region)
+        {
+        createBucket(bucketName);
+        this.buckets.get(bucketName).region = region;
+        }
+
+    public Set<String> getBucketNames()
+        {
+        return this.buckets.keySet();
+        }
+
+    /**
+     * Stores an object directly, without going through HTTP.
+     *
+     * @param bucketName The bucket, which is created if necessary.
+     * @param key The key.
+     * @param data The contents.
+     */
+    public void putObject(final String bucketName, final String key,
+        final byte[] data)
+        {
+        createBucket(bucketName);
+        this.buckets.get(bucketName).objects.put(key,
+            new StoredObject(data, DigestUtils.md5Hex(data),
+                "binary/octet-stream", null, false));
+        }
+
+    /**
+     * @return The contents of the object, or <code>null</code> if there's
+     * no such object.
+     */
+    public byte[] getObject(final String bucketName, final String key)
+        {
+        final StoredObject object = findObject(bucketName, key);
+        return object == null ? null : object.data;
+        }
+
+    /**
+     * @return The object's ETag without quotes, or <code>null</code> if
+     * there's no such object.
+     */
+    public String getETag(final String bucketName, final String key)
+        {
+        final StoredObject object = findObject(bucketName, key);
+        return object == null ? null : object.eTag;
+        }
+
+    /**
+     * @return The Content-Encoding the object was uploaded with, or
+     * <code>null</code> if it had none or there's no such object.
+     */
+    public String getContentEncoding(final String bucketName,
+        final String key)
+        {
+        final StoredObject object = findObject(bucketName, key);
+        return object == null ? null : object.contentEncoding;
+        }
+
+    /**
+     * @return The Content-Type the object was uploaded with, or
+     * <code>null</code> if there's no such object.
+     */
+    public String getContentType(final String bucketName, final String key)
+        {
+        final StoredObject object = findObject(bucketName, key);
+        return object == null ? null : object.contentType;
+        }
+
+    /**
+     * @return The keys in the bucket, in order.
+     */
+    public Set<String> getKeys(final String bucketName)
+        {
+        final Bucket bucket = this.buckets.get(bucketName);
+        return bucket == null ? null : bucket.objects.keySet();
+        }
+
+    private StoredObject findObject(final String bucketName,
+        final String key)
+        {
+        final Bucket bucket = this.buckets.get(bucketName);
+        return bucket == null ? null : bucket.objects.get(key);
+        }
+
+    private void handleExchange(final HttpExchange exchange)
+        throws IOException
+        {
+        this.requests.incrementAndGet();
+        final byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+        if (this.latency > 0)
+            {
+            try
+                {
+                Thread.sleep(this.latency);
+                }
+            catch (final InterruptedException e)
+                {
+                Thread.currentThread().interrupt();
+                return;
+                }
+            }
+        if (injectFault(exchange))
+            {
+            return;
+            }
+
+        final Request request = new Request(exchange, body);
+        if (!isAuthorized(request))
+            {
+            return;
+            }
+        if (request.bucket.length() == 0)
+            {
+            if ("GET".equals(request.method))
+                {
+                listBuckets(request);
+                }
+            else
+                {
+                sendError(exchange, 405, "MethodNotAllowed", "");
+                }
+            }
+        else if (request.key.length() == 0)
+            {
+            handleBucket(request);
+            }
+        else
+            {
+            handleObject(request);
+            }
+        }
+
+    /**
+     * @return Whether or not we failed the request.
+     */
+    private boolean injectFault(final HttpExchange exchange)
+        throws IOException
+        {
+        int status = -1;
+        if (takeFailure())
+            {
+            status = this.failureStatus;
+            }
+        else
+            {
+            final double roll = ThreadLocalRandom.current().nextDouble();
+            if (roll < this.dropRate)
+                {
+                status = DROP_CONNECTION;
+                }
+            else if (roll < this.dropRate + this.slowDownRate)
+                {
+                status = 503;
+                }
+            else if (roll < this.dropRate + this.slowDownRate +
+                this.errorRate)
+                {
+                status = 500;
+                }
+            }
+        if (status == -1)
+            {
+            return false;
+            }
+        this.faults.incrementAndGet();
+        if (status == DROP_CONNECTION)
+            {
+            // Throwing makes the server close the connection without a
+            // response.
+            throw new IOException("Dropping connection");
+            }
+        if (status == 503)
+            {
+            sendError(exchange, 503, "SlowDown", "Please reduce your " +
+                "request rate.");
+            }
+        else
+            {
+            sendError(exchange, status, "InternalError",
+                "We encountered an internal error. Please try again.");
+            }
+        return true;
+        }
+
+    private boolean takeFailure()
+        {
+        while (true)
+            {
+            final int left = this.failuresLeft.get();
+            if (left <= 0)
+                {
+                return false;
+                }
+            if (this.failuresLeft.compareAndSet(left, left - 1))
+                {
+                return true;
+                }
+            }
+        }
+
+    private boolean isAuthorized(final Request request) throws IOException
+        {
+        final RequestSigner currentSigner = this.signer;
+        if (currentSigner == null)
+            {
+            return true;
+            }
+        final String auth =
+            request.exchange.getRequestHeaders().getFirst("Authorization");
+        if (auth == null)
+            {
+            // Anyone can read public objects.
+            if (("GET".equals(request.method) ||
+                "HEAD".equals(request.method)) && request.key.length() > 0)
+                {
+                final StoredObject object =
+                    findObject(request.bucket, request.key);
+                if (object != null && object.isPublic)
+                    {
+                    return true;
+                    }
+                }
+            sendError(request.exchange, 403, "AccessDenied", "Access Denied");
+            return false;
+            }
+        final String resource = request.rawPath +
+            (request.rawQuery == null ? "" : "?" + request.rawQuery);
+        final String canonical = AmazonS3Utils.makeCanonicalString(
+            request.method, resource, request.headers());
+        final String expected = "AWS " + this.accessKeyId + ":" +
+            currentSigner.sign(canonical);
+        if (!expected.equals(auth))
+            {
+            sendError(request.exchange, 403, "SignatureDoesNotMatch",
+                "The request signature we calculated does not match the " +
+                "signature you provided.");
+            return false;
+            }
+        return true;
+        }
+
+    private void listBuckets(final Request request) throws IOException
+        {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("<ListAllMyBucketsResult><Buckets>");
+        for (final Map.Entry<String, Bucket> entry : this.buckets.entrySet())
+            {
+            sb.append("<Bucket><Name>");
+            sb.append(StringEscapeUtils.escapeXml(entry.getKey()));
+            sb.append("</Name><CreationDate>");
+            sb.append(isoDate(entry.getValue().created));
+            sb.append("</CreationDate></Bucket>");
+            }
+        sb.append("</Buckets></ListAllMyBucketsResult>");
+        sendXml(request.exchange, 200, sb.toString());
+        }
+
+    private void handleBucket(final Request request) throws IOException
+        {
+        final Bucket bucket = this.buckets.get(request.bucket);
+        if ("PUT".equals(request.method))
+            {
+            createBucket(request.bucket);
+            send(request.exchange, 200, null);
+            return;
+            }
+        if (bucket == null)
+            {
+            sendError(request.exchange, 404, "NoSuchBucket",
+                "The specified bucket does not exist");
+            return;
+            }
+        if ("DELETE".equals(request.method))
+            {
+            if (!bucket.objects.isEmpty())
+                {
+                sendError(request.exchange, 409, "BucketNotEmpty",
+                    "The bucket you tried to delete is not empty");
+                return;
+                }
+            this.buckets.remove(request.bucket);
+            send(request.exchange, 204, null);
+            }
+        else if ("POST".equals(request.method) &&
+            request.params.containsKey("delete"))
+            {
+            deleteObjects(request, bucket);
+            }
+        else if ("GET".equals(request.method) &&
+            request.params.containsKey("location"))
+            {
+            // Like S3, the original region is reported as empty.
+            sendXml(request.exchange, 200, "us-east-1".equals(bucket.region) ?
+                "<LocationConstraint/>" : "<LocationConstraint>" +
+                bucket.region + "</LocationConstraint>");
+            }
+        else if ("GET".equals(request.method))
+            {
+            listObjects(request, bucket);
+            }
+        else
+            {
+            sendError(request.exchange, 405, "MethodNotAllowed", "");
+            }
+        }
+
+    private void listObjects(final Request request, final Bucket bucket)
+        throws IOException
+        {
+        final String prefix = StringUtils.defaultString(
+            request.params.get("prefix"));
+        final String delimiter = request.params.get("delimiter");
+        final String marker = request.params.get("marker");
+        final int maxKeys = request.params.containsKey("max-keys") ?
+            Integer.parseInt(request.params.get("max-keys")) : 1000;
+
+        final NavigableMap<String, StoredObject> candidates = marker == null ?
+            bucket.objects : bucket.objects.tailMap(marker, false);
+        final StringBuilder contents = new StringBuilder();
+        final Set<String> commonPrefixes = new LinkedHashSet<String>();
+        int count = 0;
+        boolean truncated = false;
+        String last = null;
+        for (final Map.Entry<String, StoredObject> entry :
+            candidates.entrySet())
+            {
+            final String key = entry.getKey();
+            if (!key.startsWith(prefix))
+                {
+                if (key.compareTo(prefix) > 0)
+                    {
+                    break;
+                    }
+                continue;
+                }
+            String rollup = null;
+            if (StringUtils.isNotEmpty(delimiter))
+                {
+                final int index = key.indexOf(delimiter, prefix.length());
+                if (index != -1)
+                    {
+                    rollup = key.substring(0, index + delimiter.length());
+                    }
+                }
+            // A marker that is a common prefix means the page before
+            // already listed it, so like S3 we skip the keys under it.
+            if (rollup != null && (commonPrefixes.contains(rollup) ||
+                rollup.equals(marker)))
+                {
+                continue;
+                }
+            if (count == maxKeys)
+                {
+                truncated = true;
+                break;
+                }
+            count++;
+            if (rollup != null)
+                {
+                commonPrefixes.add(rollup);
+                last = rollup;
+                continue;
+                }
+            last = key;
+            final StoredObject object = entry.getValue();
+            contents.append("<Contents><Key>");
+            contents.append(StringEscapeUtils.escapeXml(key));
+            contents.append("</Key><LastModified>");
+            contents.append(isoDate(object.lastModified));
+            contents.append("</LastModified><ETag>&quot;");
+            contents.append(object.eTag);
+            contents.append("&quot;</ETag><Size>");
+            contents.append(object.data.length);
+            contents.append("</Size><StorageClass>STANDARD</StorageClass>");
+            contents.append("</Contents>");
+            }
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append("<ListBucketResult><Name>");
+        sb.append(StringEscapeUtils.escapeXml(request.bucket));
+        sb.append("</Name><Prefix>");
+        sb.append(StringEscapeUtils.escapeXml(prefix));
+        sb.append("</Prefix><Marker>");
+        sb.append(StringEscapeUtils.escapeXml(
+            StringUtils.defaultString(marker)));
+        sb.append("</Marker><MaxKeys>").append(maxKeys);
+        sb.append("</MaxKeys><IsTruncated>").append(truncated);
+        sb.append("</IsTruncated>");
+        // Like S3, we only send the next marker with a delimiter.
+        // Otherwise clients use the last key.
+        if (truncated && StringUtils.isNotEmpty(delimiter))
+            {
+            sb.append("<NextMarker>");
+            sb.append(StringEscapeUtils.escapeXml(last));
+            sb.append("</NextMarker>");
+            }
+        sb.append(contents);
+        for (final String commonPrefix : commonPrefixes)
+            {
+            sb.append("<CommonPrefixes><Prefix>");
+            sb.append(StringEscapeUtils.escapeXml(commonPrefix));
+            sb.append("</Prefix></CommonPrefixes>");
+            }
+        sb.append("</ListBucketResult>");
+        sendXml(request.exchange, 200, sb.toString());
+        }
+
+    private void deleteObjects(final Request request, final Bucket bucket)
+        throws IOException
+        {
+        final String xml = new String(request.body, "UTF-8");
+        final boolean quiet = xml.contains("<Quiet>true</Quiet>");
+        final StringBuilder sb = new StringBuilder();
+        sb.append("<DeleteResult>");
+        final Matcher matcher = KEY_PATTERN.matcher(xml);
+        while (matcher.find())
+            {
+            final String key =
+                StringEscapeUtils.unescapeXml(matcher.group(1));
+            bucket.objects.remove(key);
+            if (!quiet)
+                {
+                sb.append("<Deleted><Key>");
+                sb.append(StringEscapeUtils.escapeXml(key));
+                sb.append("</Key></Deleted>");
+                }
+            }
+        sb.append("</DeleteResult>");
+        sendXml(request.exchange, 200, sb.toString());
+        }
+
+    private void handleObject(final Request request) throws IOException
+        {
+        final Bucket bucket = this.buckets.get(request.bucket);
+        if (bucket == null)
+            {
+            sendError(request.exchange, 404, "NoSuchBucket",
+                "The specified bucket does not exist");
+            return;
+            }
+        final String uploadId = request.params.get("uploadId");
+        if ("POST".equals(request.method) &&
+            request.params.containsKey("uploads"))
+            {
+            initiateUpload(request);
+            }
+        else if ("PUT".equals(request.method) && uploadId != null)
+            {
+            uploadPart(request, uploadId);
+            }
+        else if ("POST".equals(request.method) && uploadId != null)
+            {
+            completeUpload(request, bucket, uploadId);
+            }
+        else if ("DELETE".equals(request.method) && uploadId != null)
+            {
+            this.uploads.remove(uploadId);
+            send(request.exchange, 204, null);
+            }
+        else if ("PUT".equals(request.method))
+            {
+            putObject(request, bucket);
+            }
+        else if ("GET".equals(request.method) ||
+            "HEAD".equals(request.method))
+            {
+            getObject(request, bucket);
+            }
+        else if ("DELETE".equals(request.method))
+            {
+            bucket.objects.remove(request.key);
+            send(request.exchange, 204, null);
+            }
+        else
+            {
+            sendError(request.exchange, 405, "MethodNotAllowed", "");
+            }
+        }
+
+    private void putObject(final Request request, final Bucket bucket)
+        throws IOException
+        {
+        final String md5 = request.header("Content-MD5");
+        if (md5 != null && !md5.equals(ContentMd5.toHeader(
+            DigestUtils.md5(request.body))))
+            {
+            sendError(request.exchange, 400, "BadDigest", "The Content-MD5 " +
+                "you specified did not match what we received.");
+            return;
+            }
+        final StoredObject object = new StoredObject(request.body,
+            DigestUtils.md5Hex(request.body), request.header("Content-Type"),
+            request.header("Content-Encoding"),
+            "public-read".equals(request.header("x-amz-acl")));
+        bucket.objects.put(request.key, object);
+        request.exchange.getResponseHeaders().set("ETag",
+            "\"" + object.eTag + "\"");
+        send(request.exchange, 200, null);
+        }
+
+    private void getObject(final Request request, final Bucket bucket)
+        throws IOException
+        {
+        final HttpExchange exchange = request.exchange;
+        final StoredObject object = bucket.objects.get(request.key);
+        if (object == null)
+            {
+            sendError(exchange, 404, "NoSuchKey",
+                "The specified key does not exist.");
+            return;
+            }
+        final String eTag = "\"" + object.eTag + "\"";
+        exchange.getResponseHeaders().set("ETag", eTag);
+        exchange.getResponseHeaders().set("Last-Modified",
+            DateUtil.formatDate(new Date(object.lastModified)));
+        if (object.contentType != null)
+            {
+            exchange.getResponseHeaders().set("Content-Type",
+                object.contentType);
+            }
+        if (object.contentEncoding != null)
+            {
+            exchange.getResponseHeaders().set("Content-Encoding",
+                object.contentEncoding);
+            }
+        final String ifMatch = request.header("If-Match");
+        if (ifMatch != null && !eTag.equals(ifMatch))
+            {
+            sendError(exchange, 412, "PreconditionFailed",
+                "At least one of the preconditions you specified did not " +
+                "hold.");
+            return;
+            }
+        if (eTag.equals(request.header("If-None-Match")))
+            {
+            exchange.sendResponseHeaders(304, -1);
+            return;
+            }
+
+        final int length = object.data.length;
+        int first = 0;
+        int last = length - 1;
+        int status = 200;
+        final String range = request.header("Range");
+        if (range != null && range.startsWith("bytes="))
+            {
+            final String spec = range.substring("bytes=".length());
+            final int dash = spec.indexOf('-');
+            try
+                {
+                if (dash == 0)
+                    {
+                    first = Math.max(0,
+                        length - Integer.parseInt(spec.substring(1)));
+                    }
+                else
+                    {
+                    first = Integer.parseInt(spec.substring(0, dash));
+                    if (dash < spec.length() - 1)
+                        {
+                        last = Math.min(last,
+                            Integer.parseInt(spec.substring(dash + 1)));
+                        }
+                    }
+                }
+            catch (final NumberFormatException e)
+                {
+                sendError(exchange, 400, "InvalidArgument", "Bad range");
+                return;
+                }
+            if (first >= length || first > last)
+                {
+                sendError(exchange, 416, "InvalidRange",
+                    "The requested range is not satisfiable");
+                return;
+                }
+            status = 206;
+            exchange.getResponseHeaders().set("Content-Range",
+                "bytes " + first + "-" + last + "/" + length);
+            }
+        final int count = last - first + 1;
+        if ("HEAD".equals(request.method))
+            {
+            exchange.getResponseHeaders().set("Content-Length",
+                Integer.toString(count));
+            exchange.sendResponseHeaders(status, -1);
+            return;
+            }
+        exchange.sendResponseHeaders(status, count == 0 ? -1 : count);
+        if (count > 0)
+            {
+            final OutputStream os = exchange.getResponseBody();
+            os.write(object.data, first, count);
+            os.close();
+            }
+        }
+
+    private void initiateUpload(final Request request) throws IOException
+        {
+        final String id = "upload-" + this.uploadIds.incrementAndGet();
+        this.uploads.put(id, new Upload(request.key,
+            request.header("Content-Type"), request.header("Content-Encoding"),
+            "public-read".equals(request.header("x-amz-acl"))));
+        sendXml(request.exchange, 200, "<InitiateMultipartUploadResult>" +
+            "<Bucket>" + request.bucket + "</Bucket><Key>" +
+            StringEscapeUtils.escapeXml(request.key) + "</Key><UploadId>" +
+            id + "</UploadId></InitiateMultipartUploadResult>");
+        }
+
+    private void uploadPart(final Request request, final String uploadId)
+        throws IOException
+        {
+        final Upload upload = this.uploads.get(uploadId);
+        if (upload == null)
+            {
+            sendError(request.exchange, 404, "NoSuchUpload",
+                "The specified upload does not exist.");
+            return;
+            }
+        final int partNumber =
+            Integer.parseInt(request.params.get("partNumber"));
+        upload.parts.put(partNumber, request.body);
+        request.exchange.getResponseHeaders().set("ETag",
+            "\"" + DigestUtils.md5Hex(request.body) + "\"");
+        send(request.exchange, 200, null);
+        }
+
+    private void completeUpload(final Request request, final Bucket bucket,
+        final String uploadId) throws IOException
+        {
+        final Upload upload = this.uploads.remove(uploadId);
+        if (upload == null)
+            {
+            sendError(request.exchange, 404, "NoSuchUpload",
+                "The specified upload does not exist.");
+            return;
+            }
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final ByteArrayOutputStream md5s = new ByteArrayOutputStream();
+        int parts = 0;
+        final Matcher matcher =
+            PART_PATTERN.matcher(new String(request.body, "UTF-8"));
+        while (matcher.find())
+            {
+            final byte[] part =
+                upload.parts.get(Integer.parseInt(matcher.group(1)));
+            if (part == null)
+                {
+                sendError(request.exchange, 400, "InvalidPart",
+                    "One or more of the specified parts could not be found.");
+                return;
+                }
+            data.write(part);
+            md5s.write(DigestUtils.md5(part));
+            parts++;
+            }
+        // S3's multipart ETags are the MD5 of the part MD5s plus the count.
+        final String eTag = DigestUtils.md5Hex(md5s.toByteArray()) + "-" +
+            parts;
+        bucket.objects.put(upload.key, new StoredObject(data.toByteArray(),
+            eTag, upload.contentType, upload.contentEncoding,
+            upload.isPublic));
+        sendXml(request.exchange, 200, "<CompleteMultipartUploadResult>" +
+            "<ETag>&quot;" + eTag + "&quot;</ETag>" +
+            "</CompleteMultipartUploadResult>");
+        }
+
+    private static void sendError(final HttpExchange exchange,
+        final int status, final String code, final String message)
+        throws IOException
+        {
+        sendXml(exchange, status, "<Error><Code>" + code + "</Code><Message>" +
+            message + "</Message></Error>");
+        }
+
+    private static void sendXml(final HttpExchange exchange, final int status,
+        final String xml) throws IOException
+        {
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        send(exchange, status,
+            ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + xml)
+                .getBytes("UTF-8"));
+        }
+
+    private static void send(final HttpExchange exchange, final int status,
+        final byte[] body) throws IOException
+        {
+        if (body == null || body.length == 0 ||
+            "HEAD".equals(exchange.getRequestMethod()))
+            {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+            }
+        exchange.sendResponseHeaders(status, body.length);
+        final OutputStream os = exchange.getResponseBody();
+        os.write(body);
+        os.close();
+        }
+
+    private static String isoDate(final long time)
+        {
+        return ISO_FORMAT.get().format(new Date(time));
+        }
+
+    /**
+     * The parts of a request we care about.
+     */
+    private static final class Request
+        {
+        private final HttpExchange exchange;
+        private final String method;
+        private final String rawPath;
+        private final String rawQuery;
+        private final String bucket;
+        private final String key;
+        private final Map<String, String> params;
+        private final byte[] body;
+
+        private Request(final HttpExchange exchange, final byte[] body)
+            throws UnsupportedEncodingException
+            {
+            this.exchange = exchange;
+            this.body = body;
+            this.method = exchange.getRequestMethod();
+            this.rawPath =
+                StringUtils.removeStart(exchange.getRequestURI().getRawPath(),
+                    "/");
+            this.rawQuery = exchange.getRequestURI().getRawQuery();
+            final int slash = this.rawPath.indexOf('/');
+            if (slash == -1)
+                {
+                this.bucket = decode(this.rawPath);
+                this.key = "";
+                }
+            else
+                {
+                this.bucket = decode(this.rawPath.substring(0, slash));
+                this.key = decode(this.rawPath.substring(slash + 1));
+                }
+            this.params = new HashMap<String, String>();
+            if (this.rawQuery != null)
+                {
+                for (final String param : this.rawQuery.split("&"))
+                    {
+                    final int equals = param.indexOf('=');
+                    if (equals == -1)
+                        {
+                        this.params.put(decode(param), "");
+                        }
+                    else
+                        {
+                        this.params.put(decode(param.substring(0, equals)),
+                            decode(param.substring(equals + 1)));
+                        }
+                    }
+                }
+            }
+
+        private String header(final String name)
+            {
+            return this.exchange.getRequestHeaders().getFirst(name);
+            }
+
+        private Header[] headers()
+            {
+            final List<Header> headers = new ArrayList<Header>();
+            for (final Map.Entry<String, List<String>> entry :
+                this.exchange.getRequestHeaders().entrySet())
+                {
+                for (final String value : entry.getValue())
+                    {
+                    headers.add(new Header(entry.getKey(), value));
+                    }
+                }
+            return headers.toArray(new Header[headers.size()]);
+            }
+
+        private static String decode(final String str)
+            throws UnsupportedEncodingException
+            {
+            // Paths use %20 for spaces, but a literal '+' is just a plus.
+            return URLDecoder.decode(str.replace("+", "%2B"), "UTF-8");
+            }
+        }
+
+    private static final class Bucket
+        {
+        private final long created = System.currentTimeMillis();
+        private final ConcurrentSkipListMap<String, StoredObject> objects =
+            new ConcurrentSkipListMap<String, StoredObject>();
+        private volatile String region = "us-east-1";
+        }
+
+    private static final class StoredObject
+        {
+        private final byte[] data;
+        private final String eTag;
+        private final String contentType;
+        private final String contentEncoding;
+        private final boolean isPublic;
+        private final long lastModified = System.currentTimeMillis();
+
+        private StoredObject(final byte[] data, final String eTag,
+            final String contentType, final String contentEncoding,
+            final boolean isPublic)
+            {
+            this.data = data;
+            this.eTag = eTag;
+            this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+            this.isPublic = isPublic;
+            }
+        }
+
+    private static final class Upload
+        {
+        private final String key;
+        private final String contentType;
+        private final String contentEncoding;
+        private final boolean isPublic;
+        private final ConcurrentMap<Integer, byte[]> parts =
+            new ConcurrentHashMap<Integer, byte[]>();
+
+        private Upload(final String key, final String contentType,
+            final String contentEncoding, final boolean isPublic)
+            {
+            this.key = key;
+            this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+            this.isPublic = isPublic;
+            }
+        }
+    }
@@ -0,0 +1,218 @@
+package org.lastbamboo.common.amazon.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the client against {@link LocalS3Server}, including with faults
+ * injected.
+ */
+public class LocalS3ServerTest
+    {
+
+    private LocalS3Server server;
+
+    private AmazonS3Impl s3;
+
+    private final File dir = new File("target/local-s3-test");
+
+    @Before public void setUp() throws Exception
+        {
+        this.server = new LocalS3Server();
+        this.server.setCredentials("id", "secret");
+        this.server.start();
+        final AmazonS3Config config = new AmazonS3Config();
+        config.setListingPageSize(7);
+        this.s3 = this.server.newClient(config);
+        FileUtils.deleteDirectory(this.dir);
+        this.dir.mkdirs();
+        }
+
+    @After public void tearDown() throws Exception
+        {
+        this.server.stop();
+        FileUtils.deleteDirectory(this.dir);
+        }
+
+    @Test public void testObjects() throws Exception
+        {
+        this.s3.createBucket("bucket");
+        final File file = new File(this.dir, "file.txt");
+        FileUtils.writeStringToFile(file, "private data", "UTF-8");
+        this.s3.putPrivateFile("bucket", file);
+        final File publicFile = new File(this.dir, "public.txt");
+        FileUtils.writeStringToFile(publicFile, "public data", "UTF-8");
+        this.s3.putPublicFile("bucket", publicFile);
+
+        final File target = new File(this.dir, "target.txt");
+        this.s3.getPrivateFile("bucket", "file.txt", target);
+        assertEquals("private data", FileUtils.readFileToString(target));
+        this.s3.getPublicFile("bucket", "public.txt", target);
+        assertEquals("public data", FileUtils.readFileToString(target));
+        try
+            {
+            this.s3.getPublicFile("bucket", "file.txt", target);
+            fail("Private files should need a signature");
+            }
+        catch (final S3ServiceException e)
+            {
+            assertEquals(403, e.getStatusCode());
+            }
+
+        final InputStream range = this.s3.getObjectStream("bucket",
+            "file.txt", ByteRange.of(8, 11), false);
+        try
+            {
+            assertEquals("data", IOUtils.toString(range, "UTF-8"));
+            }
+        finally
+            {
+            range.close();
+            }
+
+        try
+            {
+            this.s3.deleteBucket("bucket");
+            fail("Should not delete a bucket with objects in it");
+            }
+        catch (final S3ServiceException e)
+            {
+            assertEquals("BucketNotEmpty", e.getErrorCode());
+            }
+        this.s3.delete("bucket", "file.txt");
+        this.s3.delete("bucket", "public.txt");
+        this.s3.deleteBucket("bucket");
+        assertTrue(this.server.getBucketNames().isEmpty());
+        }
+
+    @Test public void testBadSignature() throws Exception
+        {
+        this.server.createBucket("bucket");
+        final AmazonS3Impl wrongKey = new AmazonS3Impl("id", "wrong",
+            this.server.getUrl(), this.server.getUrl(), new AmazonS3Config());
+        try
+            {
+            wrongKey.putStream("bucket", "key",
+                new ByteArrayInputStream(new byte[10]), "text/plain", false);
+            fail("Should not accept a bad signature");
+            }
+        catch (final S3ServiceException e)
+            {
+            assertEquals("SignatureDoesNotMatch", e.getErrorCode());
+            }
+        finally
+            {
+            wrongKey.shutdown();
+            }
+        }
+
+    @Test public void testListingAndBatchDelete() throws Exception
+        {
+        this.server.createBucket("bucket");
+        final List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 25; i++)
+            {
+            final String key = (i % 2 == 0 ? "even/" : "odd/") + "key" +
+                (100 + i);
+            this.server.putObject("bucket", key, new byte[i]);
+            keys.add(key);
+            }
+
+        // Pages of 7 keys, without a next marker from the server.
+        final List<String> listed = new ArrayList<String>();
+        final BucketListing listing = this.s3.listObjects("bucket");
+        while (listing.hasNext())
+            {
+            listed.add(listing.next().getKey());
+            }
+        assertEquals(new ArrayList<String>(this.server.getKeys("bucket")),
+            listed);
+
+        final BucketListing odd = this.s3.listObjects("bucket", "odd/", "/");
+        int count = 0;
+        while (odd.hasNext())
+            {
+            assertTrue(odd.next().getKey().startsWith("odd/"));
+            count++;
+            }
+        assertEquals(12, count);
+
+        final BucketListing dirs = this.s3.listObjects("bucket", "", "/");
+        assertFalse(dirs.hasNext());
+        assertEquals(Arrays.asList("even/", "odd/"),
+            new ArrayList<String>(dirs.getCommonPrefixes()));
+
+        this.s3.deleteAll("bucket", keys);
+        assertTrue(this.server.getKeys("bucket").isEmpty());
+        }
+
+    @Test public void testRetries() throws Exception
+        {
+        this.server.createBucket("bucket");
+        final byte[] data = new byte[1000];
+        new Random(1).nextBytes(data);
+
+        this.server.failNext(2, 503);
+        this.s3.putStream("bucket", "slow", new ByteArrayInputStream(data),
+            "binary/octet-stream", false);
+        assertArrayEquals(data, this.server.getObject("bucket", "slow"));
+
+        this.server.failNext(2, LocalS3Server.DROP_CONNECTION);
+        this.s3.putStream("bucket", "dropped",
+            new ByteArrayInputStream(data), "binary/octet-stream", false);
+        assertArrayEquals(data, this.server.getObject("bucket", "dropped"));
+
+        assertEquals(4, this.server.getFaultCount());
+        assertEquals(4, this.s3.getMetrics().getRetries());
+        assertEquals(2, this.s3.getMetrics().getStatusCodeCount(503));
+
+        // Five failures in a row trip the circuit breaker, which stops
+        // us sending the last retry at all.
+        this.server.failNext(10, 500);
+        final long before = this.server.getRequestCount();
+        try
+            {
+            this.s3.delete("bucket", "slow");
+            fail("Should have given up");
+            }
+        catch (final IOException e)
+            {
+            assertFalse(e instanceof S3ServiceException);
+            }
+        assertEquals(5, this.server.getRequestCount() - before);
+        }
+
+    @Test public void testRandomFaults() throws Exception
+        {
+        final AmazonS3Config config = new AmazonS3Config();
+        config.setCircuitBreakerThreshold(1000);
+        final AmazonS3Impl client = this.server.newClient(config);
+        this.server.createBucket("bucket");
+        this.server.setSlowDownRate(0.1);
+        this.server.setErrorRate(0.05);
+        this.server.setDropRate(0.05);
+        this.server.setLatency(1);
+        for (int i = 0; i < 30; i++)
+            {
+            client.putStream("bucket", "key" + i,
+                new ByteArrayInputStream(new byte[i]), "text/plain", false);
+            }
+        assertEquals(30, this.server.getKeys("bucket").size());
+        assertEquals(this.server.getRequestCount() - 30,
+            this.server.getFaultCount());
+        }
+    }
@@ -0,0 +1,118 @@
+package org.lastbamboo.common.amazon.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class MultipartUploadOutputStreamTest
+    {
+
+    private LocalS3Server server;
+
+    private AmazonS3Impl s3;
+
+    @Before public void setUp() throws Exception
+        {
+        this.server = new LocalS3Server();
+        this.server.start();
+        this.server.createBucket("bucket");
+        final AmazonS3Config config = new AmazonS3Config();
+        config.setPartSize(AmazonS3Config.MIN_PART_SIZE);
+        config.setPartUploadThreads(2);
+        this.s3 = this.server.newClient(config);
+        }
+
+    @After public void tearDown() throws Exception
+        {
+        this.server.stop();
+        }
+
+    @Test public void testMultipart() throws Exception
+        {
+        final byte[] data = new byte[(int) AmazonS3Config.MIN_PART_SIZE * 2 +
+            12345];
+        new Random(3).nextBytes(data);
+        this.s3.putStream("bucket", "stream.bin",
+            new ByteArrayInputStream(data), "binary/octet-stream", false);
+
+        assertArrayEquals(data, this.server.getObject("bucket", "stream.bin"));
+        // Multipart ETags end with the number of parts.
+        assertTrue(this.server.getETag("bucket", "stream.bin").endsWith("-3"));
+        assertEquals(0, this.server.getUploadsInProgress());
+        }
+
+    @Test public void testSmallStream() throws Exception
+        {
+        final byte[] data = "not much".getBytes("UTF-8");
+        this.s3.putStream("bucket", "small.txt",
+            new ByteArrayInputStream(data), "text/plain", false);
+        assertArrayEquals(data, this.server.getObject("bucket", "small.txt"));
+        assertFalse(this.server.getETag("bucket", "small.txt").contains("-"));
+
+        final OutputStream empty = new MultipartUploadOutputStream(this.s3,
+            "bucket", "empty.txt", "text/plain", false);
+        empty.close();
+        assertEquals(0, this.server.getObject("bucket", "empty.txt").length);
+        }
+
+    @Test public void testAbort() throws Exception
+        {
+        final MultipartUploadOutputStream os = new MultipartUploadOutputStream(
+            this.s3, "bucket", "aborted.bin", "binary/octet-stream", false);
+        os.write(new byte[(int) AmazonS3Config.MIN_PART_SIZE + 1]);
+        assertEquals(1, this.server.getUploadsInProgress());
+        os.abort();
+        assertEquals(0, this.server.getUploadsInProgress());
+        assertNull(this.server.getObject("bucket", "aborted.bin"));
+        try
+            {
+            os.write(1);
+            fail("Should not be able to write after aborting");
+            }
+        catch (final IOException e)
+            {
+            // Expected.
+            }
+        }
+
+    @Test public void testFailedPartsRetriedOnlyByPolicy() throws Exception
+        {
+        final AmazonS3Config config = new AmazonS3Config();
+        config.setRetryPolicy(
+            new ExponentialBackoffRetryPolicy(2, 0, 0, new RetryBudget()));
+        final AmazonS3Impl client = this.server.newClient(config);
+        final MultipartUpload upload = MultipartUpload.initiate(client,
+            "bucket", "failed.bin", "binary/octet-stream", false);
+        try
+            {
+            final long requests = this.server.getRequestCount();
+            this.server.failNext(3, 500);
+            try
+                {
+                upload.uploadPart(1,
+                    new ByteArrayRequestEntity(new byte[] {1, 2, 3}));
+                fail("Should have run out of retries");
+                }
+            catch (final S3ServiceException e)
+                {
+                assertEquals(500, e.getStatusCode());
+                }
+            // The first attempt and the policy's two retries, with no
+            // further rounds on top.
+            assertEquals(requests + 3, this.server.getRequestCount());
+            }
+        finally
+            {
+            upload.abort();
+            }
+        }
+    }
@@ -0,0 +1,136 @@
+package org.lastbamboo.common.amazon.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class MultipartUploaderTest
+    {
+
+    private final File dir = new File("target/multipart-uploader-test");
+
+    private LocalS3Server server;
+
+    private AmazonS3Impl s3;
+
+    @Before public void setUp() throws Exception
+        {
+        FileUtils.deleteDirectory(this.dir);
+        this.dir.mkdirs();
+        this.server = new LocalS3Server();
+        this.server.start();
+        this.server.createBucket("bucket");
+        final AmazonS3Config config = new AmazonS3Config();
+        config.setPartSize(AmazonS3Config.MIN_PART_SIZE);
+        config.setPartUploadThreads(2);
+        this.s3 = this.server.newClient(config);
+        }
+
+    @After public void tearDown() throws Exception
+        {
+        this.server.stop();
+        FileUtils.deleteDirectory(this.dir);
+        }
+
+    @Test public void testUpload() throws Exception
+        {
+        final byte[] data =
+            new byte[(int) (2 * AmazonS3Config.MIN_PART_SIZE + 1000)];
+        new Random(3).nextBytes(data);
+        final File file = new File(this.dir, "big.bin");
+        FileUtils.writeByteArrayToFile(file, data);
+        new MultipartUploader(this.s3).upload("bucket", "big.bin", file,
+            "binary/octet-stream", false);
+
+        assertTrue(this.server.getETag("bucket", "big.bin").endsWith("-3"));
+        assertArrayEquals(data, this.server.getObject("bucket", "big.bin"));
+        assertEquals(0, this.server.getUploadsInProgress());
+        }
+
+    @Test public void testEmptyFile() throws Exception
+        {
+        final File file = new File(this.dir, "empty.bin");
+        FileUtils.writeByteArrayToFile(file, new byte[0]);
+        this.s3.getConfig().setPartUploadThreads(0);
+        new MultipartUploader(this.s3).upload("bucket", "empty.bin", file,
+            "binary/octet-stream", false);
+
+        assertTrue(this.server.getETag("bucket", "empty.bin").endsWith("-1"));
+        assertEquals(0, this.server.getObject("bucket", "empty.bin").length);
+        }
+
+    @Test public void testAbortOnFailure() throws Exception
+        {
+        final File file = new File(this.dir, "failed.bin");
+        FileUtils.writeByteArrayToFile(file, new byte[1000]);
+        // Fail the part once the upload has started, and don't retry it.
+        final LocalS3Server s = this.server;
+        this.s3.getConfig().setRetryPolicy(new RetryPolicy()
+            {
+            private boolean started;
+
+            public long retryDelay(final int retries, final IOException e)
+                {
+                return -1;
+                }
+
+            public synchronized void onSuccess()
+                {
+                if (!this.started)
+                    {
+                    this.started = true;
+                    s.failNext(1, 500);
+                    }
+                }
+            });
+        try
+            {
+            new MultipartUploader(this.s3).upload("bucket", "failed.bin",
+                file, "binary/octet-stream", false);
+            fail("Should have failed");
+            }
+        catch (final S3ServiceException e)
+            {
+            assertEquals(500, e.getStatusCode());
+            }
+        assertNull(this.server.getObject("bucket", "failed.bin"));
+        assertEquals(0, this.server.getUploadsInProgress());
+        }
+
+    @Test public void testPartSize() throws Exception
+        {
+        final long min = AmazonS3Config.MIN_PART_SIZE;
+        assertEquals(min, MultipartUploader.partSize(0, min));
+        assertEquals(min, MultipartUploader.partSize(
+            min * AmazonS3Config.MAX_PARTS, min));
+
+        // A file too big for 10,000 parts of the configured size gets
+        // parts just big enough to fit.
+        final long length = min * AmazonS3Config.MAX_PARTS + 1;
+        final long partSize = MultipartUploader.partSize(length, min);
+        assertEquals(min + 1, partSize);
+        assertTrue((length + partSize - 1) / partSize <=
+            AmazonS3Config.MAX_PARTS);
+
+        final AmazonS3Config config = new AmazonS3Config();
+        try
+            {
+            config.setMultipartThreshold(min - 1);
+            fail("Should reject thresholds below the smallest part");
+            }
+        catch (final IllegalArgumentException e)
+            {
+            // Expected.
+            }
+        config.setMultipartThreshold(min);
+        assertEquals(min, config.getMultipartThreshold());
+        }
+    }
@@ -0,0 +1,141 @@
+package org.lastbamboo.common.amazon.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class ObjectCacheTest
+    {
+
+    private File dir;
+
+    @Before public void setUp() throws Exception
+        {
+        this.dir = new File("target/object-cache-test");
+        FileUtils.deleteDirectory(this.dir);
+        }
+
+    @After public void tearDown() throws Exception
+        {
+        FileUtils.deleteDirectory(this.dir);
+        }
+
+    @Test public void testLeastRecentlyUsedEviction() throws Exception
+        {
+        final ObjectCache cache = new ObjectCache(this.dir, 25);
+        assertNotNull(cache.put("bucket/a", download(cache, 10), "\"a\"", 
+            null));
+        assertNotNull(cache.put("bucket/b", download(cache, 10), "\"b\"", 
+            null));
+
+        // Touch a so b is the least recently used.
+        assertEquals("\"a\"", cache.get("bucket/a").getETag());
+        cache.put("bucket/c", download(cache, 10), "\"c\"", null);
+        assertNull(cache.get("bucket/b"));
+        assertNotNull(cache.get("bucket/a"));
+        assertNotNull(cache.get("bucket/c"));
+        assertEquals(20, cache.getSize());
+        assertEquals(1, cache.getEvictions());
+
+        // Too big to ever fit.
+        final File big = download(cache, 30);
+        assertNull(cache.put("bucket/big", big, "\"big\"", null));
+        assertTrue(big.isFile());
+        }
+
+    @Test public void testIndexSurvivesRestart() throws Exception
+        {
+        final ObjectCache cache = new ObjectCache(this.dir, 1000);
+        cache.put("bucket/dir/file.txt", download(cache, 10), "\"abc\"", 
+            "Tue, 27 Mar 2007 19:36:42 GMT");
+        cache.close();
+
+        final ObjectCache reloaded = new ObjectCache(this.dir, 1000);
+        final ObjectCache.Entry entry = reloaded.get("bucket/dir/file.txt");
+        assertEquals("\"abc\"", entry.getETag());
+        assertEquals("Tue, 27 Mar 2007 19:36:42 GMT", entry.getLastModified());
+        assertEquals(10, reloaded.getSize());
+
+        final File target = new File(this.dir, "target.txt");
+        assertTrue(reloaded.copy(entry, target));
+        assertEquals(10, target.length());
+        }
+
+    @Test public void testCopyAfterEviction() throws Exception
+        {
+        final ObjectCache cache = new ObjectCache(this.dir, 15);
+        cache.put("bucket/a", download(cache, 10), "\"a\"", null);
+        final ObjectCache.Entry entry = cache.get("bucket/a");
+        cache.put("bucket/b", download(cache, 10), "\"b\"", null);
+
+        // The entry was evicted between looking it up and copying it.
+        final File target = new File(this.dir, "target.txt");
+        assertFalse(cache.copy(entry, target));
+        assertFalse(target.exists());
+
+        // Replaced entries aren't copied either.
+        final ObjectCache.Entry old = cache.get("bucket/b");
+        cache.put("bucket/b", download(cache, 5), "\"b2\"", null);
+        assertFalse(cache.copy(old, target));
+        assertTrue(cache.copy(cache.get("bucket/b"), target));
+        assertEquals(5, target.length());
+        }
+
+    @Test public void testUnsavedEntriesDiscarded() throws Exception
+        {
+        final ObjectCache cache = new ObjectCache(this.dir, 1000);
+        cache.put("bucket/a", download(cache, 10), "\"a\"", null);
+        download(cache, 10);
+
+        // We never closed the cache, so the index was never written and
+        // whatever it left behind is cleaned up.
+        final ObjectCache reloaded = new ObjectCache(this.dir, 1000);
+        assertNull(reloaded.get("bucket/a"));
+        assertEquals(0, reloaded.getSize());
+        assertEquals(0, new File(this.dir, "objects").list().length);
+        }
+
+    @Test public void testConditionalGet() throws Exception
+        {
+        final LocalS3Server server = new LocalS3Server();
+        server.start();
+        server.createBucket("bucket");
+        server.putObject("bucket", "key", "hello".getBytes("UTF-8"));
+        final AmazonS3Config config = new AmazonS3Config();
+        config.setCacheDir(new File(this.dir, "cache"));
+        final AmazonS3Impl s3 = server.newClient(config);
+        try
+            {
+            final File target = new File(this.dir, "target.txt");
+            s3.getPrivateFile("bucket", "key", target);
+            s3.getPrivateFile("bucket", "key", target);
+            assertEquals("hello", FileUtils.readFileToString(target, "UTF-8"));
+            final ObjectCache cache = s3.getObjectCache();
+            assertEquals(1, cache.getMisses());
+            assertEquals(1, cache.getHits());
+            }
+        finally
+            {
+            server.stop();
+            }
+
+        // Shutting down flushed the index.
+        final ObjectCache reloaded =
+            new ObjectCache(new File(this.dir, "cache"), 1000);
+        assertEquals(5, reloaded.getSize());
+        }
+
+    private static File download(final ObjectCache cache, final int size) 
+        throws Exception
+        {
+        final File file = cache.newTempFile();
+        FileUtils.writeByteArrayToFile(file, new byte[size]);
+        return file;
+        }
+    }
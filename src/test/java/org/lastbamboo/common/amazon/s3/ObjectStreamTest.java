@@ -0,0 +1,123 @@
+package org.lastbamboo.common.amazon.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class ObjectStreamTest
+    {
+
+    private final byte[] data = new byte[3 * 1024 * 1024 + 11];
+
+    private LocalS3Server server;
+
+    private AmazonS3Impl s3;
+
+    @Before public void setUp() throws Exception
+        {
+        new Random(5).nextBytes(this.data);
+        this.server = new LocalS3Server();
+        this.server.start();
+        this.server.putObject("bucket", "object", this.data);
+        final AmazonS3Config config = new AmazonS3Config();
+        // A single connection, so a stream that doesn't release it would
+        // hang the next request.
+        config.setMaxConnectionsPerHost(1);
+        this.s3 = this.server.newClient(config);
+        }
+
+    @After public void tearDown() throws Exception
+        {
+        this.server.stop();
+        }
+
+    @Test(timeout = 30000) public void testStream() throws Exception
+        {
+        final InputStream whole =
+            this.s3.getObjectStream("bucket", "object", null, false);
+        try
+            {
+            assertArrayEquals(this.data, IOUtils.toByteArray(whole));
+            }
+        finally
+            {
+            whole.close();
+            }
+
+        // Closing early gives up the connection without reading the rest.
+        for (int i = 0; i < 3; i++)
+            {
+            final InputStream partial =
+                this.s3.getObjectStream("bucket", "object", null, false);
+            final byte[] start = new byte[100];
+            IOUtils.readFully(partial, start);
+            partial.close();
+            assertArrayEquals(Arrays.copyOf(this.data, 100), start);
+            }
+        }
+
+    @Test(timeout = 30000) public void testRanges() throws Exception
+        {
+        final ReadableByteChannel channel = this.s3.getObjectChannel(
+            "bucket", "object", ByteRange.of(1000, 1999), false);
+        final ByteBuffer buf = ByteBuffer.allocate(2000);
+        try
+            {
+            while (channel.read(buf) != -1)
+                {
+                // Keep reading.
+                }
+            }
+        finally
+            {
+            channel.close();
+            }
+        buf.flip();
+        assertEquals(1000, buf.remaining());
+        final byte[] range = new byte[1000];
+        buf.get(range);
+        assertArrayEquals(Arrays.copyOfRange(this.data, 1000, 2000), range);
+
+        final InputStream tail = this.s3.getObjectStream("bucket", "object",
+            ByteRange.last(10), false);
+        try
+            {
+            assertArrayEquals(Arrays.copyOfRange(this.data,
+                this.data.length - 10, this.data.length),
+                IOUtils.toByteArray(tail));
+            }
+        finally
+            {
+            tail.close();
+            }
+
+        assertEquals("bytes=5-", ByteRange.from(5).toHeader());
+        }
+
+    @Test(timeout = 30000) public void testChunks() throws Exception
+        {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        this.s3.getObject("bucket", "object", ByteRange.from(7), false,
+            new ChunkHandler()
+            {
+            public void handleChunk(final ByteBuffer chunk)
+                {
+                out.write(chunk.array(), chunk.arrayOffset() +
+                    chunk.position(), chunk.remaining());
+                }
+            });
+        assertArrayEquals(Arrays.copyOfRange(this.data, 7, this.data.length),
+            out.toByteArray());
+        }
+    }
@@ -0,0 +1,126 @@
+package org.lastbamboo.common.amazon.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class RangedDownloaderTest
+    {
+
+    private final File dir = new File("target/ranged-downloader-test");
+
+    private LocalS3Server server;
+
+    private AmazonS3Impl s3;
+
+    @Before public void setUp() throws Exception
+        {
+        FileUtils.deleteDirectory(this.dir);
+        this.dir.mkdirs();
+        this.server = new LocalS3Server();
+        this.server.start();
+        this.server.createBucket("bucket");
+        final AmazonS3Config config = new AmazonS3Config();
+        config.setSegmentedDownloads(true);
+        config.setSegmentedDownloadThreshold(0);
+        config.setSegmentSize(64 * 1024);
+        config.setDownloadThreads(3);
+        this.s3 = this.server.newClient(config);
+        }
+
+    @After public void tearDown() throws Exception
+        {
+        this.server.stop();
+        FileUtils.deleteDirectory(this.dir);
+        }
+
+    @Test public void testDownload() throws Exception
+        {
+        final byte[] data = new byte[1000 * 1000];
+        new Random(4).nextBytes(data);
+        this.server.putObject("bucket", "big.bin", data);
+        final long requests = this.server.getRequestCount();
+
+        final File target = new File(this.dir, "big.bin");
+        this.s3.getPrivateFile("bucket", "big.bin", target);
+        assertArrayEquals(data, FileUtils.readFileToByteArray(target));
+        // A HEAD for the length, then 16 ranges.
+        assertEquals(requests + 17, this.server.getRequestCount());
+        }
+
+    @Test public void testEmptyObject() throws Exception
+        {
+        this.server.putObject("bucket", "empty.bin", new byte[0]);
+        final File target = new File(this.dir, "empty.bin");
+        this.s3.getPrivateFile("bucket", "empty.bin", target);
+        assertTrue(target.isFile());
+        assertEquals(0, target.length());
+        }
+
+    @Test public void testObjectReplaced() throws Exception
+        {
+        this.server.putObject("bucket", "changed.bin", new byte[200 * 1000]);
+        final File target = new File(this.dir, "changed.bin");
+        try
+            {
+            // As if the object was replaced after we sent the HEAD.
+            new RangedDownloader(this.s3).download(
+                this.server.getUrl() + "/bucket/changed.bin",
+                "bucket/changed.bin", true, 200 * 1000, "\"old\"", target);
+            fail("Should not mix ranges from different versions");
+            }
+        catch (final S3ServiceException e)
+            {
+            assertEquals(412, e.getStatusCode());
+            }
+        assertFalse(target.exists());
+        }
+
+    @Test public void testValidation() throws Exception
+        {
+        final AmazonS3Config config = new AmazonS3Config();
+        try
+            {
+            config.setSegmentSize(0);
+            fail("Should reject empty segments");
+            }
+        catch (final IllegalArgumentException e)
+            {
+            // Expected.
+            }
+        try
+            {
+            config.setDownloadThreads(0);
+            fail("Should reject zero threads");
+            }
+        catch (final IllegalArgumentException e)
+            {
+            // Expected.
+            }
+        try
+            {
+            config.setSegmentRetries(-1);
+            fail("Should reject negative retries");
+            }
+        catch (final IllegalArgumentException e)
+            {
+            // Expected.
+            }
+        try
+            {
+            config.setSegmentedDownloadThreshold(-1);
+            fail("Should reject a negative threshold");
+            }
+        catch (final IllegalArgumentException e)
+            {
+            // Expected.
+            }
+        }
+    }
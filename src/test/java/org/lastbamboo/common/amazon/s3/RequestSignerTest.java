@@ -0,0 +1,47 @@
+package org.lastbamboo.common.amazon.s3;
+
+import static org.junit.Assert.*;
+
+import java.util.Date;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.util.DateUtil;
+import org.junit.Test;
+import org.littleshoot.util.SecurityUtils;
+
+
+public class RequestSignerTest
+    {
+
+    @Test public void testMatchesOldSigner() throws Exception
+        {
+        final RequestSigner signer = new RequestSigner("id", "secret");
+        final GetMethod method =
+            new GetMethod("https://s3.amazonaws.com/bucket/file.txt");
+        method.setRequestHeader("Date", "Tue, 27 Mar 2007 19:36:42 +0000");
+        method.setRequestHeader("X-Amz-Meta-Name", "test");
+        method.setRequestHeader("x-amz-acl", "public-read");
+
+        final String canonical = AmazonS3Utils.makeCanonicalString("GET",
+            "bucket/file.txt", method.getRequestHeaders());
+        final String expected = SecurityUtils.signAndEncode("secret",
+            canonical);
+        final Header auth =
+            signer.createAuthHeader(method, "GET", "bucket/file.txt");
+        assertEquals("AWS id:" + expected, auth.getValue());
+
+        // The reused MAC and builder shouldn't leak state between requests.
+        assertEquals(auth.getValue(),
+            signer.createAuthHeader(method, "GET", "bucket/file.txt").getValue());
+        }
+
+    @Test public void testHttpDate() throws Exception
+        {
+        final String date = RequestSigner.currentHttpDate();
+        final Date parsed = DateUtil.parseDate(date);
+        assertTrue(Math.abs(System.currentTimeMillis() - parsed.getTime())
+            < 5000);
+        assertEquals(DateUtil.formatDate(parsed), date);
+        }
+    }
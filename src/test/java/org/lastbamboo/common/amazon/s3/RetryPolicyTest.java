@@ -0,0 +1,96 @@
+package org.lastbamboo.common.amazon.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+import org.junit.Test;
+
+
+public class RetryPolicyTest
+    {
+
+    @Test public void testBackoffWithJitter() throws Exception
+        {
+        final ExponentialBackoffRetryPolicy policy = 
+            new ExponentialBackoffRetryPolicy(10, 100, 1000, 
+                new RetryBudget(10000, 1));
+        assertEquals(100, policy.cap(0));
+        assertEquals(800, policy.cap(3));
+        assertEquals(1000, policy.cap(4));
+        assertEquals(1000, policy.cap(100));
+
+        final IOException slowDown = new S3ServiceException("Slow down", 503,
+            "SlowDown");
+        for (int i = 0; i < 1000; i++)
+            {
+            final long delay = policy.retryDelay(2, slowDown);
+            assertTrue(delay >= 0 && delay <= 400);
+            }
+        assertEquals(-1, policy.retryDelay(10, slowDown));
+        }
+
+    @Test public void testOnlyTransientErrorsRetried() throws Exception
+        {
+        final RetryPolicy policy = new ExponentialBackoffRetryPolicy();
+        assertTrue(policy.retryDelay(0, 
+            new S3ServiceException("Internal", 500, "InternalError")) >= 0);
+        assertTrue(policy.retryDelay(0, new SocketTimeoutException()) >= 0);
+        assertTrue(policy.retryDelay(0, new IOException("Reset")) >= 0);
+        assertEquals(-1, policy.retryDelay(0, 
+            new S3ServiceException("Denied", 403, "AccessDenied")));
+        assertEquals(-1, policy.retryDelay(0, new UnknownHostException()));
+        }
+
+    @Test public void testBudget() throws Exception
+        {
+        final RetryBudget budget = new RetryBudget(10, 5);
+        final RetryPolicy policy = 
+            new ExponentialBackoffRetryPolicy(5, 0, 0, budget);
+        final IOException error = new IOException("Reset");
+        assertEquals(0, policy.retryDelay(0, error));
+        assertEquals(0, policy.retryDelay(0, error));
+        assertEquals(-1, policy.retryDelay(0, error));
+        for (int i = 0; i < 5; i++)
+            {
+            policy.onSuccess();
+            }
+        assertEquals(0, policy.retryDelay(0, error));
+        }
+
+    @Test public void testCircuitBreaker() throws Exception
+        {
+        final CircuitBreaker breaker = 
+            new CircuitBreaker("s3.amazonaws.com", 3, 50);
+        for (int i = 0; i < 3; i++)
+            {
+            breaker.beforeRequest();
+            breaker.onFailure();
+            }
+        assertTrue(breaker.isOpen());
+        try
+            {
+            breaker.beforeRequest();
+            fail("Circuit should be open");
+            }
+        catch (final IOException e)
+            {
+            // Expected.
+            }
+
+        // After the open period, one trial goes through.  If it fails 
+        // the circuit stays open.
+        Thread.sleep(60);
+        breaker.beforeRequest();
+        breaker.onFailure();
+        assertTrue(breaker.isOpen());
+
+        Thread.sleep(60);
+        breaker.beforeRequest();
+        breaker.onSuccess();
+        assertFalse(breaker.isOpen());
+        breaker.beforeRequest();
+        }
+    }
@@ -0,0 +1,165 @@
+package org.lastbamboo.common.amazon.s3;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.httpclient.methods.DeleteMethod;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.PutMethod;
+import org.junit.Test;
+
+
+public class S3MetricsTest
+    {
+
+    @Test public void testHistogramBuckets() throws Exception
+        {
+        for (long value = 0; value < 100000; value++)
+            {
+            final int bucket = LatencyHistogram.bucket(value);
+            assertTrue(value <= LatencyHistogram.upperBound(bucket));
+            if (bucket > 0)
+                {
+                assertTrue(value > LatencyHistogram.upperBound(bucket - 1));
+                }
+            }
+        }
+
+    @Test public void testPercentiles() throws Exception
+        {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++)
+            {
+            histogram.record(i * 1000);
+            }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000, histogram.getMax());
+        assertEquals(500500, histogram.getMean(), 1);
+
+        // Buckets are within about 6% of the value.
+        assertEquals(500000, histogram.getPercentile(50), 500000 * 0.07);
+        assertEquals(990000, histogram.getPercentile(99), 990000 * 0.07);
+        assertEquals(1000000, histogram.getPercentile(100));
+        }
+
+    @Test public void testOperations() throws Exception
+        {
+        assertEquals(S3Metrics.GET, S3Metrics.operation(
+            new GetMethod("http://s3.amazonaws.com/bucket/key")));
+        assertEquals(S3Metrics.LIST, S3Metrics.operation(
+            new GetMethod("http://s3.amazonaws.com/bucket?prefix=a")));
+        assertEquals(S3Metrics.LIST, S3Metrics.operation(
+            new GetMethod("http://s3.amazonaws.com/")));
+        assertEquals(S3Metrics.CREATE_BUCKET, S3Metrics.operation(
+            new PutMethod("http://s3.amazonaws.com/bucket")));
+        assertEquals(S3Metrics.PUT, S3Metrics.operation(
+            new PutMethod("http://s3.amazonaws.com/bucket/key")));
+        assertEquals(S3Metrics.PUT, S3Metrics.operation(
+            new PostMethod("http://s3.amazonaws.com/bucket/key?uploads")));
+        assertEquals(S3Metrics.DELETE, S3Metrics.operation(
+            new PostMethod("http://s3.amazonaws.com/bucket?delete")));
+        assertEquals(S3Metrics.DELETE, S3Metrics.operation(
+            new DeleteMethod("http://s3.amazonaws.com/bucket/key")));
+        assertEquals(S3Metrics.PUT,
+            S3Metrics.operation("PUT", "bucket/key?partNumber=1&uploadId=x"));
+        assertEquals(S3Metrics.LIST, S3Metrics.operation("GET", ""));
+        }
+
+    @Test public void testRoutedOperations() throws Exception
+        {
+        final AmazonS3Impl s3 = new AmazonS3Impl("id", "secret",
+            "http://s3.amazonaws.com", "https://s3.amazonaws.com",
+            new AmazonS3Config());
+        try
+            {
+            // With the bucket in the host name the wire path looks like a
+            // bucket, so we go by what the request was signed for.
+            final String base = "https://bucket.s3.eu-west-1.amazonaws.com";
+            final GetMethod get = new GetMethod(base + "/key");
+            s3.normalizeRequest(get, "GET", "bucket/key", false, true);
+            assertEquals(S3Metrics.GET, S3Metrics.operation(get));
+
+            final PutMethod put = new PutMethod(base + "/key");
+            s3.normalizeRequest(put, "PUT", "bucket/key", false, true);
+            assertEquals(S3Metrics.PUT, S3Metrics.operation(put));
+
+            final GetMethod list = new GetMethod(base + "/?prefix=a");
+            s3.normalizeRequest(list, "GET", "bucket?prefix=a", false, true);
+            assertEquals(S3Metrics.LIST, S3Metrics.operation(list));
+            }
+        finally
+            {
+            s3.shutdown();
+            }
+        }
+
+    @Test public void testJmx() throws Exception
+        {
+        final S3Metrics metrics = new S3Metrics();
+        metrics.requestStarted();
+        metrics.requestFinished(200);
+        metrics.requestStarted();
+        metrics.requestFinished(503);
+        metrics.recordRetry(S3Metrics.PUT);
+        metrics.recordOperation(S3Metrics.PUT, 2000000, true);
+        metrics.addBytesSent(100);
+
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        metrics.register(server);
+        try
+            {
+            final ObjectName query = new ObjectName(
+                "org.lastbamboo.common.amazon.s3:type=S3Metrics,*");
+            ObjectName name = null;
+            for (final ObjectName candidate : server.queryNames(query, null))
+                {
+                if (candidate.getKeyProperty("operation") == null)
+                    {
+                    name = candidate;
+                    }
+                }
+            assertEquals(2L, server.getAttribute(name, "Requests"));
+            assertEquals(100L, server.getAttribute(name, "BytesSent"));
+            assertEquals("200=1, 503=1", 
+                server.getAttribute(name, "StatusCodes"));
+
+            final ObjectName put = new ObjectName(name + ",operation=put");
+            assertEquals(1L, server.getAttribute(put, "Count"));
+            assertEquals(1L, server.getAttribute(put, "Retries"));
+            assertEquals(2.0, 
+                (Double) server.getAttribute(put, "MaxMillis"), 0.2);
+            }
+        finally
+            {
+            metrics.unregister(server);
+            }
+        assertTrue(server.queryNames(new ObjectName(
+            "org.lastbamboo.common.amazon.s3:type=S3Metrics,*"), null).isEmpty());
+        }
+
+    @Test public void testJmxOptIn() throws Exception
+        {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName query = new ObjectName(
+            "org.lastbamboo.common.amazon.s3:type=S3Metrics,*");
+
+        // Clients that are never shut down mustn't leave MBeans behind.
+        final AmazonS3Impl quiet = new AmazonS3Impl("id", "secret",
+            "http://localhost", "https://localhost", new AmazonS3Config());
+        assertTrue(server.queryNames(query, null).isEmpty());
+        quiet.shutdown();
+
+        final AmazonS3Config config = new AmazonS3Config();
+        config.setJmxEnabled(true);
+        final AmazonS3Impl published = new AmazonS3Impl("id", "secret",
+            "http://localhost", "https://localhost", config);
+        assertFalse(server.queryNames(query, null).isEmpty());
+        published.shutdown();
+        assertTrue(server.queryNames(query, null).isEmpty());
+        }
+    }
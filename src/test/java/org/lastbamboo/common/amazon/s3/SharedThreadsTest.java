@@ -0,0 +1,46 @@
+package org.lastbamboo.common.amazon.s3;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+
+public class SharedThreadsTest
+    {
+
+    @Test public void testClientsShareThreads() throws Exception
+        {
+        final List<AmazonS3Impl> clients = new ArrayList<AmazonS3Impl>();
+        for (int i = 0; i < 20; i++)
+            {
+            clients.add(new AmazonS3Impl("id", "secret", "http://127.0.0.1:1",
+                "http://127.0.0.1:1", new AmazonS3Config()));
+            }
+        assertEquals(1, countThreads("S3-Idle-Connection-Thread"));
+        assertSame(clients.get(0).getBackgroundExecutor(),
+            clients.get(1).getBackgroundExecutor());
+
+        for (final AmazonS3Impl s3 : clients)
+            {
+            s3.shutdown();
+            }
+        // The shared executor still works for everyone else.
+        assertFalse(clients.get(0).getBackgroundExecutor().isShutdown());
+        }
+
+    private static int countThreads(final String prefix)
+        {
+        int count = 0;
+        for (final Thread thread : Thread.getAllStackTraces().keySet())
+            {
+            if (thread.getName().startsWith(prefix))
+                {
+                count++;
+                }
+            }
+        return count;
+        }
+    }
@@ -0,0 +1,55 @@
+package org.lastbamboo.common.amazon.s3;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+
+public class VirtualThreadsTest
+    {
+
+    @Test public void testExecutorMatchesJvm() throws Exception
+        {
+        final AmazonS3Config config = new AmazonS3Config();
+        config.setVirtualThreads(true);
+        final AmazonS3Impl s3 = new AmazonS3Impl("id", "secret", 
+            "http://s3.amazonaws.com", "https://s3.amazonaws.com:443", config);
+        try
+            {
+            final ExecutorService executor = s3.newExecutor("test", 2);
+            final Thread thread = executor.submit(new Callable<Thread>()
+                {
+                public Thread call()
+                    {
+                    return Thread.currentThread();
+                    }
+                }).get(5, TimeUnit.SECONDS);
+            executor.shutdown();
+            
+            // On older JVMs we quietly fall back to platform threads.
+            assertEquals(VirtualThreads.isSupported(), isVirtual(thread));
+            assertEquals(VirtualThreads.isSupported() ? 20 : 2, 
+                s3.parallelism(2));
+            }
+        finally
+            {
+            s3.shutdown();
+            }
+        }
+
+    private static boolean isVirtual(final Thread thread) throws Exception
+        {
+        try
+            {
+            return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+            }
+        catch (final NoSuchMethodException e)
+            {
+            return false;
+            }
+        }
+    }